@@ -0,0 +1,150 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ **********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at       
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ********************************************************************************************** 
+*/
+package io.seldon.spark.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the binary model layout memory mapped by the server's io.seldon.recommendation.model.BinaryModel:
+ * named column blocks of ints, longs or floats behind a small directory, all little endian.
+ * Keep the two in step. Each block is mapped as its own region so the file may be larger than 2GB,
+ * but a single block can not be.
+ */
+public class BinaryModelWriter {
+
+	public static final int MAGIC = 0x4d444c53; // "SLDM" when read little endian
+	public static final int VERSION = 1;
+
+	private static final byte TYPE_INT = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_FLOAT = 3;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<Object> data = new ArrayList<Object>();
+	private final List<Byte> types = new ArrayList<Byte>();
+	private final List<int[]> shapes = new ArrayList<int[]>();
+
+	public BinaryModelWriter addInts(String name,int[] values,int rows,int cols)
+	{
+		return add(name, values, TYPE_INT, rows, cols);
+	}
+
+	public BinaryModelWriter addLongs(String name,long[] values,int rows,int cols)
+	{
+		return add(name, values, TYPE_LONG, rows, cols);
+	}
+
+	public BinaryModelWriter addFloats(String name,float[] values,int rows,int cols)
+	{
+		return add(name, values, TYPE_FLOAT, rows, cols);
+	}
+
+	private BinaryModelWriter add(String name,Object values,byte type,int rows,int cols)
+	{
+		names.add(name);
+		data.add(values);
+		types.add(type);
+		shapes.add(new int[] {rows,cols});
+		return this;
+	}
+
+	public void write(File file) throws IOException
+	{
+		write(file, 0);
+	}
+
+	/**
+	 * @param dataStart the earliest offset for the first block; the gap after the header is left unwritten
+	 */
+	void write(File file,long dataStart) throws IOException
+	{
+		long headerSize = 12;
+		for(String name : names)
+			headerSize += 2 + name.getBytes("UTF-8").length + 1 + 4 + 4 + 8;
+		long[] offsets = new long[names.size()];
+		long size = align(Math.max(headerSize, dataStart));
+		for(int i=0;i<names.size();i++)
+		{
+			offsets[i] = size;
+			size = align(size + (long) shapes.get(i)[0] * shapes.get(i)[1] * (types.get(i) == TYPE_LONG ? 8 : 4));
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(names.size());
+			for(int i=0;i<names.size();i++)
+			{
+				byte[] name = names.get(i).getBytes("UTF-8");
+				header.putShort((short) name.length);
+				header.put(name);
+				header.put(types.get(i));
+				header.putInt(shapes.get(i)[0]);
+				header.putInt(shapes.get(i)[1]);
+				header.putLong(offsets[i]);
+			}
+			header.force();
+			for(int i=0;i<names.size();i++)
+			{
+				long length = (long) shapes.get(i)[0] * shapes.get(i)[1] * (types.get(i) == TYPE_LONG ? 8 : 4);
+				if (length > Integer.MAX_VALUE)
+					throw new IOException("Block "+names.get(i)+" is too large to map");
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, offsets[i], length);
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				int n = shapes.get(i)[0] * shapes.get(i)[1];
+				switch(types.get(i))
+				{
+				case TYPE_INT:
+					buf.asIntBuffer().put((int[]) data.get(i), 0, n);
+					break;
+				case TYPE_LONG:
+					buf.asLongBuffer().put((long[]) data.get(i), 0, n);
+					break;
+				default:
+					buf.asFloatBuffer().put((float[]) data.get(i), 0, n);
+				}
+				buf.force();
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static long align(long offset)
+	{
+		return (offset + 7) & ~7L;
+	}
+}
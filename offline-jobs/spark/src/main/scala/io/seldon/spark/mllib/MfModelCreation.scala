@@ -22,6 +22,7 @@
 package io.seldon.spark.mllib
 
 import _root_.io.seldon.spark.rdd.FileUtils
+import _root_.io.seldon.spark.model.BinaryModelWriter
 import io.seldon.spark.zookeeper.ZkCuratorHandler
 import java.io.File
 import java.text.SimpleDateFormat
@@ -225,6 +226,30 @@ class MfModelCreation(private val sc : SparkContext,config : MfConfig) {
     val gzipUserFile:File = FileUtils.gzip(userFile.getAbsolutePath)
     println(gzipUserFile.getAbsolutePath)
     val gzipProdFile = FileUtils.gzip(productFile.getAbsolutePath)
+    outputToBinaryFile(model, new File(outputFilesLocation+yesterdayUnix+"/model.bin"))
+  }
+
+  /**
+   * Write user and product features in the binary model layout the server can memory map instead of parsing text
+   */
+  def outputToBinaryFile(model: MatrixFactorizationModel, binaryFile: File): Unit = {
+    val writer = new BinaryModelWriter()
+    addFeatures(writer, "user", model.userFeatures.collect())
+    addFeatures(writer, "product", model.productFeatures.collect())
+    writer.write(binaryFile)
+  }
+
+  def addFeatures(writer: BinaryModelWriter, prefix: String, features: Array[(Int, Array[Double])]): Unit = {
+    val rank = if (features.isEmpty) 0 else features(0)._2.length
+    val ids = new Array[Long](features.length)
+    val values = new Array[Float](features.length * rank)
+    for (row <- 0 until features.length) {
+      ids(row) = features(row)._1.toLong
+      for (i <- 0 until rank)
+        values(row * rank + i) = features(row)._2(i).toFloat
+    }
+    writer.addLongs(prefix + ".ids", ids, features.length, 1)
+    writer.addFloats(prefix + ".features", values, features.length, rank)
   }
 
   def outputToFile(model: MatrixFactorizationModel, userFile: File, prodFile: File): Unit = {
@@ -258,6 +283,9 @@ class MfModelCreation(private val sc : SparkContext,config : MfConfig) {
     val gzipUserFile:File = FileUtils.gzip(tmpUserFile.getAbsolutePath)
     println(gzipUserFile.getAbsolutePath)
     val gzipProdFile = FileUtils.gzip(tmpProdFile.getAbsolutePath)
+    val tmpBinaryFile = File.createTempFile("mfModelBinary",".tmp")
+    tmpBinaryFile.deleteOnExit()
+    outputToBinaryFile(model, tmpBinaryFile)
     val service: S3Service = new RestS3Service(new AWSCredentials(System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY")))
     val bucketString = outputFilesLocation.split("/")(0)
     val bucket = service.getBucket(bucketString)
@@ -277,6 +305,10 @@ class MfModelCreation(private val sc : SparkContext,config : MfConfig) {
     objProdZip.setKey(s3Folder+yesterdayUnix+"/productFeatures.txt.gz")
     service.putObject(bucket, objProdZip)
     System.out.println("Uploading product features to " + bucketString + " bucket " + objProd.getKey + " file")
+    val objBinary = new S3Object(tmpBinaryFile)
+    objBinary.setKey(s3Folder+yesterdayUnix+"/model.bin")
+    service.putObject(bucket, objBinary)
+    System.out.println("Uploading binary model to " + bucketString + " bucket " + objBinary.getKey + " file")
   }
 
   def outputModelToFile(model: MatrixFactorizationModel,outputFilesLocation:String, outputType:DataSourceMode, client:String, yesterdayUnix: Long) {
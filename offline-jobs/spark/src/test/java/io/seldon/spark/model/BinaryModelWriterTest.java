@@ -0,0 +1,121 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.spark.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class BinaryModelWriterTest {
+
+	private static ByteBuffer read(RandomAccessFile raf,long position,int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		raf.seek(position);
+		raf.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Test
+	public void blocksShouldBeWrittenAtTheirOffsets() throws IOException
+	{
+		File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		try
+		{
+			new BinaryModelWriter()
+				.addInts("ids", new int[] {1,2,3}, 3, 1)
+				.addFloats("vectors", new float[] {0.5f,1.5f}, 1, 2)
+				.write(file);
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				ByteBuffer header = read(raf, 0, 12);
+				assertEquals(BinaryModelWriter.MAGIC, header.getInt());
+				assertEquals(BinaryModelWriter.VERSION, header.getInt());
+				assertEquals(2, header.getInt());
+				// "ids": name length, name, type, rows, cols then the offset
+				long idsOffset = read(raf, 12 + 2 + 3 + 1 + 8, 8).getLong();
+				long vectorsOffset = read(raf, 12 + 2 + 3 + 17 + 2 + 7 + 1 + 8, 8).getLong();
+				assertEquals(0, idsOffset % 8);
+				ByteBuffer ids = read(raf, idsOffset, 12);
+				assertEquals(1, ids.getInt());
+				assertEquals(3, ids.getInt(8));
+				ByteBuffer vectors = read(raf, vectorsOffset, 8);
+				assertEquals(0.5f, vectors.getFloat(), 0);
+				assertEquals(1.5f, vectors.getFloat(), 0);
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void blocksPast2GBShouldBeWritten() throws IOException
+	{
+		File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		// the gap before the block is never written so the file stays sparse
+		final long start = 3L * 1024 * 1024 * 1024;
+		try
+		{
+			new BinaryModelWriter()
+				.addLongs("tail", new long[] {7,8,9}, 3, 1)
+				.write(file, start);
+			assertTrue(file.length() > Integer.MAX_VALUE);
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				long offset = read(raf, 12 + 2 + 4 + 1 + 8, 8).getLong();
+				assertEquals(start, offset);
+				ByteBuffer tail = read(raf, offset, 24);
+				assertEquals(7, tail.getLong());
+				assertEquals(8, tail.getLong());
+				assertEquals(9, tail.getLong());
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
@@ -70,6 +70,7 @@ public class APIException extends RuntimeException {
     public static final int FACEBOOK_RESPONSE = 36;
 	public static final int NOT_VALID_STRATEGY = 37;
 	public static final int INVALID_JSON = 38;
+	public static final int BATCH_TOO_LARGE = 39;
 
     //ATTRIBUTES
     int error_id;
@@ -227,6 +228,10 @@ public class APIException extends RuntimeException {
 				error_msg = "Invalid JSON";
 				httpResponse = 400;
 				break;
+			case BATCH_TOO_LARGE:
+				error_msg = "Too many actions in batch";
+				httpResponse = 400;
+				break;
 		}
 	}
 	
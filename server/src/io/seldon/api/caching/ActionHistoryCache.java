@@ -25,13 +25,18 @@ package io.seldon.api.caching;
 
 import io.seldon.api.APIException;
 import io.seldon.api.state.NewClientListener;
+import io.seldon.api.state.RecentActionsLimitListener;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.api.state.zk.ZkClientConfigHandler;
 import io.seldon.general.Action;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
+import io.seldon.util.ConsistentHashRing;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -40,18 +45,37 @@ import javax.annotation.PostConstruct;
 
 import net.spy.memcached.CASMutation;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
-public class ActionHistoryCache implements NewClientListener {
+public class ActionHistoryCache implements NewClientListener, RecentActionsLimitListener {
 
 	private static Logger logger = Logger.getLogger(ActionHistoryCache.class.getName());
 	public static int CACHE_TIME = 1800;
 	
 	private static ConcurrentHashMap<String,Boolean> clientsUseDb = new ConcurrentHashMap<>();
 	
+	// client config to keep histories in this process rather than memcache
+	public static final String HISTORY_CONFIG = "ACTION_HISTORY";
+	public static final String HISTORY_LOCAL = "local";
+	public static final String HISTORY_MAX_USERS_CONFIG = "ACTION_HISTORY_MAX_USERS";
+	public static final String HISTORY_MAX_ACTIONS_CONFIG = "ACTION_HISTORY_MAX_ACTIONS";
+	private static final int DEF_MAX_USERS = 100000;
+	// used until the strategies say how many recent actions they read
+	private static final int DEF_MAX_ACTIONS = 100;
+	
+	private final ConcurrentHashMap<String,LocalActionHistory> localHistories = new ConcurrentHashMap<>();
+	// max actions set in the client config, which take precedence over the strategies
+	private final ConcurrentHashMap<String,Integer> configuredMaxActions = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String,Integer> strategyMaxActions = new ConcurrentHashMap<>();
+	private volatile int defaultStrategyMaxActions = 0;
+	private volatile ConsistentHashRing nodeRing;
+	private String nodeName;
+	
 	DefaultOptions options;
 	ZkClientConfigHandler clientConfigHandler;
 	
@@ -65,27 +89,150 @@ public class ActionHistoryCache implements NewClientListener {
 	@PostConstruct
 	public void startup(){
 		logger.info("Adding new client listener");
-		clientConfigHandler.addNewClientListener(this, false);
+		clientConfigHandler.addNewClientListener(this, true);
+	}
+	
+	/**
+	 * Local histories can be split across server nodes that get requests routed by user id. Each node only holds
+	 * the users the consistent hash ring assigns to it and uses memcache for the rest.
+	 * @param nodes comma separated names of all nodes, empty if each node holds all users
+	 */
+	@Value("${io.seldon.actionhistory.nodes:}")
+	public void setNodes(String nodes)
+	{
+		if (StringUtils.isNotBlank(nodes))
+			nodeRing = new ConsistentHashRing(Arrays.asList(StringUtils.split(nodes, ",")));
+		else
+			nodeRing = null;
+	}
+	
+	/**
+	 * @param nodeName the name of this node in the node list, the host name if empty
+	 */
+	@Value("${io.seldon.actionhistory.node:}")
+	public void setNodeName(String nodeName)
+	{
+		if (StringUtils.isNotBlank(nodeName))
+			this.nodeName = nodeName;
+		else
+		{
+			try
+			{
+				this.nodeName = InetAddress.getLocalHost().getHostName();
+			}
+			catch (UnknownHostException e)
+			{
+				logger.warn("Can't get host name for action history node",e);
+			}
+		}
 	}
 	
 	@Override
 	public void clientAdded(String client, Map<String, String> initialConfig) {
+		if (initialConfig != null && HISTORY_LOCAL.equals(initialConfig.get(HISTORY_CONFIG)))
+		{
+			int maxUsers = getIntConfig(initialConfig, HISTORY_MAX_USERS_CONFIG, DEF_MAX_USERS);
+			if (initialConfig.containsKey(HISTORY_MAX_ACTIONS_CONFIG))
+				configuredMaxActions.put(client, getIntConfig(initialConfig, HISTORY_MAX_ACTIONS_CONFIG, DEF_MAX_ACTIONS));
+			else
+				configuredMaxActions.remove(client);
+			int maxActions = getMaxActions(client);
+			logger.info("Using local action history for client "+client+" with max users "+maxUsers+" and max actions "+maxActions);
+			localHistories.put(client, new LocalActionHistory(maxUsers, maxActions));
+		}
+		else
+			localHistories.remove(client);
 	}
 
 	@Override
 	public void clientDeleted(String client) {
+		localHistories.remove(client);
+		configuredMaxActions.remove(client);
+	}
+
+	@Override
+	public void recentActionsLimitUpdated(String client, int limit) {
+		if (client == null)
+			defaultStrategyMaxActions = limit;
+		else if (limit > 0)
+			strategyMaxActions.put(client, limit);
+		else
+			strategyMaxActions.remove(client);
+		for (Map.Entry<String,LocalActionHistory> e : localHistories.entrySet())
+		{
+			if (client == null || client.equals(e.getKey()))
+			{
+				int maxActions = getMaxActions(e.getKey());
+				if (e.getValue().getMaxActions() != maxActions)
+				{
+					logger.info("Changing max actions of local action history for client "+e.getKey()+" to "+maxActions);
+					e.getValue().setMaxActions(maxActions);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the max actions from the client config if set, otherwise the most recent actions any of the client's
+	 * strategies reads
+	 */
+	private int getMaxActions(String client)
+	{
+		Integer configured = configuredMaxActions.get(client);
+		if (configured != null)
+			return configured;
+		Integer strategies = strategyMaxActions.get(client);
+		if (strategies != null)
+			return Math.max(strategies, defaultStrategyMaxActions);
+		return defaultStrategyMaxActions > 0 ? defaultStrategyMaxActions : DEF_MAX_ACTIONS;
 	}
 	
+	private static int getIntConfig(Map<String, String> config,String name,int def)
+	{
+		String val = config.get(name);
+		try
+		{
+			return val != null ? Integer.parseInt(val.trim()) : def;
+		}
+		catch (NumberFormatException e)
+		{
+			logger.warn("Bad value "+val+" for "+name+" using "+def);
+			return def;
+		}
+	}
 	
+	/**
+	 * @return the local history holding the user or null if the user's history is in memcache
+	 */
+	private LocalActionHistory getLocalHistory(String clientName,long userId)
+	{
+		LocalActionHistory history = localHistories.get(clientName);
+		if (history != null)
+		{
+			ConsistentHashRing ring = nodeRing;
+			if (ring != null && !ring.getNode(userId).equals(nodeName))
+				return null;
+		}
+		return history;
+	}
 	
 	public void removeRecentActions(String clientName,long userId)
 	{
+		LocalActionHistory history = getLocalHistory(clientName, userId);
+		if (history != null)
+		{
+			history.remove(userId);
+			return;
+		}
 		String mkey = MemCacheKeys.getActionHistory(clientName, userId);
 		MemCachePeer.delete(mkey);
 	}
 		
 	public List<Long> getRecentActions(String clientName,long userId,int numActions)
 	{
+		LocalActionHistory history = getLocalHistory(clientName, userId);
+		if (history != null)
+			return history.getRecentActions(userId, numActions);
 		String mkey = MemCacheKeys.getActionHistory(clientName, userId);
 		List<Long> res = (List<Long>) MemCachePeer.get(mkey);
 		if (res == null)
@@ -106,6 +253,9 @@ public class ActionHistoryCache implements NewClientListener {
 
 	public List<Action> getRecentFullActions(String clientName,long userId,int numActions)
 	{
+		LocalActionHistory history = getLocalHistory(clientName, userId);
+		if (history != null)
+			return history.getRecentFullActions(userId, numActions);
 		String mkey = MemCacheKeys.getActionFullHistory(clientName, userId);
 		List<Action> res = (List<Action>) MemCachePeer.get(mkey);
 		if (res == null)
@@ -129,6 +279,12 @@ public class ActionHistoryCache implements NewClientListener {
 	{
 		if (logger.isDebugEnabled())
 			logger.debug("Adding full action to cache for "+a.getUserId()+" item "+a.getItemId());
+		LocalActionHistory history = getLocalHistory(clientName, a.getUserId());
+		if (history != null)
+		{
+			history.addFullAction(a);
+			return;
+		}
         CASMutation<List<Action>> mutation = new CASMutation<List<Action>>() {
 
             // This is only invoked when a value actually exists.
@@ -148,6 +304,12 @@ public class ActionHistoryCache implements NewClientListener {
     {
 		if (logger.isDebugEnabled())
 			logger.debug("Adding action to cache for "+userId+" item "+itemId);
+		LocalActionHistory history = getLocalHistory(clientName, userId);
+		if (history != null)
+		{
+			history.addAction(userId, itemId);
+			return;
+		}
         CASMutation<List<Long>> mutation = new CASMutation<List<Long>>() {
 
             // This is only invoked when a value actually exists.
@@ -165,4 +327,64 @@ public class ActionHistoryCache implements NewClientListener {
     }
 	
 	
+	/**
+	 * Add several actions of one user, oldest first, with a single cas
+	 */
+	public void addActions(String clientName,long userId,final List<Long> itemIds) throws APIException
+	{
+		if (logger.isDebugEnabled())
+			logger.debug("Adding "+itemIds.size()+" actions to cache for "+userId);
+		LocalActionHistory history = getLocalHistory(clientName, userId);
+		if (history != null)
+		{
+			for(Long itemId : itemIds)
+				history.addAction(userId, itemId);
+			return;
+		}
+		CASMutation<List<Long>> mutation = new CASMutation<List<Long>>() {
+
+			// This is only invoked when a value actually exists.
+			public List<Long> getNewValue(List<Long> current) {
+				for(Long itemId : itemIds)
+					if(!current.contains(itemId))
+						current.add(0, itemId);
+				return current;
+			}
+		};
+		List<Long> actions = new ArrayList<>();
+		for(Long itemId : itemIds)
+			if (!actions.contains(itemId))
+				actions.add(0, itemId);
+		String mkey = MemCacheKeys.getActionHistory(clientName, userId);
+		MemCachePeer.cas(mkey, mutation, actions,CACHE_TIME);
+	}
+
+	/**
+	 * Add several full actions of one user, oldest first, with a single cas
+	 */
+	public void addFullActions(String clientName,long userId,final List<Action> userActions)
+	{
+		LocalActionHistory history = getLocalHistory(clientName, userId);
+		if (history != null)
+		{
+			for(Action a : userActions)
+				history.addFullAction(a);
+			return;
+		}
+		CASMutation<List<Action>> mutation = new CASMutation<List<Action>>() {
+
+			// This is only invoked when a value actually exists.
+			public List<Action> getNewValue(List<Action> current) {
+				for(Action a : userActions)
+					current.add(0, a);
+				return current;
+			}
+		};
+		List<Action> actions = new ArrayList<>();
+		for(Action a : userActions)
+			actions.add(0, a);
+		String mkey = MemCacheKeys.getActionFullHistory(clientName, userId);
+		MemCachePeer.cas(mkey, mutation, actions,CACHE_TIME);
+	}
+
 }
@@ -0,0 +1,246 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.caching;
+
+import io.seldon.general.Action;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process recent action history for one client. Each user has a ring buffer of at most maxActions item ids and
+ * full actions, so adding an action is constant time and never rewrites the history. Users are held in primitive
+ * keyed maps split into stripes, each evicting its least recently used user once full.
+ */
+public class LocalActionHistory {
+
+	private static final int NUM_STRIPES = 16;
+	private static final int INITIAL_CAPACITY = 8;
+
+	private volatile int maxActions;
+	private final int maxUsersPerStripe;
+	private final Long2ObjectLinkedOpenHashMap<UserHistory>[] stripes;
+
+	@SuppressWarnings("unchecked")
+	public LocalActionHistory(int maxUsers,int maxActions)
+	{
+		this.maxActions = maxActions;
+		this.maxUsersPerStripe = Math.max(1, maxUsers / NUM_STRIPES);
+		this.stripes = new Long2ObjectLinkedOpenHashMap[NUM_STRIPES];
+		for(int i=0;i<NUM_STRIPES;i++)
+			stripes[i] = new Long2ObjectLinkedOpenHashMap<>();
+	}
+
+	public int getMaxActions() {
+		return maxActions;
+	}
+
+	/**
+	 * Change the most actions kept per user. A user's history is grown or cut down to it on the next action added.
+	 */
+	public void setMaxActions(int maxActions) {
+		this.maxActions = maxActions;
+	}
+
+	private Long2ObjectLinkedOpenHashMap<UserHistory> stripe(long userId)
+	{
+		long h = userId * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 60) & (NUM_STRIPES - 1)];
+	}
+
+	/**
+	 * @return the most recent item ids first, the list is a copy
+	 */
+	public List<Long> getRecentActions(long userId,int numActions)
+	{
+		Long2ObjectLinkedOpenHashMap<UserHistory> users = stripe(userId);
+		synchronized(users)
+		{
+			UserHistory history = users.getAndMoveToLast(userId);
+			if (history == null)
+				return new ArrayList<>();
+			int n = Math.min(numActions, history.numItems);
+			List<Long> res = new ArrayList<>(n);
+			for(int i=0;i<n;i++)
+				res.add(history.items[index(history.itemsHead, i, history.items.length)]);
+			return res;
+		}
+	}
+
+	/**
+	 * @return the most recent actions first, the list is a copy
+	 */
+	public List<Action> getRecentFullActions(long userId,int numActions)
+	{
+		Long2ObjectLinkedOpenHashMap<UserHistory> users = stripe(userId);
+		synchronized(users)
+		{
+			UserHistory history = users.getAndMoveToLast(userId);
+			if (history == null)
+				return new ArrayList<>();
+			int n = Math.min(numActions, history.numActions);
+			List<Action> res = new ArrayList<>(n);
+			for(int i=0;i<n;i++)
+				res.add(history.actions[index(history.actionsHead, i, history.actions.length)]);
+			return res;
+		}
+	}
+
+	/**
+	 * Add the item to the user's history unless it is already there
+	 */
+	public void addAction(long userId,long itemId)
+	{
+		Long2ObjectLinkedOpenHashMap<UserHistory> users = stripe(userId);
+		synchronized(users)
+		{
+			getOrCreate(users, userId).addItem(itemId, maxActions);
+		}
+	}
+
+	public void addFullAction(Action a)
+	{
+		Long2ObjectLinkedOpenHashMap<UserHistory> users = stripe(a.getUserId());
+		synchronized(users)
+		{
+			getOrCreate(users, a.getUserId()).addAction(a, maxActions);
+		}
+	}
+
+	public void remove(long userId)
+	{
+		Long2ObjectLinkedOpenHashMap<UserHistory> users = stripe(userId);
+		synchronized(users)
+		{
+			users.remove(userId);
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for(Long2ObjectLinkedOpenHashMap<UserHistory> users : stripes)
+			synchronized(users)
+			{
+				size += users.size();
+			}
+		return size;
+	}
+
+	private UserHistory getOrCreate(Long2ObjectLinkedOpenHashMap<UserHistory> users,long userId)
+	{
+		UserHistory history = users.getAndMoveToLast(userId);
+		if (history == null)
+		{
+			if (users.size() >= maxUsersPerStripe)
+				users.removeFirst();
+			history = new UserHistory();
+			users.putAndMoveToLast(userId, history);
+		}
+		return history;
+	}
+
+	/**
+	 * Position of the i'th most recent entry in a ring whose next write goes at head
+	 */
+	private static int index(int head,int i,int capacity)
+	{
+		int pos = head - 1 - i;
+		return pos < 0 ? pos + capacity : pos;
+	}
+
+	/**
+	 * Ring buffers that start small and grow up to the maximum number of actions
+	 */
+	private static class UserHistory {
+		long[] items = new long[0];
+		int itemsHead;
+		int numItems;
+		Action[] actions = new Action[0];
+		int actionsHead;
+		int numActions;
+
+		void addItem(long itemId,int maxActions)
+		{
+			for(int i=0;i<numItems;i++)
+				if (items[index(itemsHead, i, items.length)] == itemId)
+					return;
+			if (items.length > maxActions)
+			{
+				numItems = Math.min(numItems, maxActions);
+				items = unroll(items, itemsHead, numItems, maxActions);
+				itemsHead = maxActions == 0 ? 0 : numItems % maxActions;
+			}
+			if (numItems == items.length && items.length < maxActions)
+			{
+				items = unroll(items, itemsHead, numItems, Math.min(Math.max(INITIAL_CAPACITY, items.length * 2), maxActions));
+				itemsHead = numItems;
+			}
+			if (items.length == 0)
+				return;
+			items[itemsHead] = itemId;
+			itemsHead = (itemsHead + 1) % items.length;
+			numItems = Math.min(numItems + 1, items.length);
+		}
+
+		void addAction(Action a,int maxActions)
+		{
+			if (actions.length > maxActions)
+			{
+				numActions = Math.min(numActions, maxActions);
+				actions = unroll(actions, actionsHead, numActions, maxActions);
+				actionsHead = maxActions == 0 ? 0 : numActions % maxActions;
+			}
+			if (numActions == actions.length && actions.length < maxActions)
+			{
+				actions = unroll(actions, actionsHead, numActions, Math.min(Math.max(INITIAL_CAPACITY, actions.length * 2), maxActions));
+				actionsHead = numActions;
+			}
+			if (actions.length == 0)
+				return;
+			actions[actionsHead] = a;
+			actionsHead = (actionsHead + 1) % actions.length;
+			numActions = Math.min(numActions + 1, actions.length);
+		}
+
+		private static long[] unroll(long[] ring,int head,int size,int capacity)
+		{
+			long[] res = new long[capacity];
+			for(int i=0;i<size;i++)
+				res[size - 1 - i] = ring[index(head, i, ring.length)];
+			return res;
+		}
+
+		private static Action[] unroll(Action[] ring,int head,int size,int capacity)
+		{
+			Action[] res = new Action[capacity];
+			for(int i=0;i<size;i++)
+				res[size - 1 - i] = ring[index(head, i, ring.length)];
+			return res;
+		}
+	}
+}
@@ -38,6 +38,7 @@ import io.seldon.api.service.ResourceServer;
 
 
 import java.util.Date;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -222,6 +223,22 @@ public class ActionsController {
         return responseBean;
 	}
 
+	@RequestMapping(value="/actions/batch", method = RequestMethod.POST)
+	public @ResponseBody
+    ResourceBean addActionsBatch(@RequestBody List<ActionBean> actions, HttpServletRequest req) {
+		Date start = new Date();
+		ResourceBean con = resourceServer.validateResourceRequest(req);
+		ResourceBean responseBean;
+		if(con instanceof ConsumerBean) {
+            responseBean = actionBusinessService.addActions((ConsumerBean) con, actions);
+        }
+		else {
+			responseBean = con;
+		}
+		ApiLogger.log("actions.batch",start,new Date(),con,responseBean,req);
+        return responseBean;
+	}
+
 	@RequestMapping(value="/actions/types", method = RequestMethod.GET)
 	public @ResponseBody ResourceBean retrieveActionsTypes(HttpServletRequest req) {
 		Date start = new Date();
@@ -43,6 +43,7 @@ import io.seldon.api.resource.service.business.UserBusinessService;
 import io.seldon.api.resource.service.business.UserProfileService;
 import io.seldon.api.statsd.StatsdPeer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -135,6 +136,30 @@ public class JsClientController {
         return asCallback(callback, actionBusinessService.addAction(consumerBean, actionBean, isCTR, rlabs,recTag));
     }
     
+    /**
+     * Add several actions of one user in one call. Pass item once per action and either one type for all of them
+     * or one type per item.
+     */
+    @RequestMapping("/action/batch")
+    public
+    @ResponseBody
+    JSONPObject registerActions(HttpSession session,
+                             @RequestParam("user") String userId,
+                             @RequestParam("item") String[] itemIds,
+                             @RequestParam("type") Integer[] types,
+                             @RequestParam("jsonpCallback") String callback,
+                             @RequestParam(value = "source", required = false) String referrer,
+                             @RequestParam(value = "rectag", required = false) String recTag) {
+        final ConsumerBean consumerBean = retrieveConsumer(session);
+        MDCKeys.addKeysUser(consumerBean, userId);
+        if (types.length != 1 && types.length != itemIds.length)
+            throw new APIException(APIException.INCORRECT_FIELD);
+        List<ActionBean> actionBeans = new ArrayList<>(itemIds.length);
+        for (int i = 0; i < itemIds.length; i++)
+            actionBeans.add(createAction(userId, itemIds[i], types[types.length == 1 ? 0 : i], referrer, recTag));
+        return asCallback(callback, actionBusinessService.addActions(consumerBean, actionBeans));
+    }
+
     @RequestMapping("/user/new")
     public @ResponseBody
     JSONPObject registerUser(HttpSession session,
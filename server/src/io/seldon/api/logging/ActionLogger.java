@@ -23,16 +23,10 @@
 
 package io.seldon.api.logging;
 
-import org.apache.log4j.Logger;
-
 public class ActionLogger {
-	private static Logger actionLogger = Logger.getLogger( "ActionLogger" );
 	
 	public static void log(String client,long userId,long itemId,Integer type,Double value,String clientUserId,String clientItemId,String recTag)
 	{
-		if (type == null) { type = 1; }
-		if (value == null) { value = 1D; }
-		String event = String.format("%s,%s,%s,%s,%s,%s,\"%s\",\"%s\"",client,recTag != null ? recTag : "default",userId,itemId,type,value,clientUserId,clientItemId);
-		actionLogger.info(event);
+		AsyncEventLog.get().logAction(client, userId, itemId, type == null ? 1 : type, value == null ? 1D : value, clientUserId, clientItemId, recTag);
 	}
 }
@@ -24,7 +24,6 @@
 package io.seldon.api.logging;
 
 import java.util.Date;
-import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -34,7 +33,6 @@ import io.seldon.api.resource.ConsumerBean;
 import io.seldon.api.resource.ErrorBean;
 import io.seldon.api.resource.ListBean;
 import io.seldon.api.resource.ResourceBean;
-import org.apache.log4j.Logger;
 
 /**
  * Core API logger for output to provide data for batch/streaming analysis
@@ -43,8 +41,6 @@ import org.apache.log4j.Logger;
  */
 public class ApiLogger {
 
-	private static Logger apiLogger = Logger.getLogger( "ApiStatsLogger" );
-
 	public static void log(String apiKey,Date start,Date end, ResourceBean con, ResourceBean res, HttpServletRequest req)
 	{
 		log(apiKey,start,end,  con,  res,  req, null);
@@ -55,21 +51,8 @@ public class ApiLogger {
 		long errorCode = 0;
 		if(con instanceof ConsumerBean) { consumerName = ((ConsumerBean)con).getShort_name(); }
 		if(res instanceof ErrorBean) { errorCode = ((ErrorBean)res).getError_id(); }
-		String bean = res.toLog();
-		String event = " ";
-		String query = req.getQueryString();
-		if (query != null)
-			query = query.replaceAll(",","%2C");
-		if(bean == null) {
-			event = String.format("%d,%s,%s,%s,%s,%s,%d,%s",errorCode,consumerName,req.getMethod(),req.getServerName() + req.getContextPath(),req.getServletPath(),query,end.getTime() - start.getTime(),UUID.randomUUID());
-		}
-		else if(algorithm == null) {
-			event = String.format("%d,%s,%s,%s,%s,%s,%d,%s,%s",errorCode,consumerName,req.getMethod(),req.getServerName() + req.getContextPath(),req.getServletPath(),query,end.getTime() - start.getTime(),UUID.randomUUID(),bean);
-		}
-		else {
-			event = String.format("%d,%s,%s,%s,%s,%s,%d,%s,%s,%s",errorCode,consumerName,req.getMethod(),req.getServerName() + req.getContextPath(),req.getServletPath(),query,end.getTime() - start.getTime(),UUID.randomUUID(),bean,algorithm);
-		}
-		apiLogger.info(event);
+		AsyncEventLog.get().logApi(errorCode,consumerName,req.getMethod(),req.getServerName(),req.getContextPath(),req.getServletPath(),
+				req.getQueryString(),end.getTime() - start.getTime(),res,algorithm);
 		StatsdPeer.logAPICall(consumerName, apiKey, req.getMethod().toLowerCase(),(int)(end.getTime() - start.getTime()));
 	}
 
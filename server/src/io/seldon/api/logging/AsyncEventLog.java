@@ -0,0 +1,360 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import io.seldon.api.resource.ResourceBean;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Event logging off the request threads. Events go into a pre-allocated ring of {@link EventRecord} slots: a request
+ * thread claims a slot with a CAS, copies in primitives and references it already holds and publishes it with a
+ * volatile write. A single writer thread formats published events and passes them to the {@link EventSink}. If the
+ * writer falls a full ring behind the request thread writes its event itself so events are never dropped. An idle
+ * writer spins briefly and then parks until the next publish unparks it.
+ */
+public class AsyncEventLog {
+
+	private static Logger logger = Logger.getLogger(AsyncEventLog.class.getName());
+
+	public static final int DEFAULT_CAPACITY = 65536;
+	private static final int SPINS_BEFORE_PARK = 100;
+
+	private static volatile AsyncEventLog instance;
+
+	private final EventRecord[] ring;
+	private final int mask;
+	private final AtomicLong claimed = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final EventSink sink;
+	private final Thread writer;
+	private volatile boolean running = true;
+	private volatile boolean parked; // the writer is parked, or about to park, waiting for events
+
+	AsyncEventLog(int capacity,EventSink sink)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.ring = new EventRecord[size];
+		for(int i=0;i<size;i++)
+			ring[i] = new EventRecord();
+		this.mask = size - 1;
+		this.sink = sink;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "event-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the event log, writing to the log4j event loggers until configured otherwise
+	 */
+	public static AsyncEventLog get()
+	{
+		AsyncEventLog log = instance;
+		if (log == null)
+		{
+			synchronized (AsyncEventLog.class)
+			{
+				if (instance == null)
+					instance = new AsyncEventLog(DEFAULT_CAPACITY, new Log4jEventSink());
+				log = instance;
+			}
+		}
+		return log;
+	}
+
+	static synchronized void setInstance(AsyncEventLog log)
+	{
+		AsyncEventLog old = instance;
+		instance = log;
+		if (old != null)
+			old.close();
+	}
+
+	/**
+	 * Replaces the default log4j output with rotating JSON files if io.seldon.eventlog.format is json.
+	 */
+	@Component
+	public static class Configurer {
+
+		@Autowired
+		public Configurer(@Value("${io.seldon.eventlog.format:log4j}") String format,
+				@Value("${io.seldon.eventlog.dir:}") String dir,
+				@Value("${io.seldon.eventlog.capacity:65536}") int capacity,
+				@Value("${io.seldon.eventlog.rotate.mb:256}") int rotateMb,
+				@Value("${io.seldon.eventlog.rotate.mins:60}") int rotateMins)
+		{
+			EventSink sink;
+			if ("json".equals(format) && dir.length() > 0)
+			{
+				logger.info("Writing events as json to "+dir+" rotating every "+rotateMb+"MB or "+rotateMins+" mins");
+				sink = new JsonFileEventSink(new File(dir), rotateMb * 1024L * 1024L, rotateMins * 60000L);
+			}
+			else
+			{
+				if (!"log4j".equals(format))
+					logger.error("Unknown event log format "+format+" or no io.seldon.eventlog.dir, using log4j");
+				sink = new Log4jEventSink();
+			}
+			setInstance(new AsyncEventLog(capacity, sink));
+		}
+
+		@PreDestroy
+		public void shutdown()
+		{
+			setInstance(null);
+		}
+	}
+
+	/**
+	 * @return a slot to fill or null if the ring is full or closed
+	 */
+	private EventRecord claim()
+	{
+		while (running)
+		{
+			long seq = claimed.get();
+			if (seq - consumed.get() >= ring.length)
+				return null;
+			if (claimed.compareAndSet(seq, seq + 1))
+			{
+				EventRecord event = ring[(int) seq & mask];
+				event.claimed = seq;
+				return event;
+			}
+		}
+		return null;
+	}
+
+	private EventRecord claimOrCreate()
+	{
+		EventRecord event = claim();
+		if (event == null)
+		{
+			overflows.incrementAndGet();
+			event = new EventRecord();
+			event.claimed = -1;
+		}
+		event.timestamp = System.currentTimeMillis();
+		event.threadName = Thread.currentThread().getName();
+		event.mdcConsumer = (String) MDC.get(MDCKeys.MDC_CONSUMER_KEY);
+		event.mdcUser = (String) MDC.get(MDCKeys.MDC_USER_KEY);
+		event.mdcItem = (String) MDC.get(MDCKeys.MDC_ITEM_KEY);
+		return event;
+	}
+
+	private void publish(EventRecord event)
+	{
+		if (event.claimed >= 0)
+		{
+			event.sequence = event.claimed;
+			if (parked)
+				LockSupport.unpark(writer);
+		}
+		else
+			write(event);
+	}
+
+	private void write(EventRecord event)
+	{
+		synchronized (sink)
+		{
+			try
+			{
+				sink.write(event);
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to write event", e);
+			}
+		}
+	}
+
+	private void drain()
+	{
+		long next = consumed.get();
+		int idle = 0;
+		while (running || next < claimed.get())
+		{
+			EventRecord event = ring[(int) next & mask];
+			if (event.sequence == next)
+			{
+				write(event);
+				event.clear();
+				next++;
+				consumed.lazySet(next);
+				idle = 0;
+			}
+			else
+			{
+				if (idle++ == 0)
+				{
+					synchronized (sink)
+					{
+						try
+						{
+							sink.flush();
+						}
+						catch (Exception e)
+						{
+							logger.error("Failed to flush events", e);
+						}
+					}
+				}
+				if (idle < SPINS_BEFORE_PARK)
+					Thread.yield();
+				else
+				{
+					parked = true;
+					// check again after publishing parked so an event published meanwhile is not left waiting
+					if (running && event.sequence != next)
+						LockSupport.park(this);
+					parked = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write all published events and close the sink.
+	 */
+	public void close()
+	{
+		running = false;
+		LockSupport.unpark(writer);
+		try
+		{
+			writer.join(10000);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		synchronized (sink)
+		{
+			try
+			{
+				sink.flush();
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to flush events", e);
+			}
+			sink.close();
+		}
+		if (overflows.get() > 0)
+			logger.warn("Event log ring was full for "+overflows.get()+" events");
+	}
+
+	long getOverflows()
+	{
+		return overflows.get();
+	}
+
+	public void logAction(String client,long userId,long itemId,int type,double value,String clientUserId,String clientItemId,String recTag)
+	{
+		EventRecord e = claimOrCreate();
+		e.type = EventRecord.ACTION;
+		e.client = client;
+		e.userId = userId;
+		e.itemId = itemId;
+		e.actionType = type;
+		e.value = value;
+		e.clientUserId = clientUserId;
+		e.clientItemId = clientItemId;
+		e.recTag = recTag;
+		publish(e);
+	}
+
+	public void logCtr(boolean isCTR,String client,String algKey,int pos,String clientUserId,String uuid,Long itemId,int numRecentActions,String recsList,String abTestingKey,String recTag)
+	{
+		boolean hasItemId = itemId != null;
+		long item = hasItemId ? itemId : 0;
+		EventRecord e = claimOrCreate();
+		e.type = EventRecord.CTR;
+		e.ctr = isCTR;
+		e.client = client;
+		e.algKey = algKey;
+		e.pos = pos;
+		e.clientUserId = clientUserId;
+		e.uuid = uuid;
+		e.hasItemId = hasItemId;
+		e.itemId = item;
+		e.numRecentActions = numRecentActions;
+		e.recsList = recsList;
+		e.abTestingKey = abTestingKey;
+		e.recTag = recTag;
+		publish(e);
+	}
+
+	/**
+	 * @param bean formatted with {@link ResourceBean#toLog()} here as it may change once the request returns
+	 */
+	public void logApi(long errorCode,String client,String method,String serverName,String contextPath,String servletPath,
+			String query,long durationMillis,ResourceBean bean,String algorithm)
+	{
+		long idHi = RequestIds.next();
+		long idLo = RequestIds.next();
+		String beanLog = bean == null ? null : bean.toLog();
+		EventRecord e = claimOrCreate();
+		e.type = EventRecord.API;
+		e.errorCode = errorCode;
+		e.client = client;
+		e.method = method;
+		e.serverName = serverName;
+		e.contextPath = contextPath;
+		e.servletPath = servletPath;
+		e.query = query;
+		e.durationMillis = durationMillis;
+		e.requestIdHi = idHi;
+		e.requestIdLo = idLo;
+		e.bean = beanLog;
+		e.algorithm = algorithm;
+		publish(e);
+	}
+
+	public void logEvent(String json)
+	{
+		EventRecord e = claimOrCreate();
+		e.type = EventRecord.EVENT;
+		e.json = json;
+		publish(e);
+	}
+}
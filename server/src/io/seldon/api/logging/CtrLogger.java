@@ -23,20 +23,15 @@
 
 package io.seldon.api.logging;
 
-import org.apache.log4j.Logger;
-
 import io.seldon.api.statsd.StatsdPeer;
 
 public class CtrLogger {
 
-	private static Logger ctrLogger = Logger.getLogger( "CtrLogger" );
-	
 	public static void log(boolean isCTR,String client,String algKey,int pos,String clientUserId,String uuid,Long itemId,int numRecentActions,String recsList,String abTestingKey,String recTag)
 	{
 		if (abTestingKey == null)
 			abTestingKey = "A";
-		String event = String.format("%s,%s,%s,%d,%s,%s,%s,%d,%s,%s,%s",isCTR ? "CTR" : "IMP",client,algKey,pos,clientUserId,uuid,itemId,numRecentActions,recsList,abTestingKey,recTag);
-		ctrLogger.info(event);
+		AsyncEventLog.get().logCtr(isCTR,client,algKey,pos,clientUserId,uuid,itemId,numRecentActions,recsList,abTestingKey,recTag);
 		StatsdPeer.logCTR(client, algKey,isCTR,abTestingKey,recTag);
 	}
 
@@ -0,0 +1,189 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+/**
+ * Formats {@link EventRecord}s into a reused StringBuilder, either as the comma separated lines the log4j event
+ * logs have always contained or as one JSON object per line.
+ */
+final class EventFormat {
+
+	private EventFormat() {}
+
+	static void appendCsv(StringBuilder sb,EventRecord e)
+	{
+		switch(e.type)
+		{
+		case EventRecord.ACTION:
+			sb.append(e.client).append(',').append(e.recTag != null ? e.recTag : "default").append(',')
+				.append(e.userId).append(',').append(e.itemId).append(',').append(e.actionType).append(',').append(e.value)
+				.append(",\"").append(e.clientUserId).append("\",\"").append(e.clientItemId).append('"');
+			break;
+		case EventRecord.CTR:
+			sb.append(e.ctr ? "CTR" : "IMP").append(',').append(e.client).append(',').append(e.algKey).append(',')
+				.append(e.pos).append(',').append(e.clientUserId).append(',').append(e.uuid).append(',');
+			if (e.hasItemId)
+				sb.append(e.itemId);
+			else
+				sb.append("null");
+			sb.append(',').append(e.numRecentActions).append(',').append(e.recsList).append(',')
+				.append(e.abTestingKey).append(',').append(e.recTag);
+			break;
+		case EventRecord.API:
+			sb.append(e.errorCode).append(',').append(e.client).append(',').append(e.method).append(',')
+				.append(e.serverName).append(e.contextPath).append(',').append(e.servletPath).append(',');
+			appendEscapedQuery(sb, e.query);
+			sb.append(',').append(e.durationMillis).append(',');
+			RequestIds.appendUuid(sb, e.requestIdHi, e.requestIdLo);
+			if (e.bean != null)
+			{
+				sb.append(',').append(e.bean);
+				if (e.algorithm != null)
+					sb.append(',').append(e.algorithm);
+			}
+			break;
+		default:
+			sb.append(e.json);
+		}
+	}
+
+	static void appendJson(StringBuilder sb,EventRecord e)
+	{
+		sb.append("{\"ts\":").append(e.timestamp);
+		switch(e.type)
+		{
+		case EventRecord.ACTION:
+			sb.append(",\"type\":\"action\"");
+			field(sb, "client", e.client);
+			field(sb, "rectag", e.recTag != null ? e.recTag : "default");
+			sb.append(",\"userid\":").append(e.userId).append(",\"itemid\":").append(e.itemId)
+				.append(",\"action_type\":").append(e.actionType).append(",\"value\":").append(e.value);
+			field(sb, "client_userid", e.clientUserId);
+			field(sb, "client_itemid", e.clientItemId);
+			break;
+		case EventRecord.CTR:
+			sb.append(",\"type\":\"").append(e.ctr ? "ctr" : "imp").append('"');
+			field(sb, "client", e.client);
+			field(sb, "alg", e.algKey);
+			sb.append(",\"pos\":").append(e.pos);
+			field(sb, "client_userid", e.clientUserId);
+			field(sb, "uuid", e.uuid);
+			if (e.hasItemId)
+				sb.append(",\"itemid\":").append(e.itemId);
+			sb.append(",\"recent_actions\":").append(e.numRecentActions);
+			field(sb, "recs", e.recsList);
+			field(sb, "abkey", e.abTestingKey);
+			field(sb, "rectag", e.recTag);
+			break;
+		case EventRecord.API:
+			sb.append(",\"type\":\"api\",\"error\":").append(e.errorCode);
+			field(sb, "client", e.client);
+			field(sb, "method", e.method);
+			sb.append(",\"path\":\"");
+			escape(sb, e.serverName);
+			escape(sb, e.contextPath);
+			sb.append('"');
+			field(sb, "servlet", e.servletPath);
+			field(sb, "query", e.query);
+			sb.append(",\"millis\":").append(e.durationMillis).append(",\"request_id\":\"");
+			RequestIds.appendUuid(sb, e.requestIdHi, e.requestIdLo);
+			sb.append('"');
+			field(sb, "bean", e.bean);
+			field(sb, "alg", e.algorithm);
+			break;
+		default:
+			sb.append(",\"type\":\"event\",\"event\":").append(e.json);
+		}
+		sb.append('}');
+	}
+
+	private static void field(StringBuilder sb,String name,String value)
+	{
+		if (value == null)
+			return;
+		sb.append(",\"").append(name).append("\":");
+		appendString(sb, value);
+	}
+
+	static void appendString(StringBuilder sb,String s)
+	{
+		sb.append('"');
+		escape(sb, s);
+		sb.append('"');
+	}
+
+	private static void escape(StringBuilder sb,String s)
+	{
+		if (s == null)
+			return;
+		for(int i=0;i<s.length();i++)
+		{
+			char c = s.charAt(i);
+			switch(c)
+			{
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+				{
+					sb.append("\\u00");
+					sb.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+				}
+				else
+					sb.append(c);
+			}
+		}
+	}
+
+	private static void appendEscapedQuery(StringBuilder sb,String query)
+	{
+		if (query == null)
+		{
+			sb.append("null");
+			return;
+		}
+		for(int i=0;i<query.length();i++)
+		{
+			char c = query.charAt(i);
+			if (c == ',')
+				sb.append("%2C");
+			else
+				sb.append(c);
+		}
+	}
+}
@@ -21,13 +21,10 @@
 */
 package io.seldon.api.logging;
 
-import org.apache.log4j.Logger;
-
 public class EventLogger {
-	private static Logger eventLogger = Logger.getLogger( "EventLogger" );
 	
 	public static void log(String json)
 	{
-		eventLogger.info(json);
+		AsyncEventLog.get().logEvent(json);
 	}
 }
@@ -0,0 +1,96 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+
+/**
+ * A pre-allocated slot in the {@link AsyncEventLog} ring. Request threads copy primitives and references to strings
+ * they already hold into the slot and all formatting happens on the writer thread.
+ */
+final class EventRecord {
+
+	static final byte ACTION = 1;
+	static final byte CTR = 2;
+	static final byte API = 3;
+	static final byte EVENT = 4;
+
+	// sequence of the event in the slot, written last to publish it
+	volatile long sequence = -1;
+	long claimed;
+
+	byte type;
+	long timestamp;
+	// thread and MDC keys of the request thread for log4j layouts, the writer thread has neither
+	String threadName;
+	String mdcConsumer;
+	String mdcUser;
+	String mdcItem;
+	String client;
+	String recTag;
+
+	// action
+	long userId;
+	long itemId;
+	int actionType;
+	double value;
+	String clientUserId;
+	String clientItemId;
+
+	// ctr, also clientUserId and itemId
+	boolean ctr;
+	String algKey;
+	int pos;
+	String uuid;
+	boolean hasItemId;
+	int numRecentActions;
+	String recsList;
+	String abTestingKey;
+
+	// api
+	long errorCode;
+	String method;
+	String serverName;
+	String contextPath;
+	String servletPath;
+	String query;
+	long durationMillis;
+	long requestIdHi;
+	long requestIdLo;
+	String bean; // ResourceBean.toLog() of the response
+	String algorithm;
+
+	// event
+	String json;
+
+	/**
+	 * Drop references so a slot does not keep request objects alive until it is reused.
+	 */
+	void clear()
+	{
+		threadName = mdcConsumer = mdcUser = mdcItem = null;
+		client = recTag = clientUserId = clientItemId = algKey = uuid = recsList = abTestingKey = null;
+		method = serverName = contextPath = servletPath = query = algorithm = json = bean = null;
+	}
+}
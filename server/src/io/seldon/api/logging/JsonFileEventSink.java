@@ -0,0 +1,138 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes events as newline delimited JSON, one file per event type, starting a new file when the current one
+ * reaches a size or age. Files are named type-yyyyMMdd-HHmmss-SSS.json in the log directory.
+ */
+class JsonFileEventSink implements EventSink {
+
+	private static Logger logger = Logger.getLogger(JsonFileEventSink.class.getName());
+
+	private final File dir;
+	private final long maxBytes;
+	private final long maxMillis;
+	private final RotatingFile[] files;
+	private final StringBuilder sb = new StringBuilder(1024);
+	private char[] chars = new char[1024];
+
+	JsonFileEventSink(File dir,long maxBytes,long maxMillis)
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.maxMillis = maxMillis;
+		dir.mkdirs();
+		files = new RotatingFile[] { null, new RotatingFile("actions"), new RotatingFile("ctr"), new RotatingFile("api"), new RotatingFile("events") };
+	}
+
+	private class RotatingFile {
+		final String prefix;
+		Writer out;
+		long bytes;
+		long openedAt;
+
+		RotatingFile(String prefix)
+		{
+			this.prefix = prefix;
+		}
+
+		void write(char[] chars,int len,long now) throws IOException
+		{
+			if (out != null && (bytes + len > maxBytes || now - openedAt >= maxMillis))
+				close();
+			if (out == null)
+			{
+				File file = new File(dir, prefix + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date(now)) + ".json");
+				out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 65536);
+				bytes = 0;
+				openedAt = now;
+			}
+			out.write(chars, 0, len);
+			bytes += len;
+		}
+
+		void flush() throws IOException
+		{
+			if (out != null)
+				out.flush();
+		}
+
+		void close()
+		{
+			if (out != null)
+			{
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+					logger.error("Failed to close event log "+prefix, e);
+				}
+				out = null;
+			}
+		}
+	}
+
+	@Override
+	public void write(EventRecord event) throws IOException
+	{
+		sb.setLength(0);
+		EventFormat.appendJson(sb, event);
+		sb.append('\n');
+		int len = sb.length();
+		if (len > chars.length)
+			chars = new char[Math.max(len, chars.length * 2)];
+		sb.getChars(0, len, chars, 0);
+		files[event.type].write(chars, len, System.currentTimeMillis());
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		for(int i=1;i<files.length;i++)
+			files[i].flush();
+	}
+
+	@Override
+	public void close()
+	{
+		for(int i=1;i<files.length;i++)
+			files[i].close();
+	}
+}
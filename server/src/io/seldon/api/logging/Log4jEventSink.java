@@ -0,0 +1,90 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Writes events in their existing comma separated format to the existing log4j loggers so the log files and their
+ * rotation are unchanged, only the formatting and appender I/O move off the request threads. Each log4j event carries
+ * the time, thread and MDC keys of the request that logged it so layouts print what they did before.
+ */
+class Log4jEventSink implements EventSink {
+
+	private static final String FQCN = Log4jEventSink.class.getName();
+
+	private final Logger actionLogger = Logger.getLogger("ActionLogger");
+	private final Logger ctrLogger = Logger.getLogger("CtrLogger");
+	private final Logger apiLogger = Logger.getLogger("ApiStatsLogger");
+	private final Logger eventLogger = Logger.getLogger("EventLogger");
+	private final StringBuilder sb = new StringBuilder(1024);
+
+	@Override
+	public void write(EventRecord event)
+	{
+		Logger logger;
+		switch(event.type)
+		{
+		case EventRecord.ACTION:
+			logger = actionLogger;
+			break;
+		case EventRecord.CTR:
+			logger = ctrLogger;
+			break;
+		case EventRecord.API:
+			logger = apiLogger;
+			break;
+		default:
+			logger = eventLogger;
+		}
+		if (!logger.isInfoEnabled())
+			return;
+		sb.setLength(0);
+		EventFormat.appendCsv(sb, event);
+		Map<String,String> mdc = new HashMap<>(4);
+		putIfSet(mdc, MDCKeys.MDC_CONSUMER_KEY, event.mdcConsumer);
+		putIfSet(mdc, MDCKeys.MDC_USER_KEY, event.mdcUser);
+		putIfSet(mdc, MDCKeys.MDC_ITEM_KEY, event.mdcItem);
+		logger.callAppenders(new LoggingEvent(FQCN, logger, event.timestamp, Level.INFO, sb.toString(),
+				event.threadName, null, null, null, mdc));
+	}
+
+	private static void putIfSet(Map<String,String> mdc,String key,String value)
+	{
+		if (value != null)
+			mdc.put(key, value);
+	}
+
+	@Override
+	public void flush() {}
+
+	@Override
+	public void close() {}
+}
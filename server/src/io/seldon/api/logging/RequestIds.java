@@ -0,0 +1,65 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cheap random request ids. The ids are 128 bits from {@link ThreadLocalRandom} written in the version 4 UUID format
+ * so they replace {@link java.util.UUID#randomUUID()} in logs without contending on a shared SecureRandom. They are
+ * unique enough for correlating log lines but are predictable, so must not be used as secrets.
+ */
+public final class RequestIds {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private RequestIds() {}
+
+	public static long next()
+	{
+		return ThreadLocalRandom.current().nextLong();
+	}
+
+	public static void appendUuid(StringBuilder sb,long hi,long lo)
+	{
+		hi = (hi & ~0xf000L) | 0x4000L; // version 4
+		lo = (lo & ~(0xcL << 60)) | (0x8L << 60); // IETF variant
+		appendHex(sb, hi >>> 32, 8);
+		sb.append('-');
+		appendHex(sb, hi >>> 16, 4);
+		sb.append('-');
+		appendHex(sb, hi, 4);
+		sb.append('-');
+		appendHex(sb, lo >>> 48, 4);
+		sb.append('-');
+		appendHex(sb, lo, 12);
+	}
+
+	private static void appendHex(StringBuilder sb,long v,int digits)
+	{
+		for(int shift=(digits-1)*4;shift>=0;shift-=4)
+			sb.append(HEX[(int) (v >>> shift) & 0xf]);
+	}
+}
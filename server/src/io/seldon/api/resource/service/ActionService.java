@@ -33,6 +33,7 @@ import io.seldon.api.logging.CtrLogger;
 import io.seldon.api.resource.ActionBean;
 import io.seldon.api.resource.ActionTypeBean;
 import io.seldon.api.resource.ConsumerBean;
+import io.seldon.api.resource.ErrorBean;
 import io.seldon.api.resource.ItemBean;
 import io.seldon.api.resource.ListBean;
 import io.seldon.api.resource.ResourceBean;
@@ -41,11 +42,9 @@ import io.seldon.api.resource.service.exception.ActionTypeNotFoundException;
 import io.seldon.api.service.async.AsyncActionQueue;
 import io.seldon.api.service.async.JdoAsyncActionFactory;
 import io.seldon.api.state.ClientAlgorithmStore;
-import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.api.statsd.StatsdPeer;
 import io.seldon.clustering.recommender.ClientClusterTypeService;
 import io.seldon.clustering.recommender.CountRecommender;
-import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
 import io.seldon.general.Action;
 import io.seldon.general.ActionType;
@@ -53,12 +52,19 @@ import io.seldon.general.Item;
 import io.seldon.general.User;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
-import io.seldon.recommendation.AlgorithmStrategy;
+import io.seldon.recommendation.ActionIngestionPlan;
+import io.seldon.recommendation.ClientStrategy;
 import io.seldon.recommendation.LastRecommendationBean;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -71,8 +77,6 @@ import org.springframework.stereotype.Service;
 @Service
 public class ActionService {
 
-	private static final String BUCKET_CLUSTER_OPTION_NAME = "io.seldon.algorithm.clusters.usebucketcluster";
-	private static final String FULL_ACTION_STORE_OPTION_NAME = "io.seldon.algorithm.actions.storefullactions";
     private static Logger logger = Logger.getLogger(ActionService.class.getName());
 	
 	@Autowired
@@ -87,9 +91,6 @@ public class ActionService {
     @Autowired
     private ClientAlgorithmStore clientAlgorithmStore;
 
-    @Autowired
-    private DefaultOptions defaultOptions;
-    
     @Autowired
     private JdoAsyncActionFactory asyncActionFactory;
     
@@ -180,6 +181,50 @@ public class ActionService {
 		return bean;
 	}
 	
+	/**
+	 * @return the id of a newly added item or 0 if the async action queue will add it
+	 */
+	private Long newItemId(ConsumerBean c,String clientItemId,boolean doAsyncAction)
+	{
+		if (doAsyncAction && JdoAsyncActionFactory.isAsyncItemWrites())
+			return 0L;
+		//TODO - addItem can throw an exception if item is now already created - change?
+		try
+		{
+			Item item = itemService.addItem(c, new ItemBean(clientItemId));
+			return item.getItemId();
+		}
+		catch (APIException e)
+		{
+			if(e.getError_id()==APIException.ITEM_DUPLICATED)
+				return itemService.getInternalItemId(c, clientItemId); 
+			else
+				throw e;
+		}
+	}
+	
+	/**
+	 * @return the id of a newly added user or 0 if the async action queue will add it
+	 */
+	private Long newUserId(ConsumerBean c,String clientUserId,boolean doAsyncAction)
+	{
+		if (doAsyncAction && JdoAsyncActionFactory.isAsyncUserWrites())
+			return 0L;
+		//TODO - addUser can throw an exception if user is now already created - change?
+		try
+		{
+			User user = userService.addUser(c, new UserBean(clientUserId));
+			return user.getUserId();
+		}
+		catch(APIException e) 
+		{
+			if(e.getError_id()==APIException.USER_DUPLICATED)
+				return userService.getInternalUserId(c, clientUserId); 
+			else
+				throw e;
+		}
+	}
+	
 	public void addAction(ConsumerBean c,ActionBean bean) {
 		
 		AsyncActionQueue q = null;
@@ -199,29 +244,10 @@ public class ActionService {
 		}
 		catch(APIException e) 
 		{
-			if (!doAsyncAction || !JdoAsyncActionFactory.isAsyncItemWrites())
-			{
-				if(e.getError_id()==APIException.ITEM_NOT_FOUND) 
-				{
-					//TODO - addItem can throw an exception if item is now already created - change?
-					try
-					{
-						Item item = itemService.addItem(c, new ItemBean(bean.getItem()));
-						itemId = item.getItemId();
-					}
-					catch (APIException e2)
-					{
-						if(e2.getError_id()==APIException.ITEM_DUPLICATED)
-							itemId = itemService.getInternalItemId(c, bean.getItem()); 
-						else
-							throw e2;
-					}
-				}
-				else
-					throw e;
-			}
+			if(e.getError_id()==APIException.ITEM_NOT_FOUND) 
+				itemId = newItemId(c, bean.getItem(), doAsyncAction);
 			else
-				itemId=0L;
+				throw e;
 		};
 		
 		try 
@@ -230,30 +256,10 @@ public class ActionService {
 		}
 		catch(APIException e) 
 		{
-			if (!doAsyncAction || !JdoAsyncActionFactory.isAsyncUserWrites())
-			{
-				if(e.getError_id()==APIException.USER_NOT_FOUND) 
-				{
-					//TODO - addUser can throw an exception if user is now already created - change?
-					try
-					{
-						User user = userService.addUser(c, new UserBean(bean.getUser()));
-						userId = user.getUserId();
-					}
-					catch(APIException e2) 
-					{
-						if(e2.getError_id()==APIException.USER_DUPLICATED)
-							userId = userService.getInternalUserId(c, bean.getUser()); 
-						else
-							throw e2;
-					}
-				}
-				else
-					throw e;
-			}
+			if(e.getError_id()==APIException.USER_NOT_FOUND) 
+				userId = newUserId(c, bean.getUser(), doAsyncAction);
 			else
-				userId=0L;
-				
+				throw e;
 		}; 
 
 		if (userId != null && itemId != null)
@@ -277,19 +283,9 @@ public class ActionService {
 			if (userId > 0 && itemId > 0)
 			{
 				
-                boolean useBucketCluster = false;
-                boolean storeFullActions = false;
+				ActionIngestionPlan plan = clientAlgorithmStore.retrieveStrategy(c.getShort_name()).getIngestionPlan(a.getClientUserId(), bean.getRecTag());
 				CountRecommender cRec = cUtils.getCountRecommender(c.getShort_name());
-                for (AlgorithmStrategy strat : clientAlgorithmStore.retrieveStrategy(c.getShort_name()).getAlgorithms(a.getClientUserId(), bean.getRecTag())){
-                    RecommendationContext.OptionsHolder holder = new RecommendationContext.OptionsHolder(defaultOptions, strat.config);
-                    if (holder.getBooleanOption(BUCKET_CLUSTER_OPTION_NAME)) {
-                        useBucketCluster = true;
-                    }
-                    if (holder.getBooleanOption(FULL_ACTION_STORE_OPTION_NAME)) {
-                        storeFullActions = true;
-                    }
-                }
-                
+				
 				if (cRec != null)
 				{
 					boolean addCount = true;
@@ -297,20 +293,19 @@ public class ActionService {
 						addCount = clusterTypeService.okToClusterCount(c.getShort_name(), a.getType());
 					if (addCount)
 					{
-						Map<Integer,Double> actionWeights = clientAlgorithmStore.retrieveStrategy(c.getShort_name()).getActionsWeights(a.getClientUserId(), bean.getRecTag());
-						Double actionWeight = actionWeights.get(a.getType());
+						double actionWeight = a.getType() != null ? plan.getActionWeight(a.getType(), 1.0) : 1.0;
 						if (bean.getReferrer() != null)
 							cRec.setReferrer(bean.getReferrer());
 						if (a.getDate() != null)
-							cRec.addCount(userId, itemId,a.getDate().getTime()/1000, useBucketCluster,actionWeight);
+							cRec.addCount(userId, itemId,a.getDate().getTime()/1000, plan.isUseBucketCluster(),actionWeight);
 						else
-							cRec.addCount(userId, itemId, useBucketCluster,actionWeight);
+							cRec.addCount(userId, itemId, plan.isUseBucketCluster(),actionWeight);
 					}
 				}
 				
 
 				actionCache.addAction(c.getShort_name(),userId, itemId);
-				if (storeFullActions)
+				if (plan.isStoreFullActions())
 					actionCache.addFullAction(c.getShort_name(), a);
 				
 			}
@@ -323,6 +318,143 @@ public class ActionService {
 	}
 	
 
+	/**
+	 * The actions of one user with the same referrer and strategy options
+	 */
+	private static class UserActions {
+		final long userId;
+		final String referrer;
+		final ActionIngestionPlan plan;
+		final List<Action> actions = new ArrayList<>();
+		
+		UserActions(long userId,String referrer,ActionIngestionPlan plan)
+		{
+			this.userId = userId;
+			this.referrer = referrer;
+			this.plan = plan;
+		}
+	}
+	
+	/**
+	 * Add many actions for a client. Ids of all the users and items are looked up together, the ingestion plan of each
+	 * action is taken from its strategy and cluster counts and action history are updated once per user.
+	 * @return for each action in order the action bean or an error bean if it could not be added
+	 */
+	public List<ResourceBean> addActions(ConsumerBean c,List<ActionBean> beans) {
+		String client = c.getShort_name();
+		AsyncActionQueue q = null;
+		if (asyncActionFactory != null)
+			q = asyncActionFactory.get(client);
+		boolean doAsyncAction = q != null;
+		
+		Set<String> clientItemIds = new HashSet<>();
+		Set<String> clientUserIds = new HashSet<>();
+		for (ActionBean bean : beans)
+		{
+			clientItemIds.add(bean.getItem());
+			clientUserIds.add(bean.getUser());
+		}
+		Map<String,Long> itemIds = itemService.getInternalItemIds(c, clientItemIds);
+		Map<String,Long> userIds = userService.getInternalUserIds(client, clientUserIds);
+		
+		ClientStrategy strategy = clientAlgorithmStore.retrieveStrategy(client);
+		Map<ActionIngestionPlan,Map<String,UserActions>> byPlan = new IdentityHashMap<>();
+		List<ResourceBean> res = new ArrayList<>(beans.size());
+		for (ActionBean bean : beans)
+		{
+			try
+			{
+				Long itemId = itemIds.get(bean.getItem());
+				if (itemId == null)
+				{
+					itemId = newItemId(c, bean.getItem(), doAsyncAction);
+					if (itemId > 0)
+						itemIds.put(bean.getItem(), itemId);
+				}
+				Long userId = userIds.get(bean.getUser());
+				if (userId == null)
+				{
+					userId = newUserId(c, bean.getUser(), doAsyncAction);
+					if (userId > 0)
+						userIds.put(bean.getUser(), userId);
+				}
+				
+				Action a = bean.createAction(c,userId,itemId);
+				ActionLogger.log(client, userId, itemId, a.getType(), a.getValue(), a.getClientUserId(), a.getClientItemId(), bean.getRecTag());
+				if(doAsyncAction)
+					q.put(a);
+				else
+					Util.getActionPeer(c).addAction(a);
+				
+				if (userId > 0 && itemId > 0)
+				{
+					ActionIngestionPlan plan = strategy.getIngestionPlan(a.getClientUserId(), bean.getRecTag());
+					Map<String,UserActions> byUser = byPlan.get(plan);
+					if (byUser == null)
+					{
+						byUser = new LinkedHashMap<>();
+						byPlan.put(plan, byUser);
+					}
+					String groupKey = userId + ":" + bean.getReferrer();
+					UserActions userActions = byUser.get(groupKey);
+					if (userActions == null)
+					{
+						userActions = new UserActions(userId, bean.getReferrer(), plan);
+						byUser.put(groupKey, userActions);
+					}
+					userActions.actions.add(a);
+				}
+				res.add(bean);
+			}
+			catch (APIException e)
+			{
+				res.add(new ErrorBean(e));
+			}
+		}
+		
+		CountRecommender cRec = byPlan.isEmpty() ? null : cUtils.getCountRecommender(client);
+		for (Map<String,UserActions> byUser : byPlan.values())
+		{
+			for (UserActions userActions : byUser.values())
+			{
+				if (cRec != null)
+					addCounts(client, cRec, userActions);
+				List<Long> items = new ArrayList<>(userActions.actions.size());
+				for (Action a : userActions.actions)
+					items.add(a.getItemId());
+				actionCache.addActions(client, userActions.userId, items);
+				if (userActions.plan.isStoreFullActions())
+					actionCache.addFullActions(client, userActions.userId, userActions.actions);
+			}
+		}
+		return res;
+	}
+	
+	private void addCounts(String client,CountRecommender cRec,UserActions userActions)
+	{
+		int n = 0;
+		long[] itemIds = new long[userActions.actions.size()];
+		long[] times = new long[itemIds.length];
+		double[] weights = new double[itemIds.length];
+		long now = System.currentTimeMillis()/1000;
+		for (int i=0;i<itemIds.length;i++)
+		{
+			Action a = userActions.actions.get(i);
+			if (a.getType() == null || clusterTypeService.okToClusterCount(client, a.getType()))
+			{
+				itemIds[n] = a.getItemId();
+				times[n] = a.getDate() != null ? a.getDate().getTime()/1000 : now;
+				weights[n] = a.getType() != null ? userActions.plan.getActionWeight(a.getType(), 1.0) : 1.0;
+				n++;
+			}
+		}
+		if (n > 0)
+		{
+			cRec.setReferrer(userActions.referrer);
+			cRec.addCounts(userActions.userId, Arrays.copyOf(itemIds, n), Arrays.copyOf(times, n), Arrays.copyOf(weights, n), userActions.plan.isUseBucketCluster());
+		}
+	}
+
 	public static ActionType getActionType(ConsumerBean c, String name) throws ActionTypeNotFoundException {
         String actionTypeKey = MemCacheKeys.getActionTypeByName(c.getShort_name(), name);
         ActionType at = (ActionType) MemCachePeer.get(actionTypeKey);
@@ -37,12 +37,16 @@ import io.seldon.api.resource.ResourceBean;
 import io.seldon.general.Dimension;
 import io.seldon.general.Item;
 import io.seldon.general.ItemAttr;
+import io.seldon.general.ItemDimensionIndex;
+import io.seldon.general.ItemDimensionIndexFactory;
 import io.seldon.general.ItemStorage;
 import io.seldon.general.ItemType;
 import io.seldon.general.RecommendationStorage;
+import io.seldon.memcache.MemCacheBulkGet;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
 import io.seldon.recommendation.RecommendationPeer;
+import io.seldon.tags.ItemTagIndexFactory;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -80,6 +84,12 @@ public class ItemService {
     
     @Autowired
     private ClientIdCacheStore idCache;
+
+    @Autowired
+    private ItemTagIndexFactory tagIndexFactory;
+
+    @Autowired
+    private ItemDimensionIndexFactory dimensionIndexFactory;
     
     public static ItemBean getItem(final ConsumerBean c, final String iid, final boolean full) throws APIException
     {
@@ -257,6 +267,46 @@ public class ItemService {
 		return res;
 	}
 
+    /**
+     * Look up the internal ids of many items with one memcache multi-get and one db query for those not cached.
+     * @return internal ids of the items found, items that don't exist are left out
+     */
+    public Map<String,Long> getInternalItemIds(ConsumerBean c, Collection<String> ids) throws APIException {
+        Map<String,Long> res = new HashMap<>();
+        Map<String,String> keys = new HashMap<>();
+        for (String id : ids)
+        {
+            Long internalId = idCache.getInternalItemId(c.getShort_name(), id);
+            if (internalId != null)
+                res.put(id, internalId);
+            else
+                keys.put(MemCacheKeys.getItemInternalId(c.getShort_name(), id), id);
+        }
+        if (!keys.isEmpty())
+        {
+            MemCacheBulkGet cached = MemCachePeer.getBulk(keys.keySet());
+            Set<String> missing = new HashSet<>();
+            for (Map.Entry<String,String> e : keys.entrySet())
+            {
+                Object internalId = cached.get(e.getKey());
+                if (internalId instanceof Long)
+                    res.put(e.getValue(), (Long) internalId);
+                else
+                    missing.add(e.getValue());
+            }
+            if (!missing.isEmpty())
+            {
+                for (Map.Entry<String,Long> e : Util.getItemPeer(c).getInternalItemIds(missing).entrySet())
+                {
+                    res.put(e.getKey(), e.getValue());
+                    idCache.putItemId(c.getShort_name(), e.getKey(), e.getValue());
+                    cacheInternalItemId(c, e.getKey(), e.getValue());
+                }
+            }
+        }
+        return res;
+    }
+
     /**
      * Cache an item's internal ID keyed by client ID
      * @param consumerBean -
@@ -354,10 +404,12 @@ public class ItemService {
         long itemId = i.getItemId();
         if(bean.getAttributesName() != null && bean.getAttributesName().size()>0) {
             Util.getItemPeer(c).addItemAttributeNames(itemId, type.getTypeId(), bean.getAttributesName(), c);
+            tagIndexFactory.itemUpdated(c.getShort_name(), itemId, bean.getAttributesName());
         }
         else if(bean.getAttributes() != null && bean.getAttributes().size()>0) {
             Util.getItemPeer(c).addItemAttribute(itemId, type.getTypeId(), bean.getAttributes(),c);
         }
+        updateDimensionIndex(c, itemId, type.getTypeId());
         return i;
     }
 
@@ -378,6 +430,7 @@ public class ItemService {
             // TODO:
 			if(bean.getAttributesName() != null && bean.getAttributesName().size()>0) {
 				Util.getItemPeer(c).addItemAttributeNames(itemId, bean.getType(), bean.getAttributesName(),c);
+				tagIndexFactory.itemUpdated(c.getShort_name(), itemId, bean.getAttributesName());
 			}
 			else if(bean.getAttributes() != null && bean.getAttributes().size()>0) {
 				Util.getItemPeer(c).addItemAttribute(itemId, bean.getType(), bean.getAttributes(),c);
@@ -386,6 +439,7 @@ public class ItemService {
 			MemCachePeer.delete(MemCacheKeys.getItemBeanKey(c.getShort_name(), bean.getId(),true));
 			MemCachePeer.delete(MemCacheKeys.getItemBeanKey(c.getShort_name(), bean.getId(),false));
 			MemCachePeer.delete(MemCacheKeys.getItemDimensions(c.getShort_name(), itemId));
+			updateDimensionIndex(c, itemId, type.getTypeId());
 		}
 		catch(APIException e) {
 			if(e.getError_id() == APIException.ITEM_NOT_FOUND) {
@@ -405,6 +459,14 @@ public class ItemService {
 		}
 	}
 	
+	/**
+	 * Bring the item's dimensions up to date in the dimension index if the index for the client has been or is being built
+	 */
+	private void updateDimensionIndex(ConsumerBean c, long itemId, int itemType) {
+		if (ItemDimensionIndex.isIndexed(itemId) && dimensionIndexFactory.isIndexing(c.getShort_name()))
+			dimensionIndexFactory.itemUpdated(c.getShort_name(), itemId, Util.getItemPeer(c).getItemDimensions(itemId, itemType));
+	}
+
 	public static Collection<Integer> getItemDimensions(ConsumerBean c, long itemId) {
 		Collection<Integer> res = (Collection<Integer>)MemCachePeer.get(MemCacheKeys.getItemDimensions(c.getShort_name(), itemId));
 		if(res == null) {
@@ -32,11 +32,15 @@ import io.seldon.api.resource.DemographicBean;
 import io.seldon.api.resource.ListBean;
 import io.seldon.api.resource.UserBean;
 import io.seldon.general.User;
+import io.seldon.memcache.MemCacheBulkGet;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
 
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -139,6 +143,46 @@ public class UserService {
         return res;
     }
 
+    /**
+     * Look up the internal ids of many users with one memcache multi-get and one db query for those not cached.
+     * @return internal ids of the users found, users that don't exist are left out
+     */
+    public Map<String,Long> getInternalUserIds(String consumerShortName, Collection<String> ids) {
+        Map<String,Long> res = new HashMap<>();
+        Map<String,String> keys = new HashMap<>();
+        for (String id : ids)
+        {
+            Long internalId = idCache.getInternalUserId(consumerShortName, id);
+            if (internalId != null)
+                res.put(id, internalId);
+            else
+                keys.put(MemCacheKeys.getUserInternalId(consumerShortName, id), id);
+        }
+        if (!keys.isEmpty())
+        {
+            MemCacheBulkGet cached = MemCachePeer.getBulk(keys.keySet());
+            Set<String> missing = new HashSet<>();
+            for (Map.Entry<String,String> e : keys.entrySet())
+            {
+                Object internalId = cached.get(e.getKey());
+                if (internalId instanceof Long)
+                    res.put(e.getValue(), (Long) internalId);
+                else
+                    missing.add(e.getValue());
+            }
+            if (!missing.isEmpty())
+            {
+                for (Map.Entry<String,Long> e : Util.getUserPeer(consumerShortName).getInternalUserIds(missing).entrySet())
+                {
+                    res.put(e.getKey(), e.getValue());
+                    idCache.putUserId(consumerShortName, e.getKey(), e.getValue());
+                    cacheInternalUserId(consumerShortName, e.getKey(), e.getValue());
+                }
+            }
+        }
+        return res;
+    }
+
     /**
      * Cache a user's internal ID, keyed by client ID
      * @param consumerBean -
@@ -27,6 +27,8 @@ import io.seldon.api.resource.ActionBean;
 import io.seldon.api.resource.ConsumerBean;
 import io.seldon.api.resource.ResourceBean;
 
+import java.util.List;
+
 /**
  * Created by: marc on 14/08/2012 at 13:39
  */
@@ -34,5 +36,11 @@ public interface ActionBusinessService {
     ResourceBean addAction(ConsumerBean consumerBean, ActionBean actionBean,
                            boolean isClickThrough, String recsCounter, String recTag);
 
+    /**
+     * Add many actions that are not click throughs
+     * @return a list with the action bean or an error bean for each action
+     */
+    ResourceBean addActions(ConsumerBean consumerBean, List<ActionBean> actionBeans);
+
     
 }
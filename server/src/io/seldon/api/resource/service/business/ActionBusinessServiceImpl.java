@@ -28,6 +28,7 @@ import io.seldon.api.logging.CtrFullLogger;
 import io.seldon.api.resource.ActionBean;
 import io.seldon.api.resource.ConsumerBean;
 import io.seldon.api.resource.ErrorBean;
+import io.seldon.api.resource.ListBean;
 import io.seldon.api.resource.ResourceBean;
 import io.seldon.api.resource.service.ActionService;
 import io.seldon.api.resource.service.ItemService;
@@ -37,6 +38,7 @@ import io.seldon.recommendation.LastRecommendationBean;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -52,6 +54,10 @@ public class ActionBusinessServiceImpl implements ActionBusinessService {
 
     @Autowired
     RecommendationService recService;
+
+    // most actions accepted in one batch call
+    @Value("${io.seldon.actions.batch.max:1000}")
+    int maxBatchSize = 1000;
     
     private static Logger logger = Logger.getLogger(ActionBusinessServiceImpl.class.getName());
 
@@ -84,6 +90,25 @@ public class ActionBusinessServiceImpl implements ActionBusinessService {
         return responseBean;
     }
 
-    
+    @Override
+    public ResourceBean addActions(ConsumerBean consumerBean, List<ActionBean> actionBeans) {
+        ResourceBean responseBean;
+        try {
+            if (actionBeans.size() > maxBatchSize)
+                throw new APIException(APIException.BATCH_TOO_LARGE);
+            ListBean listBean = new ListBean();
+            for (ResourceBean bean : actionService.addActions(consumerBean, actionBeans))
+                listBean.addBean(bean);
+            responseBean = listBean;
+        } catch (APIException e) {
+            ApiLoggerServer.log(this, e);
+            responseBean = new ErrorBean(e);
+        } catch (Exception e) {
+            ApiLoggerServer.log(this, e);
+            APIException apiEx = new APIException(APIException.INCORRECT_FIELD);
+            responseBean = new ErrorBean(apiEx);
+        }
+        return responseBean;
+    }
 
-}
\ No newline at end of file
+}
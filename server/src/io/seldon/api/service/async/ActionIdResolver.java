@@ -0,0 +1,226 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.service.async;
+
+import io.seldon.api.Constants;
+import io.seldon.db.jdbc.MultiRowInsert;
+import io.seldon.general.Action;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Fills in the internal user and item ids of actions that arrived with id 0 because the user or item was new or not
+ * yet known to the API server. Ids are looked up in an in-memory cache of client id to internal id and then in the
+ * db in bulk, creating the users and items that don't exist. Running this before the actions are written replaces
+ * updating the ids in the actions table afterwards with a join.
+ * <p>
+ * One resolver is shared by all the writers of a client.
+ */
+public class ActionIdResolver {
+
+	private static Logger logger = Logger.getLogger(ActionIdResolver.class.getName());
+
+	private static final int LOOKUP_CHUNK = 1000;
+
+	private interface ClientIdGetter {
+		String get(Action action);
+	}
+
+	private static final ClientIdGetter USER_ID = new ClientIdGetter() {
+		@Override
+		public String get(Action action) {
+			return action.getClientUserId();
+		}
+	};
+
+	private static final ClientIdGetter ITEM_ID = new ClientIdGetter() {
+		@Override
+		public String get(Action action) {
+			return action.getClientItemId();
+		}
+	};
+
+	private static void setDate(PreparedStatement s,int index,Action action) throws SQLException
+	{
+		if (action.getDate() != null)
+			s.setTimestamp(index, new Timestamp(action.getDate().getTime()));
+		else
+			s.setNull(index, Types.TIMESTAMP);
+	}
+
+	private final Cache<String,Long> userIds;
+	private final Cache<String,Long> itemIds;
+	private final MultiRowInsert<Action> userInsert;
+	private final MultiRowInsert<Action> itemInsert;
+
+	public ActionIdResolver(int maxCachedIds,int maxRows,int maxStatementBytes)
+	{
+		this.userIds = CacheBuilder.newBuilder().maximumSize(maxCachedIds).build();
+		this.itemIds = CacheBuilder.newBuilder().maximumSize(maxCachedIds).build();
+		this.userInsert = new MultiRowInsert<>("insert ignore into users (user_id,username,first_op,last_op,type,num_op,active,client_user_id,avgrating,stddevrating) values ",
+				"(0,'',?,?,?,1,1,?,0,0)", 4, maxRows, maxStatementBytes, new MultiRowInsert.Row<Action>() {
+			@Override
+			public void setParameters(PreparedStatement s, int index, Action action) throws SQLException {
+				setDate(s, index, action);
+				setDate(s, index + 1, action);
+				s.setInt(index + 2, Constants.DEFAULT_USER_TYPE);
+				s.setString(index + 3, action.getClientUserId());
+			}
+			@Override
+			public int estimateBytes(Action action) {
+				return 60 + 2 * action.getClientUserId().length();
+			}
+		});
+		this.itemInsert = new MultiRowInsert<>("insert ignore into items (item_id,name,first_op,last_op,popular,client_item_id,type,avgrating,stddevrating,num_op) values ",
+				"(0,'',?,?,0,?,0,0,0,0)", 3, maxRows, maxStatementBytes, new MultiRowInsert.Row<Action>() {
+			@Override
+			public void setParameters(PreparedStatement s, int index, Action action) throws SQLException {
+				setDate(s, index, action);
+				setDate(s, index + 1, action);
+				s.setString(index + 2, action.getClientItemId());
+			}
+			@Override
+			public int estimateBytes(Action action) {
+				return 60 + 2 * action.getClientItemId().length();
+			}
+		});
+	}
+
+	/**
+	 * Create any new users and items and, if updateActions, set their internal ids in the actions.
+	 * New users and items are committed before returning so the cached ids are never for rolled back rows.
+	 */
+	public void resolve(Connection connection,List<Action> actions,boolean updateActions) throws SQLException
+	{
+		Map<String,Action> newUsers = new LinkedHashMap<>();
+		Map<String,Action> newItems = new LinkedHashMap<>();
+		for(Action a : actions)
+		{
+			if (a.getUserId() == 0 && userIds.getIfPresent(a.getClientUserId()) == null && !newUsers.containsKey(a.getClientUserId()))
+				newUsers.put(a.getClientUserId(), a);
+			if (a.getItemId() == 0 && itemIds.getIfPresent(a.getClientItemId()) == null && !newItems.containsKey(a.getClientItemId()))
+				newItems.put(a.getClientItemId(), a);
+		}
+		if (!newUsers.isEmpty() || !newItems.isEmpty())
+		{
+			Map<String,Long> users = resolve(connection, newUsers, userInsert, "users", "user_id", "client_user_id");
+			Map<String,Long> items = resolve(connection, newItems, itemInsert, "items", "item_id", "client_item_id");
+			connection.commit();
+			userIds.putAll(users);
+			itemIds.putAll(items);
+			if (logger.isDebugEnabled())
+				logger.debug("Resolved "+users.size()+"/"+newUsers.size()+" new users and "+items.size()+"/"+newItems.size()+" new items");
+		}
+		if (updateActions)
+		{
+			for(Action a : actions)
+			{
+				if (a.getUserId() == 0)
+					a.setUserId(getOrZero(userIds, a, USER_ID));
+				if (a.getItemId() == 0)
+					a.setItemId(getOrZero(itemIds, a, ITEM_ID));
+			}
+		}
+	}
+
+	private static long getOrZero(Cache<String,Long> cache,Action action,ClientIdGetter getter)
+	{
+		Long id = cache.getIfPresent(getter.get(action));
+		return id != null ? id : 0;
+	}
+
+	private Map<String,Long> resolve(Connection connection,Map<String,Action> missing,MultiRowInsert<Action> insert,String table,String idColumn,String clientIdColumn) throws SQLException
+	{
+		if (missing.isEmpty())
+			return new HashMap<>();
+		Map<String,Long> found = lookup(connection, missing.keySet(), table, idColumn, clientIdColumn);
+		if (found.size() < missing.size())
+		{
+			List<Action> toAdd = new ArrayList<>();
+			List<String> added = new ArrayList<>();
+			for(Map.Entry<String,Action> e : missing.entrySet())
+				if (!found.containsKey(e.getKey()))
+				{
+					toAdd.add(e.getValue());
+					added.add(e.getKey());
+				}
+			insert.execute(connection, toAdd);
+			found.putAll(lookup(connection, added, table, idColumn, clientIdColumn));
+		}
+		return found;
+	}
+
+	private static Map<String,Long> lookup(Connection connection,Iterable<String> clientIds,String table,String idColumn,String clientIdColumn) throws SQLException
+	{
+		Map<String,Long> res = new HashMap<>();
+		List<String> chunk = new ArrayList<>(LOOKUP_CHUNK);
+		for(String clientId : clientIds)
+		{
+			chunk.add(clientId);
+			if (chunk.size() == LOOKUP_CHUNK)
+			{
+				lookupChunk(connection, chunk, table, idColumn, clientIdColumn, res);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty())
+			lookupChunk(connection, chunk, table, idColumn, clientIdColumn, res);
+		return res;
+	}
+
+	private static void lookupChunk(Connection connection,List<String> clientIds,String table,String idColumn,String clientIdColumn,Map<String,Long> res) throws SQLException
+	{
+		StringBuilder sql = new StringBuilder("select ").append(clientIdColumn).append(',').append(idColumn)
+				.append(" from ").append(table).append(" where ").append(clientIdColumn).append(" in (");
+		for(int i=0;i<clientIds.size();i++)
+			sql.append(i == 0 ? "?" : ",?");
+		sql.append(')');
+		try (PreparedStatement s = connection.prepareStatement(sql.toString()))
+		{
+			for(int i=0;i<clientIds.size();i++)
+				s.setString(i + 1, clientIds.get(i));
+			try (ResultSet rs = s.executeQuery())
+			{
+				while (rs.next())
+					res.put(rs.getString(1), rs.getLong(2));
+			}
+		}
+	}
+}
@@ -0,0 +1,534 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.service.async;
+
+import io.seldon.general.Action;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append only local log of actions waiting to be written to the db, made of fixed size memory mapped segment files.
+ * Actions are appended by the API threads and read back in order by a single drain thread, which commits its read
+ * position once the actions are safely in the db. Actions after the committed position are read again after a
+ * {@link #rewind()} or a restart, so nothing is lost if the db is unavailable or the process dies.
+ * <p>
+ * Each record is an int payload length, an int crc32 of the payload, a long append time and the payload. A zero length
+ * marks the end of the data in a segment. Segments are named by the log offset of their first byte and removed once
+ * wholly before the committed position, which is kept in a checkpoint file.
+ * <p>
+ * Actions the db will never accept can be moved to a dead letter file in the same record format, which is not replayed.
+ */
+public class ActionLog {
+
+	private static Logger logger = Logger.getLogger(ActionLog.class.getName());
+
+	private static final int HEADER_BYTES = 16;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	public static final String DEAD_LETTER_FILE = "deadletter";
+
+	private static class Segment {
+		final long start;
+		final File file;
+		final MappedByteBuffer buf;
+
+		Segment(long start,File file,MappedByteBuffer buf)
+		{
+			this.start = start;
+			this.file = file;
+			this.buf = buf;
+		}
+	}
+
+	private final File dir;
+	private final int segmentBytes;
+	private final long maxBytes;
+	private final TreeMap<Long,Segment> segments = new TreeMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	private Segment writeSegment;
+	private int writePos;
+	private Segment readSegment;
+	private int readPos;
+	private long committed;
+	private long dropped;
+
+	/**
+	 * Open the log in the directory replaying any actions not yet committed
+	 * @param dir
+	 * @param segmentBytes size of each segment file
+	 * @param maxBytes appends wait while this many bytes are uncommitted
+	 */
+	public ActionLog(File dir,int segmentBytes,long maxBytes) throws IOException
+	{
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create action log directory "+dir);
+		File[] files = dir.listFiles();
+		if (files != null)
+			for(File f : files)
+				if (f.getName().endsWith(SEGMENT_SUFFIX))
+				{
+					long start = Long.parseLong(f.getName().substring(0, f.getName().length() - SEGMENT_SUFFIX.length()));
+					segments.put(start, map(start, f));
+				}
+		if (segments.isEmpty())
+			segments.put(0L, map(0L, segmentFile(0L)));
+		committed = readCheckpoint();
+		if (committed < segments.firstKey())
+			committed = segments.firstKey();
+		writeSegment = segments.lastEntry().getValue();
+		writePos = recoverEnd(writeSegment);
+		if (committed > writeSegment.start + writePos)
+			committed = writeSegment.start + writePos;
+		rewind();
+		logger.info("Opened action log "+dir+" with "+segments.size()+" segments and "+getBytesBehind()+" bytes to replay");
+	}
+
+	private File segmentFile(long start)
+	{
+		return new File(dir, String.format("%020d", start) + SEGMENT_SUFFIX);
+	}
+
+	private Segment map(long start,File file) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			 FileChannel channel = raf.getChannel())
+		{
+			if (raf.length() < segmentBytes)
+				raf.setLength(segmentBytes);
+			return new Segment(start, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+		}
+	}
+
+	/**
+	 * Find the end of the valid records in the last segment and clear anything after it left by a torn write
+	 */
+	private int recoverEnd(Segment segment)
+	{
+		int pos = 0;
+		while (recordLength(segment, pos) > 0)
+			pos += HEADER_BYTES + recordLength(segment, pos);
+		for(int i=pos;i<segmentBytes;i++)
+			segment.buf.put(i, (byte) 0);
+		return pos;
+	}
+
+	/**
+	 * @return the payload length of a valid record at the position or 0 if there is none
+	 */
+	private int recordLength(Segment segment,int pos)
+	{
+		if (pos + HEADER_BYTES > segmentBytes)
+			return 0;
+		int len = segment.buf.getInt(pos);
+		if (len <= 0 || pos + HEADER_BYTES + len > segmentBytes)
+			return 0;
+		CRC32 crc = new CRC32();
+		crc.update(payload(segment, pos, len));
+		return (int) crc.getValue() == segment.buf.getInt(pos + 4) ? len : 0;
+	}
+
+	private byte[] payload(Segment segment,int pos,int len)
+	{
+		byte[] bytes = new byte[len];
+		ByteBuffer b = segment.buf.duplicate();
+		b.position(pos + HEADER_BYTES);
+		b.get(bytes);
+		return bytes;
+	}
+
+	private long readCheckpoint()
+	{
+		File f = new File(dir, CHECKPOINT_FILE);
+		if (f.exists())
+		{
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(f.toPath())))
+			{
+				return in.readLong();
+			}
+			catch (IOException e)
+			{
+				logger.error("Can't read action log checkpoint "+f+" will replay all segments",e);
+			}
+		}
+		return 0;
+	}
+
+	private void writeCheckpoint() throws IOException
+	{
+		File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp.toPath())))
+		{
+			out.writeLong(committed);
+		}
+		Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Append the action, waiting up to the timeout while the log is over its maximum size
+	 * @return false if the action was dropped as the log stayed full
+	 */
+	public boolean append(Action action,long timeoutMillis) throws IOException
+	{
+		byte[] payload = encode(action);
+		int recordBytes = HEADER_BYTES + payload.length;
+		if (recordBytes > segmentBytes)
+			throw new IOException("Action of "+recordBytes+" bytes is larger than action log segment");
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		lock.lock();
+		try
+		{
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			while (getBytesBehind() + recordBytes > maxBytes)
+			{
+				if (nanos <= 0)
+				{
+					dropped++;
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			if (writePos + recordBytes > segmentBytes)
+				roll();
+			MappedByteBuffer buf = writeSegment.buf;
+			buf.putInt(writePos + 4, (int) crc.getValue());
+			buf.putLong(writePos + 8, System.currentTimeMillis());
+			ByteBuffer b = buf.duplicate();
+			b.position(writePos + HEADER_BYTES);
+			b.put(payload);
+			buf.putInt(writePos, payload.length); // length last so a torn record is never valid
+			writePos += recordBytes;
+			notEmpty.signal();
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			dropped++;
+			return false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void roll() throws IOException
+	{
+		writeSegment.buf.force();
+		long start = writeSegment.start + segmentBytes;
+		writeSegment = map(start, segmentFile(start));
+		segments.put(start, writeSegment);
+		writePos = 0;
+	}
+
+	/**
+	 * Read the next action after the last one read waiting up to the timeout for one to be appended
+	 * @return the action or null if none arrived in time
+	 */
+	public Action poll(long timeout,TimeUnit unit) throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			long nanos = unit.toNanos(timeout);
+			while (true)
+			{
+				Action action = readNext();
+				if (action != null || nanos <= 0)
+					return action;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private Action readNext()
+	{
+		while (true)
+		{
+			if (readSegment == writeSegment && readPos >= writePos)
+				return null;
+			int len = recordLength(readSegment, readPos);
+			if (len == 0)
+			{
+				if (readSegment == writeSegment)
+				{
+					logger.error("Corrupt record in action log "+readSegment.file+" at "+readPos+" skipping to end");
+					readPos = writePos;
+					return null;
+				}
+				// end of a sealed segment
+				readSegment = segments.higherEntry(readSegment.start).getValue();
+				readPos = 0;
+				continue;
+			}
+			byte[] payload = payload(readSegment, readPos, len);
+			readPos += HEADER_BYTES + len;
+			try
+			{
+				return decode(payload);
+			}
+			catch (IOException e)
+			{
+				logger.error("Can't decode action in action log "+readSegment.file+" skipping it",e);
+			}
+		}
+	}
+
+	/**
+	 * Mark all actions read so far as safely stored. Segments wholly before them are removed.
+	 */
+	public void commit() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			committed = readSegment.start + readPos;
+			writeCheckpoint();
+			for(Iterator<Map.Entry<Long,Segment>> it = segments.entrySet().iterator();it.hasNext();)
+			{
+				Segment s = it.next().getValue();
+				if (s == readSegment || s == writeSegment || s.start + segmentBytes > committed)
+					break;
+				it.remove();
+				if (!s.file.delete())
+					logger.warn("Failed to delete action log segment "+s.file);
+			}
+			notFull.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move the actions read but not committed to the end of the dead letter file then commit them
+	 * @return the number of bytes moved
+	 */
+	public long deadLetter() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			long moved = 0;
+			try (FileOutputStream out = new FileOutputStream(new File(dir, DEAD_LETTER_FILE), true))
+			{
+				Segment s = segments.floorEntry(committed).getValue();
+				int pos = (int) (committed - s.start);
+				while (s != readSegment || pos < readPos)
+				{
+					int len = recordLength(s, pos);
+					if (len == 0)
+					{
+						if (s == readSegment)
+							break;
+						s = segments.higherEntry(s.start).getValue();
+						pos = 0;
+						continue;
+					}
+					byte[] record = new byte[HEADER_BYTES + len];
+					ByteBuffer b = s.buf.duplicate();
+					b.position(pos);
+					b.get(record);
+					out.write(record);
+					pos += record.length;
+					moved += record.length;
+				}
+				out.getFD().sync();
+			}
+			commit();
+			return moved;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Go back to the last committed position so uncommitted actions are read again
+	 */
+	public void rewind()
+	{
+		lock.lock();
+		try
+		{
+			readSegment = segments.floorEntry(committed).getValue();
+			readPos = (int) (committed - readSegment.start);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return bytes appended but not committed
+	 */
+	public long getBytesBehind()
+	{
+		lock.lock();
+		try
+		{
+			return writeSegment.start + writePos - committed;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return milliseconds since the oldest uncommitted action was appended, 0 if there is none
+	 */
+	public long getLagMillis()
+	{
+		lock.lock();
+		try
+		{
+			Segment s = segments.floorEntry(committed).getValue();
+			int pos = (int) (committed - s.start);
+			while (s != writeSegment && recordLength(s, pos) == 0)
+			{
+				s = segments.higherEntry(s.start).getValue();
+				pos = 0;
+			}
+			if (s == writeSegment && pos >= writePos)
+				return 0;
+			return Math.max(System.currentTimeMillis() - s.buf.getLong(pos + 8), 0);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return actions dropped because the log was full
+	 */
+	public long getDropped()
+	{
+		lock.lock();
+		try
+		{
+			return dropped;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			writeSegment.buf.force();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	static byte[] encode(Action a) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(a.getUserId());
+		out.writeLong(a.getItemId());
+		out.writeInt(a.getType() != null ? a.getType() : Integer.MIN_VALUE);
+		out.writeInt(a.getTimes() != null ? a.getTimes() : Integer.MIN_VALUE);
+		out.writeLong(a.getDate() != null ? a.getDate().getTime() : Long.MIN_VALUE);
+		out.writeBoolean(a.getValue() != null);
+		out.writeDouble(a.getValue() != null ? a.getValue() : 0);
+		writeString(out, a.getClientUserId());
+		writeString(out, a.getClientItemId());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static Action decode(byte[] payload) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		long userId = in.readLong();
+		long itemId = in.readLong();
+		int type = in.readInt();
+		int times = in.readInt();
+		long date = in.readLong();
+		boolean hasValue = in.readBoolean();
+		double value = in.readDouble();
+		String clientUserId = readString(in);
+		String clientItemId = readString(in);
+		return new Action(null, userId, itemId, type == Integer.MIN_VALUE ? null : type, times == Integer.MIN_VALUE ? null : times,
+				date == Long.MIN_VALUE ? null : new Date(date), hasValue ? value : null, clientUserId, clientItemId);
+	}
+
+	private static void writeString(DataOutputStream out,String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
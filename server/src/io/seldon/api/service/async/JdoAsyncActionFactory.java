@@ -27,6 +27,10 @@ import io.seldon.api.state.NewClientListener;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.api.state.zk.ZkClientConfigHandler;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,6 +41,7 @@ import io.seldon.db.jdo.DbConfigHandler;
 import io.seldon.db.jdo.DbConfigListener;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -57,6 +62,8 @@ public class JdoAsyncActionFactory implements DbConfigListener{
 	private static boolean DEF_RUN_USERITEM_UPDATES = true;
 	private static boolean DEF_UPDATE_IDS_ACTION_TABLE = true;
 	private static boolean DEF_INSERT_ACTIONS = false;
+	private static int LOG_SEGMENT_BYTES = 8 * 1024 * 1024;
+	private static int DEF_MAX_CACHED_IDS = 100000;
 	
 	public static final String ASYNC_PROP_PREFIX = "io.seldon.asyncactions";
 	private static Properties props;
@@ -69,11 +76,29 @@ public class JdoAsyncActionFactory implements DbConfigListener{
 	}
 
 	DefaultOptions options;
+	private final String logDir;
+	private final long logMaxBytes;
+	private final int writers;
+	private final int maxStatementBytes;
 	
+	/**
+	 * @param logDir if not empty actions are buffered in an {@link ActionLog} per client under this directory rather than in memory
+	 * @param logMaxMb size of the log at which API threads start to wait and then drop actions
+	 * @param writers number of writer threads per client, actions are partitioned between them by user
+	 * @param maxStatementKb max size of a multi-row insert, keep below the server's max_allowed_packet
+	 */
 	@Autowired
-	public JdoAsyncActionFactory(DefaultOptions options,DbConfigHandler dbConfigHandler)
+	public JdoAsyncActionFactory(DefaultOptions options,DbConfigHandler dbConfigHandler,
+			@Value("${io.seldon.asyncactions.log.dir:}") String logDir,
+			@Value("${io.seldon.asyncactions.log.maxmb:256}") int logMaxMb,
+			@Value("${io.seldon.asyncactions.writers:1}") int writers,
+			@Value("${io.seldon.asyncactions.maxstatementkb:1024}") int maxStatementKb)
 	{
 		this.options = options;
+		this.logDir = logDir;
+		this.logMaxBytes = logMaxMb * 1024L * 1024L;
+		this.writers = Math.max(1, writers);
+		this.maxStatementBytes = maxStatementKb * 1024;
 		dbConfigHandler.addDbConfigListener(this);
 	}
 	
@@ -102,12 +127,92 @@ public class JdoAsyncActionFactory implements DbConfigListener{
 		boolean runUpdateIdsActionTable = DEF_UPDATE_IDS_ACTION_TABLE;
 		boolean insertActions = DEF_INSERT_ACTIONS;
 		
-		return create(client,qTimeout,batchSize,maxqSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions);
+		ActionIdResolver idResolver = new ActionIdResolver(DEF_MAX_CACHED_IDS, batchSize, maxStatementBytes);
+		replayLogs(client,qTimeout,batchSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions,idResolver);
+		if (writers == 1)
+			return create(client,qTimeout,batchSize,maxqSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions,openLog(client,0),idResolver,maxStatementBytes);
+		List<JdoAsyncActionQueue> shards = new ArrayList<>(writers);
+		for(int i=0;i<writers;i++)
+			shards.add(create(client,qTimeout,batchSize,maxqSize / writers,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions,openLog(client,i),idResolver,maxStatementBytes));
+		logger.info("Created "+writers+" action writers for client "+client);
+		return new ShardedAsyncActionQueue(shards);
 	}
 	
-	private static AsyncActionQueue create(String client,int qtimeoutSecs,int batchSize,int qSize,int dbRetries,boolean runUserItemUpdates,boolean runUpdateIdsActionTable,boolean insertActions)
+	/**
+	 * Write out the actions left in all of the client's logs before any new ones are accepted. Users may be partitioned
+	 * differently if the number of writers has changed, so a user's old actions must all be in the db before new ones
+	 * are written. Each log holds different users so they are replayed in parallel.
+	 */
+	private void replayLogs(String client,int qTimeout,int batchSize,int dbRetries,boolean runUserItemUpdates,boolean runUpdateIdsActionTable,boolean insertActions,
+			ActionIdResolver idResolver)
 	{
-		JdoAsyncActionQueue q = new JdoAsyncActionQueue(client,qtimeoutSecs,batchSize,qSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions);
+		if (logDir == null || logDir.isEmpty())
+			return;
+		final String prefix = client + ".";
+		File[] dirs = new File(logDir).listFiles();
+		if (dirs == null)
+			return;
+		List<Thread> replays = new ArrayList<>();
+		for(File dir : dirs)
+		{
+			String name = dir.getName();
+			if (!dir.isDirectory() || !(name.equals(client) || (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"))))
+				continue;
+			try
+			{
+				ActionLog log = new ActionLog(dir, LOG_SEGMENT_BYTES, Long.MAX_VALUE);
+				if (log.getBytesBehind() == 0)
+					continue;
+				final JdoAsyncActionQueue q = new JdoAsyncActionQueue(client,qTimeout,batchSize,DEF_MAXQSIZE,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions,log,idResolver,maxStatementBytes);
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						q.drain();
+					}
+				}, "action-replay-" + name);
+				t.start();
+				replays.add(t);
+			}
+			catch (IOException e)
+			{
+				logger.error("Failed to open action log "+dir+" to replay it",e);
+			}
+		}
+		try
+		{
+			for(Thread t : replays)
+				t.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (!replays.isEmpty())
+			logger.info("Replayed "+replays.size()+" action logs for client "+client);
+	}
+
+	/**
+	 * The first writer uses the client's directory
+	 */
+	private ActionLog openLog(String client,int writer)
+	{
+		if (logDir == null || logDir.isEmpty())
+			return null;
+		try
+		{
+			return new ActionLog(new File(logDir, writer == 0 ? client : client + "." + writer), LOG_SEGMENT_BYTES, logMaxBytes / writers);
+		}
+		catch (IOException e)
+		{
+			logger.error("Failed to open action log for "+client+" in "+logDir+" will hold actions in memory",e);
+			return null;
+		}
+	}
+	
+	private static JdoAsyncActionQueue create(String client,int qtimeoutSecs,int batchSize,int qSize,int dbRetries,boolean runUserItemUpdates,boolean runUpdateIdsActionTable,boolean insertActions,
+			ActionLog log,ActionIdResolver idResolver,int maxStatementBytes)
+	{
+		JdoAsyncActionQueue q = new JdoAsyncActionQueue(client,qtimeoutSecs,batchSize,qSize,dbRetries,runUserItemUpdates,runUpdateIdsActionTable,insertActions,log,idResolver,maxStatementBytes);
 		Thread t = new Thread(q);
 		t.start();
 		return q;
@@ -118,8 +223,16 @@ public class JdoAsyncActionFactory implements DbConfigListener{
 		AsyncActionQueue queue = queues.get(client);
 		if (queue == null)
 		{
-			queues.putIfAbsent(client, create(client));
-			queue = get(client);
+			// create under the lock as a queue opens the client's action logs and starts its writer threads
+			synchronized (queues)
+			{
+				queue = queues.get(client);
+				if (queue == null)
+				{
+					queue = create(client);
+					queues.put(client, queue);
+				}
+			}
 		}
 		return queue;
 	}
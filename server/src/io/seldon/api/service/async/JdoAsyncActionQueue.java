@@ -23,31 +23,43 @@
 
 package io.seldon.api.service.async;
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLDataException;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
-import io.seldon.api.Constants;
+import io.seldon.api.statsd.StatsdPeer;
 import io.seldon.db.jdbc.JDBCConnectionFactory;
+import io.seldon.db.jdbc.MultiRowInsert;
 import io.seldon.general.Action;
 
 /**
  * Provide an batched insert of Actions (including creating new users and items).
  * Uses a LinkedBlockingQueue in which Action objects are added. A thread runs reading actions off this
- * queue and adding them to the db using SQL batch statements. To run fast needs the Mysql extension rewriteBatchedStatements=true.
+ * queue and adding them to the db using multi-row insert statements limited in rows and bytes.
  *
  * <ul>
  * <li> new users are identified by having user_id 0
  * <li> new items are identified by having item_id 0
+ * <li> the ids of new users and items are resolved by an {@link ActionIdResolver} before the actions are written
  * <li> basic validation checks carried out on client_user_id and client_item_id
  * <li> All exceptions are caught in an effort to never allow the thread to die
  * <li> batch size can be configured
  * <li> max wait timeout can be configured
  * <li> The SQL will be run if a) batch size is exceeeded, b) the max time between sql updates is exceeded 
+ * <li> If an {@link ActionLog} is given actions are appended to it rather than held in memory. A batch is only committed
+ * in the log once it is in the db, failed batches are read again after a backoff and the log is replayed on restart.
+ * A batch is only given up on if the db rejects its data, in which case it is moved to the log's dead letter file.
  * </ul>
  * @author rummble
  *
@@ -63,20 +75,15 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
     private int batchSize; // batch size for sql statements
     private int maxDBRetries = 1; // max # of times to try sql statement on exception
     boolean keepRunning;
+    private boolean draining; // stop once the log is empty rather than when told to
     
     Connection connection = null;
     
-    PreparedStatement actionPreparedStatement;
+    private final List<Action> pending = new ArrayList<>(); // actions waiting for the next sql run
     private int actionsAdded = 0; // actions added so far to sql statement
     private int actionsProcessed = 0; // number of actions processed 
-    
-    PreparedStatement userPreparedStatement;
-    private int usersAdded = 0; // users added so far to sql statement
-    boolean updateUsers = false;
-    
-    PreparedStatement itemPreparedStatement;
-    private int itemsAdded = 0; // users added so far to sql statement
-    boolean updateItems = false;
+    private final ActionIdResolver idResolver;
+    private final MultiRowInsert<Action> actionInsert;
      
     boolean runUserItemUpdates = true;
     boolean runUpdateIdsInActionTable = true;
@@ -85,7 +92,31 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
     
     boolean insertActions = true;
     
+    public static final int DEF_MAX_STATEMENT_BYTES = 1024 * 1024;
+    private static final int DEF_MAX_CACHED_IDS = 100000;
+    private static final long PUT_TIMEOUT_MS = 100; // max time an API thread waits for space in the log
+    private static final long MAX_BACKOFF_MS = 30000;
+    private final ActionLog log;
+    private int batchFailures = 0;
+    private long droppedActions = 0;
+    private SQLException lastError; // why the last batch failed, null if it did not fail in the db
+    
     public JdoAsyncActionQueue(String client, int qTimeoutSecs, int batchSize, int maxQSize,int maxDBRetries,boolean runUserItemUpdates,boolean runUpdateIdsInActionTable,boolean insertActions) {
+    	this(client,qTimeoutSecs,batchSize,maxQSize,maxDBRetries,runUserItemUpdates,runUpdateIdsInActionTable,insertActions,null,
+    			new ActionIdResolver(DEF_MAX_CACHED_IDS,batchSize,DEF_MAX_STATEMENT_BYTES),DEF_MAX_STATEMENT_BYTES);
+    }
+    
+    /**
+     * @param log if not null actions are buffered in the log rather than in memory
+     * @param idResolver resolves ids of new users and items, may be shared with other queues for the client
+     * @param maxStatementBytes max estimated size of a multi-row insert
+     */
+    public JdoAsyncActionQueue(String client, int qTimeoutSecs, int batchSize, int maxQSize,int maxDBRetries,boolean runUserItemUpdates,boolean runUpdateIdsInActionTable,boolean insertActions,
+    		ActionLog log,ActionIdResolver idResolver,int maxStatementBytes) {
+        this.log = log;
+        this.idResolver = idResolver;
+        this.actionInsert = new MultiRowInsert<>("insert into actions (action_id,user_id,item_id,type,times,date,value,client_user_id,client_item_id) values ",
+        		"(0,?,?,?,?,?,?,?,?)", 8, batchSize, maxStatementBytes, ACTION_ROW);
         this.client = client;
         this.batchSize = batchSize;
         this.maxDBRetries = maxDBRetries;
@@ -94,17 +125,31 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
         this.runUserItemUpdates = runUserItemUpdates;
         this.runUpdateIdsInActionTable = runUpdateIdsInActionTable;
         this.insertActions = insertActions;
-        logger.info("AsyncQ created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+maxQSize+" maxDBRetries:"+maxDBRetries+" userItemUpdates:"+runUserItemUpdates+" rumActionIdUpdates:"+this.runUpdateIdsInActionTable+" insertActions:"+this.insertActions);
+        logger.info("AsyncQ created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+maxQSize+" maxDBRetries:"+maxDBRetries+" userItemUpdates:"+runUserItemUpdates+" rumActionIdUpdates:"+this.runUpdateIdsInActionTable+" insertActions:"+this.insertActions+" log:"+(log != null));
     }
 
     public void run() {
     	keepRunning = true;
+    	process();
+    }
+
+    /**
+     * Write out everything in the log on the calling thread, retrying failed batches until they succeed, then return.
+     * Used to replay a log that no longer has a writer.
+     */
+    public void drain() {
+    	keepRunning = false;
+    	draining = true;
+    	process();
+    }
+
+    private void process() {
     	this.lastSqlRunTime = System.currentTimeMillis();
         while (true) 
         {
             try 
             {
-                Action action = queue.poll(timeout, TimeUnit.SECONDS);
+                Action action = log != null ? log.poll(timeout, TimeUnit.SECONDS) : queue.poll(timeout, TimeUnit.SECONDS);
                 if (action != null)
                     addSQL(action);
                 long timeSinceLastSQLRun = (System.currentTimeMillis() - this.lastSqlRunTime)/1000;
@@ -125,9 +170,18 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
                 	logger.info("Run sql as time between sql runs exceeded");
                 }
                 if (runSQL)
-                    runSQL();
-                if (!keepRunning && action == null)
+                {
+                    if (runSQL())
+                    	batchSucceeded();
+                    else
+                    	batchFailed();
+                }
+                if (!keepRunning && action == null && (!draining || log == null || log.getBytesBehind() == 0))
+                {
+                	if (log != null)
+                		log.close();
                 	return;
+                }
 
             } 
             catch (InterruptedException e) {
@@ -138,24 +192,96 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
             	logger.error("Caught exception while running ", e);
                 resetState();
                 logger.warn("\\-> Reset buffers.");
+                if (!batchFailedQuietly())
+                	return;
             }
             catch (Throwable t)
             {
                 logger.error("Caught throwable while running ", t);
                 resetState();
                 logger.warn("\\-> Reset buffers.");
+                if (!batchFailedQuietly())
+                	return;
             }
         }
     }
 
+    private void batchSucceeded() throws IOException
+    {
+    	batchFailures = 0;
+    	lastError = null;
+    	if (log != null)
+    	{
+    		log.commit();
+    		StatsdPeer.logActionLog(client, log.getBytesBehind(), log.getLagMillis());
+    	}
+    }
+
+    /**
+     * With a log go back to the start of the failed batch and wait before trying it again. Failures that retrying
+     * can't fix, as the db rejected the data, move the batch to the dead letter file so it can't block the queue.
+     */
+    private void batchFailed() throws IOException, InterruptedException
+    {
+    	if (log == null)
+    		return;
+    	SQLException error = lastError;
+    	lastError = null;
+    	if (isRejected(error))
+    	{
+    		batchFailures = 0;
+    		long bytes = log.deadLetter();
+    		logger.error("Moved batch of "+bytes+" bytes of actions for "+client+" to the dead letter file as the db rejected it",error);
+    		return;
+    	}
+    	batchFailures++;
+    	log.rewind();
+    	long backoff = Math.min(1000L << Math.min(batchFailures - 1, 16), MAX_BACKOFF_MS);
+    	logger.warn("Will retry batch of actions for "+client+" in "+backoff+" msecs, "+log.getBytesBehind()+" bytes and "+log.getLagMillis()+" msecs behind");
+    	StatsdPeer.logActionLog(client, log.getBytesBehind(), log.getLagMillis());
+    	Thread.sleep(backoff);
+    }
+
+    /**
+     * @return true if the error is in the data, such as a bad value or a constraint violation, rather than the
+     * connection or a transient condition in the db
+     */
+    static boolean isRejected(SQLException e)
+    {
+    	if (e == null)
+    		return false;
+    	if (e instanceof SQLDataException || e instanceof SQLIntegrityConstraintViolationException)
+    		return true;
+    	String state = e.getSQLState();
+    	return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private boolean batchFailedQuietly()
+    {
+    	try
+    	{
+    		batchFailed();
+    		return true;
+    	}
+    	catch (InterruptedException e)
+    	{
+    		return false;
+    	}
+    	catch (Exception e)
+    	{
+    		logger.error("Failed to rewind action log for "+client,e);
+    		return true;
+    	}
+    }
+
     private void resetState() {
         clearSQLState();
+        pending.clear();
         actionsAdded = 0;
         actionsProcessed = 0;
-        itemsAdded = 0;
-        usersAdded = 0;
-        updateUsers = false;
-        updateItems = false;
         this.lastSqlRunTime = System.currentTimeMillis();
     }
     
@@ -171,116 +297,26 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
     				logger.error("Unable to close connection",exception);
     			}
     		}
-    		if (actionPreparedStatement != null)
-    		{
-    			try{actionPreparedStatement.close();}
-    			catch( SQLException exception )
-    			{
-    				logger.error("Unable to close action perpared statment",exception);
-    			}
-    		}
-    		
-    		if (userPreparedStatement != null)
-    		{
-    			try{userPreparedStatement.close();}
-    			catch( SQLException exception )
-    			{
-    				logger.error("Unable to close user perpared statment",exception);
-    			}
-    		}
-    		
-    		if (itemPreparedStatement != null)
-    		{
-    			try{itemPreparedStatement.close();}
-    			catch( SQLException exception )
-    			{
-    				logger.error("Unable to close item perpared statment",exception);
-    			}
-    		}
-
 		}
 		finally
 		{
 			connection = null;
-			actionPreparedStatement = null;
-			userPreparedStatement = null;
-			itemPreparedStatement = null;
 		}
 		
     }
     
-    private void updateUsersIfNeeded() throws SQLException
-    {
-    	if (updateUsers && insertActions) //update user ids - if we have added new users or added users with 0 user_id
-		{
-    		logger.info("Updating users");
-			PreparedStatement s = connection.prepareStatement("update actions a join users u on a.client_user_id=u.client_user_id set a.user_id=u.user_id where a.user_id=0");
-			try
-			{
-				s.executeUpdate();
-				connection.commit();
-				updateUsers = false;
-			}
-			finally
-			{
-				if (s!= null)
-					s.close();
-			}
-		}
-    }
-    
-    private void updateItemsIfNeeded() throws SQLException
-    {
-    	if (updateItems && insertActions) //update user ids - if we have added new users or added users with 0 user_id
-		{
-    		logger.info("Updating items");
-			PreparedStatement s = connection.prepareStatement("update actions a join items i on a.client_item_id=i.client_item_id set a.item_id=i.item_id where a.item_id=0");
-			try
-			{
-				s.executeUpdate();
-				connection.commit();
-				updateItems = false;
-			}
-			finally
-			{
-				if (s!= null)
-					s.close();
-			}
-		}
-    }
-    
     private void executeBatch() throws SQLException
     {
     	if (actionsProcessed > 0)
     	{
-    		if (actionsAdded > 0)
-    		{
-    			actionPreparedStatement.executeBatch();
-    		}
-    		
-    		if (usersAdded > 0)
-			{
-    			userPreparedStatement.executeBatch();
-			}
-			
-			if (itemsAdded > 0)
-			{
-		    	itemPreparedStatement.executeBatch();
-			}
-    		
-    		connection.commit();
-    		if (actionPreparedStatement != null)
-    			actionPreparedStatement.close();
-    		if (usersAdded > 0)
+    		getConnectionIfNeeded();
+    		if (runUserItemUpdates)
+    			idResolver.resolve(connection, pending, insertActions && isRunUpdateIdsInActionTable());
+    		if (insertActions && actionsAdded > 0)
     		{
-    			usersAdded = 0;
-    			userPreparedStatement.close();
+    			actionInsert.execute(connection, pending);
+    			connection.commit();
     		}
-    		if (itemsAdded > 0)
-    		{
-    			itemsAdded = 0;
-    			itemPreparedStatement.close();
-    		}    		
     		actionsAdded = 0;
     		actionsProcessed = 0;
     	}
@@ -290,7 +326,8 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
     {
     	try
 		{
-			connection.rollback();
+    		if (connection != null)
+    			connection.rollback();
 		}
 		catch( SQLException re )
 		{
@@ -298,13 +335,17 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
 		}
     }
    
-    private void runSQL() 
+    /**
+     * @return true if the actions were added to the db
+     */
+    private boolean runSQL() 
     {
     	long t1 = System.currentTimeMillis();
     	int localActionsAdded = this.actionsAdded;
     	
-    	// batch update actions
+    	// resolve new users and items and insert actions
     	boolean success = false;
+    	lastError = null;
         for (int i = 0; i < this.maxDBRetries && !success; i++)
         {
         	try
@@ -315,54 +356,26 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
             }
     		catch (SQLException e) {
                 logger.error("Failed to run batch update ",e);
+                lastError = e;
                 rollBack();
+                clearSQLState();
 			}
     	}
         
-        if (success)
+        if (!success)
         {
-            // Update users if needed
-            success = false;
-            for (int i = 0; i < this.maxDBRetries && !success; i++)
-            {
-            	try
-        		{
-        			updateUsersIfNeeded();
-        			success = true;
-        			break;
-                }
-        		catch (SQLException e) {
-                    logger.error("Failed to run user update ",e);
-                    rollBack();
-    			}
-        	}
-            
-            //Update items if needed
-            success = false;
-            for (int i = 0; i < this.maxDBRetries && !success; i++)
-            {
-            	try
-        		{
-            		updateItemsIfNeeded();
-        			success = true;
-        			break;
-                }
-        		catch (SQLException e) {
-                    logger.error("Failed to run item update ",e);
-                    rollBack();
-    			}
-        	}
-        }
-        else {
-//        	logger.error("Failed to add batch actions so not running user/item update");
-            final String message = "Failed to add batch actions so not running user/item update";
+            final String message = "Failed to add batch of "+localActionsAdded+" actions";
             logger.error(message, new Exception(message));
         }
         
         resetState();
         long t2 = System.currentTimeMillis();
         //log q size
-        logger.info("AsynAction Q for "+client+" at size:"+queue.size()+" actions added "+localActionsAdded+" time to process:"+(t2-t1));
+        if (log != null)
+        	logger.info("AsynAction log for "+client+" at bytes behind:"+log.getBytesBehind()+" actions added "+localActionsAdded+" time to process:"+(t2-t1));
+        else
+        	logger.info("AsynAction Q for "+client+" at size:"+queue.size()+" actions added "+localActionsAdded+" time to process:"+(t2-t1));
+        return success;
     }
     
     /**
@@ -408,70 +421,44 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
     	}
     }
     
-    private void addUserBatch(Action action) throws SQLException
-    {
-    	userPreparedStatement.setString(1, ""); // Username hardwired to empty string
-    	
-    	if (action.getDate() != null)
-			userPreparedStatement.setTimestamp(2, new java.sql.Timestamp(action.getDate().getTime()));
-		else
-			userPreparedStatement.setNull(2, java.sql.Types.TIMESTAMP);
-    	
-    	if (action.getDate() != null)
-			userPreparedStatement.setTimestamp(3, new java.sql.Timestamp(action.getDate().getTime()));
-		else
-			userPreparedStatement.setNull(3, java.sql.Types.TIMESTAMP);
-    	
-    	userPreparedStatement.setInt(4, Constants.DEFAULT_USER_TYPE); // hardwired user type
-    	userPreparedStatement.setString(5, action.getClientUserId());
-    }
-    
-    private void addItemBatch(Action action) throws SQLException
-    {
-    	itemPreparedStatement.setString(1, ""); // item names hardwired to empty string
-    	
-    	if (action.getDate() != null)
-			itemPreparedStatement.setTimestamp(2, new java.sql.Timestamp(action.getDate().getTime()));
-		else
-			itemPreparedStatement.setNull(2, java.sql.Types.TIMESTAMP);
-
-    	if (action.getDate() != null)
-			itemPreparedStatement.setTimestamp(3, new java.sql.Timestamp(action.getDate().getTime()));
-		else
-			itemPreparedStatement.setNull(3, java.sql.Types.TIMESTAMP);
-    	
-    	itemPreparedStatement.setString(4, action.getClientItemId());
-    }
-    
-    private void addActionBatch(Action action) throws SQLException
-    {
-    	actionPreparedStatement.setLong(1, action.getUserId());
-		actionPreparedStatement.setLong(2, action.getItemId());
-		if (action.getType() != null)
-			actionPreparedStatement.setInt(3, action.getType());
-		else
-			actionPreparedStatement.setNull(3, java.sql.Types.INTEGER);
-		
-		if (action.getTimes() != null)
-			actionPreparedStatement.setInt(4, action.getTimes());
-		else
-			actionPreparedStatement.setNull(4, java.sql.Types.INTEGER);
-		
-		if (action.getDate() != null)
-			actionPreparedStatement.setTimestamp(5, new java.sql.Timestamp(action.getDate().getTime()));
-		else
-			actionPreparedStatement.setNull(5, java.sql.Types.TIMESTAMP);
-		
-		if (action.getValue() != null)
-			actionPreparedStatement.setDouble(6, action.getValue());
-		else
-			actionPreparedStatement.setNull(6, java.sql.Types.DOUBLE);
-		
-		actionPreparedStatement.setString(7, action.getClientUserId());
-		actionPreparedStatement.setString(8, action.getClientItemId());
-    }
+    private static final MultiRowInsert.Row<Action> ACTION_ROW = new MultiRowInsert.Row<Action>() {
 
-    private void addSQL(Action action) throws SQLException {
+		@Override
+		public void setParameters(PreparedStatement s, int index, Action action) throws SQLException {
+			s.setLong(index, action.getUserId());
+			s.setLong(index + 1, action.getItemId());
+			if (action.getType() != null)
+				s.setInt(index + 2, action.getType());
+			else
+				s.setNull(index + 2, Types.INTEGER);
+			
+			if (action.getTimes() != null)
+				s.setInt(index + 3, action.getTimes());
+			else
+				s.setNull(index + 3, Types.INTEGER);
+			
+			if (action.getDate() != null)
+				s.setTimestamp(index + 4, new Timestamp(action.getDate().getTime()));
+			else
+				s.setNull(index + 4, Types.TIMESTAMP);
+			
+			if (action.getValue() != null)
+				s.setDouble(index + 5, action.getValue());
+			else
+				s.setNull(index + 5, Types.DOUBLE);
+			
+			s.setString(index + 6, action.getClientUserId());
+			s.setString(index + 7, action.getClientItemId());
+		}
+
+		@Override
+		public int estimateBytes(Action action) {
+			// numbers and date plus worst case escaping of the client ids
+			return 100 + 2 * (action.getClientUserId().length() + action.getClientItemId().length());
+		}
+	};
+
+    private void addSQL(Action action) {
     	if (!checkActionOK(action))
     	{
     		logger.warn("Bad Action "+action.toString());
@@ -479,55 +466,46 @@ public class JdoAsyncActionQueue implements Runnable, AsyncActionQueue {
     	}
     	else
     	{
-    		getConnectionIfNeeded();
-    		
+    		pending.add(action);
     		if (this.insertActions)
-    		{
-    			// Add action batch
-    			if (actionPreparedStatement == null)
-    				actionPreparedStatement = connection.prepareStatement("insert into actions (action_id,user_id,item_id,type,times,date,value,client_user_id,client_item_id) values (0,?,?,?,?,?,?,?,?)");
-    			addActionBatch(action);
-    			actionPreparedStatement.addBatch();
     			actionsAdded++;
+    		actionsProcessed++;
+    	}
+    }
+
+    public void put(Action action) {
+    	boolean added;
+    	if (log != null)
+    	{
+    		try
+    		{
+    			added = log.append(action, PUT_TIMEOUT_MS);
     		}
-    		
-    		
-    		if (runUserItemUpdates)
+    		catch (IOException e)
     		{
-    			if (action.getUserId() == 0)
-    			{
-    				if (isRunUpdateIdsInActionTable())
-    					updateUsers = true;
-    				if (userPreparedStatement == null)
-    					userPreparedStatement = connection.prepareStatement("insert ignore into users (user_id,username,first_op,last_op,type,num_op,active,client_user_id,avgrating,stddevrating) values (0,?,?,?,?,1,1,?,0,0)");
-    				
-    				addUserBatch(action);
-    				userPreparedStatement.addBatch();
-    				usersAdded++;
-    			}
-    	        	 
-    			if (action.getItemId() == 0)
-    			{
-    				if (isRunUpdateIdsInActionTable())
-    					updateItems = true;
-    				if (itemPreparedStatement == null)
-    					itemPreparedStatement = connection.prepareStatement("insert ignore into items (item_id,name,first_op,last_op,popular,client_item_id,type,avgrating,stddevrating,num_op) values (0,?,?,?,0,?,0,0,0,0)");
-    				
-    				addItemBatch(action);
-    				itemPreparedStatement.addBatch();
-    				itemsAdded++;
-    				
-    			}
+    			logger.error("Failed to append action to log for "+client,e);
+    			added = false;
+    		}
+    	}
+    	else
+    		added = queue.offer(action);
+    	if (!added)
+    	{
+    		synchronized(this)
+    		{
+    			droppedActions++;
+    			if (droppedActions % 1000 == 1)
+    				logger.warn("AsyncAction queue for "+client+" is full, dropped "+droppedActions+" actions so far");
     		}
-    		
-    		actionsProcessed++;
-    	        
     	}
-       
     }
 
-    public void put(Action action) {
-        queue.add(action);
+    public synchronized long getDroppedActions() {
+    	return droppedActions;
+    }
+
+    public ActionLog getLog() {
+    	return log;
     }
 
     public String getClient() {
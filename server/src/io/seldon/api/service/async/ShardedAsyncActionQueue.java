@@ -0,0 +1,83 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.service.async;
+
+import io.seldon.general.Action;
+
+import java.util.List;
+
+/**
+ * Spreads a client's actions over several {@link JdoAsyncActionQueue} writers, each with its own thread and connection.
+ * Actions are partitioned by client user id so the actions of a user are always written in order by the same writer.
+ */
+public class ShardedAsyncActionQueue implements AsyncActionQueue {
+
+	private final JdoAsyncActionQueue[] shards;
+
+	public ShardedAsyncActionQueue(List<JdoAsyncActionQueue> shards)
+	{
+		this.shards = shards.toArray(new JdoAsyncActionQueue[shards.size()]);
+	}
+
+	static int shard(Action action,int numShards)
+	{
+		int h = action.getClientUserId() != null ? action.getClientUserId().hashCode() : Long.valueOf(action.getUserId()).hashCode();
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % numShards;
+	}
+
+	@Override
+	public void put(Action action) {
+		shards[shard(action, shards.length)].put(action);
+	}
+
+	@Override
+	public void setRunUpdateIdsInActionTable(boolean val) {
+		for(JdoAsyncActionQueue q : shards)
+			q.setRunUpdateIdsInActionTable(val);
+	}
+
+	@Override
+	public boolean isRunUpdateIdsInActionTable() {
+		return shards[0].isRunUpdateIdsInActionTable();
+	}
+
+	@Override
+	public void setKeepRunning(boolean keepRunning) {
+		for(JdoAsyncActionQueue q : shards)
+			q.setKeepRunning(keepRunning);
+	}
+
+	public int getNumShards() {
+		return shards.length;
+	}
+
+	public long getDroppedActions() {
+		long dropped = 0;
+		for(JdoAsyncActionQueue q : shards)
+			dropped += q.getDroppedActions();
+		return dropped;
+	}
+}
@@ -23,7 +23,10 @@
 
 package io.seldon.api.state;
 
+import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
+import io.seldon.clustering.recommender.RecommendationContext;
+import io.seldon.recommendation.ActionIngestionPlan;
 import io.seldon.recommendation.AlgorithmStrategy;
 import io.seldon.recommendation.ClientStrategy;
 import io.seldon.recommendation.ItemFilter;
@@ -49,6 +52,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.PostConstruct;
 
@@ -86,6 +90,7 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
 
     private final ClientConfigHandler configHandler;
     private final GlobalConfigHandler globalConfigHandler;
+    private final DefaultOptions defaultOptions;
     private final Set<ItemFilter> alwaysOnFilters;
     private ApplicationContext applicationContext;
     private ConcurrentMap<String, ClientStrategy> store = new ConcurrentHashMap<>();
@@ -95,6 +100,10 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
     private ConcurrentMap<String, ClientStrategy> recTagStrategies = new ConcurrentHashMap<>();
     private ClientStrategy defaultStrategy = null;
     private ConcurrentMap<String, ClientStrategy> namedStrategies = new ConcurrentHashMap<>();
+    // recent actions read by the strategies of each client by config key
+    private final ConcurrentMap<String, ConcurrentMap<String, Integer>> recentActionsLimits = new ConcurrentHashMap<>();
+    private volatile int defaultRecentActionsLimit = 0;
+    private final List<RecentActionsLimitListener> recentActionsLimitListeners = new CopyOnWriteArrayList<>();
 
 
 
@@ -106,9 +115,11 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
                                  GlobalConfigHandler globalConfigHandler,
                                  CurrentItemFilter currentItemFilter,
                                  IgnoredRecsFilter ignoredRecsFilter,
-                                 RecentImpressionsFilter recentImpressionsFilter){
+                                 RecentImpressionsFilter recentImpressionsFilter,
+                                 DefaultOptions defaultOptions){
         this.configHandler = configHandler;
         this.globalConfigHandler = globalConfigHandler;
+        this.defaultOptions = defaultOptions;
         Set<ItemFilter> set = new HashSet<>();
         set.add (currentItemFilter);
         set.add(ignoredRecsFilter);
@@ -119,11 +130,64 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
     @PostConstruct
     private void init(){
         logger.info("Initializing...");
+        for (RecentActionsLimitListener listener : applicationContext.getBeansOfType(RecentActionsLimitListener.class).values())
+            addRecentActionsLimitListener(listener);
         configHandler.addListener(this);
         globalConfigHandler.addSubscriber("default_strategy", this);
 //        globalConfigHandler.addSubscriber("named_strategies", this);
     }
 
+    /**
+     * Tell the listener the current limits and then every change to them
+     */
+    public void addRecentActionsLimitListener(RecentActionsLimitListener listener){
+        recentActionsLimitListeners.add(listener);
+        sendRecentActionsLimits(listener);
+    }
+
+    private void sendRecentActionsLimits(RecentActionsLimitListener listener){
+        listener.recentActionsLimitUpdated(null, defaultRecentActionsLimit);
+        for (String client : recentActionsLimits.keySet())
+            listener.recentActionsLimitUpdated(client, getRecentActionsLimit(client));
+    }
+
+    /**
+     * @return the largest number of a user's recent actions read by any strategy the client may use, 0 if none says
+     */
+    public int getRecentActionsLimit(String client){
+        int limit = defaultRecentActionsLimit;
+        Map<String, Integer> limits = recentActionsLimits.get(client);
+        if (limits != null)
+            for (Integer l : limits.values())
+                limit = Math.max(limit, l);
+        return limit;
+    }
+
+    private void setRecentActionsLimit(String client, String configKey, Integer limit){
+        recentActionsLimits.putIfAbsent(client, new ConcurrentHashMap<String, Integer>());
+        ConcurrentMap<String, Integer> limits = recentActionsLimits.get(client);
+        if (limit == null)
+            limits.remove(configKey);
+        else
+            limits.put(configKey, limit);
+        int clientLimit = getRecentActionsLimit(client);
+        for (RecentActionsLimitListener listener : recentActionsLimitListeners)
+            listener.recentActionsLimitUpdated(client, clientLimit);
+    }
+
+    private int recentActionsLimit(Strategy strategy){
+        int limit = 0;
+        if (strategy instanceof TestConfig){
+            for (TestVariation var : ((TestConfig) strategy).variations)
+                limit = Math.max(limit, recentActionsLimit(var.config));
+        } else if (strategy != null && ((AlgorithmConfig) strategy).algorithms != null){
+            for (Algorithm alg : ((AlgorithmConfig) strategy).algorithms)
+                limit = Math.max(limit, ActionIngestionPlan.getRecentActionsLimit(
+                        new RecommendationContext.OptionsHolder(defaultOptions, toConfigMap(alg.config))));
+        }
+        return limit;
+    }
+
     public ClientStrategy retrieveStrategy(String client, Collection<String> algs){
         ClientStrategy originalStrat = retrieveStrategy(client);
         return new JsOverrideClientStrategy(originalStrat, algs, applicationContext);
@@ -158,6 +222,7 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
 		logger.info("Received config remove for "+client+" with key "+configKey);
 		if (configKey.equals(ALG_KEY)){
 			store.remove(client);
+			setRecentActionsLimit(client, configKey, null);
 			logger.info("Successfully removed "+client+" from "+ALG_KEY);
 		}
 		else if (configKey.equals(TESTING_SWITCH_KEY)){
@@ -167,10 +232,12 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
 		else if (configKey.equals(TEST)) 
 		{
 			tests.remove(client);
+			setRecentActionsLimit(client, configKey, null);
 			logger.info("Successfully removed "+client+" from "+TEST);
 		}
 		else if(configKey.equals(RECTAG)){
 			recTagStrategies.remove(client);
+			setRecentActionsLimit(client, configKey, null);
 			logger.info("Successfully removed "+client+" from "+RECTAG);
 		}
 		else
@@ -196,9 +263,10 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
                 AlgorithmResultsCombiner combiner = applicationContext.getBean(
                         config.combiner,AlgorithmResultsCombiner.class);
                 Map<Integer,Double> actionWeightMap = toActionWeightMap(config.actionWeights);
-                store.put(client, new SimpleClientStrategy(Collections.unmodifiableList(strategies), combiner,config.diversityLevel,
+                store.put(client, toSimpleStrategy(Collections.unmodifiableList(strategies), combiner,config.diversityLevel,
                         ClientStrategy.DEFAULT_NAME,actionWeightMap));
                 storeMap.put(client, Collections.unmodifiableMap(stratMap));
+                setRecentActionsLimit(client, configKey, recentActionsLimit(config));
                 logger.info("Successfully added new algorithm config for "+client);
             } catch (IOException | BeansException e) {
                 logger.error("Couldn't update algorithms for client " +client, e);
@@ -229,12 +297,13 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
                                 var.config.combiner,AlgorithmResultsCombiner.class);
                         Map<Integer,Double> actionWeightMap = toActionWeightMap(var.config.actionWeights);
                         variations.add(new VariationTestingClientStrategy.Variation(
-                                new SimpleClientStrategy(Collections.unmodifiableList(strategies),
+                                toSimpleStrategy(Collections.unmodifiableList(strategies),
                                         combiner, var.config.diversityLevel, var.label,actionWeightMap),
                                 new BigDecimal(var.ratio)));
 
                     }
                     tests.put(client,VariationTestingClientStrategy.build(variations));
+                    setRecentActionsLimit(client, configKey, recentActionsLimit(config));
                     logger.info("Succesfully added " + variations.size() + " variation test for "+ client);
                 } catch (NumberFormatException | IOException e) {
                     logger.error("Couldn't add test for client " +client, e);
@@ -249,11 +318,14 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
                 }
 
                 ClientStrategy defStrategy = toStrategy(config.defaultStrategy);
+                int limit = recentActionsLimit(config.defaultStrategy);
                 Map<String, ClientStrategy> recTagStrats = new HashMap<>();
                 for (Map.Entry<String, Strategy> entry : config.recTagToStrategy.entrySet() ){
                     recTagStrats.put(entry.getKey(),toStrategy(entry.getValue()));
+                    limit = Math.max(limit, recentActionsLimit(entry.getValue()));
                 }
                 recTagStrategies.put(client, new RecTagClientStrategy(defStrategy, recTagStrats));
+                setRecentActionsLimit(client, configKey, limit);
                 logger.info("Successfully added rec tag strategy for " + client);
             } catch (NumberFormatException | IOException e) {
                 logger.error("Couldn't add rectag strategy for client " +client, e);
@@ -276,7 +348,7 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
                         var.config.combiner,AlgorithmResultsCombiner.class);
                 Map<Integer,Double> actionWeightMap = toActionWeightMap(var.config.actionWeights);
                 variations.add(new VariationTestingClientStrategy.Variation(
-                        new SimpleClientStrategy(Collections.unmodifiableList(strategies),
+                        toSimpleStrategy(Collections.unmodifiableList(strategies),
                                 combiner, var.config.diversityLevel, var.label,actionWeightMap),
                         new BigDecimal(var.ratio)));
 
@@ -293,18 +365,24 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
             AlgorithmResultsCombiner defCombiner = applicationContext.getBean(
                     jsonStrategyAlg.combiner, AlgorithmResultsCombiner.class);
             Map<Integer,Double> defActionWeightMap = toActionWeightMap(jsonStrategyAlg.actionWeights);
-            return new SimpleClientStrategy(defaultAlgStrategies, defCombiner,
+            return toSimpleStrategy(defaultAlgStrategies, defCombiner,
                     jsonStrategyAlg.diversityLevel,"-",defActionWeightMap);
         }
     }
 
+    private SimpleClientStrategy toSimpleStrategy(List<AlgorithmStrategy> strategies, AlgorithmResultsCombiner combiner,
+                                                  Double diversityLevel, String name, Map<Integer,Double> actionWeights) {
+        return new SimpleClientStrategy(strategies, combiner, diversityLevel, name, actionWeights,
+                ActionIngestionPlan.build(strategies, actionWeights, defaultOptions));
+    }
+
     private AlgorithmStrategy toAlgorithmStrategy(Algorithm algorithm) {
         Set<ItemIncluder> includers = retrieveIncluders(algorithm.includers);
         Set<ItemFilter> filters = retrieveFilters(algorithm.filters);
         ItemRecommendationAlgorithm alg = applicationContext.getBean(algorithm.name, ItemRecommendationAlgorithm.class);
         Map<String, String> config  = toConfigMap(algorithm.config);
-        return new AlgorithmStrategy(alg, includers, filters,
-                algorithm.config ==null ? new HashMap<String, String>(): config , algorithm.name);
+        return new AlgorithmStrategy(alg, includers, filters, config, algorithm.name,
+                new RecommendationContext.OptionsHolder(defaultOptions, config));
     }
 
     private Map<String, String> toConfigMap(List<ConfigItem> config) {
@@ -403,8 +481,11 @@ public class ClientAlgorithmStore implements ApplicationContextAware,ClientConfi
                 AlgorithmResultsCombiner combiner = applicationContext.getBean(
                         config.combiner,AlgorithmResultsCombiner.class);
                 Map<Integer,Double> actionWeightMap = toActionWeightMap(config.actionWeights);
-                ClientStrategy strat = new SimpleClientStrategy(strategies, combiner, config.diversityLevel,"-",actionWeightMap);
+                ClientStrategy strat = toSimpleStrategy(strategies, combiner, config.diversityLevel,"-",actionWeightMap);
                 defaultStrategy = strat;
+                defaultRecentActionsLimit = recentActionsLimit(config);
+                for (RecentActionsLimitListener listener : recentActionsLimitListeners)
+                    sendRecentActionsLimits(listener);
                 logger.info("Successfully changed default strategy.");
             } catch (IOException e){
                 logger.error("Problem changing default strategy ", e);
@@ -0,0 +1,38 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.state;
+
+/**
+ * Told how many of a user's most recent actions the algorithms of a client's strategies read, so action histories can
+ * be sized to match.
+ */
+public interface RecentActionsLimitListener {
+
+    /**
+     * @param client the client or null for clients using only the default strategy
+     * @param limit the largest number of recent actions any of the strategies reads, 0 if none says
+     */
+    void recentActionsLimitUpdated(String client, int limit);
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.state.options;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Handle to a named algorithm option. Each name gets a fixed index so option values can be resolved once per
+ * strategy into arrays and read by index on every request. Recommenders should keep their handles in static fields.
+ */
+public final class AlgorithmOption {
+
+	private static final ConcurrentMap<String,AlgorithmOption> byName = new ConcurrentHashMap<>();
+	private static volatile AlgorithmOption[] byIndex = new AlgorithmOption[0];
+
+	private final String name;
+	private final int index;
+
+	private AlgorithmOption(String name,int index)
+	{
+		this.name = name;
+		this.index = index;
+	}
+
+	public static AlgorithmOption named(String name)
+	{
+		AlgorithmOption option = byName.get(name);
+		if (option == null)
+		{
+			synchronized (AlgorithmOption.class)
+			{
+				option = byName.get(name);
+				if (option == null)
+				{
+					AlgorithmOption[] all = byIndex;
+					option = new AlgorithmOption(name, all.length);
+					all = Arrays.copyOf(all, all.length + 1);
+					all[option.index] = option;
+					byIndex = all;
+					byName.put(name, option);
+				}
+			}
+		}
+		return option;
+	}
+
+	/**
+	 * @return all options registered so far in index order
+	 */
+	public static AlgorithmOption[] registered()
+	{
+		return byIndex;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
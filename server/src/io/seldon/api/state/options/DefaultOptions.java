@@ -26,6 +26,7 @@ package io.seldon.api.state.options;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 
@@ -52,6 +53,10 @@ public class DefaultOptions {
         return props.getProperty(optionName);
     }
 
+    public Set<String> getOptionNames(){
+        return props.stringPropertyNames();
+    }
+
 
 
 }
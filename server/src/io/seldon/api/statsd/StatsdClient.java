@@ -29,28 +29,21 @@ package io.seldon.api.statsd;
  * (C) 2011 Meetup, Inc.
  * Author: Andrew Gwozdziewycz <andrew@meetup.com>, @apgwoz
  *
- *
+ * Changed to aggregate in process. Counters, timers and gauges are named handles looked up once by key and
+ * updated without locks, and a background thread flushes everything updated since the last flush as newline
+ * separated multi-metric packets that fit in an ethernet MTU. Counters are exact, so sample rates are ignored.
+ * Timers keep a uniform reservoir of the interval's samples and send them as ordinary |ms values, with the sample
+ * rate set when the reservoir overflowed, so statsd still computes percentiles across every server sending them.
  *
  * Example usage:
  *
  *    StatsdClient client = new StatsdClient("statsd.example.com", 8125);
  *    // increment by 1
  *    client.increment("foo.bar.baz");
- *    // increment by 10
- *    client.increment("foo.bar.baz", 10);
- *    // sample rate
- *    client.increment("foo.bar.baz", 10, .1);
- *    // increment multiple keys by 1
- *    client.increment("foo.bar.baz", "foo.bar.boo", "foo.baz.bar");
- *    // increment multiple keys by 10 -- yeah, it's "backwards"
- *    client.increment(10, "foo.bar.baz", "foo.bar.boo", "foo.baz.bar");
- *    // multiple keys with a sample rate
- *    client.increment(10, .1, "foo.bar.baz", "foo.bar.boo", "foo.baz.bar");
- *
- * Note: For best results, and greater availability, you'll probably want to
- * create a wrapper class which creates a static client and proxies to it.
- *
- * You know... the "Java way."
+ *    // keep the handle for metrics on a hot path
+ *    StatsdClient.Counter counter = client.counter("foo.bar.baz");
+ *    counter.add(10);
+ *    client.timer("foo.bar.time").record(12);
  */
 
 import java.io.IOException;
@@ -59,32 +52,196 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.Locale;
-import java.util.Random;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
 public class StatsdClient {
-	//private static final Random RNG = new Random();
-	
-	private static final ThreadLocal<Random> safeRNG = new ThreadLocal<Random>() {
-	    @Override protected Random initialValue() {
-	        return new Random();
-	    }
-	};
-	
+
 	private static final Logger log = Logger.getLogger(StatsdClient.class.getName());
 
+	public static final long DEFAULT_FLUSH_MILLIS = 1000;
+	// payload that fits in a 1500 byte ethernet frame after IP and UDP headers with room for options
+	static final int MAX_PACKET_BYTES = 1432;
+	private static final int TIMER_SAMPLES = 1024;
+	// one cache line of longs per stripe so threads on different stripes do not share a line
+	private static final int PAD = 8;
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) * 2;
+
 	private final InetSocketAddress _address;
 	private final DatagramChannel _channel;
+	private final ConcurrentMap<String,Counter> counters = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String,Timer> timers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String,Gauge> gauges = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+	// only used while holding the flush lock
+	private final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_BYTES);
 
 	public StatsdClient(String host, int port) throws UnknownHostException, IOException {
-		this(InetAddress.getByName(host), port);
+		this(InetAddress.getByName(host), port, DEFAULT_FLUSH_MILLIS);
 	}
 
 	public StatsdClient(InetAddress host, int port) throws IOException {
+		this(host, port, DEFAULT_FLUSH_MILLIS);
+	}
+
+	/**
+	 * @param flushMillis interval between flushes, if not positive nothing is sent until {@link #flush()} is called
+	 */
+	public StatsdClient(InetAddress host, int port, long flushMillis) throws IOException {
 		_address = new InetSocketAddress(host, port);
 		_channel = DatagramChannel.open();
+		if (flushMillis > 0)
+		{
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "statsd-flush");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						flush();
+					}
+					catch (Exception e)
+					{
+						log.error("Failed to flush stats", e);
+					}
+				}
+			}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		}
+		else
+			flusher = null;
+	}
+
+	private static int stripe()
+	{
+		return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+	}
+
+	private static byte[] name(String key, String suffix)
+	{
+		return (key + suffix + ":").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * An exact counter striped across cache lines so concurrent adds rarely contend.
+	 */
+	public static final class Counter {
+		private final byte[] name;
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+		private Counter(byte[] name) {
+			this.name = name;
+		}
+
+		public void add(long delta) {
+			cells.addAndGet(stripe(), delta);
+		}
+
+		long drain() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++)
+				sum += cells.getAndSet(i * PAD, 0);
+			return sum;
+		}
+	}
+
+	/**
+	 * Exact count with a uniform reservoir of the interval's samples. A sample is claimed before it is written, so each
+	 * slot holds its value with the interval it was recorded in and a flush skips slots not yet written this interval.
+	 */
+	public static final class Timer {
+		private final byte[] name;
+		private final Counter count;
+		private final AtomicLongArray samples = new AtomicLongArray(TIMER_SAMPLES); // interval << 32 | value
+		final AtomicInteger seen = new AtomicInteger();
+		private volatile int interval;
+
+		private Timer(byte[] name) {
+			this.name = name;
+			count = new Counter(null);
+		}
+
+		public void record(int value) {
+			count.add(1);
+			long tag = (long) interval << 32;
+			int i = seen.getAndIncrement();
+			if (i >= TIMER_SAMPLES)
+				i = ThreadLocalRandom.current().nextInt(i + 1);
+			if (i < TIMER_SAMPLES)
+				samples.set(i, tag | (value & 0xFFFFFFFFL));
+		}
+	}
+
+	/**
+	 * Last value wins, only sent if set since the last flush.
+	 */
+	public static final class Gauge {
+		private final byte[] name;
+		private final AtomicLong bits = new AtomicLong();
+		private final AtomicBoolean dirty = new AtomicBoolean();
+
+		private Gauge(byte[] name) {
+			this.name = name;
+		}
+
+		public void set(double value) {
+			bits.set(Double.doubleToLongBits(value));
+			dirty.set(true);
+		}
+	}
+
+	public Counter counter(String key) {
+		Counter c = counters.get(key);
+		if (c == null)
+		{
+			Counter created = new Counter(name(key, ""));
+			c = counters.putIfAbsent(key, created);
+			if (c == null)
+				c = created;
+		}
+		return c;
+	}
+
+	public Timer timer(String key) {
+		Timer t = timers.get(key);
+		if (t == null)
+		{
+			Timer created = new Timer(name(key, ""));
+			t = timers.putIfAbsent(key, created);
+			if (t == null)
+				t = created;
+		}
+		return t;
+	}
+
+	public Gauge gauge(String key) {
+		Gauge g = gauges.get(key);
+		if (g == null)
+		{
+			Gauge created = new Gauge(name(key, ""));
+			g = gauges.putIfAbsent(key, created);
+			if (g == null)
+				g = created;
+		}
+		return g;
 	}
 
 	public boolean timing(String key, int value) {
@@ -92,7 +249,8 @@ public class StatsdClient {
 	}
 
 	public boolean timing(String key, int value, double sampleRate) {
-		return send(sampleRate, String.format(Locale.ENGLISH, "%s:%d|ms", key, value));
+		timer(key).record(value);
+		return true;
 	}
 
 	public boolean decrement(String key) {
@@ -131,16 +289,14 @@ public class StatsdClient {
 	}
 
 	public boolean increment(String key, int magnitude, double sampleRate) {
-		String stat = String.format(Locale.ENGLISH, "%s:%s|c", key, magnitude);
-		return send(sampleRate, stat);
+		counter(key).add(magnitude);
+		return true;
 	}
 
 	public boolean increment(int magnitude, double sampleRate, String... keys) {
-		String[] stats = new String[keys.length];
-		for (int i = 0; i < keys.length; i++) {
-			stats[i] = String.format(Locale.ENGLISH, "%s:%s|c", keys[i], magnitude);
-		}
-		return send(sampleRate, stats);
+		for (String key : keys)
+			counter(key).add(magnitude);
+		return true;
 	}
 
 	public boolean gauge(String key, double magnitude){
@@ -148,53 +304,97 @@ public class StatsdClient {
 	}
 
 	public boolean gauge(String key, double magnitude, double sampleRate){
-		final String stat = String.format(Locale.ENGLISH, "%s:%s|g", key, magnitude);
-		return send(sampleRate, stat);
+		gauge(key).set(magnitude);
+		return true;
 	}
 
-	private boolean send(double sampleRate, String... stats) {
-
-		boolean retval = false; // didn't send anything
-		if (sampleRate < 1.0) {
-			for (String stat : stats) {
-				if (safeRNG.get().nextDouble() <= sampleRate) {
-					stat = String.format(Locale.ENGLISH, "%s|@%f", stat, sampleRate);
-					if (doSend(stat)) {
-						retval = true;
-					}
-				}
+	/**
+	 * Send everything updated since the last flush.
+	 */
+	public synchronized void flush() {
+		for (Counter c : counters.values())
+		{
+			long v = c.drain();
+			if (v != 0)
+				append(c.name, Long.toString(v), "|c");
+		}
+		for (Timer t : timers.values())
+		{
+			long n = t.count.drain();
+			int interval = t.interval;
+			t.interval = interval + 1;
+			int claimed = Math.min(t.seen.getAndSet(0), TIMER_SAMPLES);
+			long[] samples = new long[claimed];
+			int numSamples = 0;
+			for (int i = 0; i < claimed && numSamples < n; i++)
+			{
+				long sample = t.samples.get(i);
+				if ((int) (sample >>> 32) == interval)
+					samples[numSamples++] = sample;
 			}
-		} else {
-			for (String stat : stats) {
-				if (doSend(stat)) {
-					retval = true;
-				}
+			if (numSamples == 0)
+				continue;
+			String type = numSamples == n ? "|ms" : "|ms|@" + (float) (numSamples / (double) n);
+			for (int i = 0; i < numSamples; i++)
+				append(t.name, Integer.toString((int) samples[i]), type);
+		}
+		for (Gauge g : gauges.values())
+		{
+			if (g.dirty.getAndSet(false))
+			{
+				double v = Double.longBitsToDouble(g.bits.get());
+				append(g.name, v == Math.rint(v) && !Double.isInfinite(v) ? Long.toString((long) v) : Double.toString(v), "|g");
 			}
 		}
+		sendPacket();
+	}
 
-		return retval;
+	private void append(byte[] name, String value, String type) {
+		int len = name.length + value.length() + type.length();
+		if (packet.position() > 0 && packet.position() + 1 + len > MAX_PACKET_BYTES)
+			sendPacket();
+		if (len > MAX_PACKET_BYTES)
+		{
+			log.error("Dropping stat longer than a packet " + new String(name, StandardCharsets.UTF_8));
+			return;
+		}
+		if (packet.position() > 0)
+			packet.put((byte) '\n');
+		packet.put(name);
+		for (int i = 0; i < value.length(); i++)
+			packet.put((byte) value.charAt(i));
+		for (int i = 0; i < type.length(); i++)
+			packet.put((byte) type.charAt(i));
 	}
 
-	private boolean doSend(final String stat) {
+	private void sendPacket() {
+		if (packet.position() == 0)
+			return;
+		packet.flip();
+		int size = packet.remaining();
 		try {
-			final byte[] data = stat.getBytes("utf-8");
-			final ByteBuffer buff = ByteBuffer.wrap(data);
-			final int nbSentBytes = _channel.send(buff, _address);
-
-			if (data.length == nbSentBytes) {
-				return true;
-			} else {
-				log.error(String.format(
-						"Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes", stat,
-						_address.getHostName(), _address.getPort(), nbSentBytes, data.length));
-				return false;
-			}
+			int nbSentBytes = _channel.send(packet, _address);
+			if (nbSentBytes != size)
+				log.error(String.format("Could not send entire stats packet to host %s:%d. Only sent %d bytes out of %d bytes",
+						_address.getHostName(), _address.getPort(), nbSentBytes, size));
+		} catch (IOException e) {
+			log.error(String.format("Could not send stats to host %s:%d", _address.getHostName(), _address.getPort()), e);
+		} finally {
+			packet.clear();
+		}
+	}
 
+	/**
+	 * Stop flushing, send what is left and close the channel.
+	 */
+	public void close() {
+		if (flusher != null)
+			flusher.shutdown();
+		flush();
+		try {
+			_channel.close();
 		} catch (IOException e) {
-			log.error(
-					String.format("Could not send stat %s to host %s:%d", stat, _address.getHostName(),
-							_address.getPort()), e);
-			return false;
+			log.warn("Failed to close statsd channel", e);
 		}
 	}
 }
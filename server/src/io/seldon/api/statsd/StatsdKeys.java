@@ -26,6 +26,26 @@ package io.seldon.api.statsd;
 public class StatsdKeys {
 
 
+	public static String getModelKey(String client,String modelType)
+	{
+		return "model."+StatsdPeer.installId+"."+client+"."+modelType.replace('/', '.');
+	}
+
+	public static String getNearCacheKey(String family)
+	{
+		return "memcache.near."+StatsdPeer.installId+"."+family;
+	}
+
+	public static String getActionLogKey(String client)
+	{
+		return "actionlog."+StatsdPeer.installId+"."+client;
+	}
+
+	public static String getClusterCountKey(String client)
+	{
+		return "clustercount."+StatsdPeer.installId+"."+client;
+	}
+
 	public static String getAPIKey(String client,String apiKey,String method)
 	{
 		return "api."+StatsdPeer.installId+"."+client+"."+apiKey+"."+method;
@@ -27,8 +27,11 @@ import io.seldon.api.state.GlobalConfigHandler;
 import io.seldon.api.state.GlobalConfigUpdateListener;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,6 +47,7 @@ public class StatsdPeer {
         public int port;
         public String id = "sandbox";
         public float sample_rate = 1.0f;
+        public long flush_ms = StatsdClient.DEFAULT_FLUSH_MILLIS;
         
         @Override
         public String toString() {
@@ -51,8 +55,9 @@ public class StatsdPeer {
                     + "server[%s], "
                     + "port[%s], "
                     + "id[%s], "
-                    + "sample_rate[%s]"
-                    + "", server,port,id,sample_rate);
+                    + "sample_rate[%s], "
+                    + "flush_ms[%s]"
+                    + "", server,port,id,sample_rate,flush_ms);
         }
     }
     
@@ -86,10 +91,139 @@ public class StatsdPeer {
 
 	private static Logger logger = Logger.getLogger(StatsdPeer.class.getName());
 	
-	private static StatsdClient client;
+	private static volatile StatsdClient client;
 	static String installId = "sandbox";
 	static float sampleRate = 1.0f;
 
+	private static class ApiMetrics {
+		final StatsdClient owner;
+		final StatsdClient.Counter count;
+		final StatsdClient.Timer time;
+
+		ApiMetrics(StatsdClient client,String baseKey)
+		{
+			owner = client;
+			count = client.counter(baseKey+".count");
+			time = client.timer(baseKey+".time");
+		}
+	}
+
+	// handles for the stats sent on every api call by consumer, api key and http method so no key is built per call
+	private static volatile ConcurrentMap<String,ConcurrentMap<String,ConcurrentMap<String,ApiMetrics>>> apiMetrics = new ConcurrentHashMap<>();
+
+	private static <V> ConcurrentMap<String,V> child(ConcurrentMap<String,ConcurrentMap<String,V>> parent,String key)
+	{
+		ConcurrentMap<String,V> map = parent.get(key);
+		if (map == null)
+		{
+			ConcurrentMap<String,V> created = new ConcurrentHashMap<>();
+			map = parent.putIfAbsent(key, created);
+			if (map == null)
+				map = created;
+		}
+		return map;
+	}
+
+	private static ApiMetrics getApiMetrics(StatsdClient statsd,String consumerName,String apiKey,String httpMethod)
+	{
+		ConcurrentMap<String,ApiMetrics> byMethod = child(child(apiMetrics, consumerName), apiKey);
+		ApiMetrics metrics = byMethod.get(httpMethod);
+		if (metrics == null || metrics.owner != statsd) // cached before the client was replaced
+		{
+			metrics = new ApiMetrics(statsd, StatsdKeys.getAPIKey(consumerName, apiKey, httpMethod));
+			byMethod.put(httpMethod, metrics);
+		}
+		return metrics;
+	}
+
+	private static class CtrMetrics {
+		final StatsdClient owner;
+		final StatsdClient.Counter click;
+		final StatsdClient.Counter positive;
+		final StatsdClient.Counter clickABTesting; // null if there is no ab test
+		final StatsdClient.Counter positiveABTesting;
+
+		CtrMetrics(StatsdClient client,String consumerName,String algKey,String abTestingKey,String recTag)
+		{
+			owner = client;
+			click = client.counter(StatsdKeys.getClick(consumerName, algKey));
+			positive = client.counter(StatsdKeys.getPositiveClick(consumerName, algKey));
+			if (abTestingKey == null)
+			{
+				clickABTesting = null;
+				positiveABTesting = null;
+			}
+			else if (recTag == null)
+			{
+				clickABTesting = client.counter(StatsdKeys.getClickABTesting(consumerName, algKey, abTestingKey));
+				positiveABTesting = client.counter(StatsdKeys.getPositiveClickABTesting(consumerName, algKey, abTestingKey));
+			}
+			else
+			{
+				clickABTesting = client.counter(StatsdKeys.getClickABTesting(consumerName, algKey, abTestingKey, recTag));
+				positiveABTesting = client.counter(StatsdKeys.getPositiveClickABTesting(consumerName, algKey, abTestingKey, recTag));
+			}
+		}
+	}
+
+	private static class CountMetric {
+		final StatsdClient owner;
+		final StatsdClient.Counter count;
+
+		CountMetric(StatsdClient client,String key)
+		{
+			owner = client;
+			count = client.counter(key);
+		}
+	}
+
+	// stands in for a missing ab test or rec tag as the handle maps can not hold null keys
+	private static final String NONE = "";
+
+	// handles for click and impression stats by consumer, algorithm, ab test and rec tag
+	private static volatile ConcurrentMap<String,ConcurrentMap<String,ConcurrentMap<String,ConcurrentMap<String,CtrMetrics>>>> ctrMetrics = new ConcurrentHashMap<>();
+	private static volatile ConcurrentMap<String,ConcurrentMap<String,CountMetric>> clickMetrics = new ConcurrentHashMap<>();
+	private static volatile ConcurrentMap<String,ConcurrentMap<String,CountMetric>> impressionMetrics = new ConcurrentHashMap<>();
+
+	private static CtrMetrics getCtrMetrics(StatsdClient statsd,String consumerName,String algKey,String abTestingKey,String recTag)
+	{
+		ConcurrentMap<String,CtrMetrics> byRecTag = child(child(child(ctrMetrics, consumerName), algKey), abTestingKey == null ? NONE : abTestingKey);
+		String tag = recTag == null ? NONE : recTag;
+		CtrMetrics metrics = byRecTag.get(tag);
+		if (metrics == null || metrics.owner != statsd)
+		{
+			metrics = new CtrMetrics(statsd, consumerName, algKey, abTestingKey, recTag);
+			byRecTag.put(tag, metrics);
+		}
+		return metrics;
+	}
+
+	private static StatsdClient.Counter getClickCounter(StatsdClient statsd,String consumerName,String recTag)
+	{
+		ConcurrentMap<String,CountMetric> byRecTag = child(clickMetrics, consumerName);
+		String tag = recTag == null ? NONE : recTag;
+		CountMetric metric = byRecTag.get(tag);
+		if (metric == null || metric.owner != statsd)
+		{
+			metric = new CountMetric(statsd, recTag != null ? StatsdKeys.getClick(consumerName, recTag) : StatsdKeys.getClick(consumerName));
+			byRecTag.put(tag, metric);
+		}
+		return metric.count;
+	}
+
+	private static StatsdClient.Counter getImpressionCounter(StatsdClient statsd,String consumerName,String recTag)
+	{
+		ConcurrentMap<String,CountMetric> byRecTag = child(impressionMetrics, consumerName);
+		String tag = recTag == null ? NONE : recTag;
+		CountMetric metric = byRecTag.get(tag);
+		if (metric == null || metric.owner != statsd)
+		{
+			metric = new CountMetric(statsd, recTag != null ? StatsdKeys.getImpression(consumerName, recTag) : StatsdKeys.getImpression(consumerName));
+			byRecTag.put(tag, metric);
+		}
+		return metric.count;
+	}
+
 	public static boolean initialise(StatsdConfig statsdConfig) {
 
 		String statsdServer = statsdConfig.server;
@@ -99,8 +233,8 @@ public class StatsdPeer {
 			try {
 				installId = statsdConfig.id;
 				sampleRate = statsdConfig.sample_rate;
-				logger.info("Creating statsd client for host "+statsdServer+" on port "+port+" and using install id of "+installId+" and default sampling of "+sampleRate);
-				client = new StatsdClient(statsdServer, port);
+				logger.info("Creating statsd client for host "+statsdServer+" on port "+port+" and using install id of "+installId+" and flushing every "+statsdConfig.flush_ms+"ms");
+				setClient(new StatsdClient(InetAddress.getByName(statsdServer), port, statsdConfig.flush_ms));
 				return true;
 			} catch (UnknownHostException e) {
 				logger.error("Failed to create statsdClient ",e);
@@ -116,6 +250,18 @@ public class StatsdPeer {
 			return false;
 		}
 	}
+
+	private static synchronized void setClient(StatsdClient newClient)
+	{
+		StatsdClient old = client;
+		apiMetrics = new ConcurrentHashMap<>();
+		ctrMetrics = new ConcurrentHashMap<>();
+		clickMetrics = new ConcurrentHashMap<>();
+		impressionMetrics = new ConcurrentHashMap<>();
+		client = newClient;
+		if (old != null)
+			old.close();
+	}
 	
 	@Deprecated
 	public static boolean initialise(Properties props) 
@@ -130,8 +276,8 @@ public class StatsdPeer {
 		{
 			int port = Integer.parseInt(portStr);
 			try {
-				logger.info("Creating statsd client for host "+statsdServer+" on port "+port+" and using install id of "+installId+" and default sampling of "+sampleRate);
-				client = new StatsdClient(statsdServer, port);
+				logger.info("Creating statsd client for host "+statsdServer+" on port "+port+" and using install id of "+installId);
+				setClient(new StatsdClient(statsdServer, port));
 				return true;
 			} catch (UnknownHostException e) {
 				logger.error("Failed to create statsdClient ",e);
@@ -150,27 +296,19 @@ public class StatsdPeer {
 	
 	public static void logCTR(String consumerName,String algKey,boolean success,String abTestingKey,String recTag)
 	{
-		if (client != null)
+		StatsdClient statsd = client;
+		if (statsd != null)
 		{
 			try
 			{
-				client.increment(StatsdKeys.getClick(consumerName, algKey));
-				if (abTestingKey != null)
-				{
-					if (recTag == null)
-						client.increment(StatsdKeys.getClickABTesting(consumerName, algKey,abTestingKey));
-					else
-						client.increment(StatsdKeys.getClickABTesting(consumerName, algKey,abTestingKey,recTag));
-				}
+				CtrMetrics metrics = getCtrMetrics(statsd, consumerName, algKey, abTestingKey, recTag);
+				metrics.click.add(1);
+				if (metrics.clickABTesting != null)
+					metrics.clickABTesting.add(1);
 				if (success) {
-					client.increment(StatsdKeys.getPositiveClick(consumerName, algKey));
-					if (abTestingKey != null)
-					{
-						if (recTag == null)
-							client.increment(StatsdKeys.getPositiveClickABTesting(consumerName, algKey,abTestingKey));
-						else
-							client.increment(StatsdKeys.getPositiveClickABTesting(consumerName, algKey,abTestingKey,recTag));
-					}
+					metrics.positive.add(1);
+					if (metrics.positiveABTesting != null)
+						metrics.positiveABTesting.add(1);
 				}
 			}
 			catch (Exception e)
@@ -183,14 +321,12 @@ public class StatsdPeer {
 	//Log when a click has been generated from the RL recommendations
 	public static void logClick(String consumerName,String recTag)
 	{
-		if (client != null)
+		StatsdClient statsd = client;
+		if (statsd != null)
 		{
 			try
 			{
-				if (recTag != null)
-					client.increment(StatsdKeys.getClick(consumerName,recTag));
-				else
-					client.increment(StatsdKeys.getClick(consumerName));
+				getClickCounter(statsd, consumerName, recTag).add(1);
 			}
 			catch (Exception e)
 			{
@@ -202,14 +338,12 @@ public class StatsdPeer {
 	//Log when a recommendations set has been shown/retrieved
 	public static void logImpression(String consumerName,String recTag)
 	{
-		if (client != null)
+		StatsdClient statsd = client;
+		if (statsd != null)
 		{
 			try
 			{
-				if (recTag != null)
-					client.increment(StatsdKeys.getImpression(consumerName,recTag));
-				else
-					client.increment(StatsdKeys.getImpression(consumerName));
+				getImpressionCounter(statsd, consumerName, recTag).add(1);
 			}
 			catch (Exception e)
 			{
@@ -221,13 +355,14 @@ public class StatsdPeer {
 	
 	public static void logAPICall(String consumerName,String apiKey,String httpMethod,int time)
 	{
-		if (client != null)
+		StatsdClient statsd = client;
+		if (statsd != null)
 		{
 			try
 			{
-				String baseKey = StatsdKeys.getAPIKey(consumerName, apiKey, httpMethod);
-				client.increment(baseKey+".count",1,sampleRate);
-				client.timing(baseKey+".time", time, sampleRate);
+				ApiMetrics metrics = getApiMetrics(statsd, consumerName, apiKey, httpMethod);
+				metrics.count.add(1);
+				metrics.time.record(time);
 			}
 			catch (Exception e)
 			{
@@ -236,5 +371,80 @@ public class StatsdPeer {
 		}
 	}
 
+	public static void logModelSwap(String consumerName,String modelType,long loadMillis,long sizeBytes)
+	{
+		if (client != null)
+		{
+			try
+			{
+				String baseKey = StatsdKeys.getModelKey(consumerName, modelType);
+				client.increment(baseKey+".swap");
+				client.timing(baseKey+".load.time", (int) loadMillis);
+				if (sizeBytes >= 0)
+					client.gauge(baseKey+".size", sizeBytes);
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to call statsd to log model swap for consumer "+consumerName+" model "+modelType,e);
+			}
+		}
+	}
+
+	public static void logNearCache(String family,long hits,long misses,long evictions,long refreshes)
+	{
+		if (client != null)
+		{
+			try
+			{
+				String baseKey = StatsdKeys.getNearCacheKey(family);
+				client.increment(baseKey+".hit", (int) hits);
+				client.increment(baseKey+".miss", (int) misses);
+				client.increment(baseKey+".evict", (int) evictions);
+				client.increment(baseKey+".refresh", (int) refreshes);
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to call statsd to log near cache stats for family "+family,e);
+			}
+		}
+	}
+
+	public static void logActionLog(String consumerName,long bytesBehind,long lagMillis)
+	{
+		if (client != null)
+		{
+			try
+			{
+				String baseKey = StatsdKeys.getActionLogKey(consumerName);
+				client.gauge(baseKey+".behind", bytesBehind);
+				client.gauge(baseKey+".lag", lagMillis);
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to call statsd to log action log for consumer "+consumerName,e);
+			}
+		}
+	}
+
+	public static void logClusterCountFlush(String consumerName,int counts,int rows,int queueSize,long flushMillis)
+	{
+		if (client != null)
+		{
+			try
+			{
+				String baseKey = StatsdKeys.getClusterCountKey(consumerName);
+				client.increment(baseKey+".counts", counts);
+				client.increment(baseKey+".rows", rows);
+				if (rows > 0)
+					client.gauge(baseKey+".compression", Math.round(counts / (double) rows));
+				client.gauge(baseKey+".queue", queueSize);
+				client.timing(baseKey+".flush.time", (int) flushMillis);
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to call statsd to log cluster count flush for consumer "+consumerName,e);
+			}
+		}
+	}
 
 }
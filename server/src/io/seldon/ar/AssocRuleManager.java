@@ -61,32 +61,14 @@ public class AssocRuleManager extends ModelManager<AssocRuleManager.AssocRuleSto
     protected AssocRuleStore loadAssocRules(String client, BufferedReader reader) throws IOException {
         String line;
         ObjectMapper mapper = new ObjectMapper();
-        int ruleId = 0;
-
-        Map<Integer, AssocRuleRecommendation> assocRules = new HashMap<Integer, AssocRuleRecommendation>();
-        Map<Long, Map<Integer, Set<Integer>>> itemToRules = new HashMap<>();
+        AssocRuleTrie.Builder builder = new AssocRuleTrie.Builder();
         while ((line = reader.readLine()) != null) {
             AssocRule data = mapper.readValue(line.getBytes(), AssocRule.class);
-            ruleId++;
             double score = data.confidence * data.lift * data.itemset.size();
-            assocRules.put(ruleId, new AssocRuleRecommendation(data.item, score));
-            int antecedentLen = data.itemset.size();
-            for (Long item : data.itemset) {
-                Map<Integer, Set<Integer>> lenToRules = itemToRules.get(item);
-                if (lenToRules == null) {
-                    lenToRules = new HashMap<Integer, Set<Integer>>();
-                    itemToRules.put(item, lenToRules);
-                }
-                Set<Integer> rules = lenToRules.get(antecedentLen);
-                if (rules == null) {
-                    rules = new HashSet<Integer>();
-                    lenToRules.put(antecedentLen, rules);
-                }
-                rules.add(ruleId);
-            }
+            builder.add(data.itemset, data.item, score);
         }
 
-        return new AssocRuleStore(assocRules, itemToRules);
+        return new AssocRuleStore(builder.build());
 
     }
 
@@ -97,7 +79,7 @@ public class AssocRuleManager extends ModelManager<AssocRuleManager.AssocRuleSto
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(featuresFileHandler.getResourceStream(location + "/part-00000")))) {
             AssocRuleStore store = loadAssocRules(client, reader);
 
-            logger.info("finished load of " + store.assocRules.size() + " user assoc rules for client " + client);
+            logger.info("finished load of " + store.rules.getNumRules() + " user assoc rules with " + store.rules.getNumNodes() + " antecedent nodes for client " + client);
             return store;
         } catch (IOException e) {
             logger.error("Couldn't reloadFeatures for client " + client, e);
@@ -109,28 +91,13 @@ public class AssocRuleManager extends ModelManager<AssocRuleManager.AssocRuleSto
     }
 
 
-    public static class AssocRuleRecommendation {
-        public final Long item;
-        public final Double score;
-
-        public AssocRuleRecommendation(Long item, Double score) {
-            super();
-            this.item = item;
-            this.score = score;
-        }
-    }
-
-
     public static class AssocRuleStore {
 
-        public final Map<Integer, AssocRuleRecommendation> assocRules; // rule-id to rule recommednation
-        public final Map<Long, Map<Integer, Set<Integer>>> itemToRules; // antecedent item -> (map rule-size -> set of rules-ids)
+        public final AssocRuleTrie rules; // sorted antecedent items -> consequent scores
 
-        public AssocRuleStore(Map<Integer, AssocRuleRecommendation> assocRules,
-                              Map<Long, Map<Integer, Set<Integer>>> itemToRules) {
+        public AssocRuleStore(AssocRuleTrie rules) {
             super();
-            this.assocRules = assocRules;
-            this.itemToRules = itemToRules;
+            this.rules = rules;
         }
     }
 
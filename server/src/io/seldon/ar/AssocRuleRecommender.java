@@ -22,21 +22,20 @@
 package io.seldon.ar;
 
 import io.seldon.api.caching.ActionHistoryCache;
-import io.seldon.ar.AssocRuleManager.AssocRuleRecommendation;
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.ar.AssocRuleManager.AssocRuleStore;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.general.Action;
-import io.seldon.recommendation.RecommendationUtils;
+import io.seldon.util.TopK;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -50,14 +49,10 @@ public class AssocRuleRecommender implements ItemRecommendationAlgorithm {
 	
 	private static final int DEF_MAX_BASKET_SIZE = 3;
 	
-	private static final String USE_ACTION_TYPES_OPTION = "io.seldon.algorithm.assocrules.usetype";
-	private static final String BASKET_MAX_SIZE_OPTION = "io.seldon.algorithm.assocrules.basket.maxsize";
-	private static final String ADD_BASKET_ACTION_TYPE_OPTION = "io.seldon.algorithm.assocrules.add.basket.action.type";
-	private static final String REMOVE_BASKET_ACTION_TYPE_OPTION = "io.seldon.algorithm.assocrules.remove.basket.action.type";
-	
-	final int[][] indices3 = {{0,1,2},{0,1},{0,2},{1,2},{0},{1},{2}};
-	final int[][] indices2 = {{0,1},{0},{1}};
-	final int[][] indices1 = {{0}};
+	private static final AlgorithmOption USE_ACTION_TYPES_OPTION = AlgorithmOption.named("io.seldon.algorithm.assocrules.usetype");
+	private static final AlgorithmOption BASKET_MAX_SIZE_OPTION = AlgorithmOption.named("io.seldon.algorithm.assocrules.basket.maxsize");
+	private static final AlgorithmOption ADD_BASKET_ACTION_TYPE_OPTION = AlgorithmOption.named("io.seldon.algorithm.assocrules.add.basket.action.type");
+	private static final AlgorithmOption REMOVE_BASKET_ACTION_TYPE_OPTION = AlgorithmOption.named("io.seldon.algorithm.assocrules.remove.basket.action.type");
 	
 	AssocRuleManager ruleManager;
 	ActionHistoryCache actionCache;
@@ -87,8 +82,8 @@ public class AssocRuleRecommender implements ItemRecommendationAlgorithm {
 		 // 1. by using add/remove actions if available, or
 		 // 2. all recent items interacted with
 		 RecommendationContext.OptionsHolder optionsHolder = ctxt.getOptsHolder();
-		 boolean useActionTypes = optionsHolder.getBooleanOption(USE_ACTION_TYPES_OPTION);
-		 int maxBasketSize = optionsHolder.getIntegerOption(BASKET_MAX_SIZE_OPTION);
+		 boolean useActionTypes = optionsHolder.getBoolean(USE_ACTION_TYPES_OPTION);
+		 int maxBasketSize = optionsHolder.getInteger(BASKET_MAX_SIZE_OPTION);
 		 if (maxBasketSize == 0)
 			 maxBasketSize = DEF_MAX_BASKET_SIZE;
 		 List<Long> basket = null;
@@ -97,8 +92,8 @@ public class AssocRuleRecommender implements ItemRecommendationAlgorithm {
 			 List<Action> actions = actionCache.getRecentFullActions(client, user, maxBasketSize*2);
 			 Collections.reverse(actions);
 			 basket = new ArrayList<Long>();
-			 int addBasketType = optionsHolder.getIntegerOption(ADD_BASKET_ACTION_TYPE_OPTION);
-			 int removeBaskeyType = optionsHolder.getIntegerOption(REMOVE_BASKET_ACTION_TYPE_OPTION);
+			 int addBasketType = optionsHolder.getInteger(ADD_BASKET_ACTION_TYPE_OPTION);
+			 int removeBaskeyType = optionsHolder.getInteger(REMOVE_BASKET_ACTION_TYPE_OPTION);
 			 // go through actions and create basket by handling add/remove basket actions
 			 for(Action a : actions)
 			 {
@@ -125,64 +120,25 @@ public class AssocRuleRecommender implements ItemRecommendationAlgorithm {
 		 }
 		 if (basket.size() > 0)
 		 {
-		 Map<Long,Double> scores = new HashMap<Long,Double>();
-		 int[][] indices;
-		 switch(basket.size())
-		 {
-		 case 3:
-			 indices = indices3;
-			 break;
-		 case 2:
-			 indices = indices2;
-			 break;
-		 case 1:
-			 indices = indices1;
-		 default:
-			 logger.warn("max basket size too big "+basket.size()+" can only handle up to "+DEF_MAX_BASKET_SIZE);
-			 return new ItemRecommendationResultSet(Collections.<ItemRecommendationResult>emptyList(), name);
-		 }
-		 for (int i=0;i<indices.length;i++)
-		 {
-			 Set<Integer> matchedRules = null;
-			 for(int j=0;j<indices[i].length;j++)
-			 {
-				 // find matching rules for subset of items as antecedent
-				 Map<Integer,Set<Integer>> ruleLen = store.itemToRules.get(basket.get(indices[i][j]));
-				 if (ruleLen != null)
-				 {
-					 Set<Integer> rules = ruleLen.get(indices[i].length);
-					 if (rules != null)
-					 {
-						 if (matchedRules == null)
-							 matchedRules = new HashSet<Integer>(rules);
-						 else
-							 matchedRules.retainAll(rules);
-					 }
-				 }
-			 }
-			 // if we have matched rules then add recommended item with score to map
-			 if (matchedRules != null)
-			 {
-				 for(Integer rule : matchedRules)
-				 {
-					 AssocRuleRecommendation r = store.assocRules.get(rule);
-					 Double score = scores.get(r.item);
-					 if (score == null)
-						 scores.put(r.item, r.score);
-					 else
-						 scores.put(r.item,score+r.score);
-				 }
-			 }
-		 }
-		 if (scores.size() > 0)
+		 // every subset of the basket which is the antecedent of some rule
+		 Long2DoubleOpenHashMap scores = new Long2DoubleOpenHashMap();
+		 store.rules.match(basket, scores);
+		 if (scores.size() > 0 && maxRecsCount > 0)
          {
-        	 scores = RecommendationUtils.getTopK(scores, maxRecsCount);
-        	 List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>();
-        	 for (Map.Entry<Long, Double> entry : scores.entrySet()) {
-        		 results.add(new ItemRecommendationResultSet.ItemRecommendationResult(entry.getKey(), entry.getValue().floatValue()));
+        	 TopK top = new TopK(maxRecsCount);
+        	 for (Long2DoubleMap.Entry entry : scores.long2DoubleEntrySet()) {
+        		 if (top.accepts(entry.getDoubleValue()))
+        			 top.offer(entry.getLongKey(), entry.getDoubleValue());
+        	 }
+        	 top.sortDescending();
+        	 // scores are rescaled so the best is 1
+        	 double max = top.getScore(0);
+        	 List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>(top.size());
+        	 for (int i=0;i<top.size();i++) {
+        		 results.add(new ItemRecommendationResultSet.ItemRecommendationResult(top.getId(i), (float) (top.getScore(i)/max)));
         	 }
         	 long end = System.currentTimeMillis();
-        	 logger.info("took "+(end-start)+" to get "+scores.size()+" results");
+        	 logger.info("took "+(end-start)+" to get "+results.size()+" results");
         	 return new ItemRecommendationResultSet(results, name);
          }
          else
@@ -0,0 +1,195 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.ar;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Association rules compiled into a prefix trie keyed by the sorted item ids of their antecedents. Each node holds
+ * the summed scores of the consequents of the rules whose antecedent is exactly the path to it, so all the rules
+ * matching any subset of a basket are found in one walk which only follows subsets that some rule starts with.
+ */
+public class AssocRuleTrie {
+
+	private static final long[] NO_KEYS = new long[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+	private static final double[] NO_SCORES = new double[0];
+
+	private static class Node {
+		final long[] keys;
+		final Node[] children;
+		final long[] items;
+		final double[] scores;
+
+		Node(long[] keys,Node[] children,long[] items,double[] scores)
+		{
+			this.keys = keys;
+			this.children = children;
+			this.items = items;
+			this.scores = scores;
+		}
+
+		Node child(long item)
+		{
+			int i = Arrays.binarySearch(keys, item);
+			return i >= 0 ? children[i] : null;
+		}
+	}
+
+	private final Node root;
+	private final int numRules;
+	private final int numNodes;
+
+	private AssocRuleTrie(Node root,int numRules,int numNodes)
+	{
+		this.root = root;
+		this.numRules = numRules;
+		this.numNodes = numNodes;
+	}
+
+	public int getNumRules()
+	{
+		return numRules;
+	}
+
+	public int getNumNodes()
+	{
+		return numNodes;
+	}
+
+	/**
+	 * Add the scores of the consequents of every rule whose antecedent is a subset of the basket.
+	 * @param basket items, in any order and possibly repeated
+	 * @param scores accumulates consequent item to summed score
+	 */
+	public void match(Collection<Long> basket,Long2DoubleOpenHashMap scores)
+	{
+		long[] items = new long[basket.size()];
+		int n = 0;
+		for (Long item : basket)
+			items[n++] = item;
+		Arrays.sort(items);
+		int distinct = 0;
+		for (int i=0;i<n;i++)
+			if (distinct == 0 || items[i] != items[distinct-1])
+				items[distinct++] = items[i];
+		match(root, items, 0, distinct, scores);
+	}
+
+	private static void match(Node node,long[] basket,int start,int end,Long2DoubleOpenHashMap scores)
+	{
+		for (int i=start;i<end;i++)
+		{
+			Node child = node.child(basket[i]);
+			if (child != null)
+			{
+				for (int j=0;j<child.items.length;j++)
+					scores.addTo(child.items[j], child.scores[j]);
+				match(child, basket, i + 1, end, scores);
+			}
+		}
+	}
+
+	public static class Builder {
+
+		private static class BuildNode {
+			final Long2ObjectOpenHashMap<BuildNode> children = new Long2ObjectOpenHashMap<>();
+			final Long2DoubleOpenHashMap scores = new Long2DoubleOpenHashMap();
+		}
+
+		private final BuildNode root = new BuildNode();
+		private int numRules = 0;
+		private int numNodes = 0;
+
+		/**
+		 * @param antecedent items of the rule
+		 * @param item the recommended consequent
+		 * @param score added to the score of any other rule with the same antecedent and consequent
+		 */
+		public Builder add(Collection<Long> antecedent,long item,double score)
+		{
+			long[] items = new long[antecedent.size()];
+			int n = 0;
+			for (Long a : antecedent)
+				items[n++] = a;
+			Arrays.sort(items);
+			BuildNode node = root;
+			for (int i=0;i<n;i++)
+			{
+				if (i > 0 && items[i] == items[i-1])
+					continue;
+				BuildNode child = node.children.get(items[i]);
+				if (child == null)
+				{
+					child = new BuildNode();
+					node.children.put(items[i], child);
+					numNodes++;
+				}
+				node = child;
+			}
+			node.scores.addTo(item, score);
+			numRules++;
+			return this;
+		}
+
+		public AssocRuleTrie build()
+		{
+			return new AssocRuleTrie(freeze(root), numRules, numNodes);
+		}
+
+		private static Node freeze(BuildNode node)
+		{
+			long[] keys = NO_KEYS;
+			Node[] children = NO_CHILDREN;
+			if (!node.children.isEmpty())
+			{
+				keys = node.children.keySet().toLongArray();
+				Arrays.sort(keys);
+				children = new Node[keys.length];
+				for (int i=0;i<keys.length;i++)
+					children[i] = freeze(node.children.get(keys[i]));
+			}
+			long[] items = NO_KEYS;
+			double[] scores = NO_SCORES;
+			if (!node.scores.isEmpty())
+			{
+				items = new long[node.scores.size()];
+				scores = new double[items.length];
+				int i = 0;
+				for (Long2DoubleMap.Entry e : node.scores.long2DoubleEntrySet())
+				{
+					items[i] = e.getLongKey();
+					scores[i++] = e.getDoubleValue();
+				}
+			}
+			return new Node(keys, children, items, scores);
+		}
+	}
+}
@@ -23,6 +23,7 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
 
 import java.util.ArrayList;
@@ -40,11 +41,11 @@ import org.springframework.beans.factory.annotation.Autowired;
  *         Time: 14:14
  */
 public class BaseClusterCountsRecommender {
-    private static final String LONG_TERM_WEIGHT_OPTION_NAME = "io.seldon.algorithm.clusters.longtermweight";
-    private static final String SHORT_TERM_WEIGHT_OPTION_NAME = "io.seldon.algorithm.clusters.shorttermweight";
-    private static final String MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME 
-            = "io.seldon.algorithm.clusters.minnumberitemsforvalidclusterresult";
-    private static final String DECAY_RATE_OPTION_NAME = "io.seldon.algorithm.clusters.decayratesecs";
+    private static final AlgorithmOption LONG_TERM_WEIGHT_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.longtermweight");
+    private static final AlgorithmOption SHORT_TERM_WEIGHT_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.shorttermweight");
+    private static final AlgorithmOption MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME 
+            = AlgorithmOption.named("io.seldon.algorithm.clusters.minnumberitemsforvalidclusterresult");
+    private static final AlgorithmOption DECAY_RATE_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.decayratesecs");
 
     private static Logger logger = Logger.getLogger(BaseClusterCountsRecommender.class.getName());
 
@@ -64,10 +65,10 @@ public class BaseClusterCountsRecommender {
                 exclusions = ctxt.getContextItems();
             }
             boolean includeShortTermClusters = recommenderType.equals("CLUSTER_COUNTS_DYNAMIC");
-            Double longTermWeight = optionsHolder.getDoubleOption(LONG_TERM_WEIGHT_OPTION_NAME);
-            Double shortTermWeight = optionsHolder.getDoubleOption(SHORT_TERM_WEIGHT_OPTION_NAME);
-            Integer minClusterItems = optionsHolder.getIntegerOption(MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME);
-            Double decayRate = optionsHolder.getDoubleOption(DECAY_RATE_OPTION_NAME);
+            Double longTermWeight = optionsHolder.getDouble(LONG_TERM_WEIGHT_OPTION_NAME);
+            Double shortTermWeight = optionsHolder.getDouble(SHORT_TERM_WEIGHT_OPTION_NAME);
+            Integer minClusterItems = optionsHolder.getInteger(MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME);
+            Double decayRate = optionsHolder.getDouble(DECAY_RATE_OPTION_NAME);
             Map<Long, Double> recommendations = r.recommend(recommenderType, user, null, dimensions, maxRecsCount, exclusions, includeShortTermClusters,
                     longTermWeight,shortTermWeight,decayRate,minClusterItems);
             if (logger.isDebugEnabled())
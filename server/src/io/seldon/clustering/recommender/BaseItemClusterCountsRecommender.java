@@ -23,6 +23,7 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
 
 import java.util.ArrayList;
@@ -41,10 +42,10 @@ import org.springframework.beans.factory.annotation.Autowired;
  */
 public abstract class BaseItemClusterCountsRecommender {
 
-    private static final String MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME
-            = "io.seldon.algorithm.clusters.minnumberitemsforvalidclusterresult";
-    private static final String DECAY_RATE_OPTION_NAME = "io.seldon.algorithm.clusters.decayratesecs";
-    private static final String CLUSTER_ALG_OPTION_NAME = "io.seldon.algorithm.clusters.itemalg";
+    private static final AlgorithmOption MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME
+            = AlgorithmOption.named("io.seldon.algorithm.clusters.minnumberitemsforvalidclusterresult");
+    private static final AlgorithmOption DECAY_RATE_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.decayratesecs");
+    private static final AlgorithmOption CLUSTER_ALG_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.itemalg");
 
     private static Logger logger = Logger.getLogger( BaseItemClusterCountsRecommender.class.getName() );
 
@@ -62,9 +63,9 @@ public abstract class BaseItemClusterCountsRecommender {
             CountRecommender r = cUtils.getCountRecommender(client);
             if (r != null) {
                 long t1 = System.currentTimeMillis();
-                Integer minClusterItems = optionsHolder.getIntegerOption(MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME);
-                Double decayRate = optionsHolder.getDoubleOption(DECAY_RATE_OPTION_NAME);
-                String clusterAlgorithm = optionsHolder.getStringOption(CLUSTER_ALG_OPTION_NAME);
+                Integer minClusterItems = optionsHolder.getInteger(MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME);
+                Double decayRate = optionsHolder.getDouble(DECAY_RATE_OPTION_NAME);
+                String clusterAlgorithm = optionsHolder.getString(CLUSTER_ALG_OPTION_NAME);
                 Map<Long, Double> recommendations = r.recommendUsingItem(recommenderType,ctxt.getCurrentItem(), dimensions,
                         maxRecsCount, exclusions, decayRate, clusterAlgorithm, minClusterItems);
                 long t2 = System.currentTimeMillis();
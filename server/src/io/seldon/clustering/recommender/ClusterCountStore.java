@@ -42,6 +42,10 @@ public interface ClusterCountStore {
 	public Map<Long,Double> getTopCountsByDimension(Set<Integer> dimensions,int limit, double decay) throws ClusterCountNoImplementationException;
 	//Global top counts but restricted to two dimensions for returned items
 	public Map<Long,Double> getTopCountsByTwoDimensions(Set<Integer> dimension1,int dimension2,int limit, double decay) throws ClusterCountNoImplementationException;
+	//Global count of a single item summed over all clusters
+	public double getGlobalCount(long itemId, double decay) throws ClusterCountNoImplementationException;
+	//Whether getGlobalCount is implemented
+	public boolean hasGlobalCounts();
 
 	/*
 	 * Tag menthods
@@ -27,13 +27,20 @@ import io.seldon.api.Constants;
 import io.seldon.api.Util;
 import io.seldon.api.resource.ConsumerBean;
 import io.seldon.api.resource.service.ItemService;
+import io.seldon.general.ItemDimensionIndex;
+import io.seldon.general.ItemDimensionIndexFactory;
 import io.seldon.general.ItemPeer;
 import io.seldon.memcache.DogpileHandler;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
 import io.seldon.memcache.UpdateRetriever;
 import io.seldon.recommendation.RecommendationUtils;
+import io.seldon.tags.ItemTagIndex;
+import io.seldon.tags.ItemTagIndexFactory;
 import io.seldon.util.CollectionTools;
+import io.seldon.util.TopK;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -56,6 +63,8 @@ public class CountRecommender {
 	String client;
 	boolean fillInZerosWithMostPopular = true;
 	String referrer;
+	ItemTagIndexFactory tagIndexes;
+	ItemDimensionIndexFactory dimensionIndexes;
 	
 	private static int EXPIRE_COUNTS = 300;
 	private static int EXPIRE_USER_CLUSTERS = 600;
@@ -69,6 +78,38 @@ public class CountRecommender {
 		this.clusterFromReferrer = clusterFromReferrer;
 	}
 	
+	public CountRecommender(String client,UserClusterStore userClusters,ClusterCountStore clusterCounts,IClusterFromReferrer clusterFromReferrer,ItemTagIndexFactory tagIndexes) {
+		this(client, userClusters, clusterCounts, clusterFromReferrer);
+		this.tagIndexes = tagIndexes;
+	}
+	
+	public CountRecommender(String client,UserClusterStore userClusters,ClusterCountStore clusterCounts,IClusterFromReferrer clusterFromReferrer,ItemTagIndexFactory tagIndexes,ItemDimensionIndexFactory dimensionIndexes) {
+		this(client, userClusters, clusterCounts, clusterFromReferrer, tagIndexes);
+		this.dimensionIndexes = dimensionIndexes;
+	}
+	
+	/**
+	 * @return true if the item is in any of the dimensions, checked against the in memory dimension index when it is
+	 * built and otherwise against the item's dimensions from the db
+	 */
+	private boolean isInDimensions(long item,Set<Integer> dimensions)
+	{
+		ItemDimensionIndex index = dimensionIndexes != null && ItemDimensionIndex.isIndexed(item) ? dimensionIndexes.get(client) : null;
+		if (index != null)
+			return index.inAnyDimension(item, dimensions);
+		Collection<Integer> dims = ItemService.getItemDimensions(new ConsumerBean(client),item);
+		dims.retainAll(dimensions);
+		return !dims.isEmpty();
+	}
+	
+	private Collection<Integer> getItemDimensions(long item)
+	{
+		ItemDimensionIndex index = dimensionIndexes != null && ItemDimensionIndex.isIndexed(item) ? dimensionIndexes.get(client) : null;
+		if (index != null)
+			return index.getDimensions(item);
+		return ItemService.getItemDimensions(new ConsumerBean(client), item);
+	}
+	
 	
 	
 	public String getReferrer() {
@@ -122,6 +163,31 @@ public class CountRecommender {
 		}
 	}
 	
+	/**
+	 * Add counts for several actions of one user looking up the user's clusters once
+	 * @param times - in secs
+	 */
+	public void addCounts(long userId,long[] itemIds,long[] times,double[] actionWeights,boolean useBucketCluster)
+	{
+		List<UserCluster> clusters = getClusters(userId,null);
+		Set<Integer> referrerClusters = getReferrerClusters();
+		for(int i=0;i<itemIds.length;i++)
+		{
+			if (clusters != null && clusters.size()>0)
+			{
+				for(UserCluster cluster : clusters)
+					clusterCounts.add(cluster.getCluster(), itemIds[i],cluster.getWeight() * actionWeights[i],cluster.getTimeStamp(),times[i]);
+			} else if(useBucketCluster) {
+				clusterCounts.add(BUCKET_CLUSTER_ID, itemIds[i], actionWeights[i], 0,times[i]);
+			}
+			if (referrerClusters != null)
+			{
+				for (Integer cluster : referrerClusters)
+					clusterCounts.add(cluster, itemIds[i],actionWeights[i],0,times[i]);
+			}
+		}
+	}
+	
 	public void addCount(long userId,long itemId, boolean useBucketCluster,Double actionWeight)
 	{
 		if (actionWeight == null) actionWeight = 1.0D;
@@ -149,9 +215,15 @@ public class CountRecommender {
 		int minAllowed = minNumItems < numRecommendations ? minNumItems : numRecommendations;
 		Map<Long,Double> counts = new HashMap<>();
 		int numTopCounts = numRecommendations * 2; // number of counts to get - defaults to twice the final number recommendations to return
-		for(Map.Entry<String,Float> e : tagWeights.entrySet())
+		ItemTagIndex tagIndex = tagIndexes != null && clusterCounts.hasGlobalCounts() ? tagIndexes.get(client, tagAttrId) : null;
+		if (tagIndex != null)
+			updateTagCountsFromIndex(tagIndex, tagWeights, dimensions, checkDimension, numTopCounts, exclusions, counts, decay);
+		else
 		{
-			updateTagCounts(e.getKey(), e.getValue(), tagAttrId, dimensions, dimension2, checkDimension, numTopCounts, exclusions, counts, decay);
+			for(Map.Entry<String,Float> e : tagWeights.entrySet())
+			{
+				updateTagCounts(e.getKey(), e.getValue(), tagAttrId, dimensions, dimension2, checkDimension, numTopCounts, exclusions, counts, decay);
+			}
 		}
 
 		if (counts.keySet().size() < minAllowed)
@@ -166,6 +238,56 @@ public class CountRecommender {
 		return RecommendationUtils.rescaleScoresToOne(counts, numRecommendations);
 	}
 	
+	/**
+	 * Score all the tags in one pass over the tag postings. The global count of each item is looked up once however
+	 * many of the tags it has. As with the db queries each tag contributes its top items by count scaled by the
+	 * tag weight. Dimensions are checked on the top items only.
+	 */
+	private void updateTagCountsFromIndex(ItemTagIndex tagIndex,Map<String,Float> tagWeights,Set<Integer> dimensions,boolean checkDimension,int limit,Set<Long> exclusions,Map<Long,Double> counts,double decay)
+	{
+		Long2DoubleOpenHashMap itemCounts = new Long2DoubleOpenHashMap();
+		itemCounts.defaultReturnValue(-1);
+		try
+		{
+			for(Map.Entry<String,Float> e : tagWeights.entrySet())
+			{
+				TopK top = new TopK(limit);
+				for(LongIterator it = tagIndex.iterator(e.getKey());it.hasNext();)
+				{
+					long item = it.nextLong();
+					double count = itemCounts.get(item);
+					if (count < 0)
+					{
+						count = clusterCounts.getGlobalCount(item, decay);
+						itemCounts.put(item, count);
+					}
+					if (count > 0 && top.accepts(count) && !exclusions.contains(item))
+						top.offer(item, count);
+				}
+				top.sortDescending();
+				if (top.size() == 0)
+					continue;
+				double maxCount = top.getScore(0);
+				for(int i=0;i<top.size();i++)
+				{
+					Long item = top.getId(i);
+					if (checkDimension)
+					{
+						if (!isInDimensions(item, dimensions))
+							continue;
+					}
+					double count = (top.getScore(i)/maxCount) * e.getValue();
+					Double existing = counts.get(item);
+					counts.put(item, existing != null ? existing + count : count);
+				}
+			}
+		}
+		catch (ClusterCountNoImplementationException e)
+		{
+			logger.error("Failed to get global counts for tags",e);
+		}
+	}
+	
 	private void updateTagCounts(String tag,Float tagWeight,int tagAttrId,Set<Integer> dimensions,Integer dimension2,boolean checkDimension,int limit,Set<Long> exclusions,Map<Long,Double> counts,double decay)
 	{
 		Map<Long,Double> itemCounts = null;
@@ -205,9 +327,7 @@ public class CountRecommender {
 				Long item = itemCount.getKey();
 				if (checkDimension && localDimensionCheckNeeded)
 				{ 
-					Collection<Integer> dims = ItemService.getItemDimensions(new ConsumerBean(client),item);
-					dims.retainAll(dimensions);
-					if (dims.isEmpty())
+					if (!isInDimensions(item, dimensions))
 						continue;
 				}
 				if (!exclusions.contains(item))
@@ -240,7 +360,7 @@ public class CountRecommender {
 				break;
 			case "DIMENSION":
 				//get dimension for item
-				Collection<Integer> dims = ItemService.getItemDimensions(new ConsumerBean(client), itemId);
+				Collection<Integer> dims = getItemDimensions(itemId);
 				if (dims != null)
 					for(Integer d : dims)
 						clusters.add(new UserCluster(0, d, 1.0D, 0, 0));
@@ -322,9 +442,7 @@ public class CountRecommender {
 				Long item = itemCount.getKey();
 				if (checkDimension && localDimensionCheckNeeded)
 				{ 
-					Collection<Integer> dims = ItemService.getItemDimensions(new ConsumerBean(client),item);
-					dims.retainAll(dimensions);
-					if (dims.isEmpty())
+					if (!isInDimensions(item, dimensions))
 						continue;
 				}
 				if (!exclusions.contains(item))
@@ -385,9 +503,7 @@ public class CountRecommender {
 			Long item = e.getKey();
 			if (checkDimension && localDimensionCheckNeeded)
 			{ 
-				Collection<Integer> dims = ItemService.getItemDimensions(new ConsumerBean(client),item);
-				dims.retainAll(dimensions);
-				if (dims.isEmpty())
+				if (!isInDimensions(item, dimensions))
 				{
 					i.remove();
 					excluded++;
@@ -23,6 +23,7 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
 
 import java.util.ArrayList;
@@ -44,7 +45,7 @@ import org.springframework.stereotype.Component;
 public class GlobalClusterCountsRecommender implements ItemRecommendationAlgorithm {
 	private static final String name = GlobalClusterCountsRecommender.class.getSimpleName();
     private static Logger logger = Logger.getLogger(GlobalClusterCountsRecommender.class.getName());
-    private static final String DECAY_RATE_OPTION_NAME = "io.seldon.algorithm.clusters.decayratesecs";
+    private static final AlgorithmOption DECAY_RATE_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.decayratesecs");
     
     @Autowired
     JdoCountRecommenderUtils cUtils;
@@ -61,7 +62,7 @@ public class GlobalClusterCountsRecommender implements ItemRecommendationAlgorit
             if(ctxt.getMode()== RecommendationContext.MODE.EXCLUSION){
                 exclusions = ctxt.getContextItems();
             }
-            Double decayRate = ctxt.getOptsHolder().getDoubleOption(DECAY_RATE_OPTION_NAME);
+            Double decayRate = ctxt.getOptsHolder().getDouble(DECAY_RATE_OPTION_NAME);
             Map<Long, Double> recommendations = r.recommendGlobal(dimensions, maxRecsCount, exclusions, decayRate, null);
             long t2 = System.currentTimeMillis();
             logger.debug("Recommendation via cluster counts for user "+user+" took "+(t2-t1));
@@ -23,6 +23,7 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
 
 import java.util.ArrayList;
@@ -45,7 +46,7 @@ public class ItemCategoryClusterCountsRecommender extends BaseItemCategoryRecomm
 
 	private static final String name = ItemCategoryClusterCountsRecommender.class.getSimpleName();
 	
-    private static final String DECAY_RATE_OPTION_NAME = "io.seldon.algorithm.clusters.decayratesecs";
+    private static final AlgorithmOption DECAY_RATE_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.decayratesecs");
     private static Logger logger = Logger.getLogger(ItemCategoryClusterCountsRecommender.class.getName());
     
     @Autowired
@@ -65,7 +66,7 @@ public class ItemCategoryClusterCountsRecommender extends BaseItemCategoryRecomm
                 CountRecommender r = cUtils.getCountRecommender(client);
                 if (r != null)
                 {
-                    Double decayRate = ctxt.getOptsHolder().getDoubleOption(DECAY_RATE_OPTION_NAME);
+                    Double decayRate = ctxt.getOptsHolder().getDouble(DECAY_RATE_OPTION_NAME);
                     long t1 = System.currentTimeMillis();
                     Map<Long, Double> recommendations = r.recommendGlobal(dimensions, maxRecsCount, exclusions, decayRate, dimId);
                     if (logger.isDebugEnabled())
@@ -0,0 +1,678 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender;
+
+import io.seldon.util.TopK;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In memory cluster count store.
+ * <ul>
+ * <li> Each cluster (and a global pseudo cluster summed over all clusters) is a set of lock striped segments keyed by primitive item id.
+ * <li> Counts are decayed lazily using the same math as {@link ExponentialCount}.
+ * <li> Each segment maintains a top-K min heap incrementally on add. As all counts decay at the same rate the relative order of two
+ * items never changes over time, so the heap is ordered on the time invariant score log(count) + t/alpha. Top count queries with a
+ * decay other than the store's alpha order items differently so they scan every count instead of the heap.
+ * <li> Besides its total each count keeps the part added since it was last visited by {@link #visitDirty}, decayed in the same way,
+ * so owners can persist just this node's additions and merge them with those of other nodes.
+ * </ul>
+ * Dimension, tag and significance queries are not supported and throw {@link ClusterCountNoImplementationException} so
+ * {@link CountRecommender} falls back to local dimension checks and to its in memory tag index for tags. Persistence is left to the owner of the store which
+ * can restore rows with {@link #restore} and write back changed counts with {@link #visitDirty}.
+ * @author rummble
+ *
+ */
+public class MemoryClusterCountStore implements ClusterCountStore {
+
+	private static Logger logger = Logger.getLogger(MemoryClusterCountStore.class.getName());
+
+	public static final int DEF_TOP_K = 500;
+	public static final int DEF_NUM_STRIPES = 16;
+	private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+	/**
+	 * Callback for changed counts. Delta is the amount added since the count was last visited, as its value at time t (secs).
+	 */
+	public static interface CountVisitor {
+		public void visit(int clusterId,long itemId,double delta,long t);
+	}
+
+	final String client;
+	final int topK;
+	final int numStripes;
+	final long epoch; // reference time (secs) for heap scores to keep them small
+	volatile double alpha;
+	final ConcurrentHashMap<Integer,StripedCounts> clusters = new ConcurrentHashMap<>();
+	final StripedCounts global;
+
+	public MemoryClusterCountStore(String client,double alpha)
+	{
+		this(client,alpha,DEF_TOP_K,DEF_NUM_STRIPES);
+	}
+
+	public MemoryClusterCountStore(String client,double alpha,int topK,int numStripes)
+	{
+		this.client = client;
+		this.alpha = alpha;
+		this.topK = topK;
+		this.numStripes = Integer.highestOneBit(Math.max(1, numStripes));
+		this.epoch = now();
+		this.global = new StripedCounts(this.numStripes, topK);
+		logger.info("MemoryClusterCountStore for "+client+" alpha:"+alpha+" topK:"+topK+" stripes:"+this.numStripes);
+	}
+
+	private static long now()
+	{
+		return System.currentTimeMillis()/1000;
+	}
+
+	private StripedCounts getOrCreate(int clusterId)
+	{
+		StripedCounts c = clusters.get(clusterId);
+		if (c == null)
+		{
+			c = new StripedCounts(numStripes, topK);
+			StripedCounts existing = clusters.putIfAbsent(clusterId, c);
+			if (existing != null)
+				c = existing;
+		}
+		return c;
+	}
+
+	/**
+	 * Change the decay. The top-K heaps are reordered for the new decay.
+	 */
+	@Override
+	public void setAlpha(double alpha) {
+		if (alpha == this.alpha)
+			return;
+		this.alpha = alpha;
+		for(StripedCounts c : clusters.values())
+			c.rescore(alpha, epoch);
+		global.rescore(alpha, epoch);
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	@Override
+	public void add(int clusterId, long itemId, double weight, long clusterTimestamp) {
+		add(clusterId, itemId, weight, clusterTimestamp, now());
+	}
+
+	/**
+	 * clusterTimestamp is ignored. time is in secs.
+	 */
+	@Override
+	public void add(int clusterId, long itemId, double weight, long clusterTimestamp, long time) {
+		getOrCreate(clusterId).increment(itemId, weight, time, alpha, epoch, true);
+		global.increment(itemId, weight, time, alpha, epoch, false);
+	}
+
+	/**
+	 * Load a persisted count without marking it as changed.
+	 * @param clusterId
+	 * @param itemId
+	 * @param count - count at time t
+	 * @param t - time in secs the count was last updated
+	 */
+	public void restore(int clusterId,long itemId,double count,long t)
+	{
+		long time = now();
+		double value = count * Math.exp(-Math.max(time - t, 0) / alpha);
+		getOrCreate(clusterId).increment(itemId, value, time, alpha, epoch, false);
+		global.increment(itemId, value, time, alpha, epoch, false);
+	}
+
+	/**
+	 * timestamp is ignored
+	 */
+	@Override
+	public double getCount(int clusterId, long itemId, long timestamp) {
+		StripedCounts c = clusters.get(clusterId);
+		if (c != null)
+			return c.get(itemId, now(), alpha);
+		else
+			return 0D;
+	}
+
+	@Override
+	public double getGlobalCount(long itemId, double decay) {
+		return global.get(itemId, now(), decay);
+	}
+
+	@Override
+	public boolean hasGlobalCounts() {
+		return true;
+	}
+
+	@Override
+	public Map<Long, Double> getTopCounts(int limit, double decay) throws ClusterCountNoImplementationException {
+		return global.top(limit, now(), decay, alpha);
+	}
+
+	/**
+	 * timestamp is ignored - counts are decayed to the current time.
+	 */
+	@Override
+	public Map<Long, Double> getTopCounts(int clusterId, long timestamp, int limit, double decay) throws ClusterCountNoImplementationException {
+		StripedCounts c = clusters.get(clusterId);
+		if (c != null)
+			return c.top(limit, now(), decay, alpha);
+		else
+			return new HashMap<>();
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByDimension(Set<Integer> dimensions, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTwoDimensions(Set<Integer> dimension1, int dimension2, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTagAndDimension(String tag, int tagAttrId, Set<Integer> dimensions, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTagAndTwoDimensions(String tag, int tagAttrId, Set<Integer> dimensions, int dimension2, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByTag(String tag, int tagAttrId, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public Map<Long, Double> getTopCountsByDimension(int clusterId, Set<Integer> dimensions, long timestamp, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public Map<Long, Double> getTopSignificantCountsByDimension(int clusterId, Set<Integer> dimensions, long timestamp, int limit, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public boolean needsExternalCaching() {
+		return false;
+	}
+
+	/**
+	 * Pass the amount added to each count changed since the last call to the visitor and mark them as clean.
+	 * The visitor is called outside of any segment lock.
+	 * @return number of counts visited
+	 */
+	public int visitDirty(CountVisitor visitor)
+	{
+		int visited = 0;
+		for(Map.Entry<Integer,StripedCounts> e : clusters.entrySet())
+			visited += e.getValue().visitDirty(e.getKey(), visitor);
+		return visited;
+	}
+
+	/**
+	 * Give back a delta passed to the visitor of {@link #visitDirty} and mark the count changed again, e.g. because writing it failed.
+	 */
+	public void markDirty(int clusterId,long itemId,double delta,long t)
+	{
+		StripedCounts c = clusters.get(clusterId);
+		if (c != null)
+			c.segmentFor(itemId).markDirty(itemId, delta, t, alpha);
+	}
+
+	/**
+	 * Remove clean counts whose decayed value has fallen below minCount.
+	 * @return number of counts removed
+	 */
+	public int prune(double minCount)
+	{
+		long time = now();
+		int removed = 0;
+		for(StripedCounts c : clusters.values())
+			removed += c.prune(time, alpha, minCount);
+		global.prune(time, alpha, minCount);
+		return removed;
+	}
+
+	public int getNumClusters()
+	{
+		return clusters.size();
+	}
+
+	public long getNumCounts()
+	{
+		long size = 0;
+		for(StripedCounts c : clusters.values())
+			size += c.size();
+		return size;
+	}
+
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * The counts for a single cluster split into segments by item id.
+	 */
+	static class StripedCounts {
+		final Segment[] segments;
+		final int topK;
+
+		StripedCounts(int numStripes,int topK)
+		{
+			this.topK = topK;
+			segments = new Segment[numStripes];
+			for(int i=0;i<numStripes;i++)
+				segments[i] = new Segment(topK);
+		}
+
+		private Segment segmentFor(long itemId)
+		{
+			return segments[(mix(itemId) >>> 16) & (segments.length - 1)];
+		}
+
+		void increment(long itemId,double incr,long time,double alpha,long epoch,boolean markDirty)
+		{
+			segmentFor(itemId).increment(itemId, incr, time, alpha, epoch, markDirty);
+		}
+
+		double get(long itemId,long time,double decay)
+		{
+			return segmentFor(itemId).get(itemId, time, decay);
+		}
+
+		/**
+		 * @param alpha the decay the heaps are ordered by
+		 */
+		Map<Long,Double> top(int limit,long time,double decay,double alpha)
+		{
+			TopK top = new TopK(limit);
+			boolean fullScan = limit > topK || decay != alpha;
+			for(Segment s : segments)
+				s.collect(top, fullScan, time, decay);
+			return top.toMap();
+		}
+
+		void rescore(double alpha,long epoch)
+		{
+			for(Segment s : segments)
+				s.rescore(alpha, epoch);
+		}
+
+		int visitDirty(int clusterId,CountVisitor visitor)
+		{
+			int visited = 0;
+			for(Segment s : segments)
+				visited += s.visitDirty(clusterId, visitor);
+			return visited;
+		}
+
+		int prune(long time,double alpha,double minCount)
+		{
+			int removed = 0;
+			for(Segment s : segments)
+				removed += s.prune(time, alpha, minCount);
+			return removed;
+		}
+
+		long size()
+		{
+			long size = 0;
+			for(Segment s : segments)
+				size += s.size();
+			return size;
+		}
+	}
+
+	/**
+	 * Open addressing long to count table with a bounded min heap over the top counts. All methods synchronized.
+	 */
+	static class Segment {
+		final int heapCapacity;
+		boolean[] used;
+		long[] keys;
+		double[] counts;
+		long[] times;
+		double[] pending; // part of the count added since last visited, at times
+		double[] scores;
+		int[] heapPos;
+		boolean[] dirty;
+		int size;
+		int[] heap;
+		int heapSize;
+
+		Segment(int heapCapacity)
+		{
+			this.heapCapacity = heapCapacity;
+			this.heap = new int[heapCapacity];
+			init(INITIAL_SEGMENT_CAPACITY);
+		}
+
+		private void init(int capacity)
+		{
+			used = new boolean[capacity];
+			keys = new long[capacity];
+			counts = new double[capacity];
+			times = new long[capacity];
+			pending = new double[capacity];
+			scores = new double[capacity];
+			heapPos = new int[capacity];
+			dirty = new boolean[capacity];
+			size = 0;
+			heapSize = 0;
+		}
+
+		private int find(long key)
+		{
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (used[i])
+			{
+				if (keys[i] == key)
+					return i;
+				i = (i + 1) & mask;
+			}
+			return -(i + 1);
+		}
+
+		synchronized void increment(long itemId,double incr,long time,double alpha,long epoch,boolean markDirty)
+		{
+			int slot = find(itemId);
+			if (slot < 0)
+			{
+				if ((size + 1) * 4 > keys.length * 3)
+				{
+					resize(keys.length * 2);
+					slot = find(itemId);
+				}
+				slot = -(slot + 1);
+				used[slot] = true;
+				keys[slot] = itemId;
+				counts[slot] = incr;
+				times[slot] = time;
+				pending[slot] = markDirty ? incr : 0;
+				heapPos[slot] = -1;
+				size++;
+			}
+			else
+			{
+				// same math as ExponentialCount.increment
+				long lastT = times[slot];
+				if (time < lastT)
+					time = lastT;
+				double d = Math.exp(-(time - lastT) / alpha);
+				counts[slot] = incr + d * counts[slot];
+				pending[slot] = (markDirty ? incr : 0) + d * pending[slot];
+				times[slot] = time;
+			}
+			if (markDirty)
+				dirty[slot] = true;
+			double oldScore = scores[slot];
+			scores[slot] = counts[slot] > 0 ? Math.log(counts[slot]) + (times[slot] - epoch) / alpha : Double.NEGATIVE_INFINITY;
+			if (heapPos[slot] >= 0)
+			{
+				if (scores[slot] >= oldScore)
+					siftDown(heapPos[slot]);
+				else
+					siftUp(heapPos[slot]); // negative weights - heap may now miss a larger item until it is next updated
+			}
+			else
+				offer(slot);
+		}
+
+		synchronized void markDirty(long itemId,double delta,long t,double alpha)
+		{
+			int slot = find(itemId);
+			if (slot >= 0)
+			{
+				pending[slot] += delta * Math.exp(-Math.max(times[slot] - t, 0) / alpha);
+				dirty[slot] = true;
+			}
+		}
+
+		/**
+		 * Recompute the heap scores for a new decay and rebuild the heap.
+		 */
+		synchronized void rescore(double alpha,long epoch)
+		{
+			heapSize = 0;
+			for(int i=0;i<keys.length;i++)
+				if (used[i])
+				{
+					scores[i] = counts[i] > 0 ? Math.log(counts[i]) + (times[i] - epoch) / alpha : Double.NEGATIVE_INFINITY;
+					heapPos[i] = -1;
+					offer(i);
+				}
+		}
+
+		synchronized double get(long itemId,long time,double decay)
+		{
+			int slot = find(itemId);
+			if (slot < 0)
+				return 0D;
+			return decayed(slot, time, decay);
+		}
+
+		private double decayed(int slot,long time,double decay)
+		{
+			return counts[slot] * Math.exp(-Math.max(time - times[slot], 0) / decay);
+		}
+
+		synchronized void collect(TopK top,boolean fullScan,long time,double decay)
+		{
+			if (fullScan)
+			{
+				for(int i=0;i<keys.length;i++)
+					if (used[i])
+						top.offer(keys[i], decayed(i, time, decay));
+			}
+			else
+			{
+				for(int i=0;i<heapSize;i++)
+					top.offer(keys[heap[i]], decayed(heap[i], time, decay));
+			}
+		}
+
+		synchronized int size()
+		{
+			return size;
+		}
+
+		int visitDirty(int clusterId,CountVisitor visitor)
+		{
+			long[] dirtyKeys;
+			double[] dirtyDeltas;
+			long[] dirtyTimes;
+			int n = 0;
+			synchronized (this)
+			{
+				for(int i=0;i<keys.length;i++)
+					if (used[i] && dirty[i])
+						n++;
+				dirtyKeys = new long[n];
+				dirtyDeltas = new double[n];
+				dirtyTimes = new long[n];
+				n = 0;
+				for(int i=0;i<keys.length;i++)
+					if (used[i] && dirty[i])
+					{
+						dirtyKeys[n] = keys[i];
+						dirtyDeltas[n] = pending[i];
+						dirtyTimes[n] = times[i];
+						pending[i] = 0;
+						dirty[i] = false;
+						n++;
+					}
+			}
+			for(int i=0;i<n;i++)
+				visitor.visit(clusterId, dirtyKeys[i], dirtyDeltas[i], dirtyTimes[i]);
+			return n;
+		}
+
+		synchronized int prune(long time,double alpha,double minCount)
+		{
+			int removed = 0;
+			for(int i=0;i<keys.length;i++)
+				if (used[i] && !dirty[i] && decayed(i, time, alpha) < minCount)
+				{
+					used[i] = false;
+					removed++;
+				}
+			if (removed > 0)
+			{
+				// rebuild as open addressing can't simply drop entries
+				size = size - removed;
+				int capacity = INITIAL_SEGMENT_CAPACITY;
+				while (size * 4 > capacity * 3)
+					capacity = capacity * 2;
+				rehash(capacity);
+				heapSize = 0;
+				for(int i=0;i<keys.length;i++)
+					if (used[i])
+						offer(i);
+			}
+			return removed;
+		}
+
+		private void resize(int capacity)
+		{
+			long[] heapKeys = new long[heapSize];
+			for(int i=0;i<heapSize;i++)
+				heapKeys[i] = keys[heap[i]];
+			int oldHeapSize = heapSize;
+			rehash(capacity);
+			// heap order is unchanged so just remap slots
+			for(int i=0;i<oldHeapSize;i++)
+			{
+				int slot = find(heapKeys[i]);
+				heap[i] = slot;
+				heapPos[slot] = i;
+			}
+			heapSize = oldHeapSize;
+		}
+
+		private void rehash(int capacity)
+		{
+			boolean[] oUsed = used;
+			long[] oKeys = keys;
+			double[] oCounts = counts;
+			long[] oTimes = times;
+			double[] oPending = pending;
+			double[] oScores = scores;
+			boolean[] oDirty = dirty;
+			int oSize = size;
+			init(capacity);
+			for(int i=0;i<oKeys.length;i++)
+				if (oUsed[i])
+				{
+					int slot = -(find(oKeys[i]) + 1);
+					used[slot] = true;
+					keys[slot] = oKeys[i];
+					counts[slot] = oCounts[i];
+					times[slot] = oTimes[i];
+					pending[slot] = oPending[i];
+					scores[slot] = oScores[i];
+					dirty[slot] = oDirty[i];
+					heapPos[slot] = -1;
+				}
+			size = oSize;
+		}
+
+		private void offer(int slot)
+		{
+			if (heapSize < heapCapacity)
+			{
+				heap[heapSize] = slot;
+				heapPos[slot] = heapSize;
+				heapSize++;
+				siftUp(heapSize - 1);
+			}
+			else if (heapCapacity > 0 && scores[slot] > scores[heap[0]])
+			{
+				heapPos[heap[0]] = -1;
+				heap[0] = slot;
+				heapPos[slot] = 0;
+				siftDown(0);
+			}
+		}
+
+		private void siftUp(int i)
+		{
+			while (i > 0)
+			{
+				int parent = (i - 1) >>> 1;
+				if (scores[heap[i]] >= scores[heap[parent]])
+					break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i)
+		{
+			while (true)
+			{
+				int left = 2 * i + 1;
+				if (left >= heapSize)
+					break;
+				int smallest = left;
+				int right = left + 1;
+				if (right < heapSize && scores[heap[right]] < scores[heap[left]])
+					smallest = right;
+				if (scores[heap[i]] <= scores[heap[smallest]])
+					break;
+				swap(i, smallest);
+				i = smallest;
+			}
+		}
+
+		private void swap(int i,int j)
+		{
+			int t = heap[i];
+			heap[i] = heap[j];
+			heap[j] = t;
+			heapPos[heap[i]] = i;
+			heapPos[heap[j]] = j;
+		}
+	}
+
+	static int mix(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
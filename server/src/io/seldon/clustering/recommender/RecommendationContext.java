@@ -23,6 +23,7 @@
 
 package io.seldon.clustering.recommender;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.recommendation.AlgorithmStrategy;
 import io.seldon.recommendation.ItemFilter;
@@ -51,7 +52,7 @@ import org.apache.log4j.Logger;
  */
 public class RecommendationContext {
 
-    private static final String ITEMS_PER_INCLUDER_OPTION_NAME = "io.seldon.algorithm.inclusion.itemsperincluder";
+    private static final AlgorithmOption ITEMS_PER_INCLUDER_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.inclusion.itemsperincluder");
     private static Logger logger = Logger.getLogger(RecommendationContext.class.getName());
     private final String lastRecListUUID;
 
@@ -115,7 +116,7 @@ public class RecommendationContext {
                                                      String lastRecListUUID, int numRecommendations,
                                                      DefaultOptions defaultOptions, FilteredItems includedItems){
 
-        OptionsHolder optsHolder = new OptionsHolder(defaultOptions, strategy.config);
+        OptionsHolder optsHolder = strategy.getOptions(defaultOptions);
         List<String> inclusionKeys = new ArrayList<String>();
         Set<Long> contextItems = new HashSet<>();
         
@@ -141,7 +142,7 @@ public class RecommendationContext {
             return new RecommendationContext(MODE.EXCLUSION, contextItems, contextItems, inclusionKeys, currentItem, lastRecListUUID,optsHolder);
         }
 
-        Integer itemsPerIncluder = optsHolder.getIntegerOption(ITEMS_PER_INCLUDER_OPTION_NAME);
+        Integer itemsPerIncluder = optsHolder.getInteger(ITEMS_PER_INCLUDER_OPTION_NAME);
         if(itemFilters == null || itemFilters.size() ==0) {
             for (ItemIncluder producer : inclusionProducers){
             	FilteredItems filteredItems = producer.generateIncludedItems(client, dimensions,itemsPerIncluder); 
@@ -168,52 +169,113 @@ public class RecommendationContext {
         return new RecommendationContext(MODE.INCLUSION, included, excluded, inclusionKeys,currentItem, lastRecListUUID,optsHolder);
     }
 
+    /**
+     * Algorithm options of a strategy merged with the default options. Every registered {@link AlgorithmOption} is
+     * resolved and parsed when the holder is built so the typed getters are array reads. Options registered after the
+     * holder was built are resolved on each call.
+     */
     public static class OptionsHolder{
 
+        private static final byte INT_OK = 1;
+        private static final byte DOUBLE_OK = 2;
+
         private final DefaultOptions defaultOptions;
         private final Map<String, String> options;
 
+        private final String[] strings;
+        private final int[] ints;
+        private final double[] doubles;
+        private final boolean[] booleans;
+        private final byte[] parsed;
+
         public OptionsHolder(DefaultOptions options, Map<String, String > perStrategyOptions){
             this.defaultOptions = options;
             this.options = perStrategyOptions;
+            for (String name : perStrategyOptions.keySet())
+                AlgorithmOption.named(name);
+            if (options != null)
+                for (String name : options.getOptionNames())
+                    AlgorithmOption.named(name);
+            AlgorithmOption[] all = AlgorithmOption.registered();
+            strings = new String[all.length];
+            ints = new int[all.length];
+            doubles = new double[all.length];
+            booleans = new boolean[all.length];
+            parsed = new byte[all.length];
+            for (AlgorithmOption option : all){
+                int i = option.getIndex();
+                String value = resolve(option.getName());
+                strings[i] = value;
+                booleans[i] = BooleanUtils.toBoolean(value);
+                if (value != null){
+                    try {
+                        ints[i] = Integer.parseInt(value);
+                        parsed[i] |= INT_OK;
+                    } catch (NumberFormatException e){}
+                    try {
+                        doubles[i] = Double.parseDouble(value);
+                        parsed[i] |= DOUBLE_OK;
+                    } catch (NumberFormatException e){}
+                }
+            }
         }
 
-
-        public String getStringOption(String optionName){
+        private String resolve(String optionName){
             if(options.containsKey(optionName))
                 return options.get(optionName);
-            return defaultOptions.getOption(optionName);
+            return defaultOptions == null ? null : defaultOptions.getOption(optionName);
+        }
+
+        public String getStringOption(String optionName){
+            return getString(AlgorithmOption.named(optionName));
         }
 
         public boolean getBooleanOption(String optionName){
+            return getBoolean(AlgorithmOption.named(optionName));
+        }
 
-            if(options.containsKey(optionName))
-                return BooleanUtils.toBoolean(options.get(optionName));
-            else
-                return BooleanUtils.toBoolean(defaultOptions.getOption(optionName));
+        public Double getDoubleOption(String optionName){
+            return getDouble(AlgorithmOption.named(optionName));
+        }
 
+        public Integer getIntegerOption(String optionName){
+            return getInteger(AlgorithmOption.named(optionName));
         }
 
-        public Double getDoubleOption(String optionName){
+        public String getString(AlgorithmOption option){
+            int i = option.getIndex();
+            if (i < strings.length)
+                return strings[i];
+            return resolve(option.getName());
+        }
+
+        public boolean getBoolean(AlgorithmOption option){
+            int i = option.getIndex();
+            if (i < booleans.length)
+                return booleans[i];
+            return BooleanUtils.toBoolean(resolve(option.getName()));
+        }
+
+        public double getDouble(AlgorithmOption option){
+            int i = option.getIndex();
+            if (i < doubles.length && (parsed[i] & DOUBLE_OK) != 0)
+                return doubles[i];
             try {
-                if(options.containsKey(optionName))
-                    return Double.parseDouble(options.get(optionName));
-                else
-                    return Double.parseDouble(defaultOptions.getOption(optionName));
+                return Double.parseDouble(resolve(option.getName()));
             } catch (NumberFormatException | NullPointerException e){
-                logger.error("Couldn't get algorithm option "+optionName,e);
+                logger.error("Couldn't get algorithm option "+option,e);
                 return 0.0D;
             }
         }
 
-        public Integer getIntegerOption(String optionName){
+        public int getInteger(AlgorithmOption option){
+            int i = option.getIndex();
+            if (i < ints.length && (parsed[i] & INT_OK) != 0)
+                return ints[i];
             try {
-                if(options.containsKey(optionName))
-                    return Integer.parseInt(options.get(optionName));
-                else
-                    return Integer.parseInt(defaultOptions.getOption(optionName));
+                return Integer.parseInt(resolve(option.getName()));
             } catch (NumberFormatException | NullPointerException e){
-                logger.error("Couldn't get algorithm option "+optionName,e);
+                logger.error("Couldn't get algorithm option "+option,e);
                 return 0;
             }
         }
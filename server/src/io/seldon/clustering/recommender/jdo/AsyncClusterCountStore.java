@@ -23,19 +23,26 @@
 
 package io.seldon.clustering.recommender.jdo;
 
+import io.seldon.api.statsd.StatsdPeer;
 import io.seldon.db.jdbc.JDBCConnectionFactory;
-import io.seldon.general.Action;
+import io.seldon.db.jdbc.MultiRowInsert;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Aggregates cluster counts in memory and periodically adds them to the cluster_counts table.
+ * Counts are passed from the API threads through a lock free {@link ClusterCountRingBuffer} so adding a count never
+ * blocks or allocates. A single thread sums them by cluster and item in a {@link ClusterCountTable} and writes the sums
+ * with multi-row upserts when the table reaches the batch size or the timeout passes. When there is nothing to read
+ * the thread parks until a producer unparks it, waking each second to check whether a write is due.
+ */
 public class AsyncClusterCountStore implements Runnable {
 
 	public static class ClusterCount {
@@ -54,77 +61,110 @@ public class AsyncClusterCountStore implements Runnable {
 	}
 	
 	private static Logger logger = Logger.getLogger(AsyncClusterCountStore.class.getName());
+	private static final int DRAIN_CHUNK = 1024;
+	private static final long MAX_IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1); // so timed writes still happen
+	private static final int MAX_STATEMENT_BYTES = 1024 * 1024;
+	private static final int ROW_BYTES = 64;
     private String client;
     private int timeout; 
-    private LinkedBlockingQueue<ClusterCount> queue;
-    private int batchSize; // batch size for sql statements
+    private final ClusterCountRingBuffer queue;
+    private int batchSize; // max unique cluster and item counts before running sql
     private int maxDBRetries = 1; // max # of times to try sql statement on exception
-    boolean keepRunning;
+    volatile boolean keepRunning;
+    private volatile Thread consumer;
+    private volatile boolean idle; // the consumer is parked, or about to park, waiting for counts
     double decay = 3600;
     Connection connection = null;
     
-    PreparedStatement countPreparedStatement;
-    private int countsAdded = 0; // actions added so far to sql statement
-    private int countsAddedTotal = 0; // total actions added including counts for same cluster and item (will be different than counts added for cached version that uses db time)
+    private final ClusterCountTable clusterCounts;
+    private int countsAddedTotal = 0; // total counts added including counts for same cluster and item
      
     long lastSqlRunTime = 0;
     int badActions = 0;
     boolean useDBTime = true;
-    TreeMap<Integer,TreeMap<Long,Double>> clusterCounts;
+    private long flushTime; // time written with the counts when not using db time
+    private MultiRowInsert<Void> countInsert;
+    private final IntArrayList flushSlots = new IntArrayList(); // slots of the counts being written
+    private double countInsertDecay;
+    
+    private final ClusterCountRingBuffer.Consumer aggregator = new ClusterCountRingBuffer.Consumer() {
+		@Override
+		public void accept(int clusterId, long itemId, double weight) {
+			clusterCounts.add(clusterId, itemId, weight);
+			countsAddedTotal++;
+		}
+	};
+	
+	private final MultiRowInsert.IndexedRows countRows = new MultiRowInsert.IndexedRows() {
+		@Override
+		public int size() {
+			return flushSlots.size();
+		}
+		@Override
+		public void setParameters(PreparedStatement s, int index, int i) throws SQLException {
+			int slot = flushSlots.getInt(i);
+			s.setInt(index, clusterCounts.getClusterId(slot));
+			s.setLong(index + 1, clusterCounts.getItemId(slot));
+			s.setDouble(index + 2, clusterCounts.getCount(slot));
+			if (!useDBTime)
+				s.setLong(index + 3, flushTime);
+		}
+		@Override
+		public int estimateBytes(int i) {
+			return ROW_BYTES;
+		}
+	};
     
     public AsyncClusterCountStore(String client, int qTimeoutSecs, int batchSize, int maxQSize,int maxDBRetries,double decay,boolean useDBTime) {
         this.client = client;
         this.batchSize = batchSize;
         this.maxDBRetries = maxDBRetries;
-        this.queue = new LinkedBlockingQueue<>(maxQSize);
+        this.queue = new ClusterCountRingBuffer(maxQSize);
         this.timeout = qTimeoutSecs;
         this.decay = decay;
-        clusterCounts = new TreeMap<>();
+        clusterCounts = new ClusterCountTable(batchSize);
         this.useDBTime = useDBTime;
-        logger.info("Async cluster count created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+maxQSize+" maxDBRetries:"+maxDBRetries+" decay:"+decay+" use DB Time:"+useDBTime);
+        logger.info("Async cluster count created for client "+client+" qTimeout:"+qTimeoutSecs+" batchSize:"+batchSize+" maxQSize:"+queue.capacity()+" maxDBRetries:"+maxDBRetries+" decay:"+decay+" use DB Time:"+useDBTime);
     }
 
     public void run() {
     	keepRunning = true;
+    	consumer = Thread.currentThread();
     	this.lastSqlRunTime = System.currentTimeMillis();
         while (true) 
         {
             try 
             {
-                ClusterCount count = queue.poll(timeout, TimeUnit.SECONDS);
-                if (count != null)
-                {
-                	if (useDBTime)
-                		addCount(count);
-                	else
-                		addSQL(count);
-                }
+                int drained = queue.drain(aggregator, DRAIN_CHUNK);
                 long timeSinceLastSQLRun = (System.currentTimeMillis() - this.lastSqlRunTime)/1000;
                 boolean runSQL = false;
-                if ((count == null && countsAdded > 0))
-                {
-                	runSQL = true;
-                	logger.info("Run sql as timeout on poll and actionsAdded > 0");
-                }
-                else if (countsAdded >= batchSize)
+                if (clusterCounts.size() >= batchSize)
                 {
                 	runSQL = true;
                 	logger.info("Run sql as batch size exceeded");
                 }
-                else if (timeSinceLastSQLRun > timeout && countsAdded > 0)
+                else if (timeSinceLastSQLRun > timeout && clusterCounts.size() > 0)
                 {
                 	runSQL = true;
                 	logger.info("Run sql as time between sql runs exceeded");
                 }
+                else if (!keepRunning && drained == 0 && clusterCounts.size() > 0)
+                	runSQL = true;
                 if (runSQL)
                     runSQL();
-                if (!keepRunning && count == null)
-                	return;
-
+                if (drained == 0)
+                {
+                	if (!keepRunning)
+                		return;
+                	idle = true;
+                	// check again after publishing idle so a count added meanwhile is not left waiting
+                	if (queue.size() == 0 && keepRunning)
+                		LockSupport.parkNanos(MAX_IDLE_PARK_NANOS);
+                	idle = false;
+                	if (Thread.interrupted())
+                		return;
+                }
             } 
-            catch (InterruptedException e) {
-                return;
-            }
             catch (Exception e)
             {
             	logger.error("Caught exception while running ", e);
@@ -141,9 +181,8 @@ public class AsyncClusterCountStore implements Runnable {
     }
 
     private void resetState() {
-    	clusterCounts = new TreeMap<>();
+    	clusterCounts.clear();
         clearSQLState();
-        countsAdded = 0;
         countsAddedTotal = 0;
         this.lastSqlRunTime = System.currentTimeMillis();
     }
@@ -160,32 +199,40 @@ public class AsyncClusterCountStore implements Runnable {
     				logger.error("Unable to close connection",exception);
     			}
     		}
-    		if (countPreparedStatement != null)
-    		{
-    			try{countPreparedStatement.close();}
-    			catch( SQLException exception )
-    			{
-    				logger.error("Unable to close action perpared statment",exception);
-    			}
-    		}
-
 		}
 		finally
 		{
 			connection = null;
-			countPreparedStatement = null;
 		}
 		
     }
     
+    private synchronized MultiRowInsert<Void> getCountInsert()
+    {
+    	if (countInsert == null || countInsertDecay != decay)
+    	{
+    		// later assignments in the update see the new values of earlier ones so count is updated before t
+    		if (useDBTime)
+    			countInsert = new MultiRowInsert<>("insert into cluster_counts (id,item_id,count,t) values ", "(?,?,?,unix_timestamp())",
+    					" on duplicate key update count=values(count)+exp(-(greatest(unix_timestamp()-t,0)/"+decay+"))*count,t=unix_timestamp()",
+    					3, batchSize, MAX_STATEMENT_BYTES);
+    		else
+    			countInsert = new MultiRowInsert<>("insert into cluster_counts (id,item_id,count,t) values ", "(?,?,?,?)",
+    					" on duplicate key update count=values(count)+exp(-(greatest(values(t)-t,0)/"+decay+"))*count,t=values(t)",
+    					4, batchSize, MAX_STATEMENT_BYTES);
+    		countInsertDecay = decay;
+    	}
+    	return countInsert;
+    }
+    
     private void executeBatch() throws SQLException
     {
-    	if (countsAdded > 0)
+    	if (clusterCounts.size() > 0)
     	{
-    		countPreparedStatement.executeBatch();
-    		countPreparedStatement.close();
-			countsAdded = 0;
-
+    		getConnectionIfNeeded();
+    		flushTime = System.currentTimeMillis();
+    		clusterCounts.slots(flushSlots);
+    		getCountInsert().execute(connection, countRows);
     		connection.commit();
     	}
     }
@@ -194,7 +241,8 @@ public class AsyncClusterCountStore implements Runnable {
     {
     	try
 		{
-			connection.rollback();
+    		if (connection != null)
+    			connection.rollback();
 		}
 		catch( SQLException re )
 		{
@@ -202,21 +250,10 @@ public class AsyncClusterCountStore implements Runnable {
 		}
     }
    
-    private void runSQL() throws SQLException 
+    private void runSQL()
     {
-    	int sqlAdded = 0;
-    	int localActionsAdded = this.countsAdded;
-    	if (useDBTime)
-    	{
-    		addSQLs();
-    		sqlAdded = this.countsAdded; 
-        	localActionsAdded = this.countsAddedTotal;
-    	}
-    	else
-    	{
-    		sqlAdded = this.countsAdded;
-        	localActionsAdded = this.countsAdded;
-    	}
+    	int sqlAdded = clusterCounts.size();
+    	int localActionsAdded = this.countsAddedTotal;
     	long t1 = System.currentTimeMillis();
 
     	boolean success = false;
@@ -230,31 +267,20 @@ public class AsyncClusterCountStore implements Runnable {
             }
     		catch (SQLException e) {
                 logger.error("Failed to run update ",e);
+                rollBack();
+                clearSQLState();
 			}
     	}
         if (!success)
-        {
-        	rollBack();
         	localActionsAdded = 0;
-        }
         resetState();
         long t2 = System.currentTimeMillis();
         //log q size
         float compression = localActionsAdded > 0 ? (1.0f-(sqlAdded/(float)localActionsAdded)) : 0.0f;
-        logger.info("Asyn count for "+client+" at size:"+queue.size()+" actions added "+localActionsAdded+" unique sql inserts "+sqlAdded + " compression " + compression +" time to process:"+(t2-t1));
+        logger.info("Asyn count for "+client+" at size:"+queue.size()+" actions added "+localActionsAdded+" unique sql inserts "+sqlAdded + " compression " + compression +" time to process:"+(t2-t1)+" dropped:"+queue.getDropped());
+        StatsdPeer.logClusterCountFlush(client, localActionsAdded, success ? sqlAdded : 0, queue.size(), t2-t1);
     }
     
-    /**
-     * Allowed operations to fill in nulls in Action
-     * @param action
-     */
-    private void repairAction(Action action)
-    {
-        if (action.getTimes() == null)
-                action.setTimes(1);
-    }
-
-    
     private void getConnectionIfNeeded() throws SQLException
     {
     	if (connection == null)
@@ -264,92 +290,24 @@ public class AsyncClusterCountStore implements Runnable {
     	}
     }
     
-   
-
-    private void addCount(ClusterCount count)
-    {
-    	TreeMap<Long,Double> clusterMap = clusterCounts.get(count.clusterId);
-    	if (clusterMap == null)
-    	{
-    		clusterMap = new TreeMap<>();
-    		clusterMap.put(count.itemId, count.weight);
-    		clusterCounts.put(count.clusterId, clusterMap);
-    		countsAdded++;
-    	}
-    	else
-    	{
-    		Double presValue = clusterMap.get(count.itemId);
-    		if (presValue == null)
-    		{
-    			clusterMap.put(count.itemId, count.weight);
-    			countsAdded++;
-    		}
-    		else
-    			clusterMap.put(count.itemId, presValue + count.weight);
-    	}
-    	this.countsAddedTotal++;
-    }
-    
-    private int addSQLs() throws SQLException
-    {
-    	getConnectionIfNeeded();
-		
-		// Add action batch
-		if (countPreparedStatement == null)
-			countPreparedStatement = connection.prepareStatement("insert into cluster_counts values (?,?,?,unix_timestamp()) on duplicate key update count=?+exp(-(greatest(unix_timestamp()-t,0)/?))*count,t=unix_timestamp()");
-		int added = 0;
-    	for(Map.Entry<Integer,TreeMap<Long,Double>> m : clusterCounts.entrySet())
-    	{
-    		for(Map.Entry<Long, Double> e : m.getValue().entrySet())
-    		{
-    			countPreparedStatement.setInt(1, m.getKey());
-    			countPreparedStatement.setLong(2, e.getKey());
-    			countPreparedStatement.setDouble(3, e.getValue());
-    			countPreparedStatement.setDouble(4, e.getValue());
-    			countPreparedStatement.setDouble(5, decay);
-    			
-    			countPreparedStatement.addBatch();
-    			added++;
-    		}
-    	}
-    	logger.info("Added "+added+" sql inserts to run ");
-    	clusterCounts = new TreeMap<>();
-    	return added;
-    }
-    
-    
-    
-    private synchronized void addActionBatch(ClusterCount count) throws SQLException
-    {
-    	long time = System.currentTimeMillis();
-    	countPreparedStatement.setInt(1, count.clusterId);
-		countPreparedStatement.setLong(2, count.itemId);
-		countPreparedStatement.setDouble(3, count.weight);
-		countPreparedStatement.setLong(4,  time);
-		countPreparedStatement.setDouble(5, count.weight);
-		countPreparedStatement.setLong(6, time);
-		countPreparedStatement.setDouble(7, decay);
-		countPreparedStatement.setLong(8,  time);
+    /**
+     * Add a count without blocking or allocating. The count is dropped if the queue is full.
+     */
+    public void put(int clusterId,long itemId,double weight) {
+    	queue.offer(clusterId, itemId, weight);
+    	if (idle)
+    		wakeConsumer();
     }
 
-    private void addSQL(ClusterCount count) throws SQLException {
-    	
-    		getConnectionIfNeeded();
-    		
-    		// Add action batch
-    		if (countPreparedStatement == null)
-    			countPreparedStatement = connection.prepareStatement("insert into cluster_counts values (?,?,?,?) on duplicate key update count=?+exp(-(greatest(?-t,0)/?))*count,t=?");
-    		addActionBatch(count);
-    		countPreparedStatement.addBatch();
-    		countsAdded++;
-    		
-    		
-       
+    private void wakeConsumer()
+    {
+    	Thread t = consumer;
+    	if (t != null)
+    		LockSupport.unpark(t);
     }
-    
 
     public void put(ClusterCount count) {
-        queue.add(count);
+        put(count.clusterId, count.itemId, count.weight);
     }
     
     public int getQSize()
@@ -357,6 +315,11 @@ public class AsyncClusterCountStore implements Runnable {
     	return queue.size();
     }
 
+    public long getDropped()
+    {
+    	return queue.getDropped();
+    }
+
     public String getClient() {
         return client;
     }
@@ -374,7 +337,7 @@ public class AsyncClusterCountStore implements Runnable {
     }
 
     public int getActionsAdded() {
-        return countsAdded;
+        return clusterCounts.size();
     }
 
     public int getBatchSize() {
@@ -399,6 +362,8 @@ public class AsyncClusterCountStore implements Runnable {
 
 	public void setKeepRunning(boolean keepRunning) {
 		this.keepRunning = keepRunning;
+		if (!keepRunning)
+			wakeConsumer();
 	}
 
 	public int getBadActions() {
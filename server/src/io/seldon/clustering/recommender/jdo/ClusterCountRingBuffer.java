@@ -0,0 +1,124 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.clustering.recommender.jdo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock free multi producer single consumer queue of cluster counts held in parallel primitive arrays so
+ * adding a count neither blocks nor allocates. Producers claim a sequence number with a CAS, fill the slot and then
+ * publish it. The single consumer reads published slots in sequence order. When the buffer is full counts are dropped.
+ */
+class ClusterCountRingBuffer {
+
+	interface Consumer {
+		void accept(int clusterId,long itemId,double weight);
+	}
+
+	private final int capacity;
+	private final int mask;
+	private final int[] clusterIds;
+	private final long[] itemIds;
+	private final double[] weights;
+	private final AtomicLongArray published; // sequence + 1 of the count in each slot once it can be read
+	private final AtomicLong tail = new AtomicLong(); // next sequence to claim
+	private volatile long head; // next sequence to consume, only written by the consumer
+	private final AtomicLong dropped = new AtomicLong();
+
+	ClusterCountRingBuffer(int minCapacity)
+	{
+		this.capacity = Integer.highestOneBit(Math.max(minCapacity - 1, 1)) << 1;
+		this.mask = capacity - 1;
+		this.clusterIds = new int[capacity];
+		this.itemIds = new long[capacity];
+		this.weights = new double[capacity];
+		this.published = new AtomicLongArray(capacity);
+	}
+
+	/**
+	 * @return false if the buffer was full and the count dropped
+	 */
+	boolean offer(int clusterId,long itemId,double weight)
+	{
+		long seq;
+		do
+		{
+			seq = tail.get();
+			if (seq - head >= capacity)
+			{
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		while (!tail.compareAndSet(seq, seq + 1));
+		int slot = (int) seq & mask;
+		clusterIds[slot] = clusterId;
+		itemIds[slot] = itemId;
+		weights[slot] = weight;
+		published.lazySet(slot, seq + 1);
+		return true;
+	}
+
+	/**
+	 * Pass up to max published counts to the consumer. Must only be called from one thread.
+	 * @return number of counts consumed
+	 */
+	int drain(Consumer consumer,int max)
+	{
+		long h = head;
+		int n = 0;
+		while (n < max)
+		{
+			int slot = (int) h & mask;
+			if (published.get(slot) != h + 1)
+				break;
+			consumer.accept(clusterIds[slot], itemIds[slot], weights[slot]);
+			h++;
+			n++;
+		}
+		if (n > 0)
+			head = h;
+		return n;
+	}
+
+	/**
+	 * @return approximate number of counts waiting
+	 */
+	int size()
+	{
+		return (int) Math.max(tail.get() - head, 0);
+	}
+
+	int capacity()
+	{
+		return capacity;
+	}
+
+	long getDropped()
+	{
+		return dropped.get();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.clustering.recommender.jdo;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table summing weights by (cluster id, item id) in primitive arrays, used to aggregate counts
+ * between writes to the db.
+ */
+class ClusterCountTable {
+
+	private int[] clusterIds;
+	private long[] itemIds;
+	private double[] counts;
+	private boolean[] used;
+	private int mask;
+	private int size;
+
+	ClusterCountTable(int expected)
+	{
+		allocate(Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1);
+	}
+
+	private void allocate(int capacity)
+	{
+		clusterIds = new int[capacity];
+		itemIds = new long[capacity];
+		counts = new double[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int clusterId,long itemId)
+	{
+		long h = (itemId * 0x9E3779B97F4A7C15L) ^ (clusterId * 0xC2B2AE3D27D4EB4FL);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	void add(int clusterId,long itemId,double weight)
+	{
+		int i = hash(clusterId, itemId) & mask;
+		while (used[i])
+		{
+			if (clusterIds[i] == clusterId && itemIds[i] == itemId)
+			{
+				counts[i] += weight;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		used[i] = true;
+		clusterIds[i] = clusterId;
+		itemIds[i] = itemId;
+		counts[i] = weight;
+		if (++size * 2 > used.length)
+			grow();
+	}
+
+	private void grow()
+	{
+		int[] oldClusters = clusterIds;
+		long[] oldItems = itemIds;
+		double[] oldCounts = counts;
+		boolean[] oldUsed = used;
+		allocate(oldUsed.length * 2);
+		size = 0;
+		for(int i=0;i<oldUsed.length;i++)
+			if (oldUsed[i])
+				add(oldClusters[i], oldItems[i], oldCounts[i]);
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Replace the contents of the list with the slots holding counts
+	 */
+	void slots(IntArrayList res)
+	{
+		res.clear();
+		for(int i=0;i<used.length;i++)
+			if (used[i])
+				res.add(i);
+	}
+
+	int getClusterId(int slot)
+	{
+		return clusterIds[slot];
+	}
+
+	long getItemId(int slot)
+	{
+		return itemIds[slot];
+	}
+
+	double getCount(int slot)
+	{
+		return counts[slot];
+	}
+
+	void clear()
+	{
+		if (size > 0)
+			Arrays.fill(used, false);
+		size = 0;
+	}
+}
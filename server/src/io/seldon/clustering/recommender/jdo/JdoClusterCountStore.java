@@ -65,7 +65,7 @@ public class JdoClusterCountStore extends ClientPersistable implements ClusterCo
 		AsyncClusterCountStore asyncStore = clusterCountFactory.get(this.clientName);
 		if (asyncStore != null)
 		{
-			asyncStore.put(new AsyncClusterCountStore.ClusterCount(clusterId,itemId,weight));
+			asyncStore.put(clusterId,itemId,weight);
 		}
 		else
 		{
@@ -105,7 +105,7 @@ public class JdoClusterCountStore extends ClientPersistable implements ClusterCo
 		AsyncClusterCountStore asyncStore = clusterCountFactory.get(this.clientName);
 		if (asyncStore != null)
 		{
-			asyncStore.put(new AsyncClusterCountStore.ClusterCount(clusterId,itemId,weight));
+			asyncStore.put(clusterId,itemId,weight);
 		}
 		else
 		{
@@ -138,6 +138,16 @@ public class JdoClusterCountStore extends ClientPersistable implements ClusterCo
 	/**
 	 * timestamp and time is ignore for db counts - the db value for these is used. They are assumed to be up-todate with clusters.
 	 */
+	@Override
+	public double getGlobalCount(long itemId, double decay) throws ClusterCountNoImplementationException {
+		throw new ClusterCountNoImplementationException();
+	}
+
+	@Override
+	public boolean hasGlobalCounts() {
+		return false;
+	}
+
 	@Override
 	public double getCount(int clusterId, long itemId,long timestamp) {
 		final PersistenceManager pm = getPM();
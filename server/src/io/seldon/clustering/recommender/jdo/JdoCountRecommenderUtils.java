@@ -25,6 +25,8 @@ package io.seldon.clustering.recommender.jdo;
 
 import io.seldon.cc.UserClusterManager;
 import io.seldon.clustering.recommender.*;
+import io.seldon.general.ItemDimensionIndexFactory;
+import io.seldon.tags.ItemTagIndexFactory;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -41,13 +43,24 @@ public class JdoCountRecommenderUtils {
 	@Autowired
 	ClusterFromReferrerPeer clusterFromReferrerPeer;
 	
+	@Autowired
+	MemoryClusterCountFactory memoryClusterCountFactory;
+	
+	@Autowired
+	ItemTagIndexFactory tagIndexFactory;
+	
+	@Autowired
+	ItemDimensionIndexFactory dimensionIndexFactory;
+	
 	public JdoCountRecommenderUtils() {
 	}
 
 	public CountRecommender getCountRecommender(String client)
 	{
 		// Get cluster counter
-		ClusterCountStore counter = new JdoClusterCountStore(client,asyncClusterCountFactory); // Database backed count store
+		ClusterCountStore counter = memoryClusterCountFactory.get(client); // In memory count store if configured for client
+		if (counter == null)
+			counter = new JdoClusterCountStore(client,asyncClusterCountFactory); // Database backed count store
 
 		// get user clusters
 		UserClusterStore userClusters = null;
@@ -57,7 +70,7 @@ public class JdoCountRecommenderUtils {
 			return null;
 		}
 		
-		return new CountRecommender(client,userClusters,counter,clusterFromReferrerPeer.get(client));
+		return new CountRecommender(client,userClusters,counter,clusterFromReferrerPeer.get(client),tagIndexFactory,dimensionIndexFactory);
 	}
 
 	
@@ -0,0 +1,332 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender.jdo;
+
+import io.seldon.api.state.GlobalConfigHandler;
+import io.seldon.api.state.GlobalConfigUpdateListener;
+import io.seldon.clustering.recommender.MemoryClusterCountStore;
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+import io.seldon.db.jdo.DbConfigHandler;
+import io.seldon.db.jdo.DbConfigListener;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Creates and persists {@link MemoryClusterCountStore}s for clients listed in the memory_cluster_counts zookeeper config.
+ * Counts are restored from the cluster_counts table when the client db is initialised. Every snapshot_secs the counts this
+ * node added since its last snapshot are merged into the table, decaying the stored and added parts to the later of their
+ * times, so several API nodes can share a client's table without overwriting each other. A node only sees other nodes'
+ * counts when it next restores. Clients removed from the config have their last changes written and their store dropped.
+ */
+@Component
+public class MemoryClusterCountFactory implements DbConfigListener, GlobalConfigUpdateListener {
+
+	private static Logger logger = Logger.getLogger(MemoryClusterCountFactory.class.getName());
+
+	private static final String ZK_CONFIG_KEY = "memory_cluster_counts";
+	// count is assigned before t so both expressions see the stored t
+	private static final String SNAPSHOT_SQL = "insert into cluster_counts (id,item_id,count,t) values (?,?,?,?) on duplicate key update "+
+			"count=count*exp(-(greatest(t,values(t))-t)/?)+values(count)*exp(-(greatest(t,values(t))-values(t))/?),t=greatest(t,values(t))";
+	private static final String RESTORE_SQL = "select id,item_id,count,t from cluster_counts";
+
+	public static class MemoryClusterCountConfig {
+		public List<String> clients = new ArrayList<>();
+		public double decay = 43200;
+		public int top_k = MemoryClusterCountStore.DEF_TOP_K;
+		public int stripes = MemoryClusterCountStore.DEF_NUM_STRIPES;
+		public int snapshot_secs = 60;
+		public int batch_size = 4000;
+		public double min_count = 0.01;
+
+		@Override
+		public String toString() {
+			return "MemoryClusterCountConfig [clients=" + clients + ", decay=" + decay + ", top_k=" + top_k + ", stripes=" + stripes
+					+ ", snapshot_secs=" + snapshot_secs + ", batch_size=" + batch_size + ", min_count=" + min_count + "]";
+		}
+	}
+
+	private ConcurrentHashMap<String,MemoryClusterCountStore> stores = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String,ScheduledFuture<?>> snapshots = new ConcurrentHashMap<>();
+	private Set<String> dbClients = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private volatile MemoryClusterCountConfig config = new MemoryClusterCountConfig();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+	@Autowired
+	public MemoryClusterCountFactory(GlobalConfigHandler globalConfigHandler, DbConfigHandler dbConfigHandler)
+	{
+		dbConfigHandler.addDbConfigListener(this);
+		globalConfigHandler.addSubscriber(ZK_CONFIG_KEY, this);
+	}
+
+	/**
+	 * @param client
+	 * @return the in memory store for the client or null if the client uses the db store
+	 */
+	public MemoryClusterCountStore get(String client)
+	{
+		return stores.get(client);
+	}
+
+	@Override
+	public void configUpdated(String configKey, String configValue) {
+		logger.info("Received config update "+configKey+"["+configValue+"]");
+		if (configValue != null && configValue.length() > 0)
+		{
+			try
+			{
+				ObjectMapper mapper = new ObjectMapper();
+				config = mapper.readValue(configValue, MemoryClusterCountConfig.class);
+				logger.info(config.toString());
+				for(MemoryClusterCountStore store : stores.values())
+				{
+					if (!config.clients.contains(store.getClient()))
+						remove(store.getClient());
+					else if (store.getAlpha() != config.decay)
+					{
+						logger.info("Changing cluster count decay for client "+store.getClient()+" to "+config.decay);
+						store.setAlpha(config.decay);
+					}
+				}
+				for(String client : config.clients)
+					if (dbClients.contains(client))
+						createAndStore(client);
+			}
+			catch (Exception e)
+			{
+				logger.error("Failed to parse memory cluster count config "+configValue,e);
+			}
+		}
+	}
+
+	@Override
+	public void dbConfigInitialised(String client) {
+		dbClients.add(client);
+		if (config.clients.contains(client))
+			createAndStore(client);
+	}
+
+	private synchronized void createAndStore(final String client)
+	{
+		final MemoryClusterCountConfig conf = config;
+		final MemoryClusterCountStore store = new MemoryClusterCountStore(client, conf.decay, conf.top_k, conf.stripes);
+		if (stores.putIfAbsent(client, store) == null)
+		{
+			logger.info("Adding memory cluster counts for client "+client);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					restore(store);
+				}
+			});
+			snapshots.put(client, executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						// batch size and min count follow config updates
+						MemoryClusterCountConfig current = config;
+						snapshot(store, current.batch_size);
+						int pruned = store.prune(current.min_count);
+						if (pruned > 0)
+							logger.info("Pruned "+pruned+" cluster counts for client "+client);
+					}
+					catch (Exception e)
+					{
+						logger.error("Failed to snapshot cluster counts for client "+client,e);
+					}
+				}
+			}, conf.snapshot_secs, conf.snapshot_secs, TimeUnit.SECONDS));
+		}
+	}
+
+	/**
+	 * Stop using the in memory store for a client, writing its last changes on the snapshot thread
+	 */
+	private synchronized void remove(final String client)
+	{
+		final MemoryClusterCountStore store = stores.remove(client);
+		if (store == null)
+			return;
+		logger.info("Removing memory cluster counts for client "+client);
+		ScheduledFuture<?> snapshot = snapshots.remove(client);
+		if (snapshot != null)
+			snapshot.cancel(false);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					snapshot(store, config.batch_size);
+				}
+				catch (Exception e)
+				{
+					logger.error("Failed to write last cluster counts for removed client "+client,e);
+				}
+			}
+		});
+	}
+
+	private void restore(MemoryClusterCountStore store)
+	{
+		long t1 = System.currentTimeMillis();
+		int rows = 0;
+		Connection connection = null;
+		Statement statement = null;
+		try
+		{
+			connection = JDBCConnectionFactory.get().getConnection(store.getClient(), true);
+			statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(Integer.MIN_VALUE); // stream results from mysql
+			ResultSet rs = statement.executeQuery(RESTORE_SQL);
+			while (rs.next())
+			{
+				store.restore(rs.getInt(1), rs.getLong(2), rs.getDouble(3), rs.getLong(4));
+				rows++;
+			}
+			rs.close();
+		}
+		catch (SQLException e)
+		{
+			logger.error("Failed to restore cluster counts for client "+store.getClient(),e);
+		}
+		finally
+		{
+			close(statement, connection);
+		}
+		logger.info("Restored "+rows+" cluster counts for client "+store.getClient()+" in "+(System.currentTimeMillis()-t1)+" msecs");
+	}
+
+	private void snapshot(final MemoryClusterCountStore store,final int batchSize) throws SQLException
+	{
+		long t1 = System.currentTimeMillis();
+		Connection connection = null;
+		PreparedStatement statement = null;
+		// counts visited are no longer dirty so remember their deltas to give back if the snapshot fails
+		final IntArrayList visitedClusters = new IntArrayList();
+		final LongArrayList visitedItems = new LongArrayList();
+		final DoubleArrayList visitedDeltas = new DoubleArrayList();
+		final LongArrayList visitedTimes = new LongArrayList();
+		final double alpha = store.getAlpha();
+		try
+		{
+			connection = JDBCConnectionFactory.get().getConnection(store.getClient());
+			connection.setAutoCommit(false);
+			final PreparedStatement countStatement = connection.prepareStatement(SNAPSHOT_SQL);
+			statement = countStatement;
+			final int[] batched = new int[1];
+			final SQLException[] failure = new SQLException[1];
+			int written = store.visitDirty(new MemoryClusterCountStore.CountVisitor() {
+				@Override
+				public void visit(int clusterId, long itemId, double delta, long t) {
+					visitedClusters.add(clusterId);
+					visitedItems.add(itemId);
+					visitedDeltas.add(delta);
+					visitedTimes.add(t);
+					if (failure[0] != null)
+						return;
+					try
+					{
+						countStatement.setInt(1, clusterId);
+						countStatement.setLong(2, itemId);
+						countStatement.setDouble(3, delta);
+						countStatement.setLong(4, t);
+						countStatement.setDouble(5, alpha);
+						countStatement.setDouble(6, alpha);
+						countStatement.addBatch();
+						if (++batched[0] >= batchSize)
+						{
+							countStatement.executeBatch();
+							batched[0] = 0;
+						}
+					}
+					catch (SQLException e)
+					{
+						failure[0] = e;
+					}
+				}
+			});
+			if (failure[0] != null)
+				throw failure[0];
+			if (batched[0] > 0)
+				countStatement.executeBatch();
+			connection.commit();
+			if (written > 0)
+				logger.info("Snapshot of "+written+" cluster counts for client "+store.getClient()+" in "+(System.currentTimeMillis()-t1)+" msecs");
+		}
+		catch (SQLException e)
+		{
+			for(int i=0;i<visitedClusters.size();i++)
+				store.markDirty(visitedClusters.getInt(i), visitedItems.getLong(i), visitedDeltas.getDouble(i), visitedTimes.getLong(i));
+			if (connection != null)
+				connection.rollback();
+			throw e;
+		}
+		finally
+		{
+			close(statement, connection);
+		}
+	}
+
+	private static void close(Statement statement,Connection connection)
+	{
+		if (statement != null)
+		{
+			try{statement.close();}
+			catch( SQLException exception )
+			{
+				logger.error("Unable to close statement",exception);
+			}
+		}
+		if (connection != null)
+		{
+			try{connection.close();}
+			catch( SQLException exception )
+			{
+				logger.error("Unable to close connection",exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.db.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Writes rows with multi-row <code>insert ... values (...),(...)</code> statements. Rows are split into statements
+ * limited both by row count and by an estimate of the statement size so a statement never exceeds the server's
+ * packet size, and by the 65535 placeholder limit of a MySQL prepared statement.
+ */
+public class MultiRowInsert<T> {
+
+	private static final int MAX_PLACEHOLDERS = 65535;
+
+	/**
+	 * Binds the values of one row
+	 */
+	public interface Row<T> {
+		/**
+		 * Set the parameters of the row starting at the given index
+		 */
+		void setParameters(PreparedStatement s,int index,T value) throws SQLException;
+
+		/**
+		 * @return approximate bytes the row adds to the statement text
+		 */
+		int estimateBytes(T value);
+	}
+
+	/**
+	 * Binds rows by position, for rows held in primitive arrays which would otherwise be boxed into a list
+	 */
+	public interface IndexedRows {
+		int size();
+
+		/**
+		 * Set the parameters of row i starting at the given index
+		 */
+		void setParameters(PreparedStatement s,int index,int i) throws SQLException;
+
+		/**
+		 * @return approximate bytes row i adds to the statement text
+		 */
+		int estimateBytes(int i);
+	}
+
+	private final String insertPrefix;
+	private final String rowValues;
+	private final String suffix;
+	private final int paramsPerRow;
+	private final int maxRows;
+	private final int maxBytes;
+	private final Row<T> row;
+	private final String fullSql;
+
+	/**
+	 * @param insertPrefix e.g. "insert into t (a,b) values "
+	 * @param rowValues the values of one row e.g. "(?,?)"
+	 * @param paramsPerRow number of placeholders in rowValues
+	 * @param maxRows max rows in a statement
+	 * @param maxBytes max estimated bytes in a statement
+	 */
+	public MultiRowInsert(String insertPrefix,String rowValues,int paramsPerRow,int maxRows,int maxBytes,Row<T> row)
+	{
+		this(insertPrefix,rowValues,"",paramsPerRow,maxRows,maxBytes,row);
+	}
+
+	/**
+	 * For inserts only run with {@link #execute(Connection, IndexedRows)}
+	 */
+	public MultiRowInsert(String insertPrefix,String rowValues,String suffix,int paramsPerRow,int maxRows,int maxBytes)
+	{
+		this(insertPrefix,rowValues,suffix,paramsPerRow,maxRows,maxBytes,null);
+	}
+
+	/**
+	 * @param suffix added after the rows e.g. " on duplicate key update c=values(c)"
+	 */
+	public MultiRowInsert(String insertPrefix,String rowValues,String suffix,int paramsPerRow,int maxRows,int maxBytes,Row<T> row)
+	{
+		this.insertPrefix = insertPrefix;
+		this.rowValues = rowValues;
+		this.suffix = suffix;
+		this.paramsPerRow = paramsPerRow;
+		this.maxRows = Math.max(1, Math.min(maxRows, MAX_PLACEHOLDERS / paramsPerRow));
+		this.maxBytes = maxBytes;
+		this.row = row;
+		this.fullSql = buildSql(this.maxRows);
+	}
+
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	String getSql(int rows)
+	{
+		return rows == maxRows ? fullSql : buildSql(rows);
+	}
+
+	private String buildSql(int rows)
+	{
+		StringBuilder sb = new StringBuilder(insertPrefix.length() + rows * (rowValues.length() + 1) + suffix.length());
+		sb.append(insertPrefix);
+		for(int i=0;i<rows;i++)
+		{
+			if (i > 0)
+				sb.append(',');
+			sb.append(rowValues);
+		}
+		sb.append(suffix);
+		return sb.toString();
+	}
+
+	private IndexedRows rows(final List<T> values)
+	{
+		return new IndexedRows() {
+			@Override
+			public int size() {
+				return values.size();
+			}
+			@Override
+			public void setParameters(PreparedStatement s, int index, int i) throws SQLException {
+				row.setParameters(s, index, values.get(i));
+			}
+			@Override
+			public int estimateBytes(int i) {
+				return row.estimateBytes(values.get(i));
+			}
+		};
+	}
+
+	int chunkEnd(List<T> values,int start)
+	{
+		return chunkEnd(rows(values), start);
+	}
+
+	/**
+	 * @return the end, exclusive, of the rows from start that go in the next statement
+	 */
+	int chunkEnd(IndexedRows values,int start)
+	{
+		int bytes = insertPrefix.length() + suffix.length();
+		int end = start;
+		while (end < values.size() && end - start < maxRows)
+		{
+			int rowBytes = rowValues.length() + 1 + values.estimateBytes(end);
+			if (end > start && bytes + rowBytes > maxBytes)
+				break;
+			bytes += rowBytes;
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Insert all the values. The caller owns the transaction.
+	 * @return number of statements run
+	 */
+	public int execute(Connection connection,List<T> values) throws SQLException
+	{
+		return execute(connection, rows(values));
+	}
+
+	/**
+	 * Insert all the rows. The caller owns the transaction.
+	 * @return number of statements run
+	 */
+	public int execute(Connection connection,IndexedRows values) throws SQLException
+	{
+		int statements = 0;
+		int start = 0;
+		while (start < values.size())
+		{
+			int end = chunkEnd(values, start);
+			try (PreparedStatement s = connection.prepareStatement(getSql(end - start)))
+			{
+				int index = 1;
+				for(int i=start;i<end;i++)
+				{
+					values.setParameters(s, index, i);
+					index += paramsPerRow;
+				}
+				s.executeUpdate();
+			}
+			statements++;
+			start = end;
+		}
+		return statements;
+	}
+}
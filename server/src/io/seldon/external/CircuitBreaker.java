@@ -0,0 +1,98 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+/**
+ * Per endpoint circuit breaker. After a run of consecutive failures the circuit opens and calls fail fast until the
+ * open period has passed, then a single trial call is let through and its outcome closes or reopens the circuit.
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int failureThreshold;
+	private final long openMillis;
+
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long openedAt = 0;
+
+	public CircuitBreaker(int failureThreshold,long openMillis)
+	{
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @return true if a call may be made, a true from a half open circuit makes the caller the trial call
+	 */
+	public synchronized boolean allowRequest()
+	{
+		switch(state)
+		{
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - openedAt >= openMillis)
+			{
+				state = State.HALF_OPEN;
+				return true;
+			}
+			return false;
+		default:
+			return false; // trial call in progress
+		}
+	}
+
+	public synchronized void recordSuccess()
+	{
+		failures = 0;
+		state = State.CLOSED;
+	}
+
+	public synchronized void recordFailure()
+	{
+		failures++;
+		if (state == State.HALF_OPEN || (failureThreshold > 0 && failures >= failureThreshold))
+		{
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Record a call that was allowed but never made, a half open circuit stays ready for another trial call.
+	 */
+	public synchronized void recordNotSent()
+	{
+		if (state == State.HALF_OPEN)
+			state = State.OPEN;
+	}
+
+	public synchronized State getState()
+	{
+		return state;
+	}
+}
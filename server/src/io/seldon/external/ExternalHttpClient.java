@@ -0,0 +1,419 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Shared HTTP client for calls to external algorithms. Each call runs on a bounded pool of I/O threads and the
+ * calling request thread waits at most the call's timeout, so a slow external model costs its callers a bounded
+ * delay rather than their threads. On top of that a call can be hedged with a second request once it has taken longer
+ * than a percentile of the endpoint's recent latencies, and each endpoint has a {@link CircuitBreaker} so a failing
+ * model is skipped quickly. Connections are pooled and kept alive and responses are always consumed so connections
+ * return to the pool.
+ */
+@Component
+public class ExternalHttpClient {
+
+	private static Logger logger = Logger.getLogger(ExternalHttpClient.class.getName());
+
+	private static final int LATENCY_SAMPLES = 256;
+	private static final int MIN_HEDGE_SAMPLES = 20;
+	private static final long MIN_HEDGE_DELAY_MILLIS = 1;
+
+	private final PoolingHttpClientConnectionManager cm;
+	private final CloseableHttpClient httpClient;
+	private final ThreadPoolExecutor executor;
+	private final int connectTimeoutMillis;
+	private final int failureThreshold;
+	private final long openMillis;
+	private final ConcurrentMap<String,Endpoint> endpoints = new ConcurrentHashMap<>();
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final AtomicLong rejected = new AtomicLong(); // calls refused because every I/O thread was busy
+
+	@Autowired
+	public ExternalHttpClient(@Value("${io.seldon.external.http.maxconnections:150}") int maxConnections,
+			@Value("${io.seldon.external.http.threads:300}") int maxThreads,
+			@Value("${io.seldon.external.http.connect.timeout.ms:200}") int connectTimeoutMillis,
+			@Value("${io.seldon.external.http.breaker.failures:5}") int failureThreshold,
+			@Value("${io.seldon.external.http.breaker.open.ms:5000}") long openMillis)
+	{
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		cm = new PoolingHttpClientConnectionManager();
+		setMaxConnections(maxConnections);
+		httpClient = HttpClients.custom()
+				.setConnectionManager(cm)
+				.build();
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "external-http-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		logger.info("External http client with "+maxConnections+" max connections, "+maxThreads+" threads, breaker opening after "+failureThreshold+" failures for "+openMillis+"ms");
+	}
+
+	public void setMaxConnections(int maxConnections)
+	{
+		cm.setMaxTotal(maxConnections);
+		cm.setDefaultMaxPerRoute(maxConnections);
+	}
+
+	/**
+	 * A call to an external endpoint. Parameters go in the query string of a GET or as a gzipped JSON object in the
+	 * body of a POST.
+	 */
+	public static class Request {
+		private final URI uri;
+		private final Map<String,String> params = new LinkedHashMap<>();
+		private int timeoutMillis = 1000;
+		private double hedgePercentile = 0;
+		private boolean post = false;
+
+		public Request(URI uri)
+		{
+			this.uri = uri;
+		}
+
+		public Request param(String name,String value)
+		{
+			params.put(name, value);
+			return this;
+		}
+
+		/**
+		 * @param timeoutMillis total time the caller will wait including any hedged request, ignored if not positive
+		 */
+		public Request timeout(int timeoutMillis)
+		{
+			if (timeoutMillis > 0)
+				this.timeoutMillis = timeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param percentile send a second request once the first has taken longer than this percentile of recent
+		 * latencies, 0 for no hedging
+		 */
+		public Request hedgeAfter(double percentile)
+		{
+			this.hedgePercentile = percentile;
+			return this;
+		}
+
+		public Request post(boolean post)
+		{
+			this.post = post;
+			return this;
+		}
+	}
+
+	/**
+	 * Make the call and parse a 200 response as JSON.
+	 * @throws IOException if the circuit is open, the call fails or times out or the response is not a 200
+	 */
+	public <T> T execute(Request request,Class<T> resultClass) throws IOException
+	{
+		Endpoint endpoint = getEndpoint(request.uri);
+		if (!endpoint.breaker.allowRequest())
+			throw new IOException("Circuit open for "+endpoint.name);
+		boolean ok = false;
+		boolean sent = false;
+		Map<Future<T>,Attempt<T>> attempts = new HashMap<>(4);
+		try
+		{
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(request.timeoutMillis);
+			long hedgeAt = deadline;
+			if (request.hedgePercentile > 0)
+			{
+				long hedgeMillis = endpoint.percentile(request.hedgePercentile);
+				if (hedgeMillis >= 0)
+					hedgeAt = Math.min(deadline, start + TimeUnit.MILLISECONDS.toNanos(Math.max(hedgeMillis, MIN_HEDGE_DELAY_MILLIS)));
+			}
+			CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+			try
+			{
+				submit(completion, attempts, request, resultClass);
+			}
+			catch (RejectedExecutionException e)
+			{
+				rejected.incrementAndGet();
+				throw new IOException("Too many external calls in progress to call "+endpoint.name);
+			}
+			sent = true;
+			IOException failure = null;
+			int pending = 1;
+			while (pending > 0)
+			{
+				long waitUntil = attempts.size() == 1 ? hedgeAt : deadline;
+				Future<T> done = completion.poll(waitUntil - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (done == null)
+				{
+					if (attempts.size() > 1 || System.nanoTime() - deadline >= 0)
+						break;
+					try
+					{
+						submit(completion, attempts, request, resultClass);
+						pending++;
+						if (logger.isDebugEnabled())
+							logger.debug("Hedging call to "+endpoint.name);
+					}
+					catch (RejectedExecutionException e)
+					{
+						hedgeAt = deadline;
+					}
+					continue;
+				}
+				pending--;
+				try
+				{
+					T res = done.get();
+					endpoint.addLatency(attempts.get(done).latencyMillis);
+					ok = true;
+					return res;
+				}
+				catch (ExecutionException e)
+				{
+					failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+			}
+			if (failure != null)
+				throw failure;
+			throw new IOException("Timed out after "+request.timeoutMillis+"ms calling "+endpoint.name);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted calling "+endpoint.name);
+		}
+		finally
+		{
+			// a call refused by our own pool says nothing about the endpoint so it only releases any trial call
+			if (ok)
+				endpoint.breaker.recordSuccess();
+			else if (sent)
+				endpoint.breaker.recordFailure();
+			else
+				endpoint.breaker.recordNotSent();
+			for(Map.Entry<Future<T>,Attempt<T>> e : attempts.entrySet())
+			{
+				if (!e.getKey().isDone())
+				{
+					e.getValue().request.abort();
+					e.getKey().cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of calls refused because all I/O threads were busy, these are not counted as endpoint failures
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	CircuitBreaker.State getCircuitState(URI uri)
+	{
+		return getEndpoint(uri).breaker.getState();
+	}
+
+	private <T> void submit(CompletionService<T> completion,Map<Future<T>,Attempt<T>> attempts,Request request,Class<T> resultClass) throws IOException
+	{
+		Attempt<T> attempt = new Attempt<>(createRequest(request), resultClass);
+		attempts.put(completion.submit(attempt), attempt);
+	}
+
+	private HttpRequestBase createRequest(Request request) throws IOException
+	{
+		HttpRequestBase httpRequest;
+		if (request.post)
+		{
+			HttpPost post = new HttpPost(request.uri);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (GZIPOutputStream gzip = new GZIPOutputStream(bytes))
+			{
+				mapper.writeValue(gzip, request.params);
+			}
+			ByteArrayEntity entity = new ByteArrayEntity(bytes.toByteArray(), ContentType.APPLICATION_JSON);
+			entity.setContentEncoding("gzip");
+			post.setEntity(entity);
+			httpRequest = post;
+		}
+		else
+		{
+			try
+			{
+				URIBuilder builder = new URIBuilder(request.uri);
+				for(Map.Entry<String,String> e : request.params.entrySet())
+					builder.setParameter(e.getKey(), e.getValue());
+				httpRequest = new HttpGet(builder.build());
+			}
+			catch (URISyntaxException e)
+			{
+				throw new IOException("Couldn't create URI for "+request.uri, e);
+			}
+		}
+		httpRequest.setConfig(RequestConfig.custom()
+				.setConnectTimeout(Math.min(connectTimeoutMillis, request.timeoutMillis))
+				.setConnectionRequestTimeout(request.timeoutMillis)
+				.setSocketTimeout(request.timeoutMillis)
+				.build());
+		return httpRequest;
+	}
+
+	private Endpoint getEndpoint(URI uri)
+	{
+		String name = uri.getScheme() + "://" + uri.getAuthority() + uri.getPath();
+		Endpoint endpoint = endpoints.get(name);
+		if (endpoint == null)
+		{
+			Endpoint created = new Endpoint(name, new CircuitBreaker(failureThreshold, openMillis));
+			endpoint = endpoints.putIfAbsent(name, created);
+			if (endpoint == null)
+				endpoint = created;
+		}
+		return endpoint;
+	}
+
+	private class Attempt<T> implements Callable<T>, ResponseHandler<T> {
+		final HttpRequestBase request;
+		final Class<T> resultClass;
+		volatile long latencyMillis;
+
+		Attempt(HttpRequestBase request,Class<T> resultClass)
+		{
+			this.request = request;
+			this.resultClass = resultClass;
+		}
+
+		@Override
+		public T call() throws IOException
+		{
+			long start = System.currentTimeMillis();
+			if (logger.isDebugEnabled())
+				logger.debug("Requesting " + request.getURI());
+			T res = httpClient.execute(request, this);
+			latencyMillis = System.currentTimeMillis() - start;
+			return res;
+		}
+
+		@Override
+		public T handleResponse(HttpResponse response) throws IOException
+		{
+			int code = response.getStatusLine().getStatusCode();
+			if (code != 200)
+				throw new IOException("Bad http return code " + code + " from " + request.getURI().getAuthority());
+			return mapper.reader(resultClass).readValue(response.getEntity().getContent());
+		}
+	}
+
+	/**
+	 * Circuit breaker and a ring of recent successful latencies for one endpoint.
+	 */
+	private static class Endpoint {
+		final String name;
+		final CircuitBreaker breaker;
+		private final long[] latencies = new long[LATENCY_SAMPLES];
+		private long count = 0;
+
+		Endpoint(String name,CircuitBreaker breaker)
+		{
+			this.name = name;
+			this.breaker = breaker;
+		}
+
+		synchronized void addLatency(long millis)
+		{
+			latencies[(int) (count++ % LATENCY_SAMPLES)] = millis;
+		}
+
+		/**
+		 * @return the latency percentile or -1 if there are too few samples
+		 */
+		long percentile(double percentile)
+		{
+			long[] sorted;
+			synchronized (this)
+			{
+				if (count < MIN_HEDGE_SAMPLES)
+					return -1;
+				sorted = Arrays.copyOf(latencies, (int) Math.min(count, LATENCY_SAMPLES));
+			}
+			Arrays.sort(sorted);
+			int i = (int) Math.ceil(Math.min(percentile, 100) / 100.0 * sorted.length) - 1;
+			return sorted[Math.max(i, 0)];
+		}
+	}
+}
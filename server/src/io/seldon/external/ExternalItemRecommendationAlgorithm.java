@@ -23,32 +23,22 @@
 
 package io.seldon.external;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.RecommendationContext;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-
 /**
  * An Item Recommendation Algorithm that calls out to an HTTP endpoint for its recs.
  *
@@ -61,17 +51,14 @@ public class ExternalItemRecommendationAlgorithm implements ItemRecommendationAl
     private static Logger logger = Logger.getLogger(ExternalItemRecommendationAlgorithm.class.getName());
     private static final String URL_PROPERTY_NAME="io.seldon.algorithm.external.url";
     private static final String ALG_NAME_PROPERTY_NAME ="io.seldon.algorithm.external.name";
-    private final PoolingHttpClientConnectionManager cm;
-    private final CloseableHttpClient httpClient;
-    ObjectMapper mapper = new ObjectMapper();
+    private static final AlgorithmOption TIMEOUT_OPTION = AlgorithmOption.named("io.seldon.algorithm.external.timeout.ms");
+    private static final AlgorithmOption HEDGE_OPTION = AlgorithmOption.named("io.seldon.algorithm.external.hedge.percentile");
+    private static final AlgorithmOption POST_OPTION = AlgorithmOption.named("io.seldon.algorithm.external.post");
+    private final ExternalHttpClient httpClient;
 
-    public ExternalItemRecommendationAlgorithm(){
-        cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(100);
-        cm.setDefaultMaxPerRoute(20);
-        httpClient = HttpClients.custom()
-                .setConnectionManager(cm)
-                .build();
+    @Autowired
+    public ExternalItemRecommendationAlgorithm(ExternalHttpClient httpClient){
+        this.httpClient = httpClient;
     }
 
 
@@ -79,53 +66,37 @@ public class ExternalItemRecommendationAlgorithm implements ItemRecommendationAl
     public ItemRecommendationResultSet recommend(String client, Long user, Set<Integer> dimensions, int maxRecsCount,
                                                  RecommendationContext ctxt, List<Long> recentItemInteractions) {
         long timeNow = System.currentTimeMillis();
-        String recommenderName = ctxt.getOptsHolder().getStringOption(ALG_NAME_PROPERTY_NAME);
-        String baseUrl = ctxt.getOptsHolder().getStringOption(URL_PROPERTY_NAME);
+        RecommendationContext.OptionsHolder options = ctxt.getOptsHolder();
+        String recommenderName = options.getStringOption(ALG_NAME_PROPERTY_NAME);
+        String baseUrl = options.getStringOption(URL_PROPERTY_NAME);
         if (ctxt.getInclusionKeys().isEmpty()){
             logger.warn("Cannot get external recommendations are no includers were used. Returning 0 results");
             return new ItemRecommendationResultSet(recommenderName);
         }
-        URI uri = URI.create(baseUrl);
-        try {
-            URIBuilder builder = new URIBuilder().setScheme("http")
-                                                    .setHost(uri.getHost())
-                                                    .setPort(uri.getPort())
-                                                    .setPath(uri.getPath())
-                                                    .setParameter("client", client)
-                                                    .setParameter("user_id", user.toString())
-                                                    .setParameter("recent_interactions",StringUtils.join(recentItemInteractions,","))
-                                                    .setParameter("dimensions", StringUtils.join(dimensions, ","))
-                                                    .setParameter("exclusion_items", StringUtils.join(ctxt.getExclusionItems(),","))
-                                                    .setParameter("data_key", StringUtils.join(ctxt.getInclusionKeys(),","))
-                                                    .setParameter("limit", String.valueOf(maxRecsCount));
-            if (ctxt.getCurrentItem() != null)
-                builder.setParameter("item_id", ctxt.getCurrentItem().toString());
-            uri = builder.build();
-        } catch (URISyntaxException e) {
-            logger.error("Couldn't create URI for external recommender with name " + recommenderName, e);
-            return new ItemRecommendationResultSet(recommenderName);
-        }
-        HttpContext context = HttpClientContext.create();
-        HttpGet httpGet = new HttpGet(uri);
+        ExternalHttpClient.Request request = new ExternalHttpClient.Request(URI.create(baseUrl))
+                                                .param("client", client)
+                                                .param("user_id", user.toString())
+                                                .param("recent_interactions",StringUtils.join(recentItemInteractions,","))
+                                                .param("dimensions", StringUtils.join(dimensions, ","))
+                                                .param("exclusion_items", StringUtils.join(ctxt.getExclusionItems(),","))
+                                                .param("data_key", StringUtils.join(ctxt.getInclusionKeys(),","))
+                                                .param("limit", String.valueOf(maxRecsCount))
+                                                .timeout(options.getInteger(TIMEOUT_OPTION))
+                                                .hedgeAfter(options.getDouble(HEDGE_OPTION))
+                                                .post(options.getBoolean(POST_OPTION));
+        if (ctxt.getCurrentItem() != null)
+            request.param("item_id", ctxt.getCurrentItem().toString());
         try  {
-        	if (logger.isDebugEnabled())
-        		logger.debug("Requesting " + httpGet.getURI().toString());
-            CloseableHttpResponse resp = httpClient.execute(httpGet, context);
-            if(resp.getStatusLine().getStatusCode() == 200) {
-                ObjectReader reader = mapper.reader(AlgsResult.class);
-                AlgsResult recs = reader.readValue(resp.getEntity().getContent());
-                List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>(recs.recommended.size());
-                for (AlgResult rec : recs.recommended) {
-                    results.add(new ItemRecommendationResultSet.ItemRecommendationResult(rec.item, rec.score));
-                }
-                if (logger.isDebugEnabled())
-                	logger.debug("External recommender took "+(System.currentTimeMillis()-timeNow) + "ms");
-                return new ItemRecommendationResultSet(results,recommenderName);
-            } else {
-                logger.error("Couldn't retrieve recommendations from external recommender -- bad http return code: " + resp.getStatusLine().getStatusCode());
+            AlgsResult recs = httpClient.execute(request, AlgsResult.class);
+            List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>(recs.recommended.size());
+            for (AlgResult rec : recs.recommended) {
+                results.add(new ItemRecommendationResultSet.ItemRecommendationResult(rec.item, rec.score));
             }
+            if (logger.isDebugEnabled())
+            	logger.debug("External recommender took "+(System.currentTimeMillis()-timeNow) + "ms");
+            return new ItemRecommendationResultSet(results,recommenderName);
         } catch (IOException e) {
-            logger.error("Couldn't retrieve recommendations from external recommender - ", e);
+            logger.error("Couldn't retrieve recommendations from external recommender " + recommenderName + " - " + e.getMessage());
         }
         return new ItemRecommendationResultSet(recommenderName);
     }
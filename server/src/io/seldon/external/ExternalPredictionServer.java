@@ -24,29 +24,20 @@ package io.seldon.external;
 import io.seldon.api.APIException;
 import io.seldon.api.state.GlobalConfigHandler;
 import io.seldon.api.state.GlobalConfigUpdateListener;
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
 import io.seldon.prediction.PredictionAlgorithm;
 import io.seldon.prediction.PredictionsResult;
 
 import java.io.IOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonNode;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
 
 @Component
 public class ExternalPredictionServer implements GlobalConfigUpdateListener, PredictionAlgorithm  {
@@ -54,9 +45,10 @@ public class ExternalPredictionServer implements GlobalConfigUpdateListener, Pre
     private static final String URL_PROPERTY_NAME="io.seldon.algorithm.external.url";
     private static final String ALG_NAME_PROPERTY_NAME ="io.seldon.algorithm.external.name";
     private static final String ZK_CONFIG_TEMP = "prediction_server"; //TEMPORARY FOT TESTING
-    private PoolingHttpClientConnectionManager cm;
-    private CloseableHttpClient httpClient;
-    ObjectMapper mapper = new ObjectMapper();
+    private static final AlgorithmOption TIMEOUT_OPTION = AlgorithmOption.named("io.seldon.algorithm.external.timeout.ms");
+    private static final AlgorithmOption HEDGE_OPTION = AlgorithmOption.named("io.seldon.algorithm.external.hedge.percentile");
+    private static final AlgorithmOption POST_OPTION = AlgorithmOption.named("io.seldon.algorithm.external.post");
+    private final ExternalHttpClient httpClient;
     
     
     public static class PredictionServerConfig {
@@ -64,13 +56,8 @@ public class ExternalPredictionServer implements GlobalConfigUpdateListener, Pre
     }
     
     @Autowired
-    public ExternalPredictionServer(GlobalConfigHandler globalConfigHandler){
-        cm = new PoolingHttpClientConnectionManager();
-        cm.setMaxTotal(150);
-        cm.setDefaultMaxPerRoute(150);
-        httpClient = HttpClients.custom()
-                .setConnectionManager(cm)
-                .build();
+    public ExternalPredictionServer(GlobalConfigHandler globalConfigHandler,ExternalHttpClient httpClient){
+        this.httpClient = httpClient;
         globalConfigHandler.addSubscriber(ZK_CONFIG_TEMP, this);
     }
     
@@ -82,13 +69,8 @@ public class ExternalPredictionServer implements GlobalConfigUpdateListener, Pre
 			ObjectMapper mapper = new ObjectMapper();
             try {
             	PredictionServerConfig config = mapper.readValue(configValue, PredictionServerConfig.class);
-            	cm = new PoolingHttpClientConnectionManager();
-                cm.setMaxTotal(config.maxConnections);
-                cm.setDefaultMaxPerRoute(config.maxConnections);
-                httpClient = HttpClients.custom()
-                        .setConnectionManager(cm)
-                        .build();
-                logger.info("Updated httpclient to use "+config.maxConnections+" max connections");
+            	httpClient.setMaxConnections(config.maxConnections);
+                logger.info("Updated external httpclient to use "+config.maxConnections+" max connections");
             } catch (Exception e) {
                 throw new RuntimeException(String.format("* Error * parsing statsd configValue[%s]", configValue),e);
             }
@@ -100,44 +82,22 @@ public class ExternalPredictionServer implements GlobalConfigUpdateListener, Pre
     public PredictionsResult predict(String client, JsonNode jsonNode, OptionsHolder options) 
     {
     		long timeNow = System.currentTimeMillis();
-    		URI uri = URI.create(options.getStringOption(URL_PROPERTY_NAME));
-    		try {
-    			URIBuilder builder = new URIBuilder().setScheme("http")
-    					.setHost(uri.getHost())
-    					.setPort(uri.getPort())
-    					.setPath(uri.getPath())
-    					.setParameter("client", client)
-    					.setParameter("json", jsonNode.toString());
-
-    			uri = builder.build();
-    		} catch (URISyntaxException e) 
-    		{
-    			throw new APIException(APIException.GENERIC_ERROR);
-    		}
-    		HttpContext context = HttpClientContext.create();
-    		HttpGet httpGet = new HttpGet(uri);
+    		ExternalHttpClient.Request request = new ExternalHttpClient.Request(URI.create(options.getStringOption(URL_PROPERTY_NAME)))
+    				.param("client", client)
+    				.param("json", jsonNode.toString())
+    				.timeout(options.getInteger(TIMEOUT_OPTION))
+    				.hedgeAfter(options.getDouble(HEDGE_OPTION))
+    				.post(options.getBoolean(POST_OPTION));
     		try  
     		{
+    			PredictionsResult res = httpClient.execute(request, PredictionsResult.class);
     			if (logger.isDebugEnabled())
-    				logger.debug("Requesting " + httpGet.getURI().toString());
-    			CloseableHttpResponse resp = httpClient.execute(httpGet, context);
-    			if(resp.getStatusLine().getStatusCode() == 200) 
-    			{
-    				ObjectReader reader = mapper.reader(PredictionsResult.class);
-    				PredictionsResult res = reader.readValue(resp.getEntity().getContent());
-    				if (logger.isDebugEnabled())
-    					logger.debug("External prediction server took "+(System.currentTimeMillis()-timeNow) + "ms");
-    				return res;
-    			} 
-    			else 
-    			{
-    				logger.error("Couldn't retrieve prediction from external prediction server -- bad http return code: " + resp.getStatusLine().getStatusCode());
-    				throw new APIException(APIException.GENERIC_ERROR);
-    			}
+    				logger.debug("External prediction server took "+(System.currentTimeMillis()-timeNow) + "ms");
+    			return res;
     		} 
     		catch (IOException e) 
     		{
-    			logger.error("Couldn't retrieve prediction from external prediction server - ", e);
+    			logger.error("Couldn't retrieve prediction from external prediction server - " + e.getMessage());
     			throw new APIException(APIException.GENERIC_ERROR);
     		}
 
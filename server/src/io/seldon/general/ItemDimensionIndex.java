@@ -0,0 +1,252 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.general;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * Compressed bitmaps of the internal item ids in each dimension, so dimension checks on candidate items are bitmap
+ * lookups rather than db queries or memcache gets. Item ids outside the int range are not indexed and callers must
+ * check {@link #isIndexed(long)} and fall back for them.
+ */
+public class ItemDimensionIndex {
+
+	private final Map<Integer,RoaringBitmap> dimensions;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private ItemDimensionIndex(Map<Integer,RoaringBitmap> dimensions)
+	{
+		this.dimensions = dimensions;
+	}
+
+	public static boolean isIndexed(long itemId)
+	{
+		return itemId >= 0 && itemId <= Integer.MAX_VALUE;
+	}
+
+	public int getNumDimensions()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return dimensions.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param itemId an indexed item id
+	 * @param dims
+	 * @return true if the item is in at least one of the dimensions
+	 */
+	public boolean inAnyDimension(long itemId,Set<Integer> dims)
+	{
+		lock.readLock().lock();
+		try
+		{
+			for (Integer dim : dims)
+			{
+				RoaringBitmap items = dimensions.get(dim);
+				if (items != null && items.contains((int) itemId))
+					return true;
+			}
+			return false;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param itemId an indexed item id
+	 * @return the dimensions of the item in increasing order
+	 */
+	public List<Integer> getDimensions(long itemId)
+	{
+		List<Integer> res = new ArrayList<>();
+		lock.readLock().lock();
+		try
+		{
+			for (Map.Entry<Integer,RoaringBitmap> e : dimensions.entrySet())
+				if (e.getValue().contains((int) itemId))
+					res.add(e.getKey());
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		Collections.sort(res);
+		return res;
+	}
+
+	/**
+	 * @param items candidate items in order
+	 * @param dims
+	 * @return the candidates in at least one of the dimensions, in the same order. Items which are not indexed are kept.
+	 */
+	public List<Long> filter(Collection<Long> items,Set<Integer> dims)
+	{
+		List<Long> res = new ArrayList<>(items.size());
+		lock.readLock().lock();
+		try
+		{
+			RoaringBitmap[] bitmaps = getBitmaps(dims);
+			for (Long item : items)
+			{
+				if (!isIndexed(item))
+					res.add(item);
+				else
+				{
+					for (RoaringBitmap bitmap : bitmaps)
+					{
+						if (bitmap.contains(item.intValue()))
+						{
+							res.add(item);
+							break;
+						}
+					}
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * @param dims
+	 * @param limit
+	 * @return the highest, so most recently added, item ids in any of the dimensions in decreasing order
+	 */
+	public List<Long> getLatestItems(Set<Integer> dims,int limit)
+	{
+		RoaringBitmap union = new RoaringBitmap();
+		lock.readLock().lock();
+		try
+		{
+			for (RoaringBitmap bitmap : getBitmaps(dims))
+				union.or(bitmap);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		int size = union.getCardinality();
+		List<Long> res = new ArrayList<>(Math.min(size, limit));
+		for (int i=size-1;i>=0 && res.size()<limit;i--)
+			res.add((long) union.select(i));
+		return res;
+	}
+
+	private RoaringBitmap[] getBitmaps(Set<Integer> dims)
+	{
+		List<RoaringBitmap> res = new ArrayList<>(dims.size());
+		for (Integer dim : dims)
+		{
+			RoaringBitmap bitmap = dimensions.get(dim);
+			if (bitmap != null)
+				res.add(bitmap);
+		}
+		return res.toArray(new RoaringBitmap[res.size()]);
+	}
+
+	/**
+	 * Replace the dimensions of an item.
+	 * @param itemId
+	 * @param dims the item's new dimensions
+	 */
+	public void setDimensions(long itemId,Collection<Integer> dims)
+	{
+		if (!isIndexed(itemId))
+			return;
+		int id = (int) itemId;
+		lock.writeLock().lock();
+		try
+		{
+			for (Map.Entry<Integer,RoaringBitmap> e : dimensions.entrySet())
+				if (!dims.contains(e.getKey()))
+					e.getValue().remove(id);
+			for (Integer dim : dims)
+			{
+				RoaringBitmap bitmap = dimensions.get(dim);
+				if (bitmap == null)
+				{
+					bitmap = new RoaringBitmap();
+					dimensions.put(dim, bitmap);
+				}
+				bitmap.add(id);
+			}
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Collects the items of each dimension and builds the index in one go.
+	 */
+	public static class Builder {
+		private final Map<Integer,RoaringBitmap> dimensions = new HashMap<>();
+
+		public Builder add(int dimension,long itemId)
+		{
+			if (isIndexed(itemId))
+			{
+				RoaringBitmap bitmap = dimensions.get(dimension);
+				if (bitmap == null)
+				{
+					bitmap = new RoaringBitmap();
+					dimensions.put(dimension, bitmap);
+				}
+				bitmap.add((int) itemId);
+			}
+			return this;
+		}
+
+		public ItemDimensionIndex build()
+		{
+			for (RoaringBitmap bitmap : dimensions.values())
+				bitmap.trim();
+			return new ItemDimensionIndex(dimensions);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.general;
+
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per client {@link ItemDimensionIndex}es built from item_map_enum and dimension, keeping only the dimensions of each
+ * item's type as the db queries do. An index is built in the background
+ * the first time it is asked for and then rebuilt every refresh period to pick up items written directly to the db.
+ * Items whose attributes are written through the API are updated in the index straight away, and in an index being
+ * rebuilt once it is published.
+ */
+@Component
+public class ItemDimensionIndexFactory {
+
+	private static Logger logger = Logger.getLogger(ItemDimensionIndexFactory.class.getName());
+
+	private static final String DIMENSIONS_SQL = "select d.dim_id,e.item_id from items i natural join item_map_enum e inner join dimension d on e.attr_id=d.attr_id and e.value_id=d.value_id and i.type=d.item_type";
+
+	private final ConcurrentMap<String,ItemDimensionIndex> indexes = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String,Boolean> building = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String,PendingUpdates> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final int refreshSecs;
+
+	/**
+	 * Item updates seen while an index is rebuilt. Once closed the rebuilt index is published and updates go to it.
+	 */
+	static class PendingUpdates {
+		final List<Long> itemIds = new ArrayList<>(); // guarded by this
+		final List<Collection<Integer>> dimensions = new ArrayList<>(); // guarded by this
+		boolean closed; // guarded by this
+
+		synchronized boolean add(long itemId,Collection<Integer> dims)
+		{
+			if (closed)
+				return false;
+			itemIds.add(itemId);
+			dimensions.add(dims);
+			return true;
+		}
+	}
+
+	@Autowired
+	public ItemDimensionIndexFactory(@Value("${io.seldon.dimensions.index.refreshsecs:1800}") int refreshSecs)
+	{
+		this.refreshSecs = refreshSecs;
+	}
+
+	/**
+	 * @param client
+	 * @return the index or null if it is still being built
+	 */
+	public ItemDimensionIndex get(final String client)
+	{
+		ItemDimensionIndex index = indexes.get(client);
+		if (index == null && building.putIfAbsent(client, Boolean.TRUE) == null)
+		{
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					rebuild(client);
+				}
+			});
+			if (refreshSecs > 0)
+				executor.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						rebuild(client);
+					}
+				}, refreshSecs, refreshSecs, TimeUnit.SECONDS);
+		}
+		return index;
+	}
+
+	/**
+	 * @param client
+	 * @return the index if it has been built, without starting a build
+	 */
+	public ItemDimensionIndex getIfBuilt(String client)
+	{
+		return indexes.get(client);
+	}
+
+	/**
+	 * @param client
+	 * @return true if the client has an index built or being built that needs to hear of item updates
+	 */
+	public boolean isIndexing(String client)
+	{
+		return indexes.containsKey(client) || pending.containsKey(client);
+	}
+
+	/**
+	 * Apply the current dimensions of an added or updated item to the client's index, or to the index being rebuilt
+	 * once it is published.
+	 * @param client
+	 * @param itemId
+	 * @param dims all the item's dimensions
+	 */
+	public void itemUpdated(String client,long itemId,Collection<Integer> dims)
+	{
+		PendingUpdates updates = pending.get(client);
+		if (updates != null)
+			updates.add(itemId, dims);
+		ItemDimensionIndex index = indexes.get(client);
+		if (index != null)
+			index.setDimensions(itemId, dims);
+	}
+
+	private void rebuild(String client)
+	{
+		long t1 = System.currentTimeMillis();
+		int rows = 0;
+		PendingUpdates updates = track(client);
+		try (Connection connection = JDBCConnectionFactory.get().getConnection(client, true);
+			 Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+		{
+			statement.setFetchSize(Integer.MIN_VALUE); // stream results from mysql
+			ItemDimensionIndex.Builder builder = new ItemDimensionIndex.Builder();
+			try (ResultSet rs = statement.executeQuery(DIMENSIONS_SQL))
+			{
+				while (rs.next())
+				{
+					builder.add(rs.getInt(1), rs.getLong(2));
+					rows++;
+				}
+			}
+			ItemDimensionIndex index = publish(client, builder.build(), updates);
+			logger.info("Built dimension index for client "+client+" from "+rows+" rows with "+index.getNumDimensions()+" dimensions in "+(System.currentTimeMillis()-t1)+" msecs");
+		}
+		catch (SQLException e)
+		{
+			logger.error("Failed to build dimension index for client "+client,e);
+		}
+		finally
+		{
+			pending.remove(client, updates);
+		}
+	}
+
+	/**
+	 * Start recording item updates for an index about to be rebuilt
+	 */
+	PendingUpdates track(String client)
+	{
+		PendingUpdates updates = new PendingUpdates();
+		pending.put(client, updates);
+		return updates;
+	}
+
+	/**
+	 * Apply the updates seen during the rebuild to the new index and make it live. Updates arriving after this see the
+	 * pending list closed and are applied to the live index instead.
+	 */
+	ItemDimensionIndex publish(String client,ItemDimensionIndex index,PendingUpdates updates)
+	{
+		synchronized (updates)
+		{
+			for (int i=0;i<updates.itemIds.size();i++)
+				index.setDimensions(updates.itemIds.get(i), updates.dimensions.get(i));
+			indexes.put(client, index);
+			updates.closed = true;
+		}
+		pending.remove(client, updates);
+		return index;
+	}
+}
@@ -36,6 +36,10 @@ public abstract class ItemPeer {
 	
 	public abstract Item getItem(long itemId);
 	public abstract Item getItem(String itemId);
+	/**
+	 * @return internal ids of the client item ids that exist
+	 */
+	public abstract Map<String,Long> getInternalItemIds(Collection<String> clientItemIds);
 	
 	public abstract Collection<Item> getAlphabeticItems(int limit,int dimension,ConsumerBean cb);
 	public abstract Collection<Item> getItems(int limit,int dimension,ConsumerBean cb);
@@ -52,6 +56,7 @@ public abstract class ItemPeer {
 	public abstract double getItemAvgRating(long itemId, int dimension);
 	public abstract Collection<Dimension> getDimensions();
 	public abstract Collection<Integer> getItemDimensions(long id);
+	public abstract Collection<Integer> getItemDimensions(long id,int itemType);
 
     public abstract Item saveOrUpdate(final Item item, ConsumerBean consumerBean);
 
@@ -23,6 +23,7 @@
 
 package io.seldon.general;
 
+import io.seldon.api.Constants;
 import io.seldon.api.resource.service.PersistenceProvider;
 import io.seldon.general.jdo.SqlItemPeer;
 import io.seldon.memcache.DogpileHandler;
@@ -59,13 +60,25 @@ public class ItemStorage {
     // 15 mins
     private static final int RECENT_ITEMS_EXPIRE_TIME = 15 * 60;
     private static final int MEMCACHE_EXCLUSIONS_EXPIRE_SECS = 30 * 60;
+    // how many more global popular items to get than needed when filtering them by dimension locally
+    private static final int POPULAR_DIMENSION_OVERFETCH = 4;
+    private static final Set<Integer> DEFAULT_DIMENSIONS = Collections.singleton(Constants.DEFAULT_DIMENSION);
+    // thread safe once configured, and costly to create per call
+    private static final ObjectMapper mapper = new ObjectMapper();
     private final PersistenceProvider provider;
     private final DogpileHandler dogpileHandler;
+    private final ItemDimensionIndexFactory dimensionIndexes;
 
     @Autowired
-    public ItemStorage(PersistenceProvider provider, DogpileHandler dogpileHandler) {
+    public ItemStorage(PersistenceProvider provider, DogpileHandler dogpileHandler, ItemDimensionIndexFactory dimensionIndexes) {
         this.provider = provider;
         this.dogpileHandler = dogpileHandler;
+        this.dimensionIndexes = dimensionIndexes;
+    }
+
+    private static boolean isDefaultDimension(Set<Integer> dimensions)
+    {
+        return dimensions.isEmpty() || (dimensions.size() == 1 && dimensions.iterator().next() == Constants.DEFAULT_DIMENSION);
     }
 
     private String getMostPopularCacheKey(String client,Set<Integer> dimensions, int numItems)
@@ -93,16 +106,34 @@ public class ItemStorage {
 
     public FilteredItems retrieveMostPopularItems(final String client, final int numItems, final Set<Integer> dimensions){
     	final String key = getMostPopularCacheKey(client, dimensions, numItems);
-    	List<SqlItemPeer.ItemAndScore> retrievedItems = retrieveMostPopularItemsWithScoreImpl(key, client, numItems, dimensions);
-    	List<Long> toReturn = new ArrayList<>();
-        for (SqlItemPeer.ItemAndScore itemAndScore : retrievedItems){
-            toReturn.add(itemAndScore.item);
-        }
+    	List<Long> toReturn = null;
+    	ItemDimensionIndex index = isDefaultDimension(dimensions) ? null : dimensionIndexes.get(client);
+    	if (index != null)
+    	{
+    		// filter the cached global list rather than running a popularity query per set of dimensions
+    		int numGlobal = numItems * POPULAR_DIMENSION_OVERFETCH;
+    		List<Long> global = new ArrayList<>();
+    		for (SqlItemPeer.ItemAndScore itemAndScore : retrieveMostPopularItemsWithScoreImpl(getMostPopularCacheKey(client, DEFAULT_DIMENSIONS, numGlobal), client, numGlobal, DEFAULT_DIMENSIONS))
+    			global.add(itemAndScore.item);
+    		toReturn = index.filter(global, dimensions);
+    		if (toReturn.size() < numItems)
+    			toReturn = null;
+    	}
+    	if (toReturn == null)
+    	{
+    		toReturn = new ArrayList<>();
+    		for (SqlItemPeer.ItemAndScore itemAndScore : retrieveMostPopularItemsWithScoreImpl(key, client, numItems, dimensions)){
+    			toReturn.add(itemAndScore.item);
+    		}
+    	}
         return new FilteredItems(toReturn.size() >= numItems ? new ArrayList<>(toReturn).subList(0,numItems) : toReturn, SecurityHashPeer.md5(key));
     }
     
     public FilteredItems retrieveRecentlyAddedItems(final String client, final int numItems, final Set<Integer> dimensions){
         final String key = MemCacheKeys.getRecentItems(client, dimensions, numItems);
+        ItemDimensionIndex index = isDefaultDimension(dimensions) ? null : dimensionIndexes.get(client);
+        if (index != null)
+            return new FilteredItems(index.getLatestItems(dimensions, numItems), SecurityHashPeer.md5(key));
         List<Long> retrievedItems = retrieveUsingJSON(key, numItems, new UpdateRetriever<List<Long>>() {
             @Override
             public List<Long> retrieve() throws Exception {
@@ -127,7 +158,6 @@ public class ItemStorage {
 
     private <T extends List> T retrieveUsingJSON(String key, int numItemsRequired, UpdateRetriever<T> retriever,
                                                  TypeReference<T> typeRetriever,int expireTime) {
-    	final ObjectMapper mapper = new ObjectMapper();
     	T retrievedItems = null;
     	String json = (String) MemCachePeer.get(key);
     	if (json != null)
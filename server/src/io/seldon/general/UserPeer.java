@@ -32,6 +32,10 @@ public abstract class UserPeer {
 	
 	public abstract User getUser(long userId);
 	public abstract User getUser(String userId);	
+	/**
+	 * @return internal ids of the client user ids that exist
+	 */
+	public abstract Map<String,Long> getInternalUserIds(Collection<String> clientUserIds);
 	public abstract Collection<User> getRecentUsers(int limit);
     public abstract User saveOrUpdate(final User user);
 	public abstract User persistUser(User u);
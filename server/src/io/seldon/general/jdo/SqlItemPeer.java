@@ -59,6 +59,7 @@ public class SqlItemPeer extends ItemPeer {
 
 	private PersistenceManager pm;
 	private static Logger logger = Logger.getLogger(SqlItemPeer.class.getName());
+	private static final int ID_LOOKUP_CHUNK = 1000;
 
 	public SqlItemPeer(PersistenceManager pm) {
 		this.pm = pm;
@@ -164,6 +165,26 @@ public class SqlItemPeer extends ItemPeer {
 		return i;
 	}
 
+	@Override
+	public Map<String,Long> getInternalItemIds(Collection<String> clientItemIds) {
+		Map<String,Long> res = new HashMap<>();
+		List<String> ids = new ArrayList<>(clientItemIds);
+		for(int start=0;start<ids.size();start+=ID_LOOKUP_CHUNK)
+		{
+			List<String> chunk = ids.subList(start, Math.min(start + ID_LOOKUP_CHUNK, ids.size()));
+			StringBuilder sql = new StringBuilder("select client_item_id,item_id from items where client_item_id in (");
+			for(int i=0;i<chunk.size();i++)
+				sql.append(i == 0 ? "?" : ",?");
+			sql.append(')');
+			Query query = pm.newQuery("javax.jdo.query.SQL", sql.toString());
+			Collection<Object[]> results = (Collection<Object[]>) query.executeWithArray(chunk.toArray());
+			for(Object[] r : results)
+				res.put((String) r[0], ((Number) r[1]).longValue());
+			query.closeAll();
+		}
+		return res;
+	}
+
 	public Item getItem(String id) {
 		Item i = null;
 		Query query = pm.newQuery( Item.class, "clientItemId == i" );
@@ -517,6 +538,14 @@ public class SqlItemPeer extends ItemPeer {
 		Query query = pm.newQuery( "javax.jdo.query.SQL", "select dim_id from item_map_enum e inner join dimension d on e.attr_id=d.attr_id and e.value_id=d.value_id where item_id="+itemId+" order by dim_id;");
 		return (Collection<Integer>) query.execute();
 	}
+
+	/**
+	 * The dimensions of the item restricted to those for its type, as used by the dimension index
+	 */
+	public Collection<Integer> getItemDimensions(long itemId,int itemType) {
+		Query query = pm.newQuery( "javax.jdo.query.SQL", "select dim_id from item_map_enum e inner join dimension d on e.attr_id=d.attr_id and e.value_id=d.value_id and d.item_type="+itemType+" where item_id="+itemId+" order by dim_id;");
+		return (Collection<Integer>) query.execute();
+	}
 	
 	
 	public Integer getItemCluster(long itemId) {
@@ -38,9 +38,11 @@ import io.seldon.general.UserAttributePeer;
 import io.seldon.general.UserDimension;
 import io.seldon.general.UserPeer;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import javax.jdo.PersistenceManager;
@@ -52,6 +54,7 @@ public class SqlUserPeer extends UserPeer {
 
 	private PersistenceManager pm;
 	private static Logger logger = Logger.getLogger(SqlUserPeer.class.getName());
+	private static final int ID_LOOKUP_CHUNK = 1000;
 
 
 	public SqlUserPeer(PersistenceManager pm) {
@@ -87,6 +90,26 @@ public class SqlUserPeer extends UserPeer {
 		return u;
 	}
 
+	@Override
+	public Map<String,Long> getInternalUserIds(Collection<String> clientUserIds) {
+		Map<String,Long> res = new HashMap<>();
+		List<String> ids = new ArrayList<>(clientUserIds);
+		for(int start=0;start<ids.size();start+=ID_LOOKUP_CHUNK)
+		{
+			List<String> chunk = ids.subList(start, Math.min(start + ID_LOOKUP_CHUNK, ids.size()));
+			StringBuilder sql = new StringBuilder("select client_user_id,user_id from users where client_user_id in (");
+			for(int i=0;i<chunk.size();i++)
+				sql.append(i == 0 ? "?" : ",?");
+			sql.append(')');
+			Query query = pm.newQuery("javax.jdo.query.SQL", sql.toString());
+			Collection<Object[]> results = (Collection<Object[]>) query.executeWithArray(chunk.toArray());
+			for(Object[] r : results)
+				res.put((String) r[0], ((Number) r[1]).longValue());
+			query.closeAll();
+		}
+		return res;
+	}
+
 	public User getUser(String id) {
 		User u = null;
 		Query query = pm.newQuery( User.class, "clientUserId == i" );
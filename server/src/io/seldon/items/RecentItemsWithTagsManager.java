@@ -67,6 +67,8 @@ public class RecentItemsWithTagsManager {
     
     private void getRecentItems(final String client,final Set<Long> ids,final int attrId,final String table)
     {
+    	// the dogpile refresh, if any, was started by the calling thread
+    	final Thread requester = Thread.currentThread();
     	 executor.execute(new Runnable() {
              @Override
              public void run() 
@@ -91,7 +93,7 @@ public class RecentItemsWithTagsManager {
             	 finally
             	 {
             		 loading.remove(key);
-            		 dogpileHandler.updated(key, CACHE_TIME_SECS);
+            		 dogpileHandler.updated(key, CACHE_TIME_SECS, requester);
             	 }
              }
     	 });
@@ -0,0 +1,499 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import io.seldon.clustering.recommender.ClustersCounts;
+import io.seldon.general.Action;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+/**
+ * Stores the values the server caches most, id lists and sets, score maps, cluster counts and action histories, in a
+ * compact binary form rather than with java serialisation. Ids are written as varints, delta encoded from the previous
+ * id, and scores as floats. Anything else, and any value these encodings can not represent exactly in structure, is
+ * left to {@link SerializingTranscoder} so values it wrote can still be read.
+ * <p>
+ * Values are decoded into the mutable collection classes they were encoded from, as callers such as cas mutations
+ * change them in place.
+ */
+public class CompactTranscoder extends SerializingTranscoder {
+
+	// flag bit not used by SerializingTranscoder, which uses the low 2 bits and 0xff00
+	static final int COMPACT = 1 << 16;
+
+	private static final byte LONG_LIST = 1;
+	private static final byte LONG_SET = 2;
+	private static final byte INT_SET = 3;
+	private static final byte SCORE_MAP = 4;
+	private static final byte CLUSTERS_COUNTS = 5;
+	private static final byte ACTION_LIST = 6;
+
+	private static final int HAS_ACTION_ID = 1;
+	private static final int HAS_TYPE = 1 << 1;
+	private static final int HAS_TIMES = 1 << 2;
+	private static final int HAS_DATE = 1 << 3;
+	private static final int HAS_VALUE = 1 << 4;
+	private static final int HAS_COMMENT = 1 << 5;
+	private static final int HAS_CLIENT_USER_ID = 1 << 6;
+	private static final int HAS_CLIENT_ITEM_ID = 1 << 7;
+	private static final int HAS_TAGS = 1 << 8;
+
+	@Override
+	public CachedData encode(Object o)
+	{
+		byte[] data = encodeCompact(o);
+		if (data == null)
+			return super.encode(o);
+		return new CachedData(COMPACT, data, getMaxSize());
+	}
+
+	@Override
+	public Object decode(CachedData d)
+	{
+		if ((d.getFlags() & COMPACT) != 0)
+			return decodeCompact(d.getData());
+		return super.decode(d);
+	}
+
+	/**
+	 * @return the compact encoding or null if the object has none
+	 */
+	static byte[] encodeCompact(Object o)
+	{
+		if (o == null)
+			return null;
+		Class<?> c = o.getClass();
+		if (c == ArrayList.class)
+		{
+			List<?> list = (List<?>) o;
+			if (allOf(list, Long.class))
+				return encodeLongList(list);
+			else if (allOf(list, Action.class))
+				return encodeActions(list);
+		}
+		else if (c == HashSet.class)
+		{
+			Set<?> set = (Set<?>) o;
+			if (allOf(set, Long.class))
+				return encodeIdSet(LONG_SET, set);
+			else if (allOf(set, Integer.class))
+				return encodeIdSet(INT_SET, set);
+		}
+		else if (c == HashMap.class)
+		{
+			if (isScoreMap((Map<?,?>) o))
+			{
+				Output out = new Output(8 + ((Map<?,?>) o).size() * 6);
+				out.writeByte(SCORE_MAP);
+				writeScoreMap(out, (Map<?,?>) o);
+				return out.toByteArray();
+			}
+		}
+		else if (c == ClustersCounts.class)
+		{
+			ClustersCounts counts = (ClustersCounts) o;
+			if (counts.getItemCounts() != null && isScoreMap(counts.getItemCounts()))
+			{
+				Output out = new Output(16 + counts.getItemCounts().size() * 6);
+				out.writeByte(CLUSTERS_COUNTS);
+				out.writeZigZag(counts.getTimestamp());
+				writeScoreMap(out, counts.getItemCounts());
+				return out.toByteArray();
+			}
+		}
+		return null;
+	}
+
+	private static boolean allOf(Iterable<?> values,Class<?> c)
+	{
+		for (Object v : values)
+			if (v == null || v.getClass() != c)
+				return false;
+		return true;
+	}
+
+	private static boolean isScoreMap(Map<?,?> map)
+	{
+		for (Map.Entry<?,?> e : map.entrySet())
+			if (!(e.getKey() instanceof Long) || !(e.getValue() instanceof Double))
+				return false;
+		return true;
+	}
+
+	private static byte[] encodeLongList(List<?> list)
+	{
+		Output out = new Output(8 + list.size() * 4);
+		out.writeByte(LONG_LIST);
+		out.writeVarLong(list.size());
+		long prev = 0;
+		for (Object v : list)
+		{
+			long id = (Long) v;
+			out.writeZigZag(id - prev);
+			prev = id;
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] encodeIdSet(byte type,Set<?> set)
+	{
+		long[] ids = new long[set.size()];
+		int i = 0;
+		for (Object v : set)
+			ids[i++] = ((Number) v).longValue();
+		Arrays.sort(ids);
+		Output out = new Output(8 + ids.length * 3);
+		out.writeByte(type);
+		writeSortedIds(out, ids);
+		return out.toByteArray();
+	}
+
+	private static void writeSortedIds(Output out,long[] ids)
+	{
+		out.writeVarLong(ids.length);
+		long prev = 0;
+		for (long id : ids)
+		{
+			out.writeZigZag(id - prev);
+			prev = id;
+		}
+	}
+
+	private static void writeScoreMap(Output out,Map<?,?> map)
+	{
+		long[] ids = new long[map.size()];
+		int i = 0;
+		for (Object k : map.keySet())
+			ids[i++] = (Long) k;
+		Arrays.sort(ids);
+		writeSortedIds(out, ids);
+		for (long id : ids)
+			out.writeFloat(((Double) map.get(id)).floatValue());
+	}
+
+	private static byte[] encodeActions(List<?> list)
+	{
+		Output out = new Output(8 + list.size() * 24);
+		out.writeByte(ACTION_LIST);
+		out.writeVarLong(list.size());
+		long prevUser = 0;
+		long prevItem = 0;
+		long prevTime = 0;
+		for (Object o : list)
+		{
+			Action a = (Action) o;
+			int fields = 0;
+			if (a.getActionId() != null) fields |= HAS_ACTION_ID;
+			if (a.getType() != null) fields |= HAS_TYPE;
+			if (a.getTimes() != null) fields |= HAS_TIMES;
+			if (a.getDate() != null) fields |= HAS_DATE;
+			if (a.getValue() != null) fields |= HAS_VALUE;
+			if (a.getComment() != null) fields |= HAS_COMMENT;
+			if (a.getClientUserId() != null) fields |= HAS_CLIENT_USER_ID;
+			if (a.getClientItemId() != null) fields |= HAS_CLIENT_ITEM_ID;
+			if (a.getTags() != null) fields |= HAS_TAGS;
+			out.writeVarLong(fields);
+			out.writeZigZag(a.getUserId() - prevUser);
+			prevUser = a.getUserId();
+			out.writeZigZag(a.getItemId() - prevItem);
+			prevItem = a.getItemId();
+			if (a.getActionId() != null)
+				out.writeZigZag(a.getActionId());
+			if (a.getType() != null)
+				out.writeZigZag(a.getType());
+			if (a.getTimes() != null)
+				out.writeZigZag(a.getTimes());
+			if (a.getDate() != null)
+			{
+				long time = a.getDate().getTime();
+				out.writeZigZag(time - prevTime);
+				prevTime = time;
+			}
+			if (a.getValue() != null)
+				out.writeDouble(a.getValue());
+			if (a.getComment() != null)
+				out.writeString(a.getComment());
+			if (a.getClientUserId() != null)
+				out.writeString(a.getClientUserId());
+			if (a.getClientItemId() != null)
+				out.writeString(a.getClientItemId());
+			if (a.getTags() != null)
+			{
+				out.writeVarLong(a.getTags().size());
+				for (String tag : a.getTags())
+					out.writeString(tag);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	static Object decodeCompact(byte[] data)
+	{
+		Input in = new Input(data);
+		byte type = in.readByte();
+		switch (type)
+		{
+		case LONG_LIST:
+		{
+			int size = (int) in.readVarLong();
+			List<Long> list = new ArrayList<>(size);
+			long id = 0;
+			for (int i=0;i<size;i++)
+			{
+				id += in.readZigZag();
+				list.add(id);
+			}
+			return list;
+		}
+		case LONG_SET:
+		{
+			int size = (int) in.readVarLong();
+			Set<Long> set = new HashSet<>(size * 2);
+			long id = 0;
+			for (int i=0;i<size;i++)
+			{
+				id += in.readZigZag();
+				set.add(id);
+			}
+			return set;
+		}
+		case INT_SET:
+		{
+			int size = (int) in.readVarLong();
+			Set<Integer> set = new HashSet<>(size * 2);
+			long id = 0;
+			for (int i=0;i<size;i++)
+			{
+				id += in.readZigZag();
+				set.add((int) id);
+			}
+			return set;
+		}
+		case SCORE_MAP:
+			return readScoreMap(in);
+		case CLUSTERS_COUNTS:
+		{
+			long timestamp = in.readZigZag();
+			return new ClustersCounts(readScoreMap(in), timestamp);
+		}
+		case ACTION_LIST:
+			return readActions(in);
+		default:
+			throw new IllegalArgumentException("Unknown compact memcache value type "+type);
+		}
+	}
+
+	private static Map<Long,Double> readScoreMap(Input in)
+	{
+		int size = (int) in.readVarLong();
+		long[] ids = new long[size];
+		long id = 0;
+		for (int i=0;i<size;i++)
+		{
+			id += in.readZigZag();
+			ids[i] = id;
+		}
+		Map<Long,Double> map = new HashMap<>(size * 2);
+		for (int i=0;i<size;i++)
+			map.put(ids[i], (double) in.readFloat());
+		return map;
+	}
+
+	private static List<Action> readActions(Input in)
+	{
+		int size = (int) in.readVarLong();
+		List<Action> actions = new ArrayList<>(size);
+		long user = 0;
+		long item = 0;
+		long time = 0;
+		for (int i=0;i<size;i++)
+		{
+			int fields = (int) in.readVarLong();
+			user += in.readZigZag();
+			item += in.readZigZag();
+			Long actionId = (fields & HAS_ACTION_ID) != 0 ? in.readZigZag() : null;
+			Integer type = (fields & HAS_TYPE) != 0 ? (int) in.readZigZag() : null;
+			Integer times = (fields & HAS_TIMES) != 0 ? (int) in.readZigZag() : null;
+			Date date = null;
+			if ((fields & HAS_DATE) != 0)
+			{
+				time += in.readZigZag();
+				date = new Date(time);
+			}
+			Double value = (fields & HAS_VALUE) != 0 ? in.readDouble() : null;
+			String comment = (fields & HAS_COMMENT) != 0 ? in.readString() : null;
+			String clientUserId = (fields & HAS_CLIENT_USER_ID) != 0 ? in.readString() : null;
+			String clientItemId = (fields & HAS_CLIENT_ITEM_ID) != 0 ? in.readString() : null;
+			Action a = new Action(actionId, user, item, type, times, date, value, clientUserId, clientItemId);
+			a.setComment(comment);
+			if ((fields & HAS_TAGS) != 0)
+			{
+				int numTags = (int) in.readVarLong();
+				List<String> tags = new ArrayList<>(numTags);
+				for (int t=0;t<numTags;t++)
+					tags.add(in.readString());
+				a.setTags(tags);
+			}
+			actions.add(a);
+		}
+		return actions;
+	}
+
+	private static class Output {
+		private byte[] buf;
+		private int pos;
+
+		Output(int capacity)
+		{
+			buf = new byte[Math.max(capacity, 16)];
+		}
+
+		private void ensure(int n)
+		{
+			if (pos + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+		}
+
+		void writeByte(int b)
+		{
+			ensure(1);
+			buf[pos++] = (byte) b;
+		}
+
+		void writeVarLong(long v)
+		{
+			ensure(10);
+			while ((v & ~0x7FL) != 0)
+			{
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		void writeZigZag(long v)
+		{
+			writeVarLong((v << 1) ^ (v >> 63));
+		}
+
+		void writeFloat(float f)
+		{
+			int v = Float.floatToIntBits(f);
+			ensure(4);
+			for (int i=0;i<4;i++)
+				buf[pos++] = (byte) (v >>> (i * 8));
+		}
+
+		void writeDouble(double d)
+		{
+			long v = Double.doubleToLongBits(d);
+			ensure(8);
+			for (int i=0;i<8;i++)
+				buf[pos++] = (byte) (v >>> (i * 8));
+		}
+
+		void writeString(String s)
+		{
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(b.length);
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, pos, b.length);
+			pos += b.length;
+		}
+
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf(buf, pos);
+		}
+	}
+
+	private static class Input {
+		private final byte[] buf;
+		private int pos;
+
+		Input(byte[] buf)
+		{
+			this.buf = buf;
+		}
+
+		byte readByte()
+		{
+			return buf[pos++];
+		}
+
+		long readVarLong()
+		{
+			long v = 0;
+			for (int shift=0;;shift+=7)
+			{
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return v;
+			}
+		}
+
+		long readZigZag()
+		{
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		float readFloat()
+		{
+			int v = 0;
+			for (int i=0;i<4;i++)
+				v |= (buf[pos++] & 0xFF) << (i * 8);
+			return Float.intBitsToFloat(v);
+		}
+
+		double readDouble()
+		{
+			long v = 0;
+			for (int i=0;i<8;i++)
+				v |= (long) (buf[pos++] & 0xFF) << (i * 8);
+			return Double.longBitsToDouble(v);
+		}
+
+		String readString()
+		{
+			int len = (int) readVarLong();
+			String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			return s;
+		}
+	}
+}
@@ -23,28 +23,106 @@
 
 package io.seldon.memcache;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.ConcurrentHashMap;
+import com.google.common.util.concurrent.SettableFuture;
 
+/**
+ * Stops many callers recomputing the same cached value at once when it goes stale.
+ * <p>
+ * A value is due a refresh once it is older than expireFactor of its cache time. Before that a caller may refresh
+ * it early with a probability that grows as the expiry nears and with how long the last refresh took (XFetch), which
+ * spreads refreshes of hot keys out rather than having them all fall due at the same moment. Only one caller in the
+ * JVM refreshes a key at a time: other callers holding a stale value keep using it and callers with no value wait for
+ * the refresh in progress. If a lease time is set the caller refreshing a stale value must also take a lease in
+ * memcache, so only one server refreshes it. Metadata for keys which have expired is evicted periodically.
+ */
 @Component
 public class DogpileHandler {
 	private static Logger logger = Logger.getLogger(DogpileHandler.class.getName());
 	
 	private static final float DEF_EXPIRE_FACTOR = 0.75f;
+	private static final double DEF_BETA = 1.0;
+	private static final int DEF_COALESCE_WAIT_MILLIS = 2000;
+	private static final int DEF_EVICT_SECS = 60;
+	// an early refresh never comes before the last quarter of a value's lifetime however slow the refresh is
+	private static final double MAX_EARLY_FRACTION = 0.25;
+	// a refresh not reported as finished by then is assumed lost and another caller may take over
+	private static final long MAX_UPDATE_MILLIS = 60000;
+	private static final String LEASE_PREFIX = "dogpile-lease:";
 	public static final String DOGPILE_EXPIRE_PROP = "io.seldon.dogpile.expire.factor";
 	public static final String DOGPILE_ACTIVE = "io.seldon.dogpile.active";
 	
 	private static DogpileHandler peer;
 
-    public  DogpileHandler ()
+	static class Entry {
+		volatile long updatedAt;
+		volatile long expiry; // 0 if unknown, so a refresh is due
+		volatile long refreshMillis;
+		volatile long startedAt;
+		volatile boolean leased;
+		volatile Thread owner; // the thread refreshing the key
+		volatile boolean invalidated; // a value was stored while the key was being refreshed
+		final AtomicReference<SettableFuture<Object>> refresh = new AtomicReference<>();
+	}
+
+	final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+	final float expireFactor;
+	final boolean active;
+	private final double beta;
+	private final int leaseSecs;
+	private final int coalesceWaitMillis;
+
+    public DogpileHandler()
+    {
+    	this(DEF_EXPIRE_FACTOR, true, DEF_BETA, 0, DEF_COALESCE_WAIT_MILLIS, DEF_EVICT_SECS);
+    }
+
+    @Autowired
+    public DogpileHandler(@Value("${" + DOGPILE_EXPIRE_PROP + ":0.75}") float expireFactor,
+    		@Value("${" + DOGPILE_ACTIVE + ":true}") boolean active,
+    		@Value("${io.seldon.dogpile.beta:1.0}") double beta,
+    		@Value("${io.seldon.dogpile.lease.secs:0}") int leaseSecs,
+    		@Value("${io.seldon.dogpile.coalesce.waitms:2000}") int coalesceWaitMillis,
+    		@Value("${io.seldon.dogpile.evict.secs:60}") int evictSecs)
     {
-		expireFactor = DEF_EXPIRE_FACTOR;
-		active = true;
-		logger.info("Creating dogpile cache handler with active: "+active+" and expire factor "+expireFactor);
+		this.expireFactor = expireFactor;
+		this.active = active;
+		this.beta = beta;
+		this.leaseSecs = leaseSecs;
+		this.coalesceWaitMillis = coalesceWaitMillis;
+		logger.info("Creating dogpile cache handler with active: "+active+" expire factor "+expireFactor+" beta "+beta+" lease secs "+leaseSecs);
+		if (active && evictSecs > 0)
+		{
+			ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "dogpile-evict");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictExpired();
+				}
+			}, evictSecs, evictSecs, TimeUnit.SECONDS);
+		}
 		peer = this;
     }
 	
@@ -52,73 +130,236 @@ public class DogpileHandler {
 	{
 		return peer;
 	}
-	
-	ConcurrentHashMap<String,Long> expireMap = new ConcurrentHashMap<>();
-	ConcurrentHashMap<String,Boolean> updatingMap = new ConcurrentHashMap<>();
-	float expireFactor;
-	boolean active = false;
-	private DogpileHandler(float expireFactor,boolean active)
+
+	/**
+	 * Replace the shared handler, for tests which create their own
+	 */
+	static void setPeer(DogpileHandler handler)
 	{
-		this.expireFactor = expireFactor;
-		this.active = active;
+		peer = handler;
 	}
-	
-	private boolean setUpdating(String key)
+
+	private Entry getEntry(String key)
 	{
-		if (updatingMap.putIfAbsent(key, true) == null)
+		Entry entry = entries.get(key);
+		if (entry == null)
 		{
-			// if there was not updating flag then return true to tell caller an update is needed
-			//
-			// There is a possibility of a race condition of 1 (or more) thread checks expire then gets stopped and another updates
-			// then first (or more) thread(s) comes back in and set updateingMap successfully. However this should only happen under extreme load
-			// and will cause a few extra updates
-			logger.info("Returning true for memcache key "+key);
+			Entry newEntry = new Entry();
+			entry = entries.putIfAbsent(key, newEntry);
+			if (entry == null)
+				entry = newEntry;
+		}
+		return entry;
+	}
+
+	private boolean isRefreshDue(Entry entry,long now)
+	{
+		long expiry = entry.expiry;
+		if (expiry == 0 || now >= expiry)
 			return true;
+		long refreshMillis = entry.refreshMillis;
+		if (refreshMillis <= 0 || beta <= 0)
+			return false;
+		double early = refreshMillis * beta * -Math.log(ThreadLocalRandom.current().nextDouble());
+		return now + Math.min(early, (expiry - entry.updatedAt) * MAX_EARLY_FRACTION) >= expiry;
+	}
+
+	/**
+	 * Try to become the caller refreshing the key.
+	 * @return null if the caller should refresh, otherwise the refresh in progress
+	 */
+	private SettableFuture<Object> startRefresh(String key,Entry entry,boolean hasValue)
+	{
+		SettableFuture<Object> future = SettableFuture.create();
+		long now = System.currentTimeMillis();
+		SettableFuture<Object> existing = entry.refresh.get();
+		if (existing != null && now - entry.startedAt <= MAX_UPDATE_MILLIS)
+			return existing;
+		if (!entry.refresh.compareAndSet(existing, future))
+		{
+			// lost the race to another caller, whose refresh may even have finished already
+			SettableFuture<Object> current = entry.refresh.get();
+			if (current != null)
+				return current;
+			future.set(null);
+			return future;
+		}
+		entry.startedAt = now;
+		entry.owner = Thread.currentThread();
+		// callers with no value always refresh as they have nothing to serve in the meantime
+		if (hasValue && leaseSecs > 0)
+		{
+			if (!MemCachePeer.add(LEASE_PREFIX + key, Boolean.TRUE, leaseSecs))
+			{
+				// another server is refreshing, so leave the value alone until its lease is up
+				entry.expiry = now + leaseSecs * 1000L;
+				entry.startedAt = 0;
+				entry.owner = null;
+				entry.refresh.compareAndSet(future, null);
+				future.set(null);
+				return future;
+			}
+			entry.leased = true;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("Refreshing memcache key "+key);
+		return null;
+	}
+
+	private void finishRefresh(String key,Entry entry,int expireSecs,Object value,Exception error)
+	{
+		long now = System.currentTimeMillis();
+		if (entry.startedAt > 0)
+			entry.refreshMillis = now - entry.startedAt;
+		entry.startedAt = 0;
+		entry.owner = null;
+		entry.updatedAt = now;
+		if (entry.invalidated)
+		{
+			// the refreshed value may be older than the one stored meanwhile so leave it due a refresh
+			entry.invalidated = false;
+			entry.expiry = 0;
 		}
 		else
-			return false; // as another thread is updating the value
+			entry.expiry = now + Math.round((expireSecs * 1000) * expireFactor);
+		if (entry.leased)
+		{
+			entry.leased = false;
+			MemCachePeer.delete(LEASE_PREFIX + key);
+		}
+		SettableFuture<Object> future = entry.refresh.getAndSet(null);
+		if (future != null)
+		{
+			if (error != null)
+				future.setException(error);
+			else
+				future.set(value);
+		}
 	}
 
+	/**
+	 * Refresh the cached item if it is due, or get it from a refresh in progress if there is no cached item.
+	 * @return the refreshed item or null if the cached item should be used
+	 */
+	@SuppressWarnings("unchecked")
 	public <T> T retrieveUpdateIfRequired(String key, T cachedItem, UpdateRetriever<T> retriever, int expireSecs) throws Exception {
+		if (key == null || !active)
+			return null;
+		Entry entry = getEntry(key);
+		if (cachedItem != null && !isRefreshDue(entry, System.currentTimeMillis()))
+			return null;
+		SettableFuture<Object> inProgress = startRefresh(key, entry, cachedItem != null);
+		if (inProgress != null)
+			return cachedItem == null ? (T) awaitRefresh(key, inProgress) : null;
+		T value = null;
+		Exception error = null;
+		try {
+			value = retriever.retrieve();
+			return value;
+		} catch (Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			finishRefresh(key, entry, expireSecs, value, error);
+		}
+	}
 
-		if(updateIsRequired(key, cachedItem, expireSecs)){
-			try {
-				return retriever.retrieve();
-			} finally {
-				updated(key, expireSecs );
-			}
-		} else {
+	private Object awaitRefresh(String key,SettableFuture<Object> inProgress)
+	{
+		if (coalesceWaitMillis <= 0)
 			return null;
+		try
+		{
+			return inProgress.get(coalesceWaitMillis, TimeUnit.MILLISECONDS);
 		}
+		catch (TimeoutException e)
+		{
+			logger.warn("Timed out waiting for refresh of memcache key "+key);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e)
+		{
+			if (logger.isDebugEnabled())
+				logger.debug("Refresh of memcache key "+key+" failed",e);
+		}
+		return null;
 	}
 
+	/**
+	 * @return true if the caller should refresh the item, in which case it must call {@link #updated(String, int)} when done
+	 */
 	public <T> boolean updateIsRequired(String key, T cachedItem, int expireSecs){
-		boolean continueWithUpdate = false;
 		if (key == null || !active) return false;
-		if (cachedItem==null) {
-			continueWithUpdate = setUpdating(key);
-		} else {
-			Long expire = expireMap.get(key);
-			if (expire == null || (expire !=null && System.currentTimeMillis() > expire))
-			{
-				continueWithUpdate = setUpdating(key);
-			}
-		}
-		return continueWithUpdate;
+		Entry entry = getEntry(key);
+		if (cachedItem != null && !isRefreshDue(entry, System.currentTimeMillis()))
+			return false;
+		return startRefresh(key, entry, cachedItem != null) == null;
 	}
 
+	/**
+	 * Record that the key has a new value. If another thread is refreshing the key its refresh is left to finish
+	 * and the key is only invalidated, so it is refreshed again afterwards.
+	 */
 	public void updated(String key,int expireSecs)
+	{
+		updated(key, expireSecs, Thread.currentThread());
+	}
+
+	/**
+	 * As {@link #updated(String, int)} for a refresh started by owner, the thread that called
+	 * {@link #updateIsRequired(String, Object, int)}, but finished on another thread.
+	 */
+	public void updated(String key,int expireSecs,Thread owner)
 	{
 		if (!active) return;
-		logger.info("Updating key "+key);
-		int expireDeltaMilisecs = Math.round((expireSecs * 1000) * expireFactor);
-		expireMap.put(key, System.currentTimeMillis() + expireDeltaMilisecs);
-		updatingMap.remove(key);
+		Entry entry = getEntry(key);
+		if (entry.refresh.get() != null && entry.owner != owner)
+			entry.invalidated = true;
+		else
+			finishRefresh(key, entry, expireSecs, null, null);
 	}
 	
 	public void clear(String key)
 	{
-		expireMap.remove(key);
-		updatingMap.remove(key);
+		Entry entry = entries.remove(key);
+		if (entry != null)
+		{
+			SettableFuture<Object> future = entry.refresh.getAndSet(null);
+			if (future != null)
+				future.set(null);
+		}
+	}
+
+	/**
+	 * Make the key due a refresh
+	 */
+	void expire(String key)
+	{
+		getEntry(key).expiry = 0;
+	}
+
+	/**
+	 * Drop metadata for keys which have expired and are not being refreshed. Such a key is due a refresh anyway
+	 * so dropping it changes nothing for callers.
+	 */
+	int evictExpired()
+	{
+		long now = System.currentTimeMillis();
+		int evicted = 0;
+		for (Iterator<Map.Entry<String,Entry>> i = entries.entrySet().iterator(); i.hasNext();)
+		{
+			Entry entry = i.next().getValue();
+			if (entry.refresh.get() == null && now >= entry.expiry)
+			{
+				i.remove();
+				evicted++;
+			}
+		}
+		if (evicted > 0 && logger.isDebugEnabled())
+			logger.debug("Evicted "+evicted+" expired dogpile keys");
+		return evicted;
 	}
 }
@@ -41,6 +41,7 @@ import net.spy.memcached.internal.OperationFuture;
 import org.apache.log4j.Logger;
 import org.apache.zookeeper.data.Stat;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -57,8 +58,13 @@ public class ExceptionSwallowingMemcachedClient implements GlobalConfigUpdateLis
     public static final int MEMCACHE_OP_TIMEOUT = 2500;
     private MemcachedClient memcachedClient = null;
 
+    /**
+     * @param compact io.seldon.memcache.compact, off by default. Servers without the {@link CompactTranscoder} can not
+     * read compact values, so only turn it on once every server sharing the memcache runs a version that has it.
+     */
     @Autowired
-    public ExceptionSwallowingMemcachedClient(GlobalConfigHandler globalConfigHandler, ZkCuratorHandler zkCuratorHandler) throws Exception {
+    public ExceptionSwallowingMemcachedClient(GlobalConfigHandler globalConfigHandler, ZkCuratorHandler zkCuratorHandler,
+    		@Value("${io.seldon.memcache.compact:false}") boolean compact) throws Exception {
         logger.info("Initializing...");
         Stat stat = zkCuratorHandler.getCurator().checkExists().forPath(ZK_CONFIG_KEY_MEMCACHED_SERVERS_FPATH);
         if (stat != null) 
@@ -67,11 +73,13 @@ public class ExceptionSwallowingMemcachedClient implements GlobalConfigUpdateLis
             byte[] bytes = zkCuratorHandler.getCurator().getData().forPath(ZK_CONFIG_KEY_MEMCACHED_SERVERS_FPATH);
             MemcacheConfig config = mapper.readValue(bytes,MemcacheConfig.class);
             logger.info(config.toString());
-            memcachedClient = new MemcachedClient(new ConnectionFactoryBuilder(new DefaultConnectionFactory()).setOpTimeout(MEMCACHE_OP_TIMEOUT).build(),
-                    AddrUtil.getAddresses(config.servers));
+            ConnectionFactoryBuilder cb = new ConnectionFactoryBuilder(new DefaultConnectionFactory()).setOpTimeout(MEMCACHE_OP_TIMEOUT);
+            if (compact)
+                cb.setTranscoder(new CompactTranscoder());
+            memcachedClient = new MemcachedClient(cb.build(), AddrUtil.getAddresses(config.servers));
             logger.info(String.format("MemcachedClient initialized using %s[%s]", ZK_CONFIG_KEY_MEMCACHED_SERVERS, config.servers));
             
-            MemCachePeer.initialise(config.servers,config.numClients);
+            MemCachePeer.initialise(config.servers,config.numClients,compact);
         }
 
         if (memcachedClient == null) {
@@ -0,0 +1,136 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.internal.BulkFuture;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The pending result of fetching a set of memcache keys in a single bulk operation. The first lookup waits for the
+ * operation and any keys not returned in time are treated as missing. Writes made through {@link MemCachePeer} to a
+ * key in the batch after it was issued replace the fetched value so lookups see the latest value.
+ * <p>
+ * Safe to share between the threads working on one request.
+ */
+public class MemCacheBulkGet {
+
+	private static Logger logger = Logger.getLogger(MemCacheBulkGet.class.getName());
+
+	private static final Object NULL = new Object();
+	private static final Object EVICTED = new Object();
+
+	private final BulkFuture<Map<String,Object>> future;
+	private final Map<String,String> hashedKeys;
+	private final ConcurrentHashMap<String,Object> overrides = new ConcurrentHashMap<>();
+	private volatile Map<String,Object> results;
+
+	MemCacheBulkGet(BulkFuture<Map<String,Object>> future,Map<String,String> hashedKeys)
+	{
+		this.future = future;
+		this.hashedKeys = hashedKeys;
+	}
+
+	/**
+	 * @return true if the key is in the batch and has not been evicted since
+	 */
+	public boolean contains(String key)
+	{
+		return hashedKeys.containsKey(key) && overrides.get(key) != EVICTED;
+	}
+
+	/**
+	 * @param key one of the keys in the batch
+	 * @return the value or null if not in memcache
+	 */
+	public Object get(String key)
+	{
+		Object override = overrides.get(key);
+		if (override != null)
+			return override == NULL || override == EVICTED ? null : override;
+		String hashedKey = hashedKeys.get(key);
+		return hashedKey == null ? null : getResults().get(hashedKey);
+	}
+
+	void update(String key,Object value)
+	{
+		if (hashedKeys.containsKey(key))
+			overrides.put(key, value == null ? NULL : value);
+	}
+
+	/**
+	 * Drop the key from the batch after a write whose result is not known here, so later gets go to memcache
+	 */
+	void evict(String key)
+	{
+		if (hashedKeys.containsKey(key))
+			overrides.put(key, EVICTED);
+	}
+
+	private Map<String,Object> getResults()
+	{
+		Map<String,Object> res = results;
+		if (res == null)
+		{
+			synchronized(this)
+			{
+				if (results == null)
+					results = waitForResults();
+				res = results;
+			}
+		}
+		return res;
+	}
+
+	private Map<String,Object> waitForResults()
+	{
+		if (future == null)
+			return Collections.emptyMap();
+		try
+		{
+			Map<String,Object> res = future.getSome(ExceptionSwallowingMemcachedClient.MEMCACHE_OP_TIMEOUT, TimeUnit.MILLISECONDS);
+			if (!future.isDone())
+				logger.warn("Timeout in bulk get of "+hashedKeys.size()+" keys, missing keys will be treated as not cached");
+			return res == null ? Collections.<String,Object>emptyMap() : res;
+		}
+		catch (InterruptedException e)
+		{
+			logger.error("Interrupted in bulk get ",e);
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			logger.error("Execution exception in bulk get ",e);
+		}
+		future.cancel(false);
+		return Collections.emptyMap();
+	}
+}
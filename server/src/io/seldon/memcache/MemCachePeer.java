@@ -25,7 +25,11 @@ package io.seldon.memcache;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
@@ -39,7 +43,7 @@ import net.spy.memcached.CASValue;
 import net.spy.memcached.ConnectionFactoryBuilder;
 import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
-import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.internal.BulkFuture;
 import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.log4j.Logger;
@@ -52,8 +56,18 @@ public class MemCachePeer {
 	// a single instance
 	protected static List<MemcachedClient> clients;
 	protected static MemcachedClient theClient =  null;
+	private static volatile NearCache nearCache = null;
+	private static final ThreadLocal<MemCacheBulkGet> prefetched = new ThreadLocal<>();
 
     public static void initialise(String serverList,int  numClients) {
+    	initialise(serverList, numClients, false);
+    }
+
+    /**
+     * @param compact store values with a {@link CompactTranscoder}. All servers sharing the memcache must agree on this
+     * as servers without it can not read compact values.
+     */
+    public static void initialise(String serverList,int  numClients,boolean compact) {
         try
         {
         	if (numClients > 1)
@@ -64,6 +78,8 @@ public class MemCachePeer {
         		{
         			ConnectionFactoryBuilder cb = new ConnectionFactoryBuilder(new DefaultConnectionFactory());
         			cb.setOpTimeout(ExceptionSwallowingMemcachedClient.MEMCACHE_OP_TIMEOUT);
+        			if (compact)
+        				cb.setTranscoder(new CompactTranscoder());
         			clients.add(new MemcachedClient(cb.build(),AddrUtil.getAddresses(serverList)));
         		}
         	}
@@ -72,10 +88,12 @@ public class MemCachePeer {
         		logger.info("Creating single memcache client");
     			ConnectionFactoryBuilder cb = new ConnectionFactoryBuilder(new DefaultConnectionFactory());
     			cb.setOpTimeout(ExceptionSwallowingMemcachedClient.MEMCACHE_OP_TIMEOUT);
+    			if (compact)
+    				cb.setTranscoder(new CompactTranscoder());
     			theClient = new MemcachedClient(cb.build(),AddrUtil.getAddresses(serverList));
         	}
 
-        	logger.info(String.format("MemcachedClient initialised using serverList[%s]",serverList+" with "+numClients+" clients"));
+        	logger.info(String.format("MemcachedClient initialised using serverList[%s]",serverList+" with "+numClients+" clients compact "+compact));
         }
         catch (IOException e)
         {
@@ -83,6 +101,68 @@ public class MemCachePeer {
         }
     }
     
+    /**
+     * Put an in-process L1 cache in front of memcache for the families it caches, null to remove it
+     */
+    public static void setNearCache(NearCache cache)
+    {
+    	nearCache = cache;
+    }
+
+    /**
+     * Start fetching the keys in a single bulk operation without waiting for the result
+     */
+    public static MemCacheBulkGet getBulk(Collection<String> keys)
+    {
+    	Map<String,String> hashedKeys = new HashMap<>();
+    	for(String key : keys)
+    		hashedKeys.put(key, hashKey(key));
+    	BulkFuture<Map<String,Object>> future = null;
+    	try
+    	{
+    		MemcachedClient client = getClient();
+    		if (client != null)
+    			future = client.asyncGetBulk(new HashSet<>(hashedKeys.values()));
+    	}
+    	catch (Exception ex)
+    	{
+    		logger.warn("Memcache bulk get exeption ",ex);
+    	}
+    	return new MemCacheBulkGet(future, hashedKeys);
+    }
+
+    /**
+     * Bulk fetch keys the current request will need. Until {@link #endPrefetch()} gets on this thread for these keys
+     * are answered from the bulk result rather than a round trip each.
+     */
+    public static MemCacheBulkGet prefetch(Collection<String> keys)
+    {
+    	MemCacheBulkGet bulkGet = getBulk(keys);
+    	prefetched.set(bulkGet);
+    	return bulkGet;
+    }
+
+    /**
+     * Share a prefetch with a thread working on the same request, null to clear it
+     */
+    public static void setPrefetch(MemCacheBulkGet bulkGet)
+    {
+    	if (bulkGet == null)
+    		prefetched.remove();
+    	else
+    		prefetched.set(bulkGet);
+    }
+
+    public static MemCacheBulkGet getPrefetch()
+    {
+    	return prefetched.get();
+    }
+
+    public static void endPrefetch()
+    {
+    	prefetched.remove();
+    }
+
     /*
      * Get random memcache client
      */
@@ -96,6 +176,7 @@ public class MemCachePeer {
 
 	public static void delete(String key)
 	{
+		invalidateNear(key);
 		MemcachedClient client = getClient();
 		if (client != null)
 		try
@@ -110,6 +191,7 @@ public class MemCachePeer {
 	
 	public static void put(String key,Object obj)
 	{
+		putNear(key, obj);
 		MemcachedClient client = getClient();
 		if (client != null)
 		try
@@ -127,6 +209,7 @@ public class MemCachePeer {
 	 */
 	public static void put(String key,Object obj,int expireSeconds)
 	{
+		putNear(key, obj);
 		MemcachedClient client = getClient();
 		if (client != null)
 			try
@@ -139,7 +222,55 @@ public class MemCachePeer {
 			}
 	}
 	
-	public static Object get(String key)
+	/**
+	 * Store the object only if the key is not already present, for short lived leases shared between servers.
+	 * @return false if the key was already present, true if it was added or memcache could not be asked
+	 */
+	public static boolean add(String key,Object obj,int expireSeconds)
+	{
+		MemcachedClient client = getClient();
+		if (client != null)
+		{
+			Future<Boolean> f = client.add(hashKey(key), expireSeconds, obj);
+			try
+			{
+				return f.get(ExceptionSwallowingMemcachedClient.MEMCACHE_OP_TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+			catch (Exception ex)
+			{
+				logger.warn("Memcache add exception ",ex);
+				f.cancel(false);
+			}
+		}
+		return true;
+	}
+	
+	public static Object get(final String key)
+	{
+		MemCacheBulkGet bulkGet = prefetched.get();
+		if (bulkGet != null && bulkGet.contains(key))
+			return bulkGet.get(key);
+		NearCache near = nearCache;
+		if (near != null && near.isCached(key))
+		{
+			try
+			{
+				return near.get(key, new UpdateRetriever<Object>() {
+					@Override
+					public Object retrieve() throws Exception {
+						return getRemote(key);
+					}
+				});
+			}
+			catch (Exception e)
+			{
+				logger.error("Near cache get failed for "+key,e);
+			}
+		}
+		return getRemote(key);
+	}
+
+	private static Object getRemote(String key)
 	{
 		MemcachedClient client = getClient();
 		Object myObj=null;
@@ -197,10 +328,12 @@ public class MemCachePeer {
 	 */
 	public static <T> T cas(String key,CASMutation<T> mutation,T value,int expireSecs)
 	{
+		invalidateNear(key);
 		MemcachedClient client = getClient();
 		 if (client != null)
 		 {
-			 Transcoder transcoder = new SerializingTranscoder();
+			 // use the client's transcoder so values are read and written as by get and put
+			 Transcoder<T> transcoder = (Transcoder<T>) client.getTranscoder();
 			 // The mutator who'll do all the low-level stuff.
 			 // Set number of retries to limit time taken..its not essential this succeeds
 			 CASMutator<T> mutator = new CASMutator<>(client, transcoder,MAX_CAS_RETRIES);
@@ -222,6 +355,26 @@ public class MemCachePeer {
 			 return null;
 	}
 	
+	private static void putNear(String key,Object obj)
+	{
+		MemCacheBulkGet bulkGet = prefetched.get();
+		if (bulkGet != null)
+			bulkGet.update(key, obj);
+		NearCache near = nearCache;
+		if (near != null)
+			near.put(key, obj);
+	}
+
+	private static void invalidateNear(String key)
+	{
+		MemCacheBulkGet bulkGet = prefetched.get();
+		if (bulkGet != null)
+			bulkGet.evict(key);
+		NearCache near = nearCache;
+		if (near != null)
+			near.invalidate(key);
+	}
+
 	private static String hashKey(String key)
 	{
 		return SecurityHashPeer.md5digest(key);
@@ -0,0 +1,283 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import io.seldon.api.statsd.StatsdPeer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * In-process L1 cache in front of memcache for hot, slowly changing key families. A family is the
+ * {@link MemCacheKeys} prefix before the first ':' and each configured family gets its own size bounded cache
+ * whose entries expire a ttl after they were last written.
+ * <p>
+ * Refreshes from memcache go through the {@link DogpileHandler} so once an entry is due a refresh a single
+ * thread fetches it while the others keep being served the value already held. Values are shared between
+ * callers so only strings and boxed primitives are held, other values always go to memcache.
+ * <p>
+ * Nothing invalidates entries held by other servers, so a write is only seen by them once their entry is refreshed
+ * a ttl later. The cache is off by default and its default families are the read mostly popular and recent item
+ * lists. Families are configured as a comma separated list of family:ttlSecs:maxSize.
+ */
+@Component
+public class NearCache {
+
+	private static Logger logger = Logger.getLogger(NearCache.class.getName());
+
+	public static final String DEFAULT_FAMILIES = "PopularItemsJSON:30:2000,RecentItemsJSON:30:2000";
+	private static final String DOGPILE_PREFIX = "near:";
+	private static final int STATS_PERIOD_SECS = 60;
+
+	private static class Family {
+		final String name;
+		final int ttlSecs;
+		final Cache<String,Object> cache;
+		final AtomicLong refreshes = new AtomicLong();
+		CacheStats lastStats = new CacheStats(0, 0, 0, 0, 0, 0);
+		long lastRefreshes = 0;
+
+		Family(String name,int ttlSecs,int maxSize)
+		{
+			this.name = name;
+			this.ttlSecs = ttlSecs;
+			this.cache = CacheBuilder.newBuilder()
+					.maximumSize(maxSize)
+					.expireAfterWrite(ttlSecs, TimeUnit.SECONDS)
+					.recordStats()
+					.removalListener(new RemovalListener<String,Object>() {
+						@Override
+						public void onRemoval(RemovalNotification<String,Object> notification) {
+							// keep the dogpile handler's bookkeeping bounded by the size of this cache
+							DogpileHandler dogpileHandler = DogpileHandler.get();
+							if (notification.getCause() != RemovalCause.REPLACED && dogpileHandler != null)
+								dogpileHandler.clear(DOGPILE_PREFIX + notification.getKey());
+						}
+					})
+					.build();
+		}
+	}
+
+	private final Map<String,Family> families;
+	private ScheduledExecutorService statsExecutor;
+
+	@Autowired
+	public NearCache(@Value("${io.seldon.memcache.nearcache.active:false}") boolean active,
+			@Value("${io.seldon.memcache.nearcache.families:" + DEFAULT_FAMILIES + "}") String familiesConfig)
+	{
+		this(familiesConfig);
+		if (active)
+		{
+			logger.info("Activating memcache near cache for families "+families.keySet());
+			statsExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "near-cache-stats");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			statsExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					try
+					{
+						reportStats();
+					}
+					catch (Exception e)
+					{
+						logger.error("Failed to report near cache stats",e);
+					}
+				}
+			}, STATS_PERIOD_SECS, STATS_PERIOD_SECS, TimeUnit.SECONDS);
+			MemCachePeer.setNearCache(this);
+		}
+		else
+			logger.info("Memcache near cache is not active");
+	}
+
+	public NearCache(String familiesConfig)
+	{
+		Map<String,Family> map = new HashMap<>();
+		for(String spec : familiesConfig.split(","))
+		{
+			String[] parts = spec.trim().split(":");
+			if (parts.length != 3)
+				throw new IllegalArgumentException("Bad near cache family "+spec+" expected family:ttlSecs:maxSize");
+			map.put(parts[0], new Family(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+		}
+		this.families = Collections.unmodifiableMap(map);
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		if (statsExecutor != null)
+			statsExecutor.shutdownNow();
+	}
+
+	private Family getFamily(String key)
+	{
+		int end = key.indexOf(':');
+		return end > 0 ? families.get(key.substring(0, end)) : null;
+	}
+
+	public boolean isCached(String key)
+	{
+		return getFamily(key) != null;
+	}
+
+	/**
+	 * @return true if the value can be shared between callers
+	 */
+	static boolean isImmutable(Object value)
+	{
+		return value instanceof String || value instanceof Long || value instanceof Integer || value instanceof Double
+				|| value instanceof Float || value instanceof Short || value instanceof Byte || value instanceof Boolean
+				|| value instanceof Character;
+	}
+
+	/**
+	 * Get the value from the near cache falling back to the remote retriever on a miss. When a held value is due
+	 * a refresh exactly one caller refreshes it from the retriever while concurrent callers get the held value.
+	 * A refresh that finds nothing remotely drops the held value.
+	 * @param key
+	 * @param remote fetches the value from memcache, returns null if not present
+	 * @return the value or null
+	 */
+	public Object get(String key,UpdateRetriever<Object> remote) throws Exception
+	{
+		Family family = getFamily(key);
+		if (family == null)
+			return remote.retrieve();
+		DogpileHandler dogpileHandler = DogpileHandler.get();
+		String dogpileKey = DOGPILE_PREFIX + key;
+		Object value = family.cache.getIfPresent(key);
+		if (value == null)
+		{
+			value = remote.retrieve();
+			if (isImmutable(value))
+			{
+				family.cache.put(key, value);
+				if (dogpileHandler != null)
+					dogpileHandler.updated(dogpileKey, family.ttlSecs);
+			}
+		}
+		else if (dogpileHandler != null && dogpileHandler.updateIsRequired(dogpileKey, value, family.ttlSecs))
+		{
+			try
+			{
+				family.refreshes.incrementAndGet();
+				value = remote.retrieve();
+				if (isImmutable(value))
+					family.cache.put(key, value);
+				else
+					family.cache.invalidate(key);
+			}
+			finally
+			{
+				dogpileHandler.updated(dogpileKey, family.ttlSecs);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Write through a value stored in memcache
+	 */
+	public void put(String key,Object value)
+	{
+		Family family = getFamily(key);
+		if (family != null)
+		{
+			if (isImmutable(value))
+			{
+				family.cache.put(key, value);
+				DogpileHandler dogpileHandler = DogpileHandler.get();
+				if (dogpileHandler != null)
+					dogpileHandler.updated(DOGPILE_PREFIX + key, family.ttlSecs);
+			}
+			else
+				family.cache.invalidate(key);
+		}
+	}
+
+	public void invalidate(String key)
+	{
+		Family family = getFamily(key);
+		if (family != null)
+			family.cache.invalidate(key);
+	}
+
+	public Map<String,CacheStats> getStats()
+	{
+		Map<String,CacheStats> stats = new HashMap<>();
+		for(Family family : families.values())
+			stats.put(family.name, family.cache.stats());
+		return stats;
+	}
+
+	/**
+	 * Log and send to statsd the hits, misses, evictions and refreshes of each family since the last report
+	 */
+	synchronized void reportStats()
+	{
+		for(Family family : families.values())
+		{
+			CacheStats stats = family.cache.stats();
+			CacheStats delta = stats.minus(family.lastStats);
+			long refreshes = family.refreshes.get();
+			long deltaRefreshes = refreshes - family.lastRefreshes;
+			family.lastStats = stats;
+			family.lastRefreshes = refreshes;
+			if (delta.requestCount() > 0 || delta.evictionCount() > 0)
+			{
+				if (logger.isDebugEnabled())
+					logger.debug("Near cache "+family.name+" size "+family.cache.size()+" hits "+delta.hitCount()+" misses "+delta.missCount()+" evictions "+delta.evictionCount()+" refreshes "+deltaRefreshes);
+				StatsdPeer.logNearCache(family.name, delta.hitCount(), delta.missCount(), delta.evictionCount(), deltaRefreshes);
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.mf;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import io.seldon.recommendation.model.BinaryModel;
+import io.seldon.util.TopK;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+
+/**
+ * Packed feature vectors, one row per id, stored contiguously in a single float buffer which is either on the heap
+ * or a view on a memory mapped {@link BinaryModel}. Ids are looked up through a primitive open addressing index of rows.
+ * Scoring is allocation free apart from the returned results.
+ *
+ * @author rummble
+ *
+ */
+public class FeatureMatrix {
+
+	private static final String IDS_BLOCK = ".ids";
+	private static final String FEATURES_BLOCK = ".features";
+	private static final int SCORE_BLOCK_ROWS = 256;
+
+	private final int rank;
+	private final int rows;
+	private final long[] ids;
+	private final FloatBuffer values;
+	private final int[] index;
+
+	FeatureMatrix(int rank,long[] ids,int rows,FloatBuffer values)
+	{
+		this.rank = rank;
+		this.rows = rows;
+		this.ids = ids;
+		this.values = values;
+		int capacity = Integer.highestOneBit(Math.max(rows, 1) * 2) * 2;
+		this.index = new int[capacity];
+		Arrays.fill(index, -1);
+		int mask = capacity - 1;
+		for(int row=0;row<rows;row++)
+		{
+			int i = hash(ids[row]) & mask;
+			while (index[i] != -1 && ids[index[i]] != ids[row])
+				i = (i + 1) & mask;
+			index[i] = row; // a repeated id keeps the last row
+		}
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	public int size() {
+		return rows;
+	}
+
+	public boolean isEmpty() {
+		return rows == 0;
+	}
+
+	/**
+	 * @return approximate bytes used by the ids, index and features whether on the heap or mapped
+	 */
+	public long getSizeBytes() {
+		return rows * 8L + index.length * 4L + (long) rows * rank * 4L;
+	}
+
+	/**
+	 * @param id
+	 * @return the row for the id or -1 if not present
+	 */
+	public int row(long id)
+	{
+		int mask = index.length - 1;
+		int i = hash(id) & mask;
+		while (index[i] != -1)
+		{
+			if (ids[index[i]] == id)
+				return index[i];
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	public long getId(int row)
+	{
+		return ids[row];
+	}
+
+	public float get(int row,int col)
+	{
+		return values.get(row * rank + col);
+	}
+
+	/**
+	 * Add the row to the accumulator
+	 */
+	public void addRowTo(int row,double[] acc)
+	{
+		int offset = row * rank;
+		for (int i = 0; i < rank; i++)
+			acc[i] += values.get(offset + i);
+	}
+
+	public double[] getRowAsDouble(int row)
+	{
+		double[] vec = new double[rank];
+		addRowTo(row, vec);
+		return vec;
+	}
+
+	public float dot(int row,double[] vec)
+	{
+		int offset = row * rank;
+		float sum = 0;
+		for (int i = 0; i < rank; i++)
+			sum += values.get(offset + i) * vec[i];
+		return sum;
+	}
+
+	/**
+	 * Score every row against the vector and return the top k excluding the given ids.
+	 * Rows are scored a block at a time and only scores beating the current k-th best touch the heap.
+	 */
+	public List<ItemRecommendationResult> topK(double[] vec,int k,FastIDSet exclusions)
+	{
+		TopK top = new TopK(k);
+		float[] scores = new float[SCORE_BLOCK_ROWS];
+		for(int start=0;start<rows;start+=SCORE_BLOCK_ROWS)
+		{
+			int end = Math.min(start + SCORE_BLOCK_ROWS, rows);
+			for(int row=start;row<end;row++)
+				scores[row - start] = dot(row, vec);
+			for(int row=start;row<end;row++)
+			{
+				float score = scores[row - start];
+				if (top.accepts(score) && !exclusions.contains(ids[row]))
+					top.offer(ids[row], score);
+			}
+		}
+		return toList(top);
+	}
+
+	/**
+	 * Score only the candidate ids present in the matrix and return the top k excluding the given ids.
+	 */
+	public List<ItemRecommendationResult> topK(double[] vec,int k,FastIDSet exclusions,Collection<Long> candidates)
+	{
+		TopK top = new TopK(k);
+		for(Long id : candidates)
+		{
+			if (exclusions.contains(id))
+				continue;
+			int row = row(id);
+			if (row >= 0)
+			{
+				float score = dot(row, vec);
+				if (top.accepts(score))
+					top.offer(id, score);
+			}
+		}
+		return toList(top);
+	}
+
+	/**
+	 * Add the ids and features as blocks prefix.ids and prefix.features
+	 */
+	public void addTo(BinaryModel.Writer writer,String prefix)
+	{
+		writer.addLongs(prefix + IDS_BLOCK, ids, rows, 1);
+		writer.addFloats(prefix + FEATURES_BLOCK, values, rows, rank);
+	}
+
+	/**
+	 * Create a matrix whose features are a view on the mapped model written by {@link #addTo(BinaryModel.Writer, String)}.
+	 * The features stay in the page cache rather than the heap.
+	 */
+	public static FeatureMatrix fromModel(BinaryModel model,String prefix)
+	{
+		int rows = model.getRows(prefix + IDS_BLOCK);
+		long[] ids = new long[rows];
+		model.getLongs(prefix + IDS_BLOCK).get(ids);
+		return new FeatureMatrix(model.getCols(prefix + FEATURES_BLOCK), ids, rows, model.getFloats(prefix + FEATURES_BLOCK));
+	}
+
+	/**
+	 * Builds a heap backed matrix a row at a time.
+	 */
+	public static class Builder {
+		private int rank = -1;
+		private int rows = 0;
+		private long[] ids = new long[1024];
+		private float[] values = new float[0];
+
+		public Builder add(long id,float[] features)
+		{
+			if (rank == -1)
+			{
+				rank = features.length;
+				values = new float[ids.length * rank];
+			}
+			else if (features.length != rank)
+				throw new IllegalArgumentException("Expected "+rank+" features for "+id+" but got "+features.length);
+			if (rows == ids.length)
+			{
+				ids = Arrays.copyOf(ids, rows * 2);
+				values = Arrays.copyOf(values, rows * 2 * rank);
+			}
+			ids[rows] = id;
+			System.arraycopy(features, 0, values, rows * rank, rank);
+			rows++;
+			return this;
+		}
+
+		public FeatureMatrix build()
+		{
+			int r = Math.max(rank, 0);
+			return new FeatureMatrix(r, ids, rows, FloatBuffer.wrap(values, 0, rows * r).slice());
+		}
+	}
+
+	private static List<ItemRecommendationResult> toList(TopK top)
+	{
+		top.sortDescending();
+		List<ItemRecommendationResult> res = new ArrayList<>(top.size());
+		for(int i=0;i<top.size();i++)
+			res.add(new ItemRecommendationResult(top.getId(i), (float) top.getScore(i)));
+		return res;
+	}
+}
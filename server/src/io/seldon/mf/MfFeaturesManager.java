@@ -37,6 +37,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 import io.seldon.api.state.ClientAlgorithmStore;
+import io.seldon.recommendation.model.BinaryModel;
 import io.seldon.recommendation.model.ModelManager;
 import io.seldon.resources.external.ExternalResourceStreamer;
 import io.seldon.resources.external.NewResourceNotifier;
@@ -45,6 +46,7 @@ import org.apache.commons.math.linear.InvalidMatrixException;
 import org.apache.commons.math.linear.LUDecompositionImpl;
 import org.apache.commons.math.linear.RealMatrix;
 import org.apache.log4j.Logger;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -66,6 +68,10 @@ public class MfFeaturesManager extends ModelManager<MfFeaturesManager.ClientMfFe
     private static Logger logger = Logger.getLogger(MfFeaturesManager.class.getName());
     private final ExternalResourceStreamer featuresFileHandler;
     private static final String MF_NEW_LOC_PATTERN = "mf";
+    private static final String BINARY_MODEL_FILE = "model.bin";
+    private static final String USER_PREFIX = "user";
+    private static final String PRODUCT_PREFIX = "product";
+    private static final int WARM_UP_RECS = 50;
 
 
     @Autowired
@@ -79,50 +85,73 @@ public class MfFeaturesManager extends ModelManager<MfFeaturesManager.ClientMfFe
         logger.info("Reloading matrix factorization features for client: "+ client);
 
         try {
-            BufferedReader userFeaturesReader = new BufferedReader(new InputStreamReader(
-                    featuresFileHandler.getResourceStream(location + "/userFeatures.txt.gz")
-            ));
-            Map<Long, float[]> userFeatures = readFeatures(userFeaturesReader);
-            int rank= 0;
-            if(!userFeatures.isEmpty()){
-                Long firstUser = userFeatures.keySet().iterator().next();
-                rank = userFeatures.get(firstUser).length;
+            FeatureMatrix userFeatures;
+            FeatureMatrix productFeatures;
+            BinaryModel binaryModel = loadBinaryModel(featuresFileHandler, location, BINARY_MODEL_FILE);
+            if (binaryModel != null)
+            {
+                userFeatures = FeatureMatrix.fromModel(binaryModel, USER_PREFIX);
+                productFeatures = FeatureMatrix.fromModel(binaryModel, PRODUCT_PREFIX);
+            }
+            else
+            {
+                BufferedReader userFeaturesReader = new BufferedReader(new InputStreamReader(
+                        featuresFileHandler.getResourceStream(location + "/userFeatures.txt.gz")
+                ));
+                userFeatures = readFeatures(userFeaturesReader);
+                userFeaturesReader.close();
+                BufferedReader productFeaturesReader = new BufferedReader(new InputStreamReader(
+                        featuresFileHandler.getResourceStream(location + "/productFeatures.txt.gz")
+                ));
+                productFeatures = readFeatures(productFeaturesReader);
+                productFeaturesReader.close();
             }
-            BufferedReader productFeaturesReader = new BufferedReader(new InputStreamReader(
-                    featuresFileHandler.getResourceStream(location + "/productFeatures.txt.gz")
-            ));
-            Map<Long, float[]> productFeatures = readFeatures(productFeaturesReader);
             logger.info("Finished loading MF features ("+userFeatures.size()+" users and "+productFeatures.size() +
-                    " products at rank " + rank +") for " + client);
-            userFeaturesReader.close();
-            productFeaturesReader.close();
+                    " products at rank " + userFeatures.getRank() +") for " + client);
             return new ClientMfFeaturesStore(userFeatures, productFeatures);
         } catch (FileNotFoundException e) {
             logger.error("Couldn't reloadFeatures for client "+ client, e);
         } catch (IOException e) {
             logger.error("Couldn't reloadFeatures for client "+ client, e);
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid binary model for client "+ client, e);
         }
         return null;
     }
 
+    @Override
+    protected void warmUp(String client, ClientMfFeaturesStore model, int numQueries) {
+        FeatureMatrix queries = model.userFeatures.isEmpty() ? model.productFeatures : model.userFeatures;
+        if (queries.isEmpty())
+            return;
+        long t1 = System.currentTimeMillis();
+        Random r = new Random();
+        FastIDSet noExclusions = new FastIDSet();
+        for (int i = 0; i < numQueries; i++)
+            model.productFeatures.topK(queries.getRowAsDouble(r.nextInt(queries.size())), WARM_UP_RECS, noExclusions);
+        logger.info("Warmed up MF features for "+client+" with "+numQueries+" queries in "+(System.currentTimeMillis()-t1)+" msecs");
+    }
 
+    @Override
+    protected long getModelSize(ClientMfFeaturesStore model) {
+        return model.userFeatures.getSizeBytes() + model.productFeatures.getSizeBytes();
+    }
 
-
-    private Map<Long,float[]> readFeatures(BufferedReader reader) throws IOException {
-        Map<Long, float[]> toReturn = new HashMap<>();
+    private FeatureMatrix readFeatures(BufferedReader reader) throws IOException {
+        FeatureMatrix.Builder builder = new FeatureMatrix.Builder();
         String line;
         while((line = reader.readLine()) !=null){
-            String[] userAndFeatures = line.split("\\|");
-            Long item = Long.parseLong(userAndFeatures[0]);
-            String[] features = userAndFeatures[1].split(",");
+            int sep = line.indexOf('|');
+            long item = Long.parseLong(line.substring(0, sep));
+            String[] features = line.substring(sep + 1).split(",");
 
             float[] featuresList = new float[features.length];
             for (int i = 0; i < featuresList.length; i++){
                 featuresList[i]= Float.parseFloat(features[i]);
             }
-            toReturn.put(item, featuresList);
+            builder.add(item, featuresList);
         }
-        return toReturn;
+        return builder.build();
     }
 
 //
@@ -138,56 +167,56 @@ public class MfFeaturesManager extends ModelManager<MfFeaturesManager.ClientMfFe
 
     public static class ClientMfFeaturesStore {
 
-        public final Map<Long, float[]> userFeatures;
-        public final Map<Long, float[]> productFeatures;
+        public final FeatureMatrix userFeatures;
+        public final FeatureMatrix productFeatures;
+        /**
+         * (YtY)^-1 for the product features Y, null if YtY is singular
+         */
         public final double[][] productFeaturesInverse;
-        public final Map<Long,Integer> idMap;
-        
-        public ClientMfFeaturesStore(Map<Long, float[]> userFeatures,
-                                     Map<Long, float[]> productFeatures){
+
+        public ClientMfFeaturesStore(FeatureMatrix userFeatures,
+                                     FeatureMatrix productFeatures){
             this.userFeatures = userFeatures;
             this.productFeatures = productFeatures;
-
-            int numProducts = productFeatures.size();
-            int numLatentFactors = productFeatures.values().iterator().next().length;
-            idMap = new HashMap<>();
-        	double[][] itemFactorsDouble  = new double[numProducts][numLatentFactors];            
-        	int i = 0;
-        	for(Map.Entry<Long, float[]> e : productFeatures.entrySet())
-        	{
-        		idMap.put(e.getKey(), i);
-        		for(int j=0;j<numLatentFactors;j++)
-        			itemFactorsDouble[i][j] = e.getValue()[j];
-        		i++;
-        	}
-        	productFeaturesInverse = computeUserFoldInMatrix(itemFactorsDouble);
-        	if (productFeaturesInverse != null)
-        		logger.info("Successfully created inverse of product feature matrix for fold in");
+            productFeaturesInverse = computeUserFoldInMatrix(productFeatures);
+            if (productFeaturesInverse != null)
+                logger.info("Successfully created inverse of product feature matrix for fold in");
         }
-        
+
         /**
-         * http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16 
-         * @param recentitemInteractions
-         * @param productFeaturesInverse
-         * @param idMap
+         * http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16
+         * A user u is folded in as u.Y.(YtY)^-1 so only the rank x rank inverse is kept
+         * rather than the full Y.(YtY)^-1 product matrix.
+         * @param itemFactors
          * @return
          */
-        private double[][] computeUserFoldInMatrix(double[][] itemFactors) 
+        private double[][] computeUserFoldInMatrix(FeatureMatrix itemFactors)
         {
-        	try
-        	{
-        		RealMatrix Y = new Array2DRowRealMatrix(itemFactors);
-        		RealMatrix YTY = Y.transpose().multiply(Y);
-        		RealMatrix YTYInverse = new LUDecompositionImpl(YTY).getSolver().getInverse();
-
-        		return Y.multiply(YTYInverse).getData();
-        	}
-        	catch (InvalidMatrixException e)
-        	{
-        		logger.warn("Failed to create inverse of products feature matrix",e);
-        		return null;
-        	}
-    	  }
+            int rank = itemFactors.getRank();
+            if (itemFactors.isEmpty() || rank == 0)
+                return null;
+            try
+            {
+                double[][] YTY = new double[rank][rank];
+                for (int row = 0; row < itemFactors.size(); row++)
+                    for (int i = 0; i < rank; i++)
+                    {
+                        double fi = itemFactors.get(row, i);
+                        for (int j = i; j < rank; j++)
+                            YTY[i][j] += fi * itemFactors.get(row, j);
+                    }
+                for (int i = 0; i < rank; i++)
+                    for (int j = 0; j < i; j++)
+                        YTY[i][j] = YTY[j][i];
+                RealMatrix YTYInverse = new LUDecompositionImpl(new Array2DRowRealMatrix(YTY, false)).getSolver().getInverse();
+                return YTYInverse.getData();
+            }
+            catch (InvalidMatrixException e)
+            {
+                logger.warn("Failed to create inverse of products feature matrix",e);
+                return null;
+            }
+        }
     }
 
 }
@@ -29,17 +29,14 @@ import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommen
 import io.seldon.clustering.recommender.RecommendationContext;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Ordering;
-
 /**
  * @author firemanphil
  *         Date: 29/09/2014
@@ -61,49 +58,30 @@ public class MfRecommender implements ItemRecommendationAlgorithm {
             RecommendationContext ctxt, List<Long> recentitemInteractions) {
         MfFeaturesManager.ClientMfFeaturesStore clientStore = this.store.getClientStore(client,ctxt.getOptsHolder());
 
-        if(clientStore==null || clientStore.userFeatures.get(user)==null) {
+        int userRow = (clientStore==null || user==null) ? -1 : clientStore.userFeatures.row(user);
+        if(userRow < 0) {
             logger.debug("Couldn't find a matrix factorization store for this client or this user");
             return new ItemRecommendationResultSet(Collections.<ItemRecommendationResult>emptyList(), name);
         }
 
-        float[] userVector =  clientStore.userFeatures.get(user);
-        Set<ItemRecommendationResult> recs = new HashSet<>();
+        double[] userVector = clientStore.userFeatures.getRowAsDouble(userRow);
+        FastIDSet exclusions = new FastIDSet(recentitemInteractions.size());
+        for (Long item : recentitemInteractions)
+            exclusions.add(item);
+
+        List<ItemRecommendationResult> recsList;
         if(ctxt.getMode()== RecommendationContext.MODE.INCLUSION){
             // special case for INCLUSION as it's easier on the cpu.
-            for (Long item : ctxt.getContextItems()){
-            	if (!recentitemInteractions.contains(item))
-            	{
-            		float[] features = clientStore.productFeatures.get(item);
-            		if(features!=null)
-            			recs.add(new ItemRecommendationResult(item, dot(features,userVector)));
-            	}
-            }
-
+            recsList = clientStore.productFeatures.topK(userVector, maxRecsCount, exclusions, ctxt.getContextItems());
         } else {
-           for (Map.Entry<Long, float[]> productFeatures : clientStore.productFeatures.entrySet()) {
-        	   Long item = productFeatures.getKey().longValue();
-        	   if (!recentitemInteractions.contains(item))
-          		{
-        		   recs.add(new ItemRecommendationResult(item,dot(productFeatures.getValue(),userVector)));
-          		}
-           }
+            recsList = clientStore.productFeatures.topK(userVector, maxRecsCount, exclusions);
         }
 
-        List<ItemRecommendationResult> recsList = Ordering.natural().greatestOf(recs, maxRecsCount);
         if (logger.isDebugEnabled())
         	logger.debug("Created "+recsList.size() + " recs");
         return new ItemRecommendationResultSet(recsList, name);
     }
 
-
-    private static float dot(float[] vec1, float[] vec2){
-        float sum = 0;
-        for (int i = 0; i < vec1.length; i++){
-            sum += vec1[i] * vec2[i];
-        }
-        return sum;
-    }
-
     @Override
     public String name() {
         return name;
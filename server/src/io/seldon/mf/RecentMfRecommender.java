@@ -23,6 +23,7 @@
 
 package io.seldon.mf;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
@@ -30,24 +31,21 @@ import io.seldon.clustering.recommender.RecommendationContext;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.math.linear.ArrayRealVector;
 import org.apache.commons.math.linear.RealVector;
 import org.apache.log4j.Logger;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.google.common.collect.Ordering;
-
 @Component
 public class RecentMfRecommender implements ItemRecommendationAlgorithm {
  	private static Logger logger = Logger.getLogger(RecentMfRecommender.class.getName());
 	private static final String name = RecentMfRecommender.class.getSimpleName();
-	private static final String RECENT_ACTIONS_PROPERTY_NAME = "io.seldon.algorithm.general.numrecentactionstouse";
+	private static final AlgorithmOption RECENT_ACTIONS_PROPERTY_NAME = AlgorithmOption.named("io.seldon.algorithm.general.numrecentactionstouse");
 	private final MfFeaturesManager store;
 
 
@@ -63,7 +61,7 @@ public class RecentMfRecommender implements ItemRecommendationAlgorithm {
             int maxRecsCount, RecommendationContext ctxt, List<Long> recentItemInteractions) {
 
 		RecommendationContext.OptionsHolder opts = ctxt.getOptsHolder();
-		int numRecentActionsToUse = opts.getIntegerOption(RECENT_ACTIONS_PROPERTY_NAME);
+		int numRecentActionsToUse = opts.getInteger(RECENT_ACTIONS_PROPERTY_NAME);
         MfFeaturesManager.ClientMfFeaturesStore clientStore = this.store.getClientStore(client, ctxt.getOptsHolder());
 
         if(clientStore==null) {
@@ -81,99 +79,81 @@ public class RecentMfRecommender implements ItemRecommendationAlgorithm {
 		else
 			itemsToScore = new ArrayList<>(recentItemInteractions);
 
+        FeatureMatrix productFeatures = clientStore.productFeatures;
         double[] userVector;
         if (clientStore.productFeaturesInverse != null)
         {
         	//fold in user data from their recent history of item interactions
         	logger.debug("Creating user vector by folding in features");
-        	userVector = foldInUser(itemsToScore, clientStore.productFeaturesInverse, clientStore.idMap);
+        	userVector = foldInUser(itemsToScore, clientStore.productFeaturesInverse, productFeatures);
         }
         else
         {
         	logger.debug("Creating user vector by averaging features");
-        	userVector = createAvgProductVector(itemsToScore, clientStore.productFeatures);
+        	userVector = createAvgProductVector(itemsToScore, productFeatures);
         }
-        
-        Set<ItemRecommendationResult> recs = new HashSet<>();
+
+        FastIDSet exclusions = new FastIDSet(recentItemInteractions.size());
+        for (Long item : recentItemInteractions)
+        	exclusions.add(item);
+
+        List<ItemRecommendationResult> recsList;
         if(ctxt.getMode()== RecommendationContext.MODE.INCLUSION){
             // special case for INCLUSION as it's easier on the cpu.
-            for (Long item : ctxt.getContextItems()){
-            	if (!recentItemInteractions.contains(item))
-            	{
-            		float[] features = clientStore.productFeatures.get(item);
-            		if(features!=null)
-            			recs.add(new ItemRecommendationResult(item, dot(features,userVector)));
-            	}
-            }
-
+            recsList = productFeatures.topK(userVector, maxRecsCount, exclusions, ctxt.getContextItems());
         } else {
-           for (Map.Entry<Long, float[]> productFeatures : clientStore.productFeatures.entrySet()) {
-                Long item = productFeatures.getKey().longValue();
-            	if (!recentItemInteractions.contains(item))
-            	{
-            		recs.add(new ItemRecommendationResult(item,dot(productFeatures.getValue(),userVector)));
-            	}
-           }
+            recsList = productFeatures.topK(userVector, maxRecsCount, exclusions);
         }
 
-        List<ItemRecommendationResult> recsList = Ordering.natural().greatestOf(recs, maxRecsCount);
         if (logger.isDebugEnabled())
         	logger.debug("Created "+recsList.size() + " recs");
         return new ItemRecommendationResultSet(recsList, name);
     }
 
-    public double[] createAvgProductVector(List<Long> recentitemInteractions,Map<Long,float[]> productFeatures)
+    public double[] createAvgProductVector(List<Long> recentitemInteractions,FeatureMatrix productFeatures)
     {
-    	int numLatentFactors = productFeatures.values().iterator().next().length;
-    	double[] userFeatures = new double[numLatentFactors];
-    	for (Long item : recentitemInteractions) 
-		{
-    		float[] productFactors = productFeatures.get(item);
-    		if (productFactors != null)
-    		{
-    			for (int feature = 0; feature < numLatentFactors; feature++) 
-    			{
-    				userFeatures[feature] += productFactors[feature];
-    			}
-    		}
-		}
-    	RealVector  userFeaturesAsVector = new ArrayRealVector(userFeatures);
+    	double[] userFeatures = sumProductVectors(recentitemInteractions, productFeatures);
+    	RealVector  userFeaturesAsVector = new ArrayRealVector(userFeatures, false);
     	RealVector normalised =  userFeaturesAsVector.mapDivide(userFeaturesAsVector.getL1Norm());
 
     	return normalised.getData();
     }
-    
+
     /**
-     * http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16 
+     * http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16
      * @param recentitemInteractions
-     * @param productFeaturesInverse
-     * @param idMap
+     * @param productFeaturesInverse (YtY)^-1
+     * @param productFeatures Y
      * @return
      */
-    public double[] foldInUser(List<Long> recentitemInteractions,double[][] productFeaturesInverse,Map<Long,Integer> idMap) {
+    public double[] foldInUser(List<Long> recentitemInteractions,double[][] productFeaturesInverse,FeatureMatrix productFeatures) {
 
-    	int numLatentFactors = productFeaturesInverse[0].length;
+    	double[] itemSum = sumProductVectors(recentitemInteractions, productFeatures);
+    	int numLatentFactors = itemSum.length;
 	    double[] userFeatures = new double[numLatentFactors];
-	    for (Long item : recentitemInteractions) 
+	    for (int i = 0; i < numLatentFactors; i++)
 	    {
-	    	Integer id = idMap.get(item);
-	    	if (id != null)
+	    	if (itemSum[i] != 0)
 	    	{
-	    		for (int feature = 0; feature < numLatentFactors; feature++) 
+	    		for (int feature = 0; feature < numLatentFactors; feature++)
 	    		{
-	    			userFeatures[feature] += productFeaturesInverse[id][feature];
+	    			userFeatures[feature] += itemSum[i] * productFeaturesInverse[i][feature];
 	    		}
 	    	}
 	    }
 	    return userFeatures;
 	  }
 
-    private static float dot(float[] vec1, double[] vec2){
-        float sum = 0;
-        for (int i = 0; i < vec1.length; i++){
-            sum += vec1[i] * vec2[i];
-        }
-        return sum;
+    private static double[] sumProductVectors(List<Long> items,FeatureMatrix productFeatures)
+    {
+    	double[] sum = new double[productFeatures.getRank()];
+    	for (Long item : items)
+    	{
+    		int row = productFeatures.row(item);
+    		if (row >= 0)
+    			productFeatures.addRowTo(row, sum);
+    	}
+    	return sum;
     }
 
 	@Override
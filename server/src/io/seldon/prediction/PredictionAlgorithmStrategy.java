@@ -21,6 +21,9 @@
 */
 package io.seldon.prediction;
 
+import io.seldon.api.state.options.DefaultOptions;
+import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
+
 import java.util.Map;
 
 public class PredictionAlgorithmStrategy {
@@ -33,6 +36,8 @@ public class PredictionAlgorithmStrategy {
 	 */
 	public final String name;
 
+	private volatile OptionsHolder options;
+
 	public PredictionAlgorithmStrategy(PredictionAlgorithm algorithm,
 			Map<String, String> config, String name) {
 		super();
@@ -40,6 +45,18 @@ public class PredictionAlgorithmStrategy {
 		this.config = config;
 		this.name = name;
 	}
-	
+
+	/**
+	 * @return the config of this strategy merged with the default options, built on first use
+	 */
+	public OptionsHolder getOptions(DefaultOptions defaultOptions) {
+		OptionsHolder res = options;
+		if (res == null) {
+			res = new OptionsHolder(defaultOptions, config);
+			options = res;
+		}
+		return res;
+	}
+
 	
 }
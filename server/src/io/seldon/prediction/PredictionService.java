@@ -54,7 +54,7 @@ public class PredictionService {
 		}
 		for(PredictionAlgorithmStrategy algStr : strategy.getAlgorithms())
 		{
-			OptionsHolder optsHolder = new OptionsHolder(defaultOptions, algStr.config);
+			OptionsHolder optsHolder = algStr.getOptions(defaultOptions);
 			PredictionsResult res = algStr.algorithm.predict(client, json, optsHolder);
 			if (res != null && res.predictions.size() > 0)
 				return res;
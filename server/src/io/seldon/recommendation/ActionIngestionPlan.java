@@ -0,0 +1,144 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.recommendation;
+
+import io.seldon.api.state.options.DefaultOptions;
+import io.seldon.clustering.recommender.RecommendationContext;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The options needed to ingest an action under a strategy, compiled once when the strategy is configured so the
+ * action path does not re-read algorithm options from strings.
+ */
+public class ActionIngestionPlan {
+
+	public static final String BUCKET_CLUSTER_OPTION_NAME = "io.seldon.algorithm.clusters.usebucketcluster";
+	public static final String FULL_ACTION_STORE_OPTION_NAME = "io.seldon.algorithm.actions.storefullactions";
+	// options saying how many of a user's recent actions an algorithm reads
+	public static final String NUM_RECENT_ACTIONS_OPTION_NAME = "io.seldon.algorithm.general.numrecentactionstouse";
+	public static final String RECENT_ACTIONS_TO_FILTER_OPTION_NAME = "io.seldon.algorithm.filter.recentactionstofilter";
+	public static final String BASKET_MAX_SIZE_OPTION_NAME = "io.seldon.algorithm.assocrules.basket.maxsize";
+
+	// action types are small so weights are held in an array indexed by type, NaN meaning no weight
+	private static final int MAX_DENSE_TYPE = 1024;
+
+	private final boolean useBucketCluster;
+	private final boolean storeFullActions;
+	private final double[] denseWeights;
+	private final Map<Integer,Double> actionWeights;
+
+	private ActionIngestionPlan(boolean useBucketCluster,boolean storeFullActions,Map<Integer,Double> actionWeights)
+	{
+		this.useBucketCluster = useBucketCluster;
+		this.storeFullActions = storeFullActions;
+		this.actionWeights = actionWeights;
+		int maxType = -1;
+		for (Integer type : actionWeights.keySet())
+			if (type != null && type >= 0 && type < MAX_DENSE_TYPE)
+				maxType = Math.max(maxType, type);
+		this.denseWeights = new double[maxType + 1];
+		Arrays.fill(denseWeights, Double.NaN);
+		for (Map.Entry<Integer,Double> e : actionWeights.entrySet())
+			if (e.getKey() != null && e.getKey() >= 0 && e.getKey() < MAX_DENSE_TYPE && e.getValue() != null)
+				denseWeights[e.getKey()] = e.getValue();
+	}
+
+	/**
+	 * @param strategies the algorithms of the strategy, any of which can switch on bucket clusters or full actions
+	 * @param actionWeights weight by action type
+	 * @param defaultOptions used for options an algorithm does not set
+	 */
+	public static ActionIngestionPlan build(List<AlgorithmStrategy> strategies,Map<Integer,Double> actionWeights,DefaultOptions defaultOptions)
+	{
+		boolean useBucketCluster = false;
+		boolean storeFullActions = false;
+		for (AlgorithmStrategy strat : strategies)
+		{
+			RecommendationContext.OptionsHolder holder = strat.getOptions(defaultOptions);
+			if (holder.getBooleanOption(BUCKET_CLUSTER_OPTION_NAME))
+				useBucketCluster = true;
+			if (holder.getBooleanOption(FULL_ACTION_STORE_OPTION_NAME))
+				storeFullActions = true;
+		}
+		return new ActionIngestionPlan(useBucketCluster, storeFullActions,
+				actionWeights == null ? Collections.<Integer,Double>emptyMap() : actionWeights);
+	}
+
+	/**
+	 * @param holder the options of an algorithm
+	 * @return the number of a user's most recent actions the algorithm reads, 0 if its options do not say
+	 */
+	public static int getRecentActionsLimit(RecommendationContext.OptionsHolder holder)
+	{
+		int limit = Math.max(getInt(holder, NUM_RECENT_ACTIONS_OPTION_NAME), getInt(holder, RECENT_ACTIONS_TO_FILTER_OPTION_NAME));
+		// association rules read twice the basket size of full actions
+		return Math.max(limit, 2 * getInt(holder, BASKET_MAX_SIZE_OPTION_NAME));
+	}
+
+	private static int getInt(RecommendationContext.OptionsHolder holder,String optionName)
+	{
+		String value = holder.getStringOption(optionName);
+		if (value == null)
+			return 0;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	public boolean isUseBucketCluster() {
+		return useBucketCluster;
+	}
+
+	public boolean isStoreFullActions() {
+		return storeFullActions;
+	}
+
+	/**
+	 * @param type
+	 * @param defaultWeight
+	 * @return the weight for the action type or the default if it has none
+	 */
+	public double getActionWeight(int type,double defaultWeight)
+	{
+		if (type >= 0 && type < denseWeights.length)
+		{
+			double w = denseWeights[type];
+			return Double.isNaN(w) ? defaultWeight : w;
+		}
+		if (type >= 0 && type < MAX_DENSE_TYPE)
+			return defaultWeight;
+		Double w = actionWeights.get(type);
+		return w == null ? defaultWeight : w;
+	}
+}
@@ -23,7 +23,9 @@
 
 package io.seldon.recommendation;
 
+import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
+import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
 
 import java.util.Map;
 import java.util.Set;
@@ -59,11 +61,39 @@ public class AlgorithmStrategy {
      */
     public final String name;
 
+    private volatile OptionsHolder options;
+
     public AlgorithmStrategy(ItemRecommendationAlgorithm algorithm, Set<ItemIncluder> includers, Set<ItemFilter> filters, Map<String,String> config, String name) {
+        this(algorithm, includers, filters, config, name, null);
+    }
+
+    public AlgorithmStrategy(ItemRecommendationAlgorithm algorithm, Set<ItemIncluder> includers, Set<ItemFilter> filters, Map<String,String> config, String name,
+                             OptionsHolder options) {
         this.algorithm = algorithm;
         this.includers = includers;
         this.filters = filters;
         this.config = config;
         this.name = name;
+        this.options = options;
+    }
+
+    /**
+     * A strategy with the same includers, filters and options as the base but a different algorithm.
+     */
+    public AlgorithmStrategy(AlgorithmStrategy base, ItemRecommendationAlgorithm algorithm, String name) {
+        this(algorithm, base.includers, base.filters, base.config, name, base.options);
+    }
+
+    /**
+     * @param defaultOptions used to build the options if they were not given when the strategy was created
+     * @return the config of this strategy merged with the default options
+     */
+    public OptionsHolder getOptions(DefaultOptions defaultOptions) {
+        OptionsHolder res = options;
+        if (res == null) {
+            res = new OptionsHolder(defaultOptions, config);
+            options = res;
+        }
+        return res;
     }
 }
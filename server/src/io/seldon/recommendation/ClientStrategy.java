@@ -47,4 +47,6 @@ public interface ClientStrategy {
     String getName(String userId,String recTag);
     
     Map<Integer,Double> getActionsWeights(String userId, String recTag);
+
+    ActionIngestionPlan getIngestionPlan(String userId, String recTag);
 }
@@ -94,7 +94,7 @@ public class JsOverrideClientStrategy implements ClientStrategy {
             Object bean = ctxt.getBean(oldAlgNamesToNew.get(override));
             if (bean != null) {
                 ItemRecommendationAlgorithm newAlg= (ItemRecommendationAlgorithm) bean;
-                alternate.add(new AlgorithmStrategy(newAlg, first.includers, first.filters, first.config, name));
+                alternate.add(new AlgorithmStrategy(first, newAlg, name));
             } else {
                 logger.error("Couldn't translate old algorithm name " + override + " into algorithm.");
             }
@@ -116,4 +116,9 @@ public class JsOverrideClientStrategy implements ClientStrategy {
 	public Map<Integer, Double> getActionsWeights(String userId, String recTag) {
 		return baseStrategy.getActionsWeights(userId, recTag);
 	}
+
+	@Override
+	public ActionIngestionPlan getIngestionPlan(String userId, String recTag) {
+		return baseStrategy.getIngestionPlan(userId, recTag);
+	}
 }
@@ -70,6 +70,11 @@ public class RecTagClientStrategy implements ClientStrategy {
     	return getStrategy(recTag).getActionsWeights(userId, recTag);
 	}
 
+	@Override
+	public ActionIngestionPlan getIngestionPlan(String userId, String recTag) {
+		return getStrategy(recTag).getIngestionPlan(userId, recTag);
+	}
+
     private ClientStrategy getStrategy(String recTag){
         if(recTag!=null && !recTag.equals(DEFAULT_REC_TAG)){
             // we have a rectag...
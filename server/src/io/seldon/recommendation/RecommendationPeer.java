@@ -27,10 +27,15 @@ import io.seldon.api.APIException;
 import io.seldon.api.Constants;
 import io.seldon.api.caching.ActionHistoryCache;
 import io.seldon.api.state.ClientAlgorithmStore;
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.api.state.options.DefaultOptions;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
+import io.seldon.db.jdo.JDOFactory;
+import io.seldon.memcache.MemCacheBulkGet;
+import io.seldon.memcache.MemCacheKeys;
+import io.seldon.memcache.MemCachePeer;
 import io.seldon.recommendation.combiner.AlgorithmResultsCombiner;
 import io.seldon.recommendation.filters.ExplicitItemsIncluder;
 import io.seldon.recommendation.filters.FilteredItems;
@@ -41,6 +46,20 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
@@ -61,6 +80,10 @@ public class RecommendationPeer {
 	
 	public static final int MEMCACHE_TRUSTNET_EXPIRE_SECS = 60 * 60 * 3;
 	public static final int MEMCACHE_RECENT_ITEMS_EXPIRE_SECS = 60 * 15;
+	private static final AlgorithmOption PARALLEL_OPTION = AlgorithmOption.named("io.seldon.algorithm.general.parallel");
+	private static final AlgorithmOption DEADLINE_OPTION = AlgorithmOption.named("io.seldon.algorithm.general.deadlinemillis");
+	private static final int DEFAULT_DEADLINE_MILLIS = 1000;
+	private static final int MAX_ALGORITHM_THREADS = 64;
 	private final DefaultOptions defaultOptions;
 
 	private double HIGH_RATING_THRESHOLD = 0.5;
@@ -79,12 +102,48 @@ public class RecommendationPeer {
 	
     private boolean debugging = false;
 
+	private final ThreadPoolExecutor algorithmExecutor;
+
 	@Autowired
     public RecommendationPeer(ClientAlgorithmStore algStore, DefaultOptions defaultOptions) {
+        this(algStore, defaultOptions, createAlgorithmExecutor());
+    }
+
+	RecommendationPeer(ClientAlgorithmStore algStore, DefaultOptions defaultOptions, ThreadPoolExecutor algorithmExecutor) {
         this.algStore = algStore;
 		this.defaultOptions = defaultOptions;
+		this.algorithmExecutor = algorithmExecutor;
     }
 
+	/**
+	 * Bounded so a saturated pool rejects algorithms, which are then skipped, rather than queueing them or running them
+	 * on the request thread without a deadline
+	 */
+	private static ThreadPoolExecutor createAlgorithmExecutor()
+	{
+		return new ThreadPoolExecutor(MAX_ALGORITHM_THREADS, MAX_ALGORITHM_THREADS, 1, TimeUnit.MINUTES,
+				new ArrayBlockingQueue<Runnable>(MAX_ALGORITHM_THREADS), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "recommendation-algorithm-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy()) {
+			protected void afterExecute(java.lang.Runnable runnable, java.lang.Throwable throwable)
+			{
+				JDOFactory.get().cleanupPM();
+			}
+		};
+	}
+
+	@PreDestroy
+	public void shutdown()
+	{
+		algorithmExecutor.shutdownNow();
+	}
+
 
 	public RecommendationResult getRecommendations(long user, String client, String clientUserId, Integer type,
                                                    Set<Integer> dimensions, int numRecommendationsAsked,
@@ -102,6 +161,35 @@ public class RecommendationPeer {
             throw new APIException(APIException.NOT_VALID_STRATEGY);
         }
 
+        MemCachePeer.prefetch(getPrefetchKeys(user, client, clientUserId, dimensions));
+        try
+        {
+        	return getRecommendations(strategy, user, client, clientUserId, dimensions, numRecommendationsAsked,
+        			lastRecListUUID, currentItemId, recTag, scoreItems);
+        }
+        finally
+        {
+        	MemCachePeer.endPrefetch();
+        }
+	}
+
+	/**
+	 * The memcache keys every recommendation request reads so they can be fetched in one round trip
+	 */
+	private List<String> getPrefetchKeys(long user, String client, String clientUserId, Set<Integer> dimensions)
+	{
+		List<String> keys = new ArrayList<>();
+		if (user != Constants.ANONYMOUS_USER)
+			keys.add(MemCacheKeys.getActionHistory(client, user));
+		keys.add(MemCacheKeys.getRecentRecsForUser(client, clientUserId, dimensions));
+		keys.add(MemCacheKeys.getRecommendationListUserCounter(client, dimensions, clientUserId));
+		keys.add(MemCacheKeys.getExcludedItemsForRecommendations(client, clientUserId));
+		return keys;
+	}
+
+	private RecommendationResult getRecommendations(ClientStrategy strategy, long user, String client, String clientUserId,
+			Set<Integer> dimensions, int numRecommendationsAsked, String lastRecListUUID, Long currentItemId, String recTag,
+			Set<Long> scoreItems) {
 		//Set base values - will be used for anonymous users
 		int numRecommendations = numRecommendationsAsked;
 		int numRecentActions = 0;
@@ -131,36 +219,10 @@ public class RecommendationPeer {
 
 
 		Map<Long,Double> recommenderScores = new HashMap<>();
-		List<String> algsUsed = new ArrayList<>();
-		List<RecResultContext> resultSets = new ArrayList<>();
 		AlgorithmResultsCombiner combiner = strategy.getAlgorithmResultsCombiner(clientUserId, recTag);
-		for(AlgorithmStrategy algStr : strategy.getAlgorithms(clientUserId, recTag))
-		{
-			if (logger.isDebugEnabled())
-				logger.debug("Using recommender class " + algStr.name);
-
-			List<Long> recentItemInteractions;
-			// add items from recent history if there are any and algorithm options says to use them
-			if (recentActions != null && recentActions.size() > 0)
-				recentItemInteractions = new ArrayList<>(recentActions);
-			else
-				recentItemInteractions = new ArrayList<>();
-
-			// add current item id if not in recent actions
-			if (currentItemId != null && !recentItemInteractions.contains(currentItemId))
-				recentItemInteractions.add(currentItemId);
-			FilteredItems explicitItems = null;
-			if (scoreItems != null)
-				explicitItems = explicitItemsIncluder.create(client, scoreItems);
-			RecommendationContext ctxt = RecommendationContext.buildContext(client,
-					algStr,user,clientUserId,currentItemId, dimensions, lastRecListUUID, numRecommendations,defaultOptions,explicitItems);
-			ItemRecommendationResultSet results = algStr.algorithm.recommend(client, user, dimensions,
-					numRecommendations, ctxt, recentItemInteractions);
-
-		    resultSets.add(new RecResultContext(results, results.getRecommenderName()));
-			if(combiner.isEnoughResults(numRecommendations, resultSets))
-				break;
-		}
+		List<AlgorithmStrategy> algorithms = strategy.getAlgorithms(clientUserId, recTag);
+		List<RecResultContext> resultSets = getResultSets(algorithms, combiner, client, user, clientUserId, dimensions, numRecommendations,
+				lastRecListUUID, currentItemId, recentActions, scoreItems);
         RecResultContext combinedResults = combiner.combine(numRecommendations, resultSets);
         if (logger.isDebugEnabled())
         	logger.debug("After combining, we have "+combinedResults.resultSet.getResults().size()+
@@ -199,6 +261,207 @@ public class RecommendationPeer {
 	}
 
 
+	/**
+	 * @return the results of the algorithms the combiner needs, in strategy order
+	 */
+	List<RecResultContext> getResultSets(List<AlgorithmStrategy> algorithms, AlgorithmResultsCombiner combiner,
+			String client, long user, String clientUserId, Set<Integer> dimensions, int numRecommendations, String lastRecListUUID,
+			Long currentItemId, List<Long> recentActions, Set<Long> scoreItems)
+	{
+		if (isConcurrent(algorithms))
+			return getResultSetsConcurrently(algorithms, combiner, client, user, clientUserId, dimensions, numRecommendations,
+					lastRecListUUID, currentItemId, recentActions, scoreItems);
+		else
+			return getResultSetsSequentially(algorithms, combiner, client, user, clientUserId, dimensions, numRecommendations,
+					lastRecListUUID, currentItemId, recentActions, scoreItems);
+	}
+
+	/**
+	 * The strategy is run concurrently only if all its algorithms have the parallel option set, so by default
+	 * algorithms are run one after another in the order given.
+	 */
+	private boolean isConcurrent(List<AlgorithmStrategy> algorithms)
+	{
+		if (algorithms.size() < 2)
+			return false;
+		for(AlgorithmStrategy algStr : algorithms)
+			if (!algStr.getOptions(defaultOptions).getBoolean(PARALLEL_OPTION))
+				return false;
+		return true;
+	}
+
+	private List<RecResultContext> getResultSetsSequentially(List<AlgorithmStrategy> algorithms, AlgorithmResultsCombiner combiner,
+			String client, long user, String clientUserId, Set<Integer> dimensions, int numRecommendations, String lastRecListUUID,
+			Long currentItemId, List<Long> recentActions, Set<Long> scoreItems)
+	{
+		List<RecResultContext> resultSets = new ArrayList<>();
+		for(AlgorithmStrategy algStr : algorithms)
+		{
+			resultSets.add(recommend(algStr, client, user, clientUserId, dimensions, numRecommendations, lastRecListUUID, currentItemId, recentActions, scoreItems));
+			if(combiner.isEnoughResults(numRecommendations, resultSets))
+				break;
+		}
+		return resultSets;
+	}
+
+	/**
+	 * Submit all algorithms to the executor and collect the results in strategy order. Each algorithm has its own deadline
+	 * after which its results are dropped. As soon as the completed algorithms at the front of the list are enough for the
+	 * combiner the remaining algorithms are cancelled, so the combined results are the same as running sequentially.
+	 */
+	private List<RecResultContext> getResultSetsConcurrently(List<AlgorithmStrategy> algorithms, AlgorithmResultsCombiner combiner,
+			final String client, final long user, final String clientUserId, final Set<Integer> dimensions, final int numRecommendations,
+			final String lastRecListUUID, final Long currentItemId, final List<Long> recentActions, final Set<Long> scoreItems)
+	{
+		int numAlgs = algorithms.size();
+		long start = System.currentTimeMillis();
+		RecResultContext[] results = new RecResultContext[numAlgs];
+		boolean[] done = new boolean[numAlgs];
+		long[] deadlines = new long[numAlgs];
+		List<Future<RecResultContext>> futures = new ArrayList<>(numAlgs);
+		Map<Future<RecResultContext>,Integer> positions = new HashMap<>();
+		CompletionService<RecResultContext> completionService = new ExecutorCompletionService<>(algorithmExecutor);
+		final MemCacheBulkGet prefetch = MemCachePeer.getPrefetch();
+		for(int i=0;i<numAlgs;i++)
+		{
+			final AlgorithmStrategy algStr = algorithms.get(i);
+			int deadline = algStr.getOptions(defaultOptions).getInteger(DEADLINE_OPTION);
+			deadlines[i] = start + (deadline > 0 ? deadline : DEFAULT_DEADLINE_MILLIS);
+			Future<RecResultContext> future;
+			try
+			{
+				future = completionService.submit(new Callable<RecResultContext>() {
+					@Override
+					public RecResultContext call() throws Exception {
+						MemCachePeer.setPrefetch(prefetch);
+						try
+						{
+							return recommend(algStr, client, user, clientUserId, dimensions, numRecommendations, lastRecListUUID, currentItemId, recentActions, scoreItems);
+						}
+						finally
+						{
+							MemCachePeer.setPrefetch(null);
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				logger.warn("Algorithm pool is saturated so skipping algorithm "+algStr.name+" for client "+client);
+				futures.add(null);
+				done[i] = true;
+				continue;
+			}
+			futures.add(future);
+			positions.put(future, i);
+		}
+		int prefix = 0; // number of algorithms at the front of the strategy that are done
+		int pending = positions.size();
+		try
+		{
+			while (pending > 0 && prefix < numAlgs)
+			{
+				long nextDeadline = Long.MAX_VALUE;
+				for(int i=0;i<numAlgs;i++)
+					if (!done[i] && deadlines[i] < nextDeadline)
+						nextDeadline = deadlines[i];
+				Future<RecResultContext> future = completionService.poll(Math.max(nextDeadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+				if (future != null)
+				{
+					int pos = positions.get(future);
+					if (!done[pos])
+					{
+						done[pos] = true;
+						pending--;
+						try
+						{
+							results[pos] = future.get();
+						}
+						catch (ExecutionException e)
+						{
+							logger.error("Algorithm "+algorithms.get(pos).name+" failed for client "+client+" so dropping its results",e.getCause());
+						}
+						catch (CancellationException e)
+						{
+							// already dropped
+						}
+					}
+				}
+				else
+				{
+					long now = System.currentTimeMillis();
+					for(int i=0;i<numAlgs;i++)
+						if (!done[i] && deadlines[i] <= now)
+						{
+							done[i] = true;
+							pending--;
+							futures.get(i).cancel(true);
+							logger.warn("Algorithm "+algorithms.get(i).name+" missed its deadline of "+(deadlines[i]-start)+"ms for client "+client+" so dropping its results");
+						}
+				}
+				boolean enough = false;
+				while (prefix < numAlgs && done[prefix])
+				{
+					prefix++;
+					if (combiner.isEnoughResults(numRecommendations, collect(results, prefix)))
+					{
+						enough = true;
+						break;
+					}
+				}
+				if (enough)
+					break;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			logger.warn("Interrupted while waiting for algorithms for client "+client);
+			Thread.currentThread().interrupt();
+		}
+		for(int i=0;i<numAlgs;i++)
+			if (!done[i])
+				futures.get(i).cancel(true);
+		if (logger.isDebugEnabled())
+			logger.debug("Concurrent algorithms for client "+client+" completed in "+(System.currentTimeMillis()-start)+"ms using "+prefix+" of "+numAlgs);
+		return collect(results, prefix);
+	}
+
+	private static List<RecResultContext> collect(RecResultContext[] results, int prefix)
+	{
+		List<RecResultContext> resultSets = new ArrayList<>();
+		for(int i=0;i<prefix;i++)
+			if (results[i] != null)
+				resultSets.add(results[i]);
+		return resultSets;
+	}
+
+	private RecResultContext recommend(AlgorithmStrategy algStr, String client, long user, String clientUserId, Set<Integer> dimensions,
+			int numRecommendations, String lastRecListUUID, Long currentItemId, List<Long> recentActions, Set<Long> scoreItems)
+	{
+		if (logger.isDebugEnabled())
+			logger.debug("Using recommender class " + algStr.name);
+
+		List<Long> recentItemInteractions;
+		// add items from recent history if there are any and algorithm options says to use them
+		if (recentActions != null && recentActions.size() > 0)
+			recentItemInteractions = new ArrayList<>(recentActions);
+		else
+			recentItemInteractions = new ArrayList<>();
+
+		// add current item id if not in recent actions
+		if (currentItemId != null && !recentItemInteractions.contains(currentItemId))
+			recentItemInteractions.add(currentItemId);
+		FilteredItems explicitItems = null;
+		if (scoreItems != null)
+			explicitItems = explicitItemsIncluder.create(client, scoreItems);
+		RecommendationContext ctxt = RecommendationContext.buildContext(client,
+				algStr,user,clientUserId,currentItemId, dimensions, lastRecListUUID, numRecommendations,defaultOptions,explicitItems);
+		ItemRecommendationResultSet results = algStr.algorithm.recommend(client, user, dimensions,
+				numRecommendations, ctxt, recentItemInteractions);
+		return new RecResultContext(results, results.getRecommenderName());
+	}
+
+
     private RecommendationResult createFinalRecResult(int numRecommendationsAsked, String client, String clientUserId,
 													  Set<Integer> dimensions,String currentRecUUID,List<Long> recs,String algKey,
 													  Long currentItemId,int numRecentActions, Double diversityLevel,
@@ -24,9 +24,11 @@
 package io.seldon.recommendation;
 
 import io.seldon.api.logging.CtrLogger;
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
 import io.seldon.memcache.MemCacheKeys;
 import io.seldon.memcache.MemCachePeer;
 import io.seldon.util.CollectionTools;
+import io.seldon.util.TopK;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -36,7 +38,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
 
@@ -167,6 +168,24 @@ public class RecommendationUtils {
 	}
 	
 	
+	/**
+	 * @return the selected results, highest first, with scores divided by the highest score or no results if that is not positive
+	 */
+	public static List<ItemRecommendationResult> rescaleScoresToOne(TopK top)
+	{
+		top.sortDescending();
+		List<ItemRecommendationResult> results = new ArrayList<>(top.size());
+		if (top.size() > 0 && top.getScore(0) > 0)
+		{
+			double max = top.getScore(0);
+			for(int i=0;i<top.size();i++)
+				results.add(new ItemRecommendationResult(top.getId(i), (float) (top.getScore(i)/max)));
+		}
+		else
+			logger.debug("Zero max in scores - returning no results");
+		return results;
+	}
+	
 	public static class ValueComparator implements Comparator<Long> {
 
 	    Map<Long, Double> base;
@@ -184,26 +203,17 @@ public class RecommendationUtils {
 	    }
 	}
 	
+	/**
+	 * @return the top k scores divided by the highest score
+	 */
 	public static Map<Long,Double> getTopK(Map<Long,Double> map,int k)
 	{
-		ValueComparator bvc =  new ValueComparator(map);
-        TreeMap<Long,Double> sorted_map = new TreeMap<Long,Double>(bvc);
-        sorted_map.putAll(map);
-        int i = 0;
-        Map<Long,Double> r = new HashMap<>(k);
-        double max =0;
-        for(Map.Entry<Long, Double> e : sorted_map.entrySet())
-        {
-        	if (++i > k)
-        		break;
-        	else
-        	{
-        		if (i == 1)
-        			max = e.getValue();
-        		r.put(e.getKey(), e.getValue()/max);
-        	}
-        }
-        return r;
+		TopK top = TopK.select(map, k).sortDescending();
+		Map<Long,Double> r = new HashMap<>(top.size() * 2);
+		double max = top.size() > 0 ? top.getScore(0) : 0;
+		for(int i=0;i<top.size();i++)
+			r.put(top.getId(i), top.getScore(i)/max);
+		return r;
 	}
 
 }
@@ -43,14 +43,17 @@ public class SimpleClientStrategy implements ClientStrategy {
     private final Double diversityLevel;
     private final String name;
     private final Map<Integer,Double> actionWeights;
+    private final ActionIngestionPlan ingestionPlan;
 
     public SimpleClientStrategy(List<AlgorithmStrategy> strategies, AlgorithmResultsCombiner algResultsCombiner,
-                                Double diversityLevel, String name,Map<Integer,Double> actionWeights) {
+                                Double diversityLevel, String name,Map<Integer,Double> actionWeights,
+                                ActionIngestionPlan ingestionPlan) {
         this.strategies = strategies;
         this.algResultsCombiner = algResultsCombiner;
         this.diversityLevel= diversityLevel==null? 1.0 : diversityLevel;
         this.name = name;
         this.actionWeights = actionWeights;
+        this.ingestionPlan = ingestionPlan;
     }
 
     @Override
@@ -77,4 +80,9 @@ public class SimpleClientStrategy implements ClientStrategy {
 	public Map<Integer, Double> getActionsWeights(String userId, String recTag) {
 		return actionWeights;
 	}
+
+	@Override
+	public ActionIngestionPlan getIngestionPlan(String userId, String recTag) {
+		return ingestionPlan;
+	}
 }
@@ -76,6 +76,11 @@ public class VariationTestingClientStrategy implements ClientStrategy {
     	return sample(userId).getActionsWeights(userId, recTag);
 	}
 
+	@Override
+	public ActionIngestionPlan getIngestionPlan(String userId, String recTag) {
+		return sample(userId).getIngestionPlan(userId, recTag);
+	}
+
     public ClientStrategy sample(String userId) {
         Integer hash = MurmurHash.hash(userId.getBytes(), HASH_SEED);
         int sample = Math.abs(hash % 100);
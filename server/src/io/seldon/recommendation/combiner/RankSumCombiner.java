@@ -24,6 +24,7 @@
 package io.seldon.recommendation.combiner;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.recommendation.RecommendationPeer;
+import io.seldon.util.TopK;
 
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -74,10 +75,13 @@ public class RankSumCombiner implements AlgorithmResultsCombiner{
             }
         }
 
+        // only the top numRecsRequired of each set are ranked so order each set once
+        for (RecommendationPeer.RecResultContext validResultSet : validResultSets)
+            sortTop(validResultSet.resultSet.getResults(), numRecsRequired);
+
         for (int i = 0; i < numRecsRequired; i++){
             for (RecommendationPeer.RecResultContext validResultSet : validResultSets) {
                 List<ItemRecommendationResultSet.ItemRecommendationResult> ordered = validResultSet.resultSet.getResults();
-                Collections.sort(ordered, Collections.reverseOrder());
                 Integer rankSum = rankSumMap.get(ordered.get(i));
                 if(rankSum == null) rankSum = 0;
                 rankSum += (numRecsRequired -i);
@@ -97,4 +101,30 @@ public class RankSumCombiner implements AlgorithmResultsCombiner{
         return new RecommendationPeer.RecResultContext(new ItemRecommendationResultSet(orderedResults, StringUtils.join(validResultsAlgKeys,':')), StringUtils.join(validResultsAlgKeys,':'));
     }
 
+    /**
+     * Move the k highest scoring results to the front of the list in descending order
+     */
+    private static void sortTop(List<ItemRecommendationResultSet.ItemRecommendationResult> results, int k){
+        if (k >= results.size()){
+            Collections.sort(results, Collections.reverseOrder());
+            return;
+        }
+        TopK top = new TopK(k);
+        for (int i = 0; i < results.size(); i++)
+            top.offer(i, results.get(i).score);
+        top.sortDescending();
+        List<ItemRecommendationResultSet.ItemRecommendationResult> reordered = new ArrayList<>(results.size());
+        boolean[] selected = new boolean[results.size()];
+        for (int i = 0; i < top.size(); i++){
+            int pos = (int) top.getId(i);
+            selected[pos] = true;
+            reordered.add(results.get(pos));
+        }
+        for (int i = 0; i < results.size(); i++)
+            if (!selected[i])
+                reordered.add(results.get(i));
+        for (int i = 0; i < results.size(); i++)
+            results.set(i, reordered.get(i));
+    }
+
 }
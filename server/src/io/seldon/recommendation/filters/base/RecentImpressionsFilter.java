@@ -25,6 +25,7 @@ package io.seldon.recommendation.filters.base;
 
 import io.seldon.api.Constants;
 import io.seldon.api.caching.ActionHistoryCache;
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.recommendation.ItemFilter;
 
@@ -43,7 +44,7 @@ import org.springframework.stereotype.Component;
  */
 @Component
 public class RecentImpressionsFilter implements ItemFilter {
-    private static final String RECENT_ACTIONS_NUM = "io.seldon.algorithm.filter.recentactionstofilter";
+    private static final AlgorithmOption RECENT_ACTIONS_NUM = AlgorithmOption.named("io.seldon.algorithm.filter.recentactionstofilter");
     private static Logger logger = Logger.getLogger(RecentImpressionsFilter.class.getName());
     
     @Autowired
@@ -55,7 +56,7 @@ public class RecentImpressionsFilter implements ItemFilter {
         if (user != Constants.ANONYMOUS_USER) // only can get recent actions for non anonymous user
         {
             // get recent actions for user
-            int recentActionsNum = optsHolder.getIntegerOption(RECENT_ACTIONS_NUM);
+            int recentActionsNum = optsHolder.getInteger(RECENT_ACTIONS_NUM);
             List<Long> recentActions = actionCache.getRecentActions(client,user, recentActionsNum >0 ? recentActionsNum : numRecommendations);
             if (logger.isDebugEnabled())
             	logger.debug("RecentActions for user with client "+client+" internal user id "+user+" num." + recentActions.size());
@@ -0,0 +1,312 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.recommendation.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A memory mapped binary model file made of named column blocks of ints, longs or floats.
+ * Blocks are views on the mapped file so loading a model does not copy it onto the heap.
+ * <p>
+ * The layout, all little endian, is
+ * <pre>
+ * int magic "SLDM", int version, int number of blocks
+ * per block: short name length, utf-8 name, byte type, int rows, int cols, long offset
+ * block data, each block starting on an 8 byte boundary
+ * </pre>
+ * The spark jobs write the same layout so any change here needs a new version.
+ * <p>
+ * Each block is mapped as its own region so the file may be larger than 2GB, but a single block can not be,
+ * as it is exposed as one buffer.
+ */
+public class BinaryModel {
+
+	public static final int MAGIC = 0x4d444c53; // "SLDM" when read little endian
+	public static final int VERSION = 1;
+
+	public static final byte TYPE_INT = 1;
+	public static final byte TYPE_LONG = 2;
+	public static final byte TYPE_FLOAT = 3;
+
+	private static class Block {
+		final byte type;
+		final int rows;
+		final int cols;
+		final MappedByteBuffer buffer;
+
+		Block(byte type,int rows,int cols,MappedByteBuffer buffer)
+		{
+			this.type = type;
+			this.rows = rows;
+			this.cols = cols;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File file;
+	private final int version;
+	private final Map<String,Block> blocks;
+
+	private BinaryModel(File file,int version,Map<String,Block> blocks)
+	{
+		this.file = file;
+		this.version = version;
+		this.blocks = blocks;
+	}
+
+	public static BinaryModel map(File file) throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+			 FileChannel channel = raf.getChannel())
+		{
+			long position = 0;
+			ByteBuffer header = read(channel, position, 12);
+			if (header == null || header.getInt() != MAGIC)
+				throw new IOException("Not a binary model file "+file);
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported binary model version "+version+" in "+file);
+			int numBlocks = header.getInt();
+			position += 12;
+			Map<String,Block> blocks = new LinkedHashMap<>();
+			for(int i=0;i<numBlocks;i++)
+			{
+				ByteBuffer nameLength = read(channel, position, 2);
+				if (nameLength == null)
+					throw new IOException("Truncated binary model file "+file);
+				byte[] name = new byte[nameLength.getShort()];
+				ByteBuffer entry = read(channel, position + 2, name.length + 17);
+				if (entry == null)
+					throw new IOException("Truncated binary model file "+file);
+				position += 2 + name.length + 17;
+				entry.get(name);
+				byte type = entry.get();
+				int rows = entry.getInt();
+				int cols = entry.getInt();
+				long offset = entry.getLong();
+				long length = (long) rows * cols * width(type);
+				if (offset < 0 || length < 0 || offset + length > channel.size())
+					throw new IOException("Truncated binary model file "+file);
+				if (length > Integer.MAX_VALUE)
+					throw new IOException("Block "+new String(name, StandardCharsets.UTF_8)+" in "+file+" is too large to map");
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				blocks.put(new String(name, StandardCharsets.UTF_8), new Block(type, rows, cols, buf));
+			}
+			return new BinaryModel(file, version, blocks);
+		}
+	}
+
+	/**
+	 * @return the little endian bytes at position or null if the file is too short
+	 */
+	private static ByteBuffer read(FileChannel channel,long position,int length) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining())
+			if (channel.read(buf, position + buf.position()) < 0)
+				return null;
+		buf.flip();
+		return buf;
+	}
+
+	private static int width(byte type) throws IOException
+	{
+		switch(type)
+		{
+		case TYPE_INT:
+		case TYPE_FLOAT:
+			return 4;
+		case TYPE_LONG:
+			return 8;
+		default:
+			throw new IOException("Unknown block type "+type);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean hasBlock(String name)
+	{
+		return blocks.containsKey(name);
+	}
+
+	public int getRows(String name)
+	{
+		return getBlock(name).rows;
+	}
+
+	public int getCols(String name)
+	{
+		return getBlock(name).cols;
+	}
+
+	public IntBuffer getInts(String name)
+	{
+		return view(name, TYPE_INT).asIntBuffer();
+	}
+
+	public LongBuffer getLongs(String name)
+	{
+		return view(name, TYPE_LONG).asLongBuffer();
+	}
+
+	public FloatBuffer getFloats(String name)
+	{
+		return view(name, TYPE_FLOAT).asFloatBuffer();
+	}
+
+	private Block getBlock(String name)
+	{
+		Block block = blocks.get(name);
+		if (block == null)
+			throw new IllegalArgumentException("No block "+name+" in model "+file);
+		return block;
+	}
+
+	private ByteBuffer view(String name,byte type)
+	{
+		Block block = getBlock(name);
+		if (block.type != type)
+			throw new IllegalArgumentException("Block "+name+" in model "+file+" has type "+block.type+" not "+type);
+		return block.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Collects blocks and writes them in the binary model layout.
+	 */
+	public static class Writer {
+
+		private final List<String> names = new ArrayList<>();
+		private final List<Object> data = new ArrayList<>();
+		private final List<Byte> types = new ArrayList<>();
+		private final List<int[]> shapes = new ArrayList<>();
+
+		public Writer addInts(String name,int[] values,int rows,int cols)
+		{
+			return add(name, values, TYPE_INT, rows, cols);
+		}
+
+		public Writer addLongs(String name,long[] values,int rows,int cols)
+		{
+			return add(name, values, TYPE_LONG, rows, cols);
+		}
+
+		public Writer addFloats(String name,FloatBuffer values,int rows,int cols)
+		{
+			return add(name, values, TYPE_FLOAT, rows, cols);
+		}
+
+		private Writer add(String name,Object values,byte type,int rows,int cols)
+		{
+			names.add(name);
+			data.add(values);
+			types.add(type);
+			shapes.add(new int[] {rows,cols});
+			return this;
+		}
+
+		public void write(File file) throws IOException
+		{
+			long headerSize = 12;
+			for(String name : names)
+				headerSize += 2 + name.getBytes(StandardCharsets.UTF_8).length + 1 + 4 + 4 + 8;
+			long[] offsets = new long[names.size()];
+			long size = align(headerSize);
+			for(int i=0;i<names.size();i++)
+			{
+				offsets[i] = size;
+				size = align(size + (long) shapes.get(i)[0] * shapes.get(i)[1] * width(types.get(i)));
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				 FileChannel channel = raf.getChannel())
+			{
+				raf.setLength(size);
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize);
+				header.order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putInt(names.size());
+				for(int i=0;i<names.size();i++)
+				{
+					byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+					header.putShort((short) name.length);
+					header.put(name);
+					header.put(types.get(i));
+					header.putInt(shapes.get(i)[0]);
+					header.putInt(shapes.get(i)[1]);
+					header.putLong(offsets[i]);
+				}
+				header.force();
+				for(int i=0;i<names.size();i++)
+				{
+					long length = (long) shapes.get(i)[0] * shapes.get(i)[1] * width(types.get(i));
+					if (length > Integer.MAX_VALUE)
+						throw new IOException("Block "+names.get(i)+" is too large to map");
+					MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, offsets[i], length);
+					buf.order(ByteOrder.LITTLE_ENDIAN);
+					int n = shapes.get(i)[0] * shapes.get(i)[1];
+					switch(types.get(i))
+					{
+					case TYPE_INT:
+						buf.asIntBuffer().put((int[]) data.get(i), 0, n);
+						break;
+					case TYPE_LONG:
+						buf.asLongBuffer().put((long[]) data.get(i), 0, n);
+						break;
+					default:
+						FloatBuffer values = ((FloatBuffer) data.get(i)).duplicate();
+						values.position(0).limit(n);
+						buf.asFloatBuffer().put(values);
+					}
+					buf.force();
+				}
+			}
+		}
+
+		private static long align(long offset)
+		{
+			return (offset + 7) & ~7L;
+		}
+	}
+}
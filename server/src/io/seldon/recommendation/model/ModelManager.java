@@ -23,22 +23,34 @@
 
 package io.seldon.recommendation.model;
 
+import io.seldon.api.statsd.StatsdPeer;
 import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.mf.PerClientExternalLocationListener;
 import io.seldon.recommendation.ClientStrategy;
+import io.seldon.resources.external.ExternalResourceStreamer;
 import io.seldon.resources.external.NewResourceNotifier;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
 
 /**
+ * Loads per client models in the background and swaps them in atomically. Each client and model name has
+ * a slot holding the live version; a newly loaded model is warmed up before it replaces the live one.
+ * Requests already using a replaced model keep their reference to it and the GC reclaims it, including the
+ * mappings of memory mapped models, once they are done.
+ *
  * @author firemanphil
  *         Date: 28/04/15
  *         Time: 12:16
@@ -47,11 +59,37 @@ public abstract class ModelManager<T> implements PerClientExternalLocationListen
     private static final String MODEL_PROPERTY_NAME = "io.seldon.algorithm.model.name";
     private static Logger logger = Logger.getLogger(ModelManager.class.getName());
 
-    private final ConcurrentMap<String, ConcurrentMap<String,T>> clientStores
+    /**
+     * A loaded model and the order in which its load was requested
+     */
+    public static class ModelVersion<T> {
+        public final T model;
+        public final long version;
+        public final String location;
+        public final long sizeBytes;
+        public final long loadMillis;
+
+        public ModelVersion(T model, long version, String location, long sizeBytes, long loadMillis) {
+            this.model = model;
+            this.version = version;
+            this.location = location;
+            this.sizeBytes = sizeBytes;
+            this.loadMillis = loadMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "ModelVersion [version=" + version + ", location=" + location + ", sizeBytes=" + sizeBytes + ", loadMillis=" + loadMillis + "]";
+        }
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String,AtomicReference<ModelVersion<T>>>> clientStores
             = new ConcurrentHashMap<>();
 
     private final Executor executor;
     private final Set<String> nodeBases;
+    private final AtomicLong versions = new AtomicLong();
+    private volatile int warmUpQueries = 10;
 
     public ModelManager(NewResourceNotifier notifier, Set<String> nodePatterns) {
         this(notifier, nodePatterns, Executors.newFixedThreadPool(2));
@@ -64,36 +102,57 @@ public abstract class ModelManager<T> implements PerClientExternalLocationListen
         this.executor = executor;
     }
 
+    @Value("${io.seldon.model.warmup.queries:10}")
+    public void setWarmUpQueries(int warmUpQueries) {
+        this.warmUpQueries = warmUpQueries;
+    }
+
     @Override
     public void newClientLocation(final String client, final String location, final String nodePattern) {
     	logger.info("New location "+client+" : "+location+ " : "+nodePattern);
-        String rightBase = null;
-        Iterator<String> iter = nodeBases.iterator();
-        while(rightBase==null && iter.hasNext()) {
-            String base = iter.next();
-            if (nodePattern.contains(base))
-                rightBase = base;
-        }
-
+        final String rightBase = getBase(nodePattern);
         final String finalPartOfNode = nodePattern.replace(rightBase,"").replaceFirst("/", "");
+        // versions are taken in notification order so a slow load can't replace a later one
+        final long version = versions.incrementAndGet();
 
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                String key = getKey(client,nodePattern);
+                long t1 = System.currentTimeMillis();
                 T result = loadModel(location, client);
-                clientStores.putIfAbsent(key, new ConcurrentHashMap<String, T>());
-                clientStores.get(key).putIfAbsent(finalPartOfNode, result);
-                for (Map<String, T> store : clientStores.values()) {
-                    for (String t : store.keySet()) {
-                        logger.info(t + " " + store.get(t));
-                    }
+                if (result == null) {
+                    logger.warn("Failed to load model "+version+" for "+client+" at "+location+" keeping existing model");
+                    return;
                 }
+                warmUp(client, result, warmUpQueries);
+                long loadMillis = System.currentTimeMillis() - t1;
+                ModelVersion<T> loaded = new ModelVersion<>(result, version, location, getModelSize(result), loadMillis);
+                swap(client, rightBase, finalPartOfNode, loaded);
             }
         });
 
     }
 
+    private void swap(String client, String base, String name, ModelVersion<T> loaded) {
+        String key = getKey(client, base);
+        clientStores.putIfAbsent(key, new ConcurrentHashMap<String, AtomicReference<ModelVersion<T>>>());
+        ConcurrentMap<String, AtomicReference<ModelVersion<T>>> slots = clientStores.get(key);
+        slots.putIfAbsent(name, new AtomicReference<ModelVersion<T>>());
+        AtomicReference<ModelVersion<T>> slot = slots.get(name);
+        while (true) {
+            ModelVersion<T> current = slot.get();
+            if (current != null && current.version > loaded.version) {
+                logger.info("Discarding "+loaded+" for "+key+" "+name+" as newer "+current+" is live");
+                return;
+            }
+            if (slot.compareAndSet(current, loaded)) {
+                logger.info("Swapped in "+loaded+" for "+key+" "+name+(current == null ? "" : " replacing "+current));
+                StatsdPeer.logModelSwap(client, name.isEmpty() ? base : base + "." + name, loaded.loadMillis, loaded.sizeBytes);
+                return;
+            }
+        }
+    }
+
     public T getClientStore(String client, RecommendationContext.OptionsHolder options){
         String type = nodeBases.iterator().next();
         return getClientStore(client, type, options);
@@ -102,18 +161,19 @@ public abstract class ModelManager<T> implements PerClientExternalLocationListen
     public T getClientStore(String client, String type, RecommendationContext.OptionsHolder options){
         String modelName = options.getStringOption(MODEL_PROPERTY_NAME);
         String key = getKey(client, type);
-        if (!clientStores.containsKey(key))
+        ConcurrentMap<String, AtomicReference<ModelVersion<T>>> slots = clientStores.get(key);
+        if (slots == null)
         	return null;
         // check whether we are testing or not and get relevant model.
         switch (modelName) {
             case ClientStrategy.DEFAULT_NAME:
-                return clientStores.get(key).get("");
+                return getModel(slots, "");
 
             default:
-                T store = clientStores.get(key).get(modelName);
+                T store = getModel(slots, modelName);
                 if (store == null) {
                     logger.warn("Couldn't find model under name " + modelName + " for client " + client);
-                    return clientStores.get(key).get("");
+                    return getModel(slots, "");
                 } else {
                     return store;
                 }
@@ -121,8 +181,26 @@ public abstract class ModelManager<T> implements PerClientExternalLocationListen
 
     }
 
+    private T getModel(ConcurrentMap<String, AtomicReference<ModelVersion<T>>> slots, String name) {
+        AtomicReference<ModelVersion<T>> slot = slots.get(name);
+        if (slot == null)
+            return null;
+        ModelVersion<T> live = slot.get();
+        return live == null ? null : live.model;
+    }
+
     @Override
     public void clientLocationDeleted(String client, String nodePattern) {
+        String rightBase = getBase(nodePattern);
+        String key = getKey(client, rightBase);
+        final String finalPartOfNode = nodePattern.replace(rightBase, "").replaceFirst("/", "");
+        ConcurrentMap<String, AtomicReference<ModelVersion<T>>> slots = clientStores.get(key);
+        if(slots!=null){
+            slots.remove(finalPartOfNode);
+        }
+    }
+
+    private String getBase(String nodePattern) {
         String rightBase = null;
         Iterator<String> iter = nodeBases.iterator();
         while(rightBase==null && iter.hasNext()) {
@@ -130,15 +208,50 @@ public abstract class ModelManager<T> implements PerClientExternalLocationListen
             if (nodePattern.contains(base))
                 rightBase = base;
         }
-        String key = getKey(client, rightBase);
-        final String finalPartOfNode = nodePattern.replace(rightBase, "").replaceFirst("/", "");
-        if(clientStores.get(key)!=null){
-            clientStores.get(key).remove(finalPartOfNode);
-        }
+        return rightBase;
     }
 
     protected abstract T loadModel(String location,String client);
 
+    /**
+     * Exercise a newly loaded model before it goes live, e.g. to fault in mapped pages and warm the JIT.
+     * @param numQueries number of synthetic queries to run
+     */
+    protected void warmUp(String client, T model, int numQueries) {
+    }
+
+    /**
+     * @return approximate bytes held by the model or -1 if unknown
+     */
+    protected long getModelSize(T model) {
+        return -1;
+    }
+
+    /**
+     * Map a binary model file from the model location. Remote files are copied locally first.
+     * @return the model or null if the location has no such file
+     */
+    protected BinaryModel loadBinaryModel(ExternalResourceStreamer streamer, String location, String fileName) {
+        String reference = location + "/" + fileName;
+        File file = null;
+        try {
+            file = streamer.getResourceFile(reference);
+            long t1 = System.currentTimeMillis();
+            BinaryModel model = BinaryModel.map(file);
+            logger.info("Mapped binary model "+reference+" in "+(System.currentTimeMillis()-t1)+" msecs");
+            return model;
+        } catch (FileNotFoundException e) {
+            logger.debug("No binary model at "+reference);
+        } catch (IOException e) {
+            logger.error("Failed to map binary model "+reference, e);
+        } finally {
+            // the mapping keeps the pages of a deleted copy alive until it is unmapped
+            if (file != null && !ExternalResourceStreamer.isLocal(reference))
+                file.delete();
+        }
+        return null;
+    }
+
     private String getKey(String client,String key)
     {
         return client + ":" + key;
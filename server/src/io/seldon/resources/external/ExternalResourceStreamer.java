@@ -27,8 +27,14 @@ import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.amazonaws.AmazonServiceException;
 
 /**
  *
@@ -61,4 +67,40 @@ public class ExternalResourceStreamer {
             throw new IOException("Unknown external resource format: " + reference);
         }
     }
+
+    public static boolean isLocal(String reference) {
+        return reference.startsWith("local:/") || reference.startsWith("/");
+    }
+
+    /**
+     * Returns the resource as a file so it can be memory mapped. Remote resources are copied to a
+     * temporary file which the caller should delete once it is mapped or no longer needed.
+     */
+    public File getResourceFile(String reference) throws IOException {
+        if(isLocal(reference)){
+            File f = new File(reference.replace("local:/",""));
+            if (!f.exists())
+                throw new FileNotFoundException(reference);
+            return f;
+        } else {
+            File tmp = File.createTempFile("seldon-resource", ".tmp");
+            try (InputStream in = getResourceStream(reference); OutputStream out = new FileOutputStream(tmp)) {
+                if (in == null)
+                    throw new FileNotFoundException(reference);
+                byte[] buf = new byte[65536];
+                int read;
+                while ((read = in.read(buf)) != -1)
+                    out.write(buf, 0, read);
+            } catch (AmazonServiceException e) {
+                tmp.delete();
+                if (e.getStatusCode() == 404)
+                    throw new FileNotFoundException(reference);
+                throw new IOException("Failed to copy "+reference, e);
+            } catch (IOException e) {
+                tmp.delete();
+                throw e;
+            }
+            return tmp;
+        }
+    }
 }
@@ -23,6 +23,7 @@
 
 package io.seldon.similarity.item;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.RecommendationContext;
@@ -46,7 +47,7 @@ import org.springframework.stereotype.Component;
 public class ItemSimilarityRecommender implements ItemRecommendationAlgorithm {
 
 	private static final String name = ItemSimilarityRecommender.class.getSimpleName();
-	private static final String RECENT_ACTIONS_PROPERTY_NAME = "io.seldon.algorithm.general.numrecentactionstouse";
+	private static final AlgorithmOption RECENT_ACTIONS_PROPERTY_NAME = AlgorithmOption.named("io.seldon.algorithm.general.numrecentactionstouse");
 	private static Logger logger = Logger.getLogger( ItemSimilarityRecommender.class.getName() );
 
 	final static int RECOMMEND_CACHE_TIME_SECS = 3600;
@@ -124,7 +125,7 @@ public class ItemSimilarityRecommender implements ItemRecommendationAlgorithm {
 
 		
 		RecommendationContext.OptionsHolder opts = ctxt.getOptsHolder();
-		int numRecentActionsToUse = opts.getIntegerOption(RECENT_ACTIONS_PROPERTY_NAME);
+		int numRecentActionsToUse = opts.getInteger(RECENT_ACTIONS_PROPERTY_NAME);
 		List<Long> itemsToScore;
 		if(recentItemInteractions.size() > numRecentActionsToUse)
 		{
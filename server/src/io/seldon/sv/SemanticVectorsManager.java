@@ -62,6 +62,8 @@ public class SemanticVectorsManager extends ModelManager<SemanticVectorsStore> {
 		watchedNodePatterns.add(SV_WORD2VEC_NEW_LOC_PATTERN);
 	}
 	private static SemanticVectorsManager theManager; // hack until rest of code Springified
+	// below this a full scan of the doc vectors is cheap enough
+	private static final int MIN_INDEXED_DOC_VECTORS = 50000;
 
 
 	public static SemanticVectorsManager getManager()
@@ -95,8 +97,16 @@ public class SemanticVectorsManager extends ModelManager<SemanticVectorsStore> {
 			docVectorsReader.close();
 			logger.info("Loaded " + client + " docstore with " + docStore.getNumVectors() + " vectors");
 
+			VectorIndex docIndex = null;
+			if (docStore.getNumVectors() >= MIN_INDEXED_DOC_VECTORS)
+			{
+				docIndex = VectorIndex.build(docStore);
+				if (docIndex == null)
+					logger.warn("Unable to index docstore for client "+client+" as it does not hold real vectors of a single dimension");
+			}
+
 			logger.info("finished load of semantic vector features for client "+client);
-			return new SemanticVectorsStore(termStore, docStore);
+			return new SemanticVectorsStore(termStore, docStore, docIndex);
 
 
 		} catch (FileNotFoundException e) {
@@ -23,6 +23,7 @@
 
 package io.seldon.sv;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
 import io.seldon.clustering.recommender.ItemRecommendationResultSet;
 import io.seldon.clustering.recommender.RecommendationContext;
@@ -46,9 +47,10 @@ import org.springframework.stereotype.Component;
 @Component
 public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
     private static Logger logger = Logger.getLogger(SemanticVectorsRecommender.class.getName());
-    private static final String IGNORE_PEFECT_MATCH_OPTION_NAME = "io.seldon.algorithm.semantic.ignoreperfectsvmatches";
-    private static final String SV_PREFIX_OPTION_NAME = "io.seldon.algorithm.semantic.prefix";
-    private static final String RECENT_ACTIONS_PROPERTY_NAME = "io.seldon.algorithm.general.numrecentactionstouse";
+    private static final AlgorithmOption IGNORE_PEFECT_MATCH_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.semantic.ignoreperfectsvmatches");
+    private static final AlgorithmOption SV_PREFIX_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.semantic.prefix");
+    private static final AlgorithmOption RECENT_ACTIONS_PROPERTY_NAME = AlgorithmOption.named("io.seldon.algorithm.general.numrecentactionstouse");
+    private static final AlgorithmOption ANN_PROBES_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.semantic.annprobes");
     private static final String name = SemanticVectorsRecommender.class.getSimpleName();
     SemanticVectorsManager svManager;
 
@@ -66,7 +68,7 @@ public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
     public ItemRecommendationResultSet recommend(String client,Long user, Set<Integer> dimensions, int maxRecsCount, RecommendationContext ctxt,List<Long> recentItemInteractions) {
 
         RecommendationContext.OptionsHolder options = ctxt.getOptsHolder();
-    	return recommendImpl(client, user, dimensions, ctxt, maxRecsCount, recentItemInteractions, options.getStringOption(SV_PREFIX_OPTION_NAME));
+    	return recommendImpl(client, user, dimensions, ctxt, maxRecsCount, recentItemInteractions, options.getString(SV_PREFIX_OPTION_NAME));
     }
     
    protected ItemRecommendationResultSet recommendImpl(String client,Long user, Set<Integer> dimensions, RecommendationContext ctxt, int maxRecsCount,List<Long> recentItemInteractions,String svPrefix) {
@@ -76,7 +78,7 @@ public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
             logger.debug("Can't recommend as no recent item interactions");
             return new ItemRecommendationResultSet(Collections.<ItemRecommendationResultSet.ItemRecommendationResult>emptyList(), name);
         }
-        Boolean isIgnorePerfectSvMatches = options.getBooleanOption(IGNORE_PEFECT_MATCH_OPTION_NAME);
+        Boolean isIgnorePerfectSvMatches = options.getBoolean(IGNORE_PEFECT_MATCH_OPTION_NAME);
         SemanticVectorsStore svPeer = svManager.getClientStore(client, svPrefix, ctxt.getOptsHolder());
 
         if (svPeer == null)
@@ -86,7 +88,7 @@ public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
         }
         
         RecommendationContext.OptionsHolder opts = ctxt.getOptsHolder();
-		int numRecentActionsToUse = opts.getIntegerOption(RECENT_ACTIONS_PROPERTY_NAME);
+		int numRecentActionsToUse = opts.getInteger(RECENT_ACTIONS_PROPERTY_NAME);
 		List<Long> itemsToScore;
 		if(recentItemInteractions.size() > numRecentActionsToUse)
 		{
@@ -112,7 +114,8 @@ public class SemanticVectorsRecommender implements ItemRecommendationAlgorithm {
             Set<Long> itemExclusions = ctxt.getContextItems();
             if (logger.isDebugEnabled())
             	logger.debug("exclusion mode "+" num exclusions : "+itemExclusions.size());
-            recommendations = svPeer.recommendDocsUsingDocQuery(itemsToScore, new LongIdTransform(), maxRecsCount, itemExclusions, null,isIgnorePerfectSvMatches);
+            int annProbes = options.getInteger(ANN_PROBES_OPTION_NAME);
+            recommendations = svPeer.recommendDocsUsingDocQuery(itemsToScore, new LongIdTransform(), maxRecsCount, itemExclusions, null,isIgnorePerfectSvMatches,annProbes);
         }
         List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>();
         for(Map.Entry<Long, Double> e : recommendations.entrySet())
@@ -41,6 +41,7 @@ import java.util.Timer;
 
 import org.apache.log4j.Logger;
 
+import pitt.search.semanticvectors.CompoundVectorBuilder;
 import pitt.search.semanticvectors.FlagConfig;
 import pitt.search.semanticvectors.LuceneUtils;
 import pitt.search.semanticvectors.SearchResult;
@@ -54,8 +55,14 @@ public class SemanticVectorsStore {
 	
 	private static Logger logger = Logger.getLogger( SemanticVectorsStore.class.getName() );
 	
+	/**
+	 * Inverted lists of the doc index to scan per query when none is given by the caller
+	 */
+	public static final int DEFAULT_ANN_PROBES = 32;
+	
 	private VectorStore termVecReader;
 	private VectorStore docVecReader;
+	private VectorIndex docIndex;
 	private LuceneUtils luceneUtils = null;
 	
 	String baseDir;
@@ -68,9 +75,20 @@ public class SemanticVectorsStore {
 	FlagConfig flagConfig = FlagConfig.getFlagConfig(null);
 	
 	public SemanticVectorsStore(VectorStoreRAM termStore,VectorStoreRAM docStore)
+	{
+		this(termStore, docStore, null);
+	}
+	
+	/**
+	 * @param termStore
+	 * @param docStore
+	 * @param docIndex optional approximate index of the doc store, doc searches are brute force if null
+	 */
+	public SemanticVectorsStore(VectorStoreRAM termStore,VectorStoreRAM docStore,VectorIndex docIndex)
 	{
 		this.termVecReader = termStore;
 		this.docVecReader = docStore;
+		this.docIndex = docIndex;
 		this.useRamStores = true;
 	}
 	
@@ -80,7 +98,7 @@ public class SemanticVectorsStore {
 	public <T extends Comparable<T>>void searchTermsUsingTermQuery(T termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> termTransform,int numResults)
 	{
 		String query = termTransform.toSV(termQuery);
-		LinkedList<SearchResult> results = search(query,termVecReader,termVecReader,numResults);
+		LinkedList<SearchResult> results = search(query,termVecReader,termVecReader,numResults,0);
 		for(SearchResult r : results)
 		{
 			String filename = r.getObjectVector().getObject().toString();
@@ -90,9 +108,17 @@ public class SemanticVectorsStore {
 	
 	
 	public <T extends Comparable<T>,L extends Comparable<L>>void searchDocsUsingTermQuery(L termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,QueryTransform<L> termTransform,int numResults)
+	{
+		searchDocsUsingTermQuery(termQuery, docResult, docTransform, termTransform, numResults, DEFAULT_ANN_PROBES);
+	}
+	
+	/**
+	 * @param annProbes number of inverted lists to scan if the doc store is indexed, 0 for an exact scan
+	 */
+	public <T extends Comparable<T>,L extends Comparable<L>>void searchDocsUsingTermQuery(L termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,QueryTransform<L> termTransform,int numResults,int annProbes)
 	{
 		String query = termTransform.toSV(termQuery); 
-		LinkedList<SearchResult> results = search(query,termVecReader,docVecReader,numResults);
+		LinkedList<SearchResult> results = search(query,termVecReader,docVecReader,numResults,annProbes);
 		for(SearchResult r : results)
 		{
 			String filename = r.getObjectVector().getObject().toString();
@@ -102,6 +128,14 @@ public class SemanticVectorsStore {
 	
 	
 	public <T extends Comparable<T>,L extends Comparable<L>>void recommendDocsUsingTermQuery(L termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,QueryTransform<L> termTransform,int numResults,Set<T> exclusions,Set<T> inclusions,T minDoc)
+	{
+		recommendDocsUsingTermQuery(termQuery, docResult, docTransform, termTransform, numResults, exclusions, inclusions, minDoc, DEFAULT_ANN_PROBES);
+	}
+	
+	/**
+	 * @param annProbes number of inverted lists to scan if the doc store is indexed, 0 for an exact scan
+	 */
+	public <T extends Comparable<T>,L extends Comparable<L>>void recommendDocsUsingTermQuery(L termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,QueryTransform<L> termTransform,int numResults,Set<T> exclusions,Set<T> inclusions,T minDoc,int annProbes)
 	{
 		String query = termTransform.toSV(termQuery); 
 		Set<String> docExclusions = new HashSet<>();
@@ -112,7 +146,7 @@ public class SemanticVectorsStore {
 		if (inclusions != null)
 			for(T i : inclusions)
 				docInclusions.add(docTransform.toSV(i));
-		LinkedList<SearchResult> results = recommend(query,termVecReader,docVecReader,numResults,docExclusions,docInclusions,docTransform.toSV(minDoc));
+		LinkedList<SearchResult> results = recommend(query,termVecReader,docVecReader,numResults,docExclusions,docInclusions,docTransform.toSV(minDoc),annProbes);
 		for(SearchResult r : results)
 		{
 			String filename = r.getObjectVector().getObject().toString();
@@ -134,12 +168,20 @@ public class SemanticVectorsStore {
 	
 	
 	public <T extends Comparable<T>>void recommendDocsUsingDocQuery(T docQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,int numResults,Set<T> exclusions,T minDoc)
+	{
+		recommendDocsUsingDocQuery(docQuery, docResult, docTransform, numResults, exclusions, minDoc, DEFAULT_ANN_PROBES);
+	}
+	
+	/**
+	 * @param annProbes number of inverted lists to scan if the doc store is indexed, 0 for an exact scan
+	 */
+	public <T extends Comparable<T>>void recommendDocsUsingDocQuery(T docQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,int numResults,Set<T> exclusions,T minDoc,int annProbes)
 	{
 		String docName = docTransform.toSV(docQuery);
 		Set<String> docExclusions = new HashSet<>();
 		for(T i : exclusions)
 			docExclusions.add(docTransform.toSV(i));
-		LinkedList<SearchResult> results = recommend(docName,docVecReader,docVecReader,numResults,docExclusions,new HashSet<String>(),docTransform.toSV(minDoc));
+		LinkedList<SearchResult> results = recommend(docName,docVecReader,docVecReader,numResults,docExclusions,new HashSet<String>(),docTransform.toSV(minDoc),annProbes);
 		for(SearchResult r : results)
 		{
 			String filename = r.getObjectVector().getObject().toString();
@@ -149,9 +191,17 @@ public class SemanticVectorsStore {
 	
 	
 	public <T extends Comparable<T>>void searchDocsUsingDocQuery(T termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,int numResults)
+	{
+		searchDocsUsingDocQuery(termQuery, docResult, docTransform, numResults, DEFAULT_ANN_PROBES);
+	}
+	
+	/**
+	 * @param annProbes number of inverted lists to scan if the doc store is indexed, 0 for an exact scan
+	 */
+	public <T extends Comparable<T>>void searchDocsUsingDocQuery(T termQuery,ArrayList<SemVectorResult<T>> docResult,QueryTransform<T> docTransform,int numResults,int annProbes)
 	{
 		String docName = docTransform.toSV(termQuery);
-		LinkedList<SearchResult> results = search(docName,docVecReader,docVecReader,numResults);
+		LinkedList<SearchResult> results = search(docName,docVecReader,docVecReader,numResults,annProbes);
 		for(SearchResult r : results)
 		{
 			String filename = r.getObjectVector().getObject().toString();
@@ -161,13 +211,16 @@ public class SemanticVectorsStore {
 	
 	
 	
-	private LinkedList<SearchResult> search(String query,VectorStore queryStore,VectorStore searchStore,int numResults)
+	private LinkedList<SearchResult> search(String query,VectorStore queryStore,VectorStore searchStore,int numResults,int annProbes)
 	{
 		 VectorSearcher vecSearcher;
 		 LinkedList<SearchResult> results = new LinkedList<>();
 		 try 
 		 {
 			 String[] queryTerms = query.split("\\s+");
+			 LinkedList<SearchResult> indexed = searchIndex(queryStore, searchStore, queryTerms, numResults, null, null, null, annProbes, false);
+			 if (indexed != null)
+				 return indexed;
 			 vecSearcher =
 		            new VectorSearcher.VectorSearcherCosine(queryStore,
 		                                                    searchStore,
@@ -184,14 +237,59 @@ public class SemanticVectorsStore {
 		 return results;
 	}
 	
+	/**
+	 * Search the doc index if there is one and the query can use it. The index scores by plain cosine so a full scan
+	 * is used when results would be reweighted by lucene term weights.
+	 * @param removeDuplicates drop results whose vector is identical to a better result as the full scan recommender does
+	 * @return the results or null if the search needs a full scan
+	 */
+	private LinkedList<SearchResult> searchIndex(VectorStore queryStore,VectorStore searchStore,String[] queryTerms,int numResults,Set<String> exclusions,Set<String> inclusions,String minDoc,int annProbes,boolean removeDuplicates)
+	{
+		if (docIndex == null || annProbes <= 0 || searchStore != docVecReader || luceneUtils != null)
+			return null;
+		Vector queryVector = CompoundVectorBuilder.getQueryVector(queryStore, luceneUtils, flagConfig, queryTerms);
+		if (queryVector.isZeroVector())
+			return new LinkedList<>();
+		else if (!docIndex.canSearch(queryVector))
+			return null;
+		else if (!removeDuplicates)
+			return docIndex.search(queryVector, numResults, annProbes, exclusions, inclusions, minDoc);
+		else
+		{
+			// fetch extra results so there are still enough once duplicates are dropped
+			LinkedList<SearchResult> candidates = docIndex.search(queryVector, numResults * 2, annProbes, exclusions, inclusions, minDoc);
+			LinkedList<SearchResult> results = new LinkedList<>();
+			for(SearchResult c : candidates)
+			{
+				if (results.size() == numResults)
+					break;
+				if (!isDuplicate(c, results))
+					results.add(c);
+			}
+			return results;
+		}
+	}
+
+	private static boolean isDuplicate(SearchResult candidate,LinkedList<SearchResult> results)
+	{
+		Vector v = candidate.getObjectVector().getVector();
+		for(SearchResult r : results)
+			if (r.getScore() == candidate.getScore() && Math.abs(r.getObjectVector().getVector().measureOverlap(v) - 1) < 0.000001)
+				return true;
+		return false;
+	}
+	
 	
-	private LinkedList<SearchResult> recommend(String query,VectorStore queryStore,VectorStore searchStore,int numResults,Set<String> exclusions,Set<String> inclusions,String minDoc)
+	private LinkedList<SearchResult> recommend(String query,VectorStore queryStore,VectorStore searchStore,int numResults,Set<String> exclusions,Set<String> inclusions,String minDoc,int annProbes)
 	{
 	
 		 LinkedList<SearchResult> results = new LinkedList<>();
 		 try 
 		 {
 			 String[] queryTerms = query.split("\\s+");
+			 LinkedList<SearchResult> indexed = searchIndex(queryStore, searchStore, queryTerms, numResults, exclusions, inclusions, minDoc, annProbes, true);
+			 if (indexed != null)
+				 return indexed;
 			 VectorStoreRecommender vecSearcher =
 		            new VectorStoreRecommender.VectorStoreRecommenderCosine(queryStore,
 		                                                    searchStore,
@@ -465,13 +563,22 @@ public class SemanticVectorsStore {
 	 */
 	//General recommendations
 	public <T extends Comparable<T>> Map<T,Double> recommendDocsUsingDocQuery(List<T> recentItems,QueryTransform<T> docTransform,int numResults,Set<T> exclusions,T minDoc,boolean ignorePerfectMatches)
+	{
+		return recommendDocsUsingDocQuery(recentItems, docTransform, numResults, exclusions, minDoc, ignorePerfectMatches, DEFAULT_ANN_PROBES);
+	}
+	
+	/**
+	 * As {@link #recommendDocsUsingDocQuery(List, QueryTransform, int, Set, Comparable, boolean)}
+	 * @param annProbes number of inverted lists to scan if the doc store is indexed, 0 for an exact scan
+	 */
+	public <T extends Comparable<T>> Map<T,Double> recommendDocsUsingDocQuery(List<T> recentItems,QueryTransform<T> docTransform,int numResults,Set<T> exclusions,T minDoc,boolean ignorePerfectMatches,int annProbes)
 	{
 		Map<T,Double> scores = new HashMap<>();
 		
 		for(T recent : recentItems)
 		{
 			ArrayList<SemVectorResult<T>> docResult = new ArrayList<>();
-			recommendDocsUsingDocQuery(recent,docResult,docTransform,numResults*10,exclusions,minDoc);
+			recommendDocsUsingDocQuery(recent,docResult,docTransform,numResults*10,exclusions,minDoc,annProbes);
 			for(SemVectorResult<T> r : docResult)
 			{
 				Double score = scores.get(r.result);
@@ -563,6 +670,10 @@ public class SemanticVectorsStore {
 	public VectorStore getDocVecReader() {
 		return docVecReader;
 	}
+
+	public VectorIndex getDocIndex() {
+		return docIndex;
+	}
 	
 	
 }
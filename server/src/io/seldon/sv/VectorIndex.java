@@ -0,0 +1,295 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.sv;
+
+import io.seldon.util.TopK;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import pitt.search.semanticvectors.ObjectVector;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorStore;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+
+/**
+ * Approximate cosine nearest neighbour index over a store of real vectors. The vectors are clustered with spherical
+ * k-means into about sqrt(n) inverted lists and a query only scans the lists of its closest centroids, so the number
+ * of lists probed trades recall against latency.
+ */
+public class VectorIndex {
+
+	private static Logger logger = Logger.getLogger(VectorIndex.class.getName());
+
+	private static final int KMEANS_ITERATIONS = 8;
+	private static final int KMEANS_SAMPLES_PER_LIST = 64;
+	private static final long SEED = 17;
+
+	private final int dimension;
+	private final String[] names;
+	private final Vector[] vectors;
+	private final float[][] coords;
+	private final float[] invNorms;
+	private final float[][] centroids;
+	private final int[][] lists;
+
+	private VectorIndex(int dimension,String[] names,Vector[] vectors,float[][] coords,float[] invNorms,float[][] centroids,int[][] lists)
+	{
+		this.dimension = dimension;
+		this.names = names;
+		this.vectors = vectors;
+		this.coords = coords;
+		this.invNorms = invNorms;
+		this.centroids = centroids;
+		this.lists = lists;
+	}
+
+	/**
+	 * @param store
+	 * @return the index or null if the store does not contain only real vectors of a single dimension
+	 */
+	public static VectorIndex build(VectorStore store)
+	{
+		long t1 = System.currentTimeMillis();
+		List<String> nameList = new ArrayList<>();
+		List<Vector> vectorList = new ArrayList<>();
+		int dimension = -1;
+		for(Enumeration<ObjectVector> e = store.getAllVectors();e.hasMoreElements();)
+		{
+			ObjectVector ov = e.nextElement();
+			if (!(ov.getVector() instanceof RealVector))
+				return null;
+			RealVector v = (RealVector) ov.getVector();
+			if (v.isZeroVector())
+				continue;
+			if (dimension == -1)
+				dimension = v.getDimension();
+			else if (dimension != v.getDimension())
+				return null;
+			nameList.add(ov.getObject().toString());
+			vectorList.add(v);
+		}
+		int n = nameList.size();
+		if (n == 0)
+			return null;
+		String[] names = nameList.toArray(new String[n]);
+		Vector[] vectors = vectorList.toArray(new Vector[n]);
+		float[][] coords = new float[n][];
+		float[] invNorms = new float[n];
+		for(int i=0;i<n;i++)
+		{
+			coords[i] = ((RealVector) vectors[i]).getCoordinates();
+			invNorms[i] = (float) (1.0 / Math.sqrt(dot(coords[i], coords[i])));
+		}
+
+		int numLists = Math.max(1, (int) Math.sqrt(n));
+		float[][] centroids = trainCentroids(coords, invNorms, numLists, dimension);
+		int[] sizes = new int[numLists];
+		int[] assignment = new int[n];
+		for(int i=0;i<n;i++)
+		{
+			assignment[i] = closest(centroids, coords[i]);
+			sizes[assignment[i]]++;
+		}
+		int[][] lists = new int[numLists][];
+		for(int c=0;c<numLists;c++)
+			lists[c] = new int[sizes[c]];
+		int[] fill = new int[numLists];
+		for(int i=0;i<n;i++)
+			lists[assignment[i]][fill[assignment[i]]++] = i;
+
+		logger.info("Built vector index of "+n+" vectors with "+numLists+" lists in "+(System.currentTimeMillis()-t1)+" msecs");
+		return new VectorIndex(dimension, names, vectors, coords, invNorms, centroids, lists);
+	}
+
+	private static float[][] trainCentroids(float[][] coords,float[] invNorms,int numLists,int dimension)
+	{
+		int n = coords.length;
+		Random r = new Random(SEED);
+		int numSamples = Math.min(n, numLists * KMEANS_SAMPLES_PER_LIST);
+		int[] samples = new int[numSamples];
+		// reservoir sample so training cost is independent of n
+		for(int i=0;i<n;i++)
+		{
+			if (i < numSamples)
+				samples[i] = i;
+			else
+			{
+				int j = r.nextInt(i + 1);
+				if (j < numSamples)
+					samples[j] = i;
+			}
+		}
+		float[][] centroids = new float[numLists][];
+		for(int c=0;c<numLists;c++)
+			centroids[c] = normalised(coords[samples[c % numSamples]], invNorms[samples[c % numSamples]]);
+		int[] assignment = new int[numSamples];
+		for(int iter=0;iter<KMEANS_ITERATIONS;iter++)
+		{
+			for(int s=0;s<numSamples;s++)
+				assignment[s] = closest(centroids, coords[samples[s]]);
+			double[][] sums = new double[numLists][dimension];
+			for(int s=0;s<numSamples;s++)
+			{
+				int row = samples[s];
+				double[] sum = sums[assignment[s]];
+				for(int d=0;d<dimension;d++)
+					sum[d] += coords[row][d] * invNorms[row];
+			}
+			for(int c=0;c<numLists;c++)
+			{
+				double norm = 0;
+				for(int d=0;d<dimension;d++)
+					norm += sums[c][d] * sums[c][d];
+				if (norm > 0) // empty lists keep their previous centroid
+				{
+					double inv = 1.0 / Math.sqrt(norm);
+					for(int d=0;d<dimension;d++)
+						centroids[c][d] = (float) (sums[c][d] * inv);
+				}
+			}
+		}
+		return centroids;
+	}
+
+	private static float[] normalised(float[] v,float invNorm)
+	{
+		float[] res = new float[v.length];
+		for(int d=0;d<v.length;d++)
+			res[d] = v[d] * invNorm;
+		return res;
+	}
+
+	private static int closest(float[][] centroids,float[] v)
+	{
+		int best = 0;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		for(int c=0;c<centroids.length;c++)
+		{
+			float score = dot(centroids[c], v);
+			if (score > bestScore)
+			{
+				bestScore = score;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	private static float dot(float[] a,float[] b)
+	{
+		float sum = 0;
+		for(int d=0;d<a.length;d++)
+			sum += a[d] * b[d];
+		return sum;
+	}
+
+	public int size()
+	{
+		return names.length;
+	}
+
+	public int getNumLists()
+	{
+		return lists.length;
+	}
+
+	public boolean canSearch(Vector query)
+	{
+		return query instanceof RealVector && query.getDimension() == dimension && !query.isZeroVector();
+	}
+
+	/**
+	 * Find the approximate nearest neighbours by cosine similarity.
+	 * @param query a real vector of the index dimension
+	 * @param numResults
+	 * @param probes number of inverted lists to scan, scanning all lists gives exact results
+	 * @param exclusions names to ignore
+	 * @param inclusions if not empty only these names are returned
+	 * @param minDoc if not null ignore names ordered before this
+	 * @return results in descending score order
+	 */
+	public LinkedList<SearchResult> search(Vector query,int numResults,int probes,Set<String> exclusions,Set<String> inclusions,String minDoc)
+	{
+		float[] q = ((RealVector) query).getCoordinates();
+		float qInvNorm = (float) (1.0 / Math.sqrt(dot(q, q)));
+		int numProbes = Math.min(Math.max(probes, 1), lists.length);
+
+		// choose the closest lists
+		int[] probeLists = new int[numProbes];
+		float[] probeScores = new float[numProbes];
+		int numProbed = 0;
+		for(int c=0;c<centroids.length;c++)
+		{
+			float score = dot(centroids[c], q);
+			if (numProbed < numProbes)
+				numProbed++;
+			else if (score <= probeScores[numProbed - 1])
+				continue;
+			int i = numProbed - 1;
+			while (i > 0 && probeScores[i - 1] < score)
+			{
+				probeScores[i] = probeScores[i - 1];
+				probeLists[i] = probeLists[i - 1];
+				i--;
+			}
+			probeScores[i] = score;
+			probeLists[i] = c;
+		}
+
+		boolean useInclusions = inclusions != null && inclusions.size() > 0;
+		TopK top = new TopK(numResults);
+		for(int p=0;p<numProbed;p++)
+		{
+			for(int row : lists[probeLists[p]])
+			{
+				float score = dot(coords[row], q) * invNorms[row] * qInvNorm;
+				if (!top.accepts(score))
+					continue;
+				String name = names[row];
+				if ((exclusions != null && exclusions.contains(name)) ||
+						(useInclusions && !inclusions.contains(name)) ||
+						(minDoc != null && name.compareTo(minDoc) < 0))
+					continue;
+				top.offer(row, score);
+			}
+		}
+
+		top.sortDescending();
+		LinkedList<SearchResult> results = new LinkedList<>();
+		for(int i=0;i<top.size();i++)
+		{
+			int row = (int) top.getId(i);
+			results.add(new SearchResult(top.getScore(i), new ObjectVector(names[row], vectors[row])));
+		}
+		return results;
+	}
+}
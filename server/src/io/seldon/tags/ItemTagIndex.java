@@ -0,0 +1,327 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.tags;
+
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongIterators;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from normalised tag to the ids of the items with that tag for a single comma separated varchar
+ * attribute. Tags are trimmed and lower cased which matches the case insensitive regexp previously used in the db.
+ * Postings are arrays that grow in place. Removed items are overwritten with a marker and the array is compacted once
+ * half of it is removed, so an update copies nothing in the common case. Writers publish a new (array, size) snapshot
+ * after each change so lookups need no locking.
+ */
+public class ItemTagIndex {
+
+	private static final long REMOVED = Long.MIN_VALUE;
+
+	/**
+	 * The items of a tag. Slots below size are never moved, slots at or above size are only written before the
+	 * snapshot covering them is published.
+	 */
+	private static class Posting {
+		final long[] items;
+		final int size;
+		final int removed;
+
+		Posting(long[] items,int size,int removed)
+		{
+			this.items = items;
+			this.size = size;
+			this.removed = removed;
+		}
+
+		Posting add(long itemId)
+		{
+			long[] a = items;
+			if (size == a.length)
+				a = compact(Math.max(4, (size - removed) * 2));
+			int n = a == items ? size : size - removed;
+			a[n] = itemId;
+			return new Posting(a, n + 1, a == items ? removed : 0);
+		}
+
+		Posting remove(long itemId)
+		{
+			for (int i=0;i<size;i++)
+			{
+				if (items[i] == itemId)
+				{
+					items[i] = REMOVED;
+					int r = removed + 1;
+					if (r == size)
+						return null;
+					else if (r * 2 > size)
+						return new Posting(compact(size - r), size - r, 0);
+					else
+						return new Posting(items, size, r);
+				}
+			}
+			return this;
+		}
+
+		private long[] compact(int capacity)
+		{
+			long[] a = new long[capacity];
+			int n = 0;
+			for (int i=0;i<size;i++)
+				if (items[i] != REMOVED)
+					a[n++] = items[i];
+			return a;
+		}
+	}
+
+	private final int attrId;
+	private final String attrName;
+	private final ConcurrentHashMap<String,Posting> postings;
+	private final Long2ObjectOpenHashMap<String[]> itemTags; // guarded by this
+
+	private ItemTagIndex(int attrId,String attrName,ConcurrentHashMap<String,Posting> postings,Long2ObjectOpenHashMap<String[]> itemTags)
+	{
+		this.attrId = attrId;
+		this.attrName = attrName;
+		this.postings = postings;
+		this.itemTags = itemTags;
+	}
+
+	public static String normalise(String tag)
+	{
+		return tag.trim().toLowerCase();
+	}
+
+	/**
+	 * @param value comma separated tags
+	 * @return the distinct normalised tags
+	 */
+	public static String[] parseTags(String value)
+	{
+		if (value == null)
+			return new String[0];
+		Set<String> tags = new LinkedHashSet<>();
+		for (String tag : value.split(","))
+		{
+			String t = normalise(tag);
+			if (t.length() > 0)
+				tags.add(t);
+		}
+		return tags.toArray(new String[tags.size()]);
+	}
+
+	public int getAttrId() {
+		return attrId;
+	}
+
+	public String getAttrName() {
+		return attrName;
+	}
+
+	/**
+	 * @param tag
+	 * @return the items with the tag without copying them. Items removed while iterating may or may not be returned.
+	 */
+	public LongIterator iterator(String tag)
+	{
+		final Posting p = postings.get(normalise(tag));
+		if (p == null)
+			return LongIterators.EMPTY_ITERATOR;
+		return new AbstractLongIterator() {
+			int pos;
+			long next;
+			boolean hasNext = advance();
+
+			// the slot is read once so an item removed after it was checked is still returned
+			private boolean advance()
+			{
+				while (pos < p.size)
+				{
+					long item = p.items[pos++];
+					if (item != REMOVED)
+					{
+						next = item;
+						return true;
+					}
+				}
+				return false;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return hasNext;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext)
+					throw new NoSuchElementException();
+				long item = next;
+				hasNext = advance();
+				return item;
+			}
+		};
+	}
+
+	/**
+	 * @param tag
+	 * @return a copy of the items with the tag
+	 */
+	public long[] getItems(String tag)
+	{
+		LongArrayList items = new LongArrayList();
+		for (LongIterator it = iterator(tag);it.hasNext();)
+			items.add(it.nextLong());
+		return items.toLongArray();
+	}
+
+	public int getNumTags()
+	{
+		return postings.size();
+	}
+
+	public synchronized int getNumItems()
+	{
+		return itemTags.size();
+	}
+
+	/**
+	 * Replace the tags of an item.
+	 * @param itemId
+	 * @param value comma separated tags or null to remove the item
+	 */
+	public synchronized void setItemTags(long itemId,String value)
+	{
+		String[] tags = parseTags(value);
+		String[] old = itemTags.get(itemId);
+		if (old != null)
+			for (String tag : old)
+				if (!contains(tags, tag))
+					removePosting(tag, itemId);
+		for (String tag : tags)
+			if (old == null || !contains(old, tag))
+				addPosting(tag, itemId);
+		if (tags.length > 0)
+			itemTags.put(itemId, tags);
+		else
+			itemTags.remove(itemId);
+	}
+
+	private static boolean contains(String[] tags,String tag)
+	{
+		for (String t : tags)
+			if (t.equals(tag))
+				return true;
+		return false;
+	}
+
+	private void addPosting(String tag,long itemId)
+	{
+		Posting p = postings.get(tag);
+		if (p == null)
+			p = new Posting(new long[4], 0, 0);
+		postings.put(tag, p.add(itemId));
+	}
+
+	private void removePosting(String tag,long itemId)
+	{
+		Posting p = postings.get(tag);
+		if (p == null)
+			return;
+		Posting updated = p.remove(itemId);
+		if (updated == null)
+			postings.remove(tag);
+		else if (updated != p)
+			postings.put(tag, updated);
+	}
+
+	/**
+	 * Collects the tags of many items and builds the index in one go.
+	 */
+	public static class Builder {
+		private final int attrId;
+		private final String attrName;
+		private final Map<String,LongArrayList> postings = new HashMap<>();
+		private final Long2ObjectOpenHashMap<String[]> itemTags = new Long2ObjectOpenHashMap<>();
+
+		public Builder(int attrId,String attrName)
+		{
+			this.attrId = attrId;
+			this.attrName = attrName;
+		}
+
+		/**
+		 * Add tags to an item, an item can be added more than once if its tags are held in several rows.
+		 */
+		public Builder add(long itemId,String value)
+		{
+			String[] tags = parseTags(value);
+			if (tags.length == 0)
+				return this;
+			String[] existing = itemTags.get(itemId);
+			if (existing != null)
+			{
+				Set<String> merged = new LinkedHashSet<>(Arrays.asList(existing));
+				int before = merged.size();
+				merged.addAll(Arrays.asList(tags));
+				if (merged.size() == before)
+					return this;
+				String[] all = merged.toArray(new String[merged.size()]);
+				tags = Arrays.copyOfRange(all, before, all.length);
+				itemTags.put(itemId, all);
+			}
+			else
+				itemTags.put(itemId, tags);
+			for (String tag : tags)
+			{
+				LongArrayList items = postings.get(tag);
+				if (items == null)
+				{
+					items = new LongArrayList(4);
+					postings.put(tag, items);
+				}
+				items.add(itemId);
+			}
+			return this;
+		}
+
+		public ItemTagIndex build()
+		{
+			ConcurrentHashMap<String,Posting> frozen = new ConcurrentHashMap<>(postings.size() * 2);
+			for (Map.Entry<String,LongArrayList> e : postings.entrySet())
+				frozen.put(e.getKey(), new Posting(e.getValue().elements(), e.getValue().size(), 0));
+			return new ItemTagIndex(attrId, attrName, frozen, itemTags);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.tags;
+
+import io.seldon.db.jdbc.JDBCConnectionFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per client {@link ItemTagIndex}es built from item_map_varchar. An index is built in the background the first time
+ * it is asked for and then rebuilt every refresh period to pick up items written directly to the db. Items added or
+ * updated through the API are applied to built indexes straight away and are also replayed onto any index being
+ * rebuilt, as the rebuild may have read the item before the update.
+ */
+@Component
+public class ItemTagIndexFactory {
+
+	private static Logger logger = Logger.getLogger(ItemTagIndexFactory.class.getName());
+
+	private static final String ATTR_NAME_SQL = "select name from item_attr where attr_id=?";
+	private static final String TAGS_SQL = "select item_id,value from item_map_varchar where attr_id=?";
+
+	private final ConcurrentMap<String,ItemTagIndex> indexes = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String,Boolean> building = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String,PendingUpdates> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final int refreshSecs;
+
+	/**
+	 * Item updates seen while an index is rebuilt. Once closed the rebuilt index is published and updates go to it.
+	 */
+	static class PendingUpdates {
+		final List<Long> itemIds = new ArrayList<>(); // guarded by this
+		final List<Map<String,String>> attributes = new ArrayList<>(); // guarded by this
+		boolean closed; // guarded by this
+
+		synchronized boolean add(long itemId,Map<String,String> attrs)
+		{
+			if (closed)
+				return false;
+			itemIds.add(itemId);
+			attributes.add(attrs);
+			return true;
+		}
+	}
+
+	@Autowired
+	public ItemTagIndexFactory(@Value("${io.seldon.tags.index.refreshsecs:1800}") int refreshSecs)
+	{
+		this.refreshSecs = refreshSecs;
+	}
+
+	static String key(String client,int attrId)
+	{
+		return client + ":" + attrId;
+	}
+
+	/**
+	 * @param client
+	 * @param attrId
+	 * @return the index or null if it is still being built
+	 */
+	public ItemTagIndex get(final String client,final int attrId)
+	{
+		final String key = key(client, attrId);
+		ItemTagIndex index = indexes.get(key);
+		if (index == null && building.putIfAbsent(key, Boolean.TRUE) == null)
+		{
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					rebuild(client, attrId);
+				}
+			});
+			if (refreshSecs > 0)
+				executor.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						rebuild(client, attrId);
+					}
+				}, refreshSecs, refreshSecs, TimeUnit.SECONDS);
+		}
+		return index;
+	}
+
+	/**
+	 * Apply the varchar attributes of an added or updated item to the client's built indexes.
+	 * @param client
+	 * @param itemId
+	 * @param attributes attribute values by attribute name
+	 */
+	public void itemUpdated(String client,long itemId,Map<String,String> attributes)
+	{
+		if (attributes == null || attributes.isEmpty())
+			return;
+		String prefix = client + ":";
+		for (Map.Entry<String,PendingUpdates> e : pending.entrySet())
+			if (e.getKey().startsWith(prefix))
+				e.getValue().add(itemId, attributes);
+		for (Map.Entry<String,ItemTagIndex> e : indexes.entrySet())
+		{
+			if (e.getKey().startsWith(prefix))
+			{
+				ItemTagIndex index = e.getValue();
+				if (index.getAttrName() != null && attributes.containsKey(index.getAttrName()))
+					index.setItemTags(itemId, attributes.get(index.getAttrName()));
+			}
+		}
+	}
+
+	void rebuild(String client,int attrId)
+	{
+		long t1 = System.currentTimeMillis();
+		int rows = 0;
+		String key = key(client, attrId);
+		PendingUpdates updates = track(key);
+		try (Connection connection = JDBCConnectionFactory.get().getConnection(client, true))
+		{
+			String attrName = null;
+			try (PreparedStatement ps = connection.prepareStatement(ATTR_NAME_SQL))
+			{
+				ps.setInt(1, attrId);
+				try (ResultSet rs = ps.executeQuery())
+				{
+					if (rs.next())
+						attrName = rs.getString(1);
+				}
+			}
+			ItemTagIndex.Builder builder = new ItemTagIndex.Builder(attrId, attrName);
+			try (PreparedStatement ps = connection.prepareStatement(TAGS_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+			{
+				ps.setFetchSize(Integer.MIN_VALUE); // stream results from mysql
+				ps.setInt(1, attrId);
+				try (ResultSet rs = ps.executeQuery())
+				{
+					while (rs.next())
+					{
+						builder.add(rs.getLong(1), rs.getString(2));
+						rows++;
+					}
+				}
+			}
+			ItemTagIndex index = publish(key, builder.build(), updates);
+			logger.info("Built tag index for client "+client+" attr "+attrId+" from "+rows+" rows with "+index.getNumTags()+" tags and "+index.getNumItems()+" items in "+(System.currentTimeMillis()-t1)+" msecs");
+		}
+		catch (SQLException e)
+		{
+			logger.error("Failed to build tag index for client "+client+" attr "+attrId,e);
+		}
+		finally
+		{
+			pending.remove(key, updates);
+		}
+	}
+
+	/**
+	 * Start recording item updates for an index about to be rebuilt
+	 */
+	PendingUpdates track(String key)
+	{
+		PendingUpdates updates = new PendingUpdates();
+		pending.put(key, updates);
+		return updates;
+	}
+
+	/**
+	 * Apply the updates seen during the rebuild to the new index and make it live. Updates arriving after this see the
+	 * pending list closed and are applied to the live index instead.
+	 */
+	ItemTagIndex publish(String key,ItemTagIndex index,PendingUpdates updates)
+	{
+		synchronized (updates)
+		{
+			if (index.getAttrName() != null)
+				for (int i=0;i<updates.itemIds.size();i++)
+				{
+					Map<String,String> attrs = updates.attributes.get(i);
+					if (attrs.containsKey(index.getAttrName()))
+						index.setItemTags(updates.itemIds.get(i), attrs.get(index.getAttrName()));
+				}
+			indexes.put(key, index);
+			updates.closed = true;
+		}
+		pending.remove(key, updates);
+		return index;
+	}
+}
@@ -21,6 +21,7 @@
 */
 package io.seldon.tags;
 
+import io.seldon.api.state.options.AlgorithmOption;
 import io.seldon.clustering.recommender.BaseItemCategoryRecommender;
 import io.seldon.clustering.recommender.CountRecommender;
 import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
@@ -44,11 +45,11 @@ import org.springframework.stereotype.Component;
 public class UserTagAffinityRecommender extends BaseItemCategoryRecommender implements ItemRecommendationAlgorithm {
 	private static Logger logger = Logger.getLogger(UserTagAffinityRecommender.class.getName());
 	private static final String name = UserTagAffinityRecommender.class.getSimpleName();
-	private static final String MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME
-       = "io.seldon.algorithm.clusters.minnumberitemsforvalidclusterresult";
-	private static final String DECAY_RATE_OPTION_NAME = "io.seldon.algorithm.clusters.decayratesecs";
-	private static final String TAG_ATTR_ID_OPTION_NAME = "io.seldon.algorithm.tags.attrid";
-	private static final String USE_ITEM_DIMENSION_OPTION_NAME = "io.seldon.algorithm.tags.useitemdim";
+	private static final AlgorithmOption MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME
+       = AlgorithmOption.named("io.seldon.algorithm.clusters.minnumberitemsforvalidclusterresult");
+	private static final AlgorithmOption DECAY_RATE_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.clusters.decayratesecs");
+	private static final AlgorithmOption TAG_ATTR_ID_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.tags.attrid");
+	private static final AlgorithmOption USE_ITEM_DIMENSION_OPTION_NAME = AlgorithmOption.named("io.seldon.algorithm.tags.useitemdim");
 	
 	UserTagAffinityManager tagAffinityManager;
     JdoCountRecommenderUtils cUtils;
@@ -85,10 +86,10 @@ public class UserTagAffinityRecommender extends BaseItemCategoryRecommender impl
         CountRecommender r = cUtils.getCountRecommender(client);
         if (r != null) {
         	long t1 = System.currentTimeMillis();
-        	Integer minClusterItems = optionsHolder.getIntegerOption(MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME);
-        	Double decayRate = optionsHolder.getDoubleOption(DECAY_RATE_OPTION_NAME);
-        	Integer tagAttrId = optionsHolder.getIntegerOption(TAG_ATTR_ID_OPTION_NAME);
-        	Boolean useItemDim = optionsHolder.getBooleanOption(USE_ITEM_DIMENSION_OPTION_NAME);
+        	Integer minClusterItems = optionsHolder.getInteger(MIN_ITEMS_FOR_VALID_CLUSTER_OPTION_NAME);
+        	Double decayRate = optionsHolder.getDouble(DECAY_RATE_OPTION_NAME);
+        	Integer tagAttrId = optionsHolder.getInteger(TAG_ATTR_ID_OPTION_NAME);
+        	Boolean useItemDim = optionsHolder.getBoolean(USE_ITEM_DIMENSION_OPTION_NAME);
         	Integer dimension2 = null;
         	if (useItemDim && ctxt.getCurrentItem() != null)
         	{
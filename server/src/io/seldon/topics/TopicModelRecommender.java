@@ -29,10 +29,9 @@ import io.seldon.clustering.recommender.RecommendationContext;
 import io.seldon.items.RecentItemsWithTagsManager;
 import io.seldon.recommendation.RecommendationUtils;
 import io.seldon.topics.TopicFeaturesManager.TopicFeaturesStore;
+import io.seldon.util.TopK;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -96,27 +95,20 @@ public class TopicModelRecommender implements ItemRecommendationAlgorithm {
 			return new ItemRecommendationResultSet(Collections.<ItemRecommendationResultSet.ItemRecommendationResult>emptyList(), name);
 		}
 
-		Map<Long,Double> scores = new HashMap<>();
+		TopK top = new TopK(maxRecsCount);
 		for(Map.Entry<Long, List<String>> e : itemTags.entrySet()) // for all items
 		{
 			if (e.getValue().size() >= minNumTagsForWeights && !recentitemInteractions.contains(e.getKey()))
 			{
 				float[] itemTopicWeight = store.getTopicWeights(e.getKey(), e.getValue());
-				Double score = new Double(dot(userTopicWeight,itemTopicWeight));
+				float score = dot(userTopicWeight,itemTopicWeight);
 				if (logger.isDebugEnabled())
 					logger.debug("Score for "+e.getKey()+"->"+score);
-				scores.put(e.getKey(), score);
+				top.offer(e.getKey(), score);
 			}
 		}
-	
-		
-		Map<Long,Double> scaledScores = RecommendationUtils.rescaleScoresToOne(scores, maxRecsCount);
-		List<ItemRecommendationResultSet.ItemRecommendationResult> results = new ArrayList<>();
-		for(Map.Entry<Long, Double> e : scaledScores.entrySet())
-		{
-			results.add(new ItemRecommendationResultSet.ItemRecommendationResult(e.getKey(), e.getValue().floatValue()));
-		}
-		return new ItemRecommendationResultSet(results, name);
+
+		return new ItemRecommendationResultSet(RecommendationUtils.rescaleScoresToOne(top), name);
 	}
 	
 	private static float dot(float[] vec1, float[] vec2)
@@ -31,6 +31,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 
 
 public class CollectionTools {
@@ -64,19 +65,10 @@ public class CollectionTools {
 	 * @return
 	 */
 	public static <K, V extends Comparable<V>> List<K> sortMapAndLimitToList(Map<K, V> map,int k,boolean keepHighest) {
-		List<Entry<K, V>> sorted = sortByValue(map);
-		if (keepHighest)
-			Collections.reverse(sorted);
-		List<K> res = new ArrayList<>();
-		int count = 0;
-		for(Map.Entry<K, V> e : sorted)
-		{
-			if (count>=k)
-				break;
-			else
-				res.add(e.getKey());
-			count++;
-		}
+		List<Entry<K, V>> top = topEntries(map, k, keepHighest);
+		List<K> res = new ArrayList<>(top.size());
+		for(Map.Entry<K, V> e : top)
+			res.add(e.getKey());
 		return res;
 	}
 	public static <K, V extends Comparable<V>> Map<K,V> sortMapAndLimit(Map<K, V> map,int k) {
@@ -84,19 +76,35 @@ public class CollectionTools {
 	}
 	
 	public static <K, V extends Comparable<V>> Map<K,V> sortMapAndLimit(Map<K, V> map,int k,boolean keepHighest) {
-		List<Entry<K, V>> sorted = sortByValue(map);
-		if (keepHighest)
-			Collections.reverse(sorted);
-		int count = 0;
 		Map<K,V> res = new HashMap<>();
-		for(Map.Entry<K, V> e : sorted)
+		for(Map.Entry<K, V> e : topEntries(map, k, keepHighest))
+			res.put(e.getKey(),e.getValue());
+		return res;
+	}
+	
+	/**
+	 * The k entries with the highest (or lowest) values, best first. Uses a bounded heap so only the selected entries
+	 * are sorted rather than the whole map. For primitive long ids and scores see {@link TopK}.
+	 */
+	private static <K, V extends Comparable<V>> List<Entry<K, V>> topEntries(Map<K, V> map,int k,boolean keepHighest) {
+		int limit = Math.min(k, map.size());
+		if (limit <= 0)
+			return new ArrayList<>();
+		Comparator<Entry<K, V>> order = keepHighest ? new ByValue<K, V>() : Collections.reverseOrder(new ByValue<K, V>());
+		// head of the heap is the worst entry kept
+		PriorityQueue<Entry<K, V>> heap = new PriorityQueue<>(limit, order);
+		for(Map.Entry<K, V> e : map.entrySet())
 		{
-			if (count>=k)
-				break;
-			else
-				res.put(e.getKey(),e.getValue());
-			count++;
+			if (heap.size() < limit)
+				heap.add(e);
+			else if (order.compare(e, heap.peek()) > 0)
+			{
+				heap.poll();
+				heap.add(e);
+			}
 		}
+		List<Entry<K, V>> res = new ArrayList<>(heap);
+		Collections.sort(res, Collections.reverseOrder(order));
 		return res;
 	}
 	
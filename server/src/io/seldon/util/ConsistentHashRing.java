@@ -0,0 +1,91 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns long keys to nodes by consistent hashing so adding or removing a node only moves the keys of that node.
+ * Each node is placed at a number of virtual points on the ring to even out the load.
+ */
+public class ConsistentHashRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private final TreeMap<Long,String> ring = new TreeMap<>();
+
+	public ConsistentHashRing(Collection<String> nodes)
+	{
+		this(nodes, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ConsistentHashRing(Collection<String> nodes,int virtualNodes)
+	{
+		if (nodes.isEmpty())
+			throw new IllegalArgumentException("Consistent hash ring needs at least one node");
+		for(String node : nodes)
+			for(int i=0;i<virtualNodes;i++)
+				ring.put(hash(node + "#" + i), node);
+	}
+
+	private static long hash(String s)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for(int i=0;i<8;i++)
+				h = (h << 8) | (digest[i] & 0xff);
+			return h;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long hash(long key)
+	{
+		// murmur3 finaliser
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public String getNode(long key)
+	{
+		Map.Entry<Long,String> e = ring.ceilingEntry(hash(key));
+		return e != null ? e.getValue() : ring.firstEntry().getValue();
+	}
+}
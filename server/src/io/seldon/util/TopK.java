@@ -0,0 +1,202 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects the k highest scoring ids with a bounded min heap held in parallel primitive arrays, so offering a
+ * candidate that does not beat the current k-th best is a single comparison and nothing is allocated per candidate.
+ * <p>
+ * Offer candidates then either read the unordered selection or call {@link #sortDescending()} once to order it.
+ * Not thread safe.
+ */
+public class TopK {
+
+	private final long[] ids;
+	private final double[] scores;
+	private int size;
+	private boolean sorted;
+
+	/**
+	 * @param k the number of entries to keep, nothing is kept if k is zero or less
+	 */
+	public TopK(int k)
+	{
+		ids = new long[Math.max(k, 0)];
+		scores = new double[Math.max(k, 0)];
+	}
+
+	/**
+	 * Select the top k entries of a map of scores
+	 */
+	public static TopK select(Map<Long,Double> scores,int k)
+	{
+		TopK top = new TopK(Math.min(k, scores.size()));
+		for(Map.Entry<Long,Double> e : scores.entrySet())
+			top.offer(e.getKey(), e.getValue());
+		return top;
+	}
+
+	public int capacity()
+	{
+		return ids.length;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return true if a candidate with this score would be kept
+	 */
+	public boolean accepts(double score)
+	{
+		if (ids.length == 0)
+			return false;
+		return size < ids.length || score > scores[0];
+	}
+
+	/**
+	 * @return the lowest score kept so far, negative infinity if nothing has been kept yet or positive infinity
+	 * if nothing can be
+	 */
+	public double minScore()
+	{
+		if (ids.length == 0)
+			return Double.POSITIVE_INFINITY;
+		return size == 0 ? Double.NEGATIVE_INFINITY : scores[0];
+	}
+
+	/**
+	 * @return true if the candidate was kept
+	 */
+	public boolean offer(long id,double score)
+	{
+		if (sorted)
+			throw new IllegalStateException("Can't offer to a sorted selection");
+		if (ids.length == 0)
+			return false;
+		else if (size < ids.length)
+		{
+			int i = size++;
+			while (i > 0)
+			{
+				int parent = (i - 1) >>> 1;
+				if (scores[parent] <= score)
+					break;
+				ids[i] = ids[parent];
+				scores[i] = scores[parent];
+				i = parent;
+			}
+			ids[i] = id;
+			scores[i] = score;
+			return true;
+		}
+		else if (score > scores[0])
+		{
+			siftDown(id, score, size);
+			return true;
+		}
+		else
+			return false;
+	}
+
+	private void siftDown(long id,double score,int end)
+	{
+		int i = 0;
+		while (true)
+		{
+			int left = 2 * i + 1;
+			if (left >= end)
+				break;
+			int smallest = left;
+			if (left + 1 < end && scores[left + 1] < scores[left])
+				smallest = left + 1;
+			if (score <= scores[smallest])
+				break;
+			ids[i] = ids[smallest];
+			scores[i] = scores[smallest];
+			i = smallest;
+		}
+		ids[i] = id;
+		scores[i] = score;
+	}
+
+	/**
+	 * Order the selection highest score first in place. No more candidates can be offered afterwards.
+	 */
+	public TopK sortDescending()
+	{
+		if (!sorted)
+		{
+			// heap sort, moving the current minimum to the end each time
+			for(int end=size-1;end>0;end--)
+			{
+				long id = ids[end];
+				double score = scores[end];
+				ids[end] = ids[0];
+				scores[end] = scores[0];
+				siftDown(id, score, end);
+			}
+			sorted = true;
+		}
+		return this;
+	}
+
+	public long getId(int i)
+	{
+		return ids[i];
+	}
+
+	public double getScore(int i)
+	{
+		return scores[i];
+	}
+
+	public Map<Long,Double> toMap()
+	{
+		Map<Long,Double> map = new HashMap<>(size * 2);
+		for(int i=0;i<size;i++)
+			map.put(ids[i], scores[i]);
+		return map;
+	}
+
+	/**
+	 * @return the ids highest score first
+	 */
+	public List<Long> toIdList()
+	{
+		sortDescending();
+		List<Long> res = new ArrayList<>(size);
+		for(int i=0;i<size;i++)
+			res.add(ids[i]);
+		return res;
+	}
+}
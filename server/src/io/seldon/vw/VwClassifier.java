@@ -25,12 +25,11 @@ import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
 import io.seldon.prediction.PredictionAlgorithm;
 import io.seldon.prediction.PredictionResult;
 import io.seldon.prediction.PredictionsResult;
-import io.seldon.vw.VwFeatureExtractor.Namespace;
+import io.seldon.vw.VwFeatureExtractor.HashedFeatures;
 import io.seldon.vw.VwModelManager.VwModel;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonNode;
@@ -42,6 +41,12 @@ public class VwClassifier implements PredictionAlgorithm {
 	private static Logger logger = Logger.getLogger(VwClassifier.class.getName());
 	VwModelManager modelManager;
 	VwFeatureExtractor featureExtractor;
+	private static final ThreadLocal<HashedFeatures> features = new ThreadLocal<HashedFeatures>() {
+		@Override
+		protected HashedFeatures initialValue() {
+			return new HashedFeatures();
+		}
+	};
 	
 	@Autowired
     public VwClassifier(VwModelManager modelManager,VwFeatureExtractor featureExtractor)
@@ -75,41 +80,37 @@ public class VwClassifier implements PredictionAlgorithm {
 			return new PredictionsResult();
 		}
 		else
+			return predict(model, jsonNode);
+	}
+	
+	PredictionsResult predict(VwModel model, JsonNode jsonNode)
+	{
+		// features are hashed once and only the class offset differs in each class's weight index
+		HashedFeatures f = features.get();
+		featureExtractor.extract(jsonNode, model.hasher, f);
+		List<PredictionResult> predictions = new ArrayList<PredictionResult>();
+		float[] weights = model.weights;
+		VwFeatureHash hasher = model.hasher;
+		for(int i=0;i<model.oaa;i++)
 		{
-			List<Namespace> namespaces = featureExtractor.extract(jsonNode);
-			List<PredictionResult> predictions = new ArrayList<PredictionResult>();
-			for(int i=0;i<model.oaa;i++)
-			{
-				float score = 0;
-				for(Namespace n : namespaces)
-				{
-					for(Map.Entry<String, Float> e : n.features.entrySet())
-					{
-						Integer index = model.hasher.getFeatureHash(i+1, n.name, e.getKey());
-						Float weight = model.weights.get(index);
-						if (weight != null)
-							score = score + (e.getValue() * weight);
-					}
-				}
-				Integer constantIndex = model.hasher.getConstantHash(i+1);
-				Float weight = model.weights.get(constantIndex);
-				if (weight != null)
-					score = score + weight;
-				String classId = ""+(i+1);
-				if (model.classIdMap.containsKey(i+1))
-					classId = model.classIdMap.get(i+1);
-				predictions.add(new PredictionResult((double)score, classId, sigmoid(score)));
-			}
-			//aribrary decision point at 0.0 for binary classification
-			if (model.oaa == 1 && predictions.get(0).prediction < 0)
-				if (model.classIdMap.containsKey(-1))
-					predictions.get(0).predictedClass = model.classIdMap.get(-1);
-				else
-					predictions.get(0).predictedClass = "-1";
-					
-			
-			return new PredictionsResult(normalise(predictions));
+			float score = 0;
+			for(int j=0;j<f.size;j++)
+				score = score + (f.values[j] * weights[hasher.getIndex(f.hashes[j], i+1)]);
+			score = score + weights[hasher.getIndex(VwFeatureHash.VW_CONSTANT_HASH, i+1)];
+			String classId = ""+(i+1);
+			if (model.classIdMap.containsKey(i+1))
+				classId = model.classIdMap.get(i+1);
+			predictions.add(new PredictionResult((double)score, classId, sigmoid(score)));
 		}
+		//aribrary decision point at 0.0 for binary classification
+		if (model.oaa == 1 && predictions.get(0).prediction < 0)
+			if (model.classIdMap.containsKey(-1))
+				predictions.get(0).predictedClass = model.classIdMap.get(-1);
+			else
+				predictions.get(0).predictedClass = "-1";
+				
+		
+		return new PredictionsResult(normalise(predictions));
 	}
 
 }
@@ -22,6 +22,7 @@
 package io.seldon.vw;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -57,6 +58,33 @@ public class VwFeatureExtractor {
 		return namespaces;
 	}
 	
+	/**
+	 * Extract the features hashed for the model into the buffer, which is cleared first. Each namespace and feature is
+	 * hashed once whatever the number of classes.
+	 */
+	public void extract(JsonNode json,VwFeatureHash hasher,HashedFeatures out)
+	{
+		out.clear();
+		for(Iterator<String> it = json.getFieldNames();it.hasNext();)
+		{
+			String field = it.next();
+			JsonNode jnode = json.get(field);
+			if (jnode.isNumber())
+				out.add(hasher.getFeatureHash(0, field), (float)jnode.asDouble());
+			else if (jnode.isObject())
+			{
+				int nsHash = hasher.getNamespaceHash(field);
+				for(Iterator<String> nit = jnode.getFieldNames();nit.hasNext();)
+				{
+					String nfield = nit.next();
+					JsonNode nnode = jnode.get(nfield);
+					if (nnode.isNumber())
+						out.add(hasher.getFeatureHash(nsHash, nfield), (float)nnode.asDouble());
+				}
+			}
+		}
+	}
+	
 	private Namespace extractNamespace(String name,JsonNode json)
 	{
 		Map<String,Float> features = new HashMap<String,Float>();
@@ -97,6 +125,38 @@ public class VwFeatureExtractor {
 
 	}
 	
+	/**
+	 * Reusable buffer of feature hashes and values.
+	 */
+	public static class HashedFeatures
+	{
+		int size;
+		int[] hashes = new int[64];
+		float[] values = new float[64];
+		
+		public void clear()
+		{
+			size = 0;
+		}
+		
+		public void add(int hash,float value)
+		{
+			if (size == hashes.length)
+			{
+				hashes = Arrays.copyOf(hashes, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			hashes[size] = hash;
+			values[size] = value;
+			size++;
+		}
+		
+		public int size()
+		{
+			return size;
+		}
+	}
+	
 	
 	
 }
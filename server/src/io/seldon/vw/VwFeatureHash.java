@@ -29,6 +29,7 @@ import com.google.common.hash.Hashing;
 public class VwFeatureHash {
 
 	final static int VW_CONSTANT_HASH = 11650396;
+	private static final HashFunction NAMESPACE_HASH = Hashing.murmur3_32(0);
 	final int mask;
 	final int stride;
 	
@@ -36,7 +37,6 @@ public class VwFeatureHash {
 	{
 		mask = Math.round((float)Math.pow(2, bits) - 1);
 		stride = Math.round((float)Math.pow(2,Math.ceil(log2(oaa,2))));
-		System.out.println("Stide is "+stride);
 	}
 	
 	private double log2(int val,int base)
@@ -63,29 +63,41 @@ public class VwFeatureHash {
 	
 	public Integer getFeatureHash(int label,String namespace,String feature)
 	{
-		int nsHash = 0;
-		if (!StringUtils.isEmpty(namespace))
-		{
-			HashFunction h = Hashing.murmur3_32(0);
-			nsHash = h.hashBytes(namespace.getBytes()).asInt();
-		}
-		int hcl = 0;
+		return getIndex(getFeatureHash(getNamespaceHash(namespace), feature), label);
+	}
+
+	/**
+	 * @return the hash of the namespace, which only needs computing once for all the features in it
+	 */
+	public int getNamespaceHash(String namespace)
+	{
+		if (StringUtils.isEmpty(namespace))
+			return 0;
+		return NAMESPACE_HASH.hashBytes(namespace.getBytes()).asInt();
+	}
+
+	/**
+	 * @return the hash of the feature in the namespace, which is the same for every class
+	 */
+	public int getFeatureHash(int nsHash,String feature)
+	{
 		if (isInteger(feature))
-			hcl = Integer.parseInt(feature) + nsHash;
+			return Integer.parseInt(feature) + nsHash;
 		else
-		{
-			HashFunction h = Hashing.murmur3_32(nsHash);
-			hcl = (h.hashBytes(feature.getBytes()).asInt());
-		}
-		int f = ((hcl * stride) + label - 1) & mask;
-		return f;
+			return Hashing.murmur3_32(nsHash).hashBytes(feature.getBytes()).asInt();
+	}
+
+	/**
+	 * @return the weight index of a feature hash for a class label
+	 */
+	public int getIndex(int featureHash,int label)
+	{
+		return ((featureHash * stride) + label - 1) & mask;
 	}
 	
 	public Integer getConstantHash(int label)
 	{
-		int hash_oaa = VW_CONSTANT_HASH * stride;
-		int f = (hash_oaa + label - 1) & mask;
-		return f;
+		return getIndex(VW_CONSTANT_HASH, label);
 	}
 	
 	public static void main(String[] args)
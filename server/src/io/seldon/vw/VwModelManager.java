@@ -40,6 +40,8 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
     private static Logger logger = Logger.getLogger(VwModelManager.class.getName());
     private final ExternalResourceStreamer featuresFileHandler;
     private static final String MF_NEW_LOC_PATTERN = "vw";
+    // weights are held in a dense array of 2^bits floats
+    private static final int MAX_BITS = 26;
 
 
     @Autowired
@@ -66,8 +68,9 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
 
 
 
-    private VwModel loadModel(BufferedReader reader, Map<Integer, String> classIdMap) throws IOException {
-        Map<Integer, Float> weights = new HashMap<Integer, Float>();
+    VwModel loadModel(BufferedReader reader, Map<Integer, String> classIdMap) throws IOException {
+        float[] weights = null;
+        int numWeights = 0;
         int oaa = 1;
         int bits = 18;
         String line;
@@ -75,7 +78,9 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
         while ((line = reader.readLine()) != null) {
             if (!insideFeatures) {
                 if (line.startsWith("bits:")) {
-                    bits = Integer.parseInt(line.split(":")[1]);
+                    bits = Integer.parseInt(line.split(":")[1].trim());
+                    if (bits < 0 || bits > MAX_BITS)
+                        throw new IOException("VW model with " + bits + " bits is outside the supported range 0 to " + MAX_BITS);
                 } else if (line.startsWith("options:")) {
                     String[] parts = line.split(":");
                     if (parts.length > 1) {
@@ -89,16 +94,22 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
                         }
                     }
                 } else if (line.startsWith(":0")) {
+                    weights = new float[1 << bits];
                     insideFeatures = true;
                 }
             } else {
-                String[] featureAndWeight = line.split(":");
-                int feature = Integer.parseInt(featureAndWeight[0]);
-                float weight = Float.parseFloat(featureAndWeight[1]);
-                weights.put(feature, weight);
+                int colon = line.indexOf(':');
+                int feature = Integer.parseInt(line.substring(0, colon));
+                if (feature < 0 || feature >= weights.length)
+                    throw new IOException("VW feature index " + feature + " outside model of " + bits + " bits");
+                int end = line.indexOf(':', colon + 1);
+                weights[feature] = Float.parseFloat(line.substring(colon + 1, end < 0 ? line.length() : end));
+                numWeights++;
             }
         }
-        return new VwModel(bits, oaa, weights, classIdMap);
+        if (weights == null)
+            weights = new float[1 << bits];
+        return new VwModel(bits, oaa, weights, numWeights, classIdMap);
     }
 
     @Override
@@ -126,7 +137,7 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
             VwModel model = loadModel(modelReader, classIdMap);
 
 
-            logger.info("Loaded VW model from " + location + " for " + client + " with " + model.weights.size() + " weights and " + model.classIdMap.size() + " classes");
+            logger.info("Loaded VW model from " + location + " for " + client + " with " + model.numWeights + " weights and " + model.classIdMap.size() + " classes");
 
             return model;
         } catch (FileNotFoundException e) {
@@ -142,14 +153,17 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
         public final int bits;
         public final int oaa;
         public final Map<Integer, String> classIdMap;
-        public final Map<Integer, Float> weights;
+        /** weights indexed by feature hash, 0 for features not in the model */
+        public final float[] weights;
+        public final int numWeights;
         public final VwFeatureHash hasher;
 
-        public VwModel(int bits, int oaa, Map<Integer, Float> weights, Map<Integer, String> classIdMap) {
+        public VwModel(int bits, int oaa, float[] weights, int numWeights, Map<Integer, String> classIdMap) {
             super();
             this.bits = bits;
             this.oaa = oaa;
             this.weights = weights;
+            this.numWeights = numWeights;
             this.hasher = new VwFeatureHash(bits, oaa);
             this.classIdMap = classIdMap;
         }
@@ -157,7 +171,7 @@ public class VwModelManager extends ModelManager<VwModelManager.VwModel> {
         @Override
         public String toString() {
             return "VwModel [bits=" + bits + ", oaa=" + oaa + ", weights="
-                    + weights + "]";
+                    + numWeights + "]";
         }
 
 
@@ -0,0 +1,79 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.caching;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ActionHistoryCacheTest {
+
+	private static Map<String,String> localConfig()
+	{
+		Map<String,String> config = new HashMap<>();
+		config.put(ActionHistoryCache.HISTORY_CONFIG, ActionHistoryCache.HISTORY_LOCAL);
+		return config;
+	}
+
+	private static int historySize(ActionHistoryCache cache,String client)
+	{
+		for(long item=1;item<=200;item++)
+			cache.addAction(client, 1L, item);
+		return cache.getRecentActions(client, 1L, 1000).size();
+	}
+
+	@Test
+	public void maxActionsShouldFollowTheStrategies()
+	{
+		ActionHistoryCache cache = new ActionHistoryCache(null, null);
+		cache.clientAdded("c1", localConfig());
+		assertEquals(100, historySize(cache, "c1"));
+		cache.recentActionsLimitUpdated(null, 10);
+		cache.recentActionsLimitUpdated("c1", 30);
+		assertEquals(30, historySize(cache, "c1"));
+		cache.clientAdded("c2", localConfig());
+		assertEquals(10, historySize(cache, "c2"));
+		cache.recentActionsLimitUpdated("c1", 0);
+		assertEquals(10, historySize(cache, "c1"));
+	}
+
+	@Test
+	public void configuredMaxActionsShouldOverrideTheStrategies()
+	{
+		ActionHistoryCache cache = new ActionHistoryCache(null, null);
+		Map<String,String> config = localConfig();
+		config.put(ActionHistoryCache.HISTORY_MAX_ACTIONS_CONFIG, "50");
+		cache.recentActionsLimitUpdated("c1", 30);
+		cache.clientAdded("c1", config);
+		assertEquals(50, historySize(cache, "c1"));
+		cache.recentActionsLimitUpdated("c1", 20);
+		assertEquals(50, historySize(cache, "c1"));
+		cache.clientAdded("c1", localConfig());
+		assertEquals(20, historySize(cache, "c1"));
+	}
+}
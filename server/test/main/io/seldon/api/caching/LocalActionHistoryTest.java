@@ -0,0 +1,98 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.caching;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.seldon.general.Action;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LocalActionHistoryTest {
+
+	@Test
+	public void recentActionsShouldBeMostRecentFirstAndBounded()
+	{
+		LocalActionHistory history = new LocalActionHistory(1000, 20);
+		for(long item=1;item<=50;item++)
+			history.addAction(1L, item);
+		history.addAction(1L, 50L); // already present
+		List<Long> recent = history.getRecentActions(1L, 100);
+		assertEquals(20, recent.size());
+		assertEquals(Long.valueOf(50), recent.get(0));
+		assertEquals(Long.valueOf(31), recent.get(19));
+		assertEquals(Arrays.asList(50L, 49L, 48L), history.getRecentActions(1L, 3));
+		assertTrue(history.getRecentActions(2L, 10).isEmpty());
+	}
+
+	@Test
+	public void changingMaxActionsShouldResizeHistoriesOnTheNextAction()
+	{
+		LocalActionHistory history = new LocalActionHistory(1000, 20);
+		for(long item=1;item<=20;item++)
+			history.addAction(1L, item);
+		history.setMaxActions(5);
+		history.addAction(1L, 21L);
+		assertEquals(Arrays.asList(21L, 20L, 19L, 18L, 17L), history.getRecentActions(1L, 100));
+		history.setMaxActions(8);
+		for(long item=22;item<=30;item++)
+			history.addAction(1L, item);
+		assertEquals(8, history.getRecentActions(1L, 100).size());
+		assertEquals(Long.valueOf(30), history.getRecentActions(1L, 1).get(0));
+	}
+
+	@Test
+	public void fullActionsShouldBeMostRecentFirst()
+	{
+		LocalActionHistory history = new LocalActionHistory(1000, 5);
+		for(long item=1;item<=12;item++)
+		{
+			Action a = new Action();
+			a.setUserId(7L);
+			a.setItemId(item);
+			history.addFullAction(a);
+		}
+		List<Action> recent = history.getRecentFullActions(7L, 10);
+		assertEquals(5, recent.size());
+		assertEquals(12L, recent.get(0).getItemId());
+		assertEquals(8L, recent.get(4).getItemId());
+		history.remove(7L);
+		assertTrue(history.getRecentFullActions(7L, 10).isEmpty());
+	}
+
+	@Test
+	public void leastRecentlyUsedUsersShouldBeEvicted()
+	{
+		LocalActionHistory history = new LocalActionHistory(160, 10);
+		for(long user=1;user<=10000;user++)
+			history.addAction(user, 1L);
+		assertTrue(history.size() <= 160);
+		assertEquals(1, history.getRecentActions(10000L, 10).size());
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.seldon.api.resource.ResourceBean;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class AsyncEventLogTest {
+
+	private static class CapturingSink implements EventSink {
+		final List<String> lines = new ArrayList<>();
+		final List<Long> users = new ArrayList<>();
+		final List<String> mdc = new ArrayList<>();
+		boolean closed = false;
+
+		@Override
+		public void write(EventRecord event)
+		{
+			StringBuilder sb = new StringBuilder();
+			EventFormat.appendCsv(sb, event);
+			lines.add(sb.toString());
+			users.add(event.userId);
+			mdc.add(event.threadName+","+event.mdcConsumer+","+event.mdcUser+","+event.mdcItem);
+		}
+
+		@Override
+		public void flush() {}
+
+		@Override
+		public void close()
+		{
+			closed = true;
+		}
+	}
+
+	@Test
+	public void csvShouldMatchLegacyFormat()
+	{
+		CapturingSink sink = new CapturingSink();
+		AsyncEventLog log = new AsyncEventLog(16, sink);
+		log.logAction("client", 1L, 2L, 1, 1D, "cu", "ci", null);
+		log.logCtr(false, "client", "alg", -1, "cu", "3", null, 4, "1:2", "A", "tag");
+		log.logApi(0, "client", "GET", "host", "/ctx", "/js/recommendations", "a=1,2", 12, new ResourceBean() {
+			@Override
+			public String toKey() { return "k"; }
+			@Override
+			public String toLog() { return "bean"; }
+		}, "alg");
+		log.logEvent("{\"a\":1}");
+		log.close();
+		assertTrue(sink.closed);
+		assertEquals(4, sink.lines.size());
+		assertEquals(String.format("%s,%s,%s,%s,%s,%s,\"%s\",\"%s\"", "client", "default", 1L, 2L, 1, 1D, "cu", "ci"), sink.lines.get(0));
+		assertEquals(String.format("%s,%s,%s,%d,%s,%s,%s,%d,%s,%s,%s", "IMP", "client", "alg", -1, "cu", "3", null, 4, "1:2", "A", "tag"), sink.lines.get(1));
+		String[] api = sink.lines.get(2).split(",");
+		assertEquals("0,client,GET,host/ctx,/js/recommendations,a=1%2C2,12", sink.lines.get(2).substring(0, sink.lines.get(2).indexOf(api[7]) - 1));
+		UUID id = UUID.fromString(api[7]);
+		assertEquals(4, id.version());
+		assertEquals(2, id.variant());
+		assertEquals("bean", api[8]);
+		assertEquals("alg", api[9]);
+		assertEquals("{\"a\":1}", sink.lines.get(3));
+	}
+
+	@Test
+	public void requestThreadAndMdcShouldBeCapturedWhenLogged()
+	{
+		CapturingSink sink = new CapturingSink();
+		AsyncEventLog log = new AsyncEventLog(16, sink);
+		MDC.put(MDCKeys.MDC_CONSUMER_KEY, "client");
+		MDC.put(MDCKeys.MDC_USER_KEY, "cu");
+		MDC.remove(MDCKeys.MDC_ITEM_KEY);
+		try
+		{
+			log.logEvent("{}");
+		}
+		finally
+		{
+			MDC.remove(MDCKeys.MDC_CONSUMER_KEY);
+			MDC.remove(MDCKeys.MDC_USER_KEY);
+		}
+		log.close();
+		assertEquals(Thread.currentThread().getName()+",client,cu,null", sink.mdc.get(0));
+	}
+
+	@Test
+	public void log4jEventsShouldKeepRequestTimeThreadAndMdc()
+	{
+		final List<LoggingEvent> events = new ArrayList<>();
+		AppenderSkeleton appender = new AppenderSkeleton() {
+			@Override
+			protected void append(LoggingEvent event) {
+				events.add(event);
+			}
+			@Override
+			public boolean requiresLayout() { return false; }
+			@Override
+			public void close() {}
+		};
+		Logger actionLogger = Logger.getLogger("ActionLogger");
+		Level level = actionLogger.getLevel();
+		actionLogger.setLevel(Level.INFO);
+		actionLogger.addAppender(appender);
+		try
+		{
+			EventRecord event = new EventRecord();
+			event.type = EventRecord.ACTION;
+			event.timestamp = 12345L;
+			event.threadName = "request-1";
+			event.mdcConsumer = "client";
+			event.mdcUser = "cu";
+			event.client = "client";
+			new Log4jEventSink().write(event);
+		}
+		finally
+		{
+			actionLogger.removeAppender(appender);
+			actionLogger.setLevel(level);
+		}
+		assertEquals(1, events.size());
+		LoggingEvent logged = events.get(0);
+		assertEquals(12345L, logged.getTimeStamp());
+		assertEquals("request-1", logged.getThreadName());
+		assertEquals("client", logged.getMDC(MDCKeys.MDC_CONSUMER_KEY));
+		assertEquals("cu", logged.getMDC(MDCKeys.MDC_USER_KEY));
+		assertEquals(null, logged.getMDC(MDCKeys.MDC_ITEM_KEY));
+		assertTrue(logged.getRenderedMessage().startsWith("client,"));
+	}
+
+	@Test
+	public void beansShouldBeFormattedWhenLogged()
+	{
+		CapturingSink sink = new CapturingSink();
+		AsyncEventLog log = new AsyncEventLog(16, sink);
+		final StringBuilder state = new StringBuilder("before");
+		log.logApi(0, "client", "GET", "host", "/ctx", "/js/recommendations", "", 1, new ResourceBean() {
+			@Override
+			public String toKey() { return "k"; }
+			@Override
+			public String toLog() { return state.toString(); }
+		}, null);
+		state.setLength(0);
+		state.append("after");
+		log.close();
+		assertTrue(sink.lines.get(0).endsWith(",before"));
+	}
+
+	@Test
+	public void parkedWriterShouldWakeForTheNextEvent() throws InterruptedException
+	{
+		CapturingSink sink = new CapturingSink();
+		AsyncEventLog log = new AsyncEventLog(16, sink);
+		Thread.sleep(200); // long enough for the writer to park
+		log.logEvent("{}");
+		long end = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < end)
+		{
+			synchronized (sink)
+			{
+				if (sink.lines.size() == 1)
+					break;
+			}
+			Thread.sleep(1);
+		}
+		synchronized (sink)
+		{
+			assertEquals(1, sink.lines.size());
+		}
+		log.close();
+	}
+
+	@Test
+	public void concurrentEventsShouldAllBeWrittenOnceEvenWhenRingIsFull() throws InterruptedException
+	{
+		CapturingSink sink = new CapturingSink();
+		final AsyncEventLog log = new AsyncEventLog(16, sink);
+		final int threads = 8;
+		final int perThread = 10000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t=0;t<threads;t++)
+		{
+			final long user = t;
+			new Thread() {
+				@Override
+				public void run()
+				{
+					for(int i=0;i<perThread;i++)
+						log.logAction("client", user, i, 1, 1D, null, null, null);
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		log.close();
+		assertEquals(threads * perThread, sink.users.size());
+		int[] counts = new int[threads];
+		for(Long user : sink.users)
+			counts[user.intValue()]++;
+		for(int t=0;t<threads;t++)
+			assertEquals(perThread, counts[t]);
+	}
+
+	@Test
+	public void jsonSinkShouldRotateBySize() throws IOException
+	{
+		File dir = Files.createTempDirectory("eventlog").toFile();
+		AsyncEventLog log = new AsyncEventLog(1024, new JsonFileEventSink(dir, 2000, 3600000));
+		for(int i=0;i<100;i++)
+			log.logAction("client", i, i, 1, 1D, "u\"" + i, null, null);
+		log.logEvent("{\"a\":1}");
+		log.close();
+		ObjectMapper mapper = new ObjectMapper();
+		int actions = 0;
+		int files = 0;
+		for(File f : dir.listFiles())
+		{
+			if (f.getName().startsWith("actions-"))
+			{
+				files++;
+				try (BufferedReader in = new BufferedReader(new FileReader(f)))
+				{
+					for(String line = in.readLine();line != null;line = in.readLine())
+					{
+						JsonNode node = mapper.readTree(line);
+						assertEquals("action", node.get("type").asText());
+						assertEquals("u\"" + node.get("userid").asLong(), node.get("client_userid").asText());
+						actions++;
+					}
+				}
+			}
+			f.delete();
+		}
+		dir.delete();
+		assertEquals(100, actions);
+		assertTrue(files > 1);
+	}
+}
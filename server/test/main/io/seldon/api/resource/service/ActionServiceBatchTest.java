@@ -0,0 +1,407 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.api.resource.service;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.seldon.api.APIException;
+import io.seldon.api.caching.ActionHistoryCache;
+import io.seldon.api.resource.ActionBean;
+import io.seldon.api.resource.ConsumerBean;
+import io.seldon.api.resource.ErrorBean;
+import io.seldon.api.resource.ItemBean;
+import io.seldon.api.resource.ListBean;
+import io.seldon.api.resource.ResourceBean;
+import io.seldon.api.resource.UserBean;
+import io.seldon.api.resource.service.business.ActionBusinessServiceImpl;
+import io.seldon.api.service.async.AsyncActionQueue;
+import io.seldon.api.service.async.JdoAsyncActionFactory;
+import io.seldon.api.state.ClientAlgorithmStore;
+import io.seldon.clustering.recommender.ClientClusterTypeService;
+import io.seldon.clustering.recommender.CountRecommender;
+import io.seldon.clustering.recommender.MemoryClusterCountStore;
+import io.seldon.clustering.recommender.MemoryUserClusterStore;
+import io.seldon.clustering.recommender.UserCluster;
+import io.seldon.clustering.recommender.jdo.JdoCountRecommenderUtils;
+import io.seldon.general.Action;
+import io.seldon.general.Item;
+import io.seldon.general.User;
+import io.seldon.recommendation.ActionIngestionPlan;
+import io.seldon.recommendation.AlgorithmStrategy;
+import io.seldon.recommendation.ClientStrategy;
+import io.seldon.recommendation.combiner.AlgorithmResultsCombiner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Checks a batch of actions has the same effects as adding them one at a time
+ */
+public class ActionServiceBatchTest {
+
+	private static final String CLIENT = "test";
+	private static final Date DATE = new Date(System.currentTimeMillis() - 60000);
+
+	private static class FakeItemService extends ItemService {
+		final Map<String,Long> ids = new HashMap<>();
+		final List<String> created = new ArrayList<>();
+		long nextId = 1000;
+		int lookups;
+		int bulkLookups;
+
+		@Override
+		public Long getInternalItemId(ConsumerBean c, String id) throws APIException {
+			lookups++;
+			Long res = ids.get(id);
+			if (res == null)
+				throw new APIException(APIException.ITEM_NOT_FOUND);
+			return res;
+		}
+
+		@Override
+		public Map<String,Long> getInternalItemIds(ConsumerBean c, Collection<String> clientIds) throws APIException {
+			bulkLookups++;
+			Map<String,Long> res = new HashMap<>();
+			for (String id : clientIds)
+				if (ids.containsKey(id))
+					res.put(id, ids.get(id));
+			return res;
+		}
+
+		@Override
+		public Item addItem(ConsumerBean c, ItemBean bean) {
+			if (ids.containsKey(bean.getId()))
+				throw new APIException(APIException.ITEM_DUPLICATED);
+			ids.put(bean.getId(), nextId);
+			created.add(bean.getId());
+			Item item = new Item();
+			item.setItemId(nextId++);
+			return item;
+		}
+	}
+
+	private static class FakeUserService extends UserService {
+		final Map<String,Long> ids = new HashMap<>();
+		final List<String> created = new ArrayList<>();
+		long nextId = 500;
+		int lookups;
+		int bulkLookups;
+
+		@Override
+		public Long getInternalUserId(String consumerShortName, String id) throws APIException {
+			lookups++;
+			Long res = ids.get(id);
+			if (res == null)
+				throw new APIException(APIException.USER_NOT_FOUND);
+			return res;
+		}
+
+		@Override
+		public Map<String,Long> getInternalUserIds(String consumerShortName, Collection<String> clientIds) {
+			bulkLookups++;
+			Map<String,Long> res = new HashMap<>();
+			for (String id : clientIds)
+				if (ids.containsKey(id))
+					res.put(id, ids.get(id));
+			return res;
+		}
+
+		@Override
+		public User addUser(ConsumerBean c, UserBean bean) {
+			if (ids.containsKey(bean.getId()))
+				throw new APIException(APIException.USER_DUPLICATED);
+			ids.put(bean.getId(), nextId);
+			created.add(bean.getId());
+			User user = new User();
+			user.setUserId(nextId++);
+			return user;
+		}
+	}
+
+	private static class RecordingHistory extends ActionHistoryCache {
+		final Map<Long,List<Long>> items = new TreeMap<>();
+		final List<String> batches = new ArrayList<>();
+		final List<String> fullBatches = new ArrayList<>();
+
+		RecordingHistory()
+		{
+			super(null, null);
+		}
+
+		private List<Long> get(long userId)
+		{
+			List<Long> res = items.get(userId);
+			if (res == null)
+			{
+				res = new ArrayList<>();
+				items.put(userId, res);
+			}
+			return res;
+		}
+
+		@Override
+		public void addAction(String clientName, long userId, long itemId) {
+			get(userId).add(itemId);
+		}
+
+		@Override
+		public void addActions(String clientName, long userId, List<Long> itemIds) {
+			get(userId).addAll(itemIds);
+			batches.add(userId+":"+itemIds);
+		}
+
+		@Override
+		public void addFullAction(String clientName, Action a) {
+		}
+
+		@Override
+		public void addFullActions(String clientName, long userId, List<Action> userActions) {
+			List<Long> itemIds = new ArrayList<>();
+			for (Action a : userActions)
+				itemIds.add(a.getItemId());
+			fullBatches.add(userId+":"+itemIds);
+		}
+	}
+
+	private static class RecordingQueue implements AsyncActionQueue {
+		final List<String> actions = new ArrayList<>();
+
+		@Override
+		public void put(Action a) {
+			actions.add(a.getUserId()+":"+a.getItemId()+":"+a.getClientUserId()+":"+a.getClientItemId()+":"+a.getType());
+		}
+
+		@Override
+		public void setRunUpdateIdsInActionTable(boolean val) {
+		}
+
+		@Override
+		public boolean isRunUpdateIdsInActionTable() {
+			return true;
+		}
+
+		@Override
+		public void setKeepRunning(boolean keepRunning) {
+		}
+	}
+
+	/**
+	 * An action service wired to in memory fakes holding two known users and items. Actions with the rec tag "full"
+	 * are ingested with a plan that stores full actions.
+	 */
+	private static class Fixture {
+		final FakeItemService items = new FakeItemService();
+		final FakeUserService users = new FakeUserService();
+		final RecordingHistory history = new RecordingHistory();
+		final RecordingQueue queue = new RecordingQueue();
+		final MemoryClusterCountStore counts = new MemoryClusterCountStore(CLIENT, 3600);
+		final ActionService service = new ActionService();
+
+		Fixture()
+		{
+			items.ids.put("i1", 101L);
+			items.ids.put("i2", 102L);
+			users.ids.put("u1", 1L);
+			users.ids.put("u2", 2L);
+			MemoryUserClusterStore userClusters = new MemoryUserClusterStore(CLIENT, 10);
+			userClusters.store(1L, Arrays.asList(new UserCluster(1L, 10, 1.0, 1, 0)));
+			userClusters.store(2L, Arrays.asList(new UserCluster(2L, 10, 0.5, 1, 0), new UserCluster(2L, 11, 0.5, 1, 0)));
+
+			Map<Integer,Double> weights = new HashMap<>();
+			weights.put(2, 3.0);
+			final ActionIngestionPlan plan = ActionIngestionPlan.build(Collections.<AlgorithmStrategy>emptyList(), weights, null);
+			final ActionIngestionPlan fullPlan = ActionIngestionPlan.build(Arrays.asList(new AlgorithmStrategy(null, null, null,
+					Collections.singletonMap(ActionIngestionPlan.FULL_ACTION_STORE_OPTION_NAME, "true"), "full")), weights, null);
+			ClientStrategy strategy = new ClientStrategy() {
+				@Override
+				public Double getDiversityLevel(String userId, String recTag) {
+					return null;
+				}
+				@Override
+				public List<AlgorithmStrategy> getAlgorithms(String userId, String recTag) {
+					return Collections.emptyList();
+				}
+				@Override
+				public AlgorithmResultsCombiner getAlgorithmResultsCombiner(String userId, String recTag) {
+					return null;
+				}
+				@Override
+				public String getName(String userId, String recTag) {
+					return DEFAULT_NAME;
+				}
+				@Override
+				public Map<Integer,Double> getActionsWeights(String userId, String recTag) {
+					return null;
+				}
+				@Override
+				public ActionIngestionPlan getIngestionPlan(String userId, String recTag) {
+					return "full".equals(recTag) ? fullPlan : plan;
+				}
+			};
+			ClientAlgorithmStore algorithmStore = createNiceMock(ClientAlgorithmStore.class);
+			expect(algorithmStore.retrieveStrategy(CLIENT)).andStubReturn(strategy);
+			JdoAsyncActionFactory asyncFactory = createNiceMock(JdoAsyncActionFactory.class);
+			expect(asyncFactory.get(CLIENT)).andStubReturn(queue);
+			JdoCountRecommenderUtils countUtils = createNiceMock(JdoCountRecommenderUtils.class);
+			expect(countUtils.getCountRecommender(CLIENT)).andStubReturn(new CountRecommender(CLIENT, userClusters, counts, null));
+			replay(algorithmStore, asyncFactory, countUtils);
+
+			ReflectionTestUtils.setField(service, "itemService", items);
+			ReflectionTestUtils.setField(service, "userService", users);
+			ReflectionTestUtils.setField(service, "clientAlgorithmStore", algorithmStore);
+			ReflectionTestUtils.setField(service, "asyncActionFactory", asyncFactory);
+			ReflectionTestUtils.setField(service, "cUtils", countUtils);
+			ReflectionTestUtils.setField(service, "actionCache", history);
+			ReflectionTestUtils.setField(service, "clusterTypeService", new ClientClusterTypeService() {
+				@Override
+				public void addTypes(String client, Set<Integer> types) {
+				}
+				@Override
+				public boolean okToClusterCount(String client, int type) {
+					return true;
+				}
+			});
+		}
+	}
+
+	private static List<ActionBean> actions()
+	{
+		String[][] pairs = {{"u1","i1"},{"u2","i1"},{"u1","i2"},{"uNew","i1"},{"u1","iNew"},{"uNew","iNew"},{"u1","i1"},{"u2","iNew"},{"uNew2","iNew2"},{"uNew2","iNew2"}};
+		List<ActionBean> res = new ArrayList<>();
+		for (int i=0;i<pairs.length;i++)
+			res.add(new ActionBean(null, pairs[i][0], pairs[i][1], i % 3 == 1 ? 2 : 1, DATE, null, 1));
+		return res;
+	}
+
+	private void assertSameEffects()
+	{
+		ConsumerBean c = new ConsumerBean(CLIENT);
+		Fixture single = new Fixture();
+		for (ActionBean bean : actions())
+			single.service.addAction(c, bean);
+		Fixture batch = new Fixture();
+		List<ResourceBean> res = batch.service.addActions(c, actions());
+
+		assertEquals(actions().size(), res.size());
+		for (ResourceBean bean : res)
+			assertTrue(bean instanceof ActionBean);
+		assertEquals(single.queue.actions, batch.queue.actions);
+		assertEquals(single.items.created, batch.items.created);
+		assertEquals(single.users.created, batch.users.created);
+		assertEquals(single.history.items, batch.history.items);
+		for (int cluster : new int[] {10,11})
+			for (long item : new long[] {101L,102L,1000L,1001L})
+				assertEquals(single.counts.getCount(cluster, item, 0), batch.counts.getCount(cluster, item, 0), 1e-9);
+		assertTrue(single.counts.getCount(10, 101L, 0) > 0);
+	}
+
+	@After
+	public void tearDown()
+	{
+		JdoAsyncActionFactory.setAsyncUserWrites(true);
+		JdoAsyncActionFactory.setAsyncItemWrites(true);
+	}
+
+	@Test
+	public void batchShouldMatchSingleActionsWhenNewUsersAndItemsAreWrittenAsync()
+	{
+		JdoAsyncActionFactory.setAsyncUserWrites(true);
+		JdoAsyncActionFactory.setAsyncItemWrites(true);
+		assertSameEffects();
+	}
+
+	@Test
+	public void batchShouldMatchSingleActionsWhenNewUsersAndItemsAreCreated()
+	{
+		JdoAsyncActionFactory.setAsyncUserWrites(false);
+		JdoAsyncActionFactory.setAsyncItemWrites(false);
+		assertSameEffects();
+	}
+
+	private static ActionBean action(String user,String item,String recTag,String referrer)
+	{
+		ActionBean bean = new ActionBean(null, user, item, 1, DATE, null, 1);
+		bean.setRecTag(recTag);
+		bean.setReferrer(referrer);
+		return bean;
+	}
+
+	@Test
+	public void actionsShouldBeGroupedByPlanUserAndReferrerInOrder()
+	{
+		Fixture fixture = new Fixture();
+		List<ActionBean> beans = Arrays.asList(
+				action("u1", "i1", null, null),
+				action("u2", "i2", null, null),
+				action("u1", "i2", "full", null),
+				action("u1", "i2", null, null),
+				action("u2", "i1", "full", null),
+				action("u1", "i1", "full", null),
+				action("u1", "i1", null, "r"));
+		List<ResourceBean> res = fixture.service.addActions(new ConsumerBean(CLIENT), beans);
+		assertEquals(beans, res);
+		// ids are resolved in one lookup each
+		assertEquals(1, fixture.items.bulkLookups);
+		assertEquals(1, fixture.users.bulkLookups);
+		assertEquals(0, fixture.items.lookups + fixture.users.lookups);
+		// groups in order of their first action, each holding its actions in order
+		assertEquals(Arrays.asList("1:[101, 102]", "2:[102]", "1:[101]", "1:[102, 101]", "2:[101]"), fixture.history.batches);
+		assertEquals(Arrays.asList("1:[102, 101]", "2:[101]"), fixture.history.fullBatches);
+		assertEquals(7, fixture.queue.actions.size());
+		assertEquals("1:101:u1:i1:1", fixture.queue.actions.get(0));
+		assertEquals("1:101:u1:i1:1", fixture.queue.actions.get(6));
+	}
+
+	@Test
+	public void batchesOverTheLimitShouldBeRejected()
+	{
+		Fixture fixture = new Fixture();
+		ActionBusinessServiceImpl business = new ActionBusinessServiceImpl();
+		ReflectionTestUtils.setField(business, "actionService", fixture.service);
+		ReflectionTestUtils.setField(business, "maxBatchSize", 2);
+		ConsumerBean c = new ConsumerBean(CLIENT);
+		ResourceBean res = business.addActions(c, actions());
+		assertTrue(res instanceof ErrorBean);
+		assertEquals(APIException.BATCH_TOO_LARGE, ((ErrorBean) res).getError_id());
+		assertTrue(fixture.queue.actions.isEmpty());
+		res = business.addActions(c, actions().subList(0, 2));
+		assertEquals(2, ((ListBean) res).getList().size());
+		assertEquals(2, fixture.queue.actions.size());
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.service.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.seldon.general.Action;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionLogTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = Files.createTempDirectory("actionlog").toFile();
+	}
+
+	@After
+	public void tearDown()
+	{
+		File[] files = dir.listFiles();
+		if (files != null)
+			for(File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	private static Action action(long userId)
+	{
+		return new Action(null, userId, 2L, 1, 1, new Date(1000L), null, "u"+userId, "i2");
+	}
+
+	@Test
+	public void actionsShouldBeReadInOrderWithFields() throws Exception
+	{
+		ActionLog log = new ActionLog(dir, 4096, 1024 * 1024);
+		for(long i=1;i<=3;i++)
+			assertTrue(log.append(action(i), 0));
+		for(long i=1;i<=3;i++)
+		{
+			Action a = log.poll(0, TimeUnit.MILLISECONDS);
+			assertEquals(i, a.getUserId());
+			assertEquals("u"+i, a.getClientUserId());
+			assertEquals("i2", a.getClientItemId());
+			assertEquals(1000L, a.getDate().getTime());
+			assertNull(a.getValue());
+		}
+		assertNull(log.poll(0, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void rewindShouldReadUncommittedActionsAgain() throws Exception
+	{
+		ActionLog log = new ActionLog(dir, 4096, 1024 * 1024);
+		log.append(action(1), 0);
+		log.poll(0, TimeUnit.MILLISECONDS);
+		log.commit();
+		log.append(action(2), 0);
+		log.append(action(3), 0);
+		log.poll(0, TimeUnit.MILLISECONDS);
+		log.poll(0, TimeUnit.MILLISECONDS);
+		log.rewind();
+		assertEquals(2L, log.poll(0, TimeUnit.MILLISECONDS).getUserId());
+		assertTrue(log.getBytesBehind() > 0);
+	}
+
+	@Test
+	public void uncommittedActionsShouldBeReplayedOnRestartAcrossSegments() throws Exception
+	{
+		ActionLog log = new ActionLog(dir, 256, 1024 * 1024);
+		for(long i=1;i<=20;i++)
+			log.append(action(i), 0);
+		for(int i=0;i<5;i++)
+			log.poll(0, TimeUnit.MILLISECONDS);
+		log.commit();
+		log.poll(0, TimeUnit.MILLISECONDS);
+		log.close();
+
+		ActionLog reopened = new ActionLog(dir, 256, 1024 * 1024);
+		for(long i=6;i<=20;i++)
+			assertEquals(i, reopened.poll(0, TimeUnit.MILLISECONDS).getUserId());
+		assertNull(reopened.poll(0, TimeUnit.MILLISECONDS));
+		reopened.commit();
+		assertEquals(0, reopened.getBytesBehind());
+		assertEquals(0, reopened.getLagMillis());
+		assertTrue(dir.listFiles().length <= 3);
+	}
+
+	@Test
+	public void fullLogShouldDropAfterTimeoutUntilCommitted() throws Exception
+	{
+		ActionLog log = new ActionLog(dir, 4096, 200);
+		int added = 0;
+		while (log.append(action(added), 0))
+			added++;
+		assertTrue(added > 0);
+		assertEquals(1, log.getDropped());
+		assertFalse(log.append(action(0), 10));
+		while (log.poll(0, TimeUnit.MILLISECONDS) != null);
+		log.commit();
+		assertTrue(log.append(action(0), 0));
+	}
+
+	@Test
+	public void deadLetterShouldMoveTheBatchReadAndCommitIt() throws Exception
+	{
+		ActionLog log = new ActionLog(dir, 256, 1024 * 1024);
+		for(long i=1;i<=10;i++)
+			log.append(action(i), 0);
+		log.poll(0, TimeUnit.MILLISECONDS);
+		log.commit();
+		for(int i=0;i<6;i++)
+			log.poll(0, TimeUnit.MILLISECONDS);
+		long moved = log.deadLetter();
+		assertTrue(moved > 0);
+		assertEquals(moved, new File(dir, ActionLog.DEAD_LETTER_FILE).length());
+		assertEquals(8L, log.poll(0, TimeUnit.MILLISECONDS).getUserId());
+		log.close();
+
+		ActionLog reopened = new ActionLog(dir, 256, 1024 * 1024);
+		assertEquals(8L, reopened.poll(0, TimeUnit.MILLISECONDS).getUserId());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.state;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import io.seldon.api.state.options.DefaultOptions;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationContext;
+
+public class ClientAlgorithmStoreTest {
+
+	private static class RecordingListener implements RecentActionsLimitListener {
+		final Map<String,Integer> limits = new HashMap<>();
+
+		@Override
+		public void recentActionsLimitUpdated(String client, int limit) {
+			limits.put(client, limit);
+		}
+	}
+
+	private ClientAlgorithmStore store;
+	private RecordingListener listener;
+
+	private static String strategy(int numRecentActions)
+	{
+		return "{\"algorithms\":[{\"name\":\"alg\",\"config\":[{\"name\":\"io.seldon.algorithm.general.numrecentactionstouse\",\"value\":\""
+				+numRecentActions+"\"}]}],\"combiner\":\"firstSuccessfulCombiner\"}";
+	}
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup()
+	{
+		ApplicationContext context = createNiceMock(ApplicationContext.class);
+		expect(context.getBeansOfType((Class<Object>) anyObject())).andStubReturn(Collections.<String,Object>emptyMap());
+		replay(context);
+		store = new ClientAlgorithmStore(createNiceMock(ClientConfigHandler.class), createNiceMock(GlobalConfigHandler.class),
+				null, null, null, new DefaultOptions());
+		store.setApplicationContext(context);
+		listener = new RecordingListener();
+		store.addRecentActionsLimitListener(listener);
+	}
+
+	@Test
+	public void limitShouldBeTheMostAnyStrategyOfTheClientReads()
+	{
+		store.configUpdated("c", "algs", strategy(25));
+		assertEquals(Integer.valueOf(25), listener.limits.get("c"));
+		store.configUpdated("c", "alg_rectags", "{\"defaultStrategy\":"+strategy(5)+",\"recTagToStrategy\":{\"tag\":"+strategy(40)+"}}");
+		assertEquals(Integer.valueOf(40), listener.limits.get("c"));
+		assertEquals(40, store.getRecentActionsLimit("c"));
+		store.configRemoved("c", "alg_rectags");
+		assertEquals(Integer.valueOf(25), listener.limits.get("c"));
+	}
+
+	@Test
+	public void defaultStrategyShouldApplyToAllClients()
+	{
+		store.configUpdated("c", "algs", strategy(5));
+		store.configUpdated("default_strategy", strategy(10));
+		assertEquals(Integer.valueOf(10), listener.limits.get(null));
+		assertEquals(Integer.valueOf(10), listener.limits.get("c"));
+
+		// a listener added later is told the current limits
+		RecordingListener late = new RecordingListener();
+		store.addRecentActionsLimitListener(late);
+		assertEquals(listener.limits, late.limits);
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.api.statsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsdClientTest {
+
+	private DatagramSocket receiver;
+	private StatsdClient client;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		receiver.setReceiveBufferSize(1 << 20);
+		receiver.setSoTimeout(200);
+		client = new StatsdClient(InetAddress.getLoopbackAddress(), receiver.getLocalPort(), 0);
+	}
+
+	@After
+	public void tearDown()
+	{
+		client.close();
+		receiver.close();
+	}
+
+	/**
+	 * @return values by metric and type summed over all packets received until the socket goes quiet
+	 */
+	private Map<String,Double> receive() throws Exception
+	{
+		return receive(new HashMap<String,Double>());
+	}
+
+	/**
+	 * @param counts filled with the number of events by metric and type, scaled up by any sample rate
+	 */
+	private Map<String,Double> receive(Map<String,Double> counts) throws Exception
+	{
+		Map<String,Double> values = new HashMap<>();
+		byte[] buf = new byte[65536];
+		while (true)
+		{
+			DatagramPacket p = new DatagramPacket(buf, buf.length);
+			try
+			{
+				receiver.receive(p);
+			}
+			catch (SocketTimeoutException e)
+			{
+				return values;
+			}
+			assertTrue(p.getLength() <= StatsdClient.MAX_PACKET_BYTES);
+			for(String line : new String(p.getData(), 0, p.getLength(), StandardCharsets.UTF_8).split("\n"))
+			{
+				String[] nameValue = line.split(":");
+				String[] valueType = nameValue[1].split("\\|");
+				String key = nameValue[0] + "|" + valueType[1];
+				Double prev = values.get(key);
+				values.put(key, (prev == null ? 0 : prev) + Double.parseDouble(valueType[0]));
+				double rate = valueType.length > 2 ? Double.parseDouble(valueType[2].substring(1)) : 1;
+				prev = counts.get(key);
+				counts.put(key, (prev == null ? 0 : prev) + 1 / rate);
+			}
+		}
+	}
+
+	@Test
+	public void concurrentCountsShouldBeExactAcrossPackets() throws Exception
+	{
+		final int threads = 8;
+		final int perThread = 20000;
+		final int numKeys = 100; // enough names to need several packets
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t=0;t<threads;t++)
+		{
+			new Thread() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						for(int i=0;i<perThread;i++)
+						{
+							client.increment("test.counter.with.a.longish.name." + (i % numKeys));
+							if (i % 5000 == 0)
+								client.flush(); // flushes racing with updates must not lose counts
+						}
+					}
+					catch (InterruptedException e) {}
+					done.countDown();
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		client.flush();
+		Map<String,Double> values = receive();
+		double total = 0;
+		for(int k=0;k<numKeys;k++)
+		{
+			Double v = values.get("test.counter.with.a.longish.name." + k + "|c");
+			assertEquals(threads * perThread / numKeys, v, 0);
+			total += v;
+		}
+		assertEquals(threads * perThread, total, 0);
+	}
+
+	@Test
+	public void timersShouldSendEverySampleAsTimings() throws Exception
+	{
+		StatsdClient.Timer timer = client.timer("test.time");
+		for(int i=100;i>=1;i--)
+			timer.record(i);
+		client.gauge("test.gauge", 3);
+		client.gauge("test.gauge", 4.5);
+		client.flush();
+		Map<String,Double> counts = new HashMap<>();
+		Map<String,Double> values = receive(counts);
+		assertEquals(100, counts.get("test.time|ms"), 0);
+		assertEquals(5050, values.get("test.time|ms"), 0);
+		assertEquals(4.5, values.get("test.gauge|g"), 0);
+
+		// nothing updated so nothing sent
+		client.flush();
+		assertTrue(receive().isEmpty());
+	}
+
+	@Test
+	public void timersOverTheReservoirShouldSendASampleRate() throws Exception
+	{
+		StatsdClient.Timer timer = client.timer("test.time");
+		for(int i=0;i<4096;i++)
+			timer.record(7);
+		client.flush();
+		Map<String,Double> counts = new HashMap<>();
+		Map<String,Double> values = receive(counts);
+		assertEquals(4096, counts.get("test.time|ms"), 1);
+		assertEquals(7 * 1024, values.get("test.time|ms"), 0);
+	}
+
+	@Test
+	public void timerSlotsClaimedButNotWrittenShouldBeSkipped() throws Exception
+	{
+		StatsdClient.Timer timer = client.timer("test.time");
+		timer.record(5);
+		timer.record(6);
+		client.flush();
+		receive();
+		// a sample claimed but not yet written when the flush runs, its slot still holds the last interval's 6
+		timer.record(9);
+		timer.seen.incrementAndGet();
+		client.flush();
+		Map<String,Double> counts = new HashMap<>();
+		Map<String,Double> values = receive(counts);
+		assertEquals(1, counts.get("test.time|ms"), 0);
+		assertEquals(9, values.get("test.time|ms"), 0);
+	}
+}
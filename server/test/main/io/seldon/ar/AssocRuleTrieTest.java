@@ -0,0 +1,84 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.ar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class AssocRuleTrieTest {
+
+	private AssocRuleTrie createTrie()
+	{
+		return new AssocRuleTrie.Builder()
+			.add(Arrays.asList(1L), 10L, 1.0)
+			.add(Arrays.asList(2L, 1L), 10L, 2.0)
+			.add(Arrays.asList(1L, 2L), 11L, 4.0)
+			.add(Arrays.asList(1L, 3L), 12L, 8.0)
+			.add(Arrays.asList(4L, 3L, 2L, 1L), 13L, 16.0)
+			.build();
+	}
+
+	@Test
+	public void allSubsetsOfTheBasketShouldMatch()
+	{
+		AssocRuleTrie trie = createTrie();
+		assertEquals(5, trie.getNumRules());
+		Long2DoubleOpenHashMap scores = new Long2DoubleOpenHashMap();
+		trie.match(Arrays.asList(2L, 1L, 2L), scores);
+		assertEquals(2, scores.size());
+		assertEquals(3.0, scores.get(10L), 0);
+		assertEquals(4.0, scores.get(11L), 0);
+	}
+
+	@Test
+	public void basketsLongerThanThreeShouldMatchLongRules()
+	{
+		AssocRuleTrie trie = createTrie();
+		Long2DoubleOpenHashMap scores = new Long2DoubleOpenHashMap();
+		trie.match(Arrays.asList(4L, 5L, 3L, 2L, 1L), scores);
+		assertEquals(4, scores.size());
+		assertEquals(16.0, scores.get(13L), 0);
+		assertEquals(8.0, scores.get(12L), 0);
+	}
+
+	@Test
+	public void rulesNeedTheirWholeAntecedent()
+	{
+		AssocRuleTrie trie = createTrie();
+		Long2DoubleOpenHashMap scores = new Long2DoubleOpenHashMap();
+		trie.match(Arrays.asList(2L, 3L), scores);
+		assertFalse(scores.containsKey(10L));
+		assertEquals(0, scores.size());
+		trie.match(Collections.<Long>emptyList(), scores);
+		assertEquals(0, scores.size());
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.clustering.recommender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MemoryClusterCountStoreTest {
+
+	// long enough that crossing a second boundary during a test does not change the counts
+	private static final int NO_DECAY = 3600 * 24 * 365;
+
+	@Test
+	public void topCountsShouldMatchExactCounts() throws ClusterCountNoImplementationException
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",NO_DECAY,10,4);
+		long time = System.currentTimeMillis()/1000;
+		// item i gets i counts so top items are known
+		for(long item=1;item<=200;item++)
+			for(int i=0;i<item;i++)
+				store.add(1, item, 1.0, 0, time);
+		Map<Long,Double> top = store.getTopCounts(1, 0, 5, NO_DECAY);
+		assertEquals(5, top.size());
+		for(long item=196;item<=200;item++)
+			assertEquals(item, top.get(item), 0.01);
+		assertEquals(150, store.getCount(1, 150L, 0), 0.01);
+		assertTrue(store.getTopCounts(2, 0, 5, NO_DECAY).isEmpty());
+	}
+
+	@Test
+	public void limitAboveTopKShouldScanAllCounts() throws ClusterCountNoImplementationException
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",3600,2,2);
+		long time = System.currentTimeMillis()/1000;
+		for(long item=1;item<=50;item++)
+			store.add(1, item, item, 0, time);
+		assertEquals(20, store.getTopCounts(1, 0, 20, 3600).size());
+	}
+
+	@Test
+	public void globalCountsShouldSumClusters() throws ClusterCountNoImplementationException
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",NO_DECAY);
+		long time = System.currentTimeMillis()/1000;
+		store.add(1, 1L, 1.0, 0, time);
+		store.add(2, 1L, 2.0, 0, time);
+		store.add(2, 2L, 2.5, 0, time);
+		Map<Long,Double> top = store.getTopCounts(1, NO_DECAY);
+		assertEquals(3.0, top.get(1L), 0.01);
+	}
+
+	@Test
+	public void countsShouldDecayLikeExponentialCount()
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",3600);
+		long time = System.currentTimeMillis()/1000 - 7200;
+		ExponentialCount expected = new ExponentialCount(3600, 0, time);
+		Random r = new Random(1);
+		for(int i=0;i<100;i++)
+		{
+			long t = time + r.nextInt(3600);
+			store.add(1, 1L, 1.0, 0, t);
+			expected.increment(1.0, t);
+		}
+		assertEquals(expected.get(System.currentTimeMillis()/1000), store.getCount(1, 1L, 0), 0.01);
+	}
+
+	@Test
+	public void dirtyCountsShouldBeVisitedOnce()
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",3600);
+		long time = System.currentTimeMillis()/1000;
+		store.restore(1, 1L, 5.0, time);
+		store.add(1, 2L, 1.0, 0, time);
+		store.add(3, 2L, 1.0, 0, time);
+		final Map<Integer,Long> visited = new HashMap<>();
+		MemoryClusterCountStore.CountVisitor visitor = new MemoryClusterCountStore.CountVisitor() {
+			@Override
+			public void visit(int clusterId, long itemId, double delta, long t) {
+				visited.put(clusterId, itemId);
+			}
+		};
+		assertEquals(2, store.visitDirty(visitor));
+		assertEquals(Long.valueOf(2L), visited.get(1));
+		assertEquals(Long.valueOf(2L), visited.get(3));
+		assertEquals(0, store.visitDirty(visitor));
+		// a failed write marks the count dirty again
+		store.markDirty(3, 2L, 1.0, time);
+		assertEquals(1, store.visitDirty(visitor));
+		assertEquals(3, store.prune(10.0));
+		assertFalse(store.getCount(1, 1L, 0) > 0);
+	}
+
+	@Test
+	public void visitsShouldPassOnlyTheCountsAddedSinceTheLastVisit()
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",NO_DECAY);
+		long time = System.currentTimeMillis()/1000;
+		store.restore(1, 1L, 5.0, time); // written by other nodes
+		store.add(1, 1L, 2.0, 0, time);
+		final Map<Long,Double> deltas = new HashMap<>();
+		MemoryClusterCountStore.CountVisitor visitor = new MemoryClusterCountStore.CountVisitor() {
+			@Override
+			public void visit(int clusterId, long itemId, double delta, long t) {
+				deltas.put(itemId, delta);
+			}
+		};
+		assertEquals(1, store.visitDirty(visitor));
+		assertEquals(2.0, deltas.get(1L), 0.01);
+		assertEquals(7.0, store.getCount(1, 1L, 0), 0.01);
+
+		store.add(1, 1L, 1.0, 0, time);
+		assertEquals(1, store.visitDirty(visitor));
+		assertEquals(1.0, deltas.get(1L), 0.01);
+
+		// a failed write gives its delta back to be written with the next changes
+		store.markDirty(1, 1L, 1.0, time);
+		store.add(1, 1L, 0.5, 0, time);
+		assertEquals(1, store.visitDirty(visitor));
+		assertEquals(1.5, deltas.get(1L), 0.01);
+		assertEquals(8.5, store.getCount(1, 1L, 0), 0.01);
+	}
+
+	/**
+	 * An old large count overtakes a recent small one with a long decay but not with a short one
+	 */
+	private static MemoryClusterCountStore oldAndNewCounts(double alpha)
+	{
+		MemoryClusterCountStore store = new MemoryClusterCountStore("test",alpha,1,1);
+		long time = System.currentTimeMillis()/1000;
+		store.add(1, 1L, 100.0, 0, time - 36000);
+		store.add(1, 2L, 10.0, 0, time);
+		return store;
+	}
+
+	@Test
+	public void topCountsWithAnotherDecayShouldScanAllCounts() throws ClusterCountNoImplementationException
+	{
+		MemoryClusterCountStore store = oldAndNewCounts(3600);
+		assertTrue(store.getTopCounts(1, 0, 1, 3600).containsKey(2L));
+		assertTrue(store.getTopCounts(1, 0, 1, NO_DECAY).containsKey(1L));
+		assertTrue(store.getTopCounts(1, NO_DECAY).containsKey(1L));
+	}
+
+	@Test
+	public void changingAlphaShouldReorderTheHeaps() throws ClusterCountNoImplementationException
+	{
+		MemoryClusterCountStore store = oldAndNewCounts(3600);
+		store.setAlpha(NO_DECAY);
+		assertTrue(store.getTopCounts(1, 0, 1, NO_DECAY).containsKey(1L));
+		assertTrue(store.getTopCounts(1, NO_DECAY).containsKey(1L));
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.clustering.recommender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.seldon.api.state.options.AlgorithmOption;
+import io.seldon.clustering.recommender.RecommendationContext.OptionsHolder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OptionsHolderTest {
+
+	@Test
+	public void typedOptionsShouldMatchNamedOptions()
+	{
+		Map<String,String> config = new HashMap<>();
+		config.put("test.options.int", "42");
+		config.put("test.options.double", "0.5");
+		config.put("test.options.bool", "true");
+		config.put("test.options.string", "abc");
+		OptionsHolder holder = new OptionsHolder(null, config);
+		assertEquals(42, holder.getInteger(AlgorithmOption.named("test.options.int")));
+		assertEquals(Integer.valueOf(42), holder.getIntegerOption("test.options.int"));
+		assertEquals(42.0, holder.getDouble(AlgorithmOption.named("test.options.int")), 0);
+		assertEquals(0.5, holder.getDoubleOption("test.options.double"), 0);
+		assertTrue(holder.getBoolean(AlgorithmOption.named("test.options.bool")));
+		assertEquals("abc", holder.getString(AlgorithmOption.named("test.options.string")));
+	}
+
+	@Test
+	public void badOrMissingOptionsShouldDefault()
+	{
+		Map<String,String> config = new HashMap<>();
+		config.put("test.options.bad", "x");
+		OptionsHolder holder = new OptionsHolder(null, config);
+		assertEquals(0, holder.getInteger(AlgorithmOption.named("test.options.bad")));
+		assertEquals(0.0, holder.getDouble(AlgorithmOption.named("test.options.bad")), 0);
+		assertFalse(holder.getBoolean(AlgorithmOption.named("test.options.bad")));
+		assertNull(holder.getStringOption("test.options.missing"));
+	}
+
+	@Test
+	public void optionsRegisteredLaterShouldResolve()
+	{
+		Map<String,String> config = new HashMap<>();
+		OptionsHolder holder = new OptionsHolder(null, config);
+		config.put("test.options.late", "7");
+		assertEquals(7, holder.getInteger(AlgorithmOption.named("test.options.late")));
+	}
+}
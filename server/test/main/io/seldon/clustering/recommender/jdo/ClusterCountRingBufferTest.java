@@ -0,0 +1,109 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.clustering.recommender.jdo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ClusterCountRingBufferTest {
+
+	@Test
+	public void fullBufferShouldDropUntilDrained()
+	{
+		ClusterCountRingBuffer buffer = new ClusterCountRingBuffer(4);
+		assertEquals(4, buffer.capacity());
+		for(int i=0;i<4;i++)
+			assertTrue(buffer.offer(1, i, 1.0));
+		assertFalse(buffer.offer(1, 5, 1.0));
+		assertEquals(1, buffer.getDropped());
+		final List<Long> items = new ArrayList<>();
+		assertEquals(4, buffer.drain(new ClusterCountRingBuffer.Consumer() {
+			@Override
+			public void accept(int clusterId, long itemId, double weight) {
+				items.add(itemId);
+			}
+		}, 10));
+		assertEquals(4, items.size());
+		assertEquals(Long.valueOf(3), items.get(3));
+		assertTrue(buffer.offer(1, 5, 1.0));
+		assertEquals(1, buffer.size());
+	}
+
+	@Test
+	public void concurrentProducersShouldBeAggregatedExactly() throws InterruptedException
+	{
+		final ClusterCountRingBuffer buffer = new ClusterCountRingBuffer(1024);
+		final int producers = 4;
+		final int perProducer = 50000;
+		Thread[] threads = new Thread[producers];
+		for(int p=0;p<producers;p++)
+		{
+			final int cluster = p % 2;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0;i<perProducer;i++)
+						while (!buffer.offer(cluster, i % 100, 1.0))
+							Thread.yield();
+				}
+			});
+			threads[p].start();
+		}
+		final ClusterCountTable table = new ClusterCountTable(16);
+		ClusterCountRingBuffer.Consumer consumer = new ClusterCountRingBuffer.Consumer() {
+			@Override
+			public void accept(int clusterId, long itemId, double weight) {
+				table.add(clusterId, itemId, weight);
+			}
+		};
+		int consumed = 0;
+		while (consumed < producers * perProducer)
+			consumed += buffer.drain(consumer, 256);
+		for(Thread t : threads)
+			t.join();
+		assertEquals(200, table.size());
+		double total = 0;
+		IntArrayList slots = new IntArrayList();
+		table.slots(slots);
+		assertEquals(200, slots.size());
+		for(int i=0;i<slots.size();i++)
+		{
+			int slot = slots.getInt(i);
+			total += table.getCount(slot);
+			assertEquals(producers / 2 * perProducer / 100, table.getCount(slot), 0.0);
+		}
+		assertEquals(producers * perProducer, total, 0.0);
+		table.clear();
+		assertEquals(0, table.size());
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.clustering.recommender.jdo;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import io.seldon.api.state.GlobalConfigHandler;
+import io.seldon.clustering.recommender.MemoryClusterCountStore;
+import io.seldon.db.jdo.DbConfigHandler;
+
+import org.junit.Test;
+
+public class MemoryClusterCountFactoryTest {
+
+	private static final String CONFIG = "{\"clients\":[%s],\"decay\":%d,\"snapshot_secs\":3600}";
+
+	@Test
+	public void configUpdatesShouldChangeDecayAndDropRemovedClients()
+	{
+		MemoryClusterCountFactory factory = new MemoryClusterCountFactory(createNiceMock(GlobalConfigHandler.class), createNiceMock(DbConfigHandler.class));
+		factory.configUpdated("memory_cluster_counts", String.format(CONFIG, "\"test\"", 100));
+		assertNull(factory.get("test")); // no db yet
+		factory.dbConfigInitialised("test");
+		MemoryClusterCountStore store = factory.get("test");
+		assertEquals(100, store.getAlpha(), 0);
+
+		factory.configUpdated("memory_cluster_counts", String.format(CONFIG, "\"test\"", 200));
+		assertSame(store, factory.get("test"));
+		assertEquals(200, store.getAlpha(), 0);
+
+		factory.configUpdated("memory_cluster_counts", String.format(CONFIG, "", 200));
+		assertNull(factory.get("test"));
+	}
+}
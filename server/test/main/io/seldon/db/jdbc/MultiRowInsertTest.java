@@ -0,0 +1,116 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.db.jdbc;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MultiRowInsertTest {
+
+	private static final MultiRowInsert.Row<String> ROW = new MultiRowInsert.Row<String>() {
+		@Override
+		public void setParameters(PreparedStatement s, int index, String value) throws SQLException {
+			s.setString(index, value);
+			s.setInt(index + 1, value.length());
+		}
+		@Override
+		public int estimateBytes(String value) {
+			return value.length();
+		}
+	};
+
+	@Test
+	public void sqlShouldHaveOneValuesGroupPerRow()
+	{
+		MultiRowInsert<String> insert = new MultiRowInsert<>("insert into t (a,b) values ", "(?,?)", 2, 10, 1000, ROW);
+		assertEquals("insert into t (a,b) values (?,?)", insert.getSql(1));
+		assertEquals("insert into t (a,b) values (?,?),(?,?),(?,?)", insert.getSql(3));
+	}
+
+	@Test
+	public void suffixShouldFollowRows()
+	{
+		MultiRowInsert<String> insert = new MultiRowInsert<>("insert into t (a,b) values ", "(?,?)", " on duplicate key update b=values(b)", 2, 10, 1000, ROW);
+		assertEquals("insert into t (a,b) values (?,?),(?,?) on duplicate key update b=values(b)", insert.getSql(2));
+	}
+
+	@Test
+	public void chunksShouldBeLimitedByRowsAndBytes()
+	{
+		MultiRowInsert<String> insert = new MultiRowInsert<>("insert into t (a,b) values ", "(?,?)", 2, 3, 100, ROW);
+		List<String> values = Arrays.asList("a", "b", "c", "d", "e");
+		assertEquals(3, insert.chunkEnd(values, 0));
+		assertEquals(5, insert.chunkEnd(values, 3));
+		// prefix is 27 bytes and each row 6 + its length
+		List<String> big = Arrays.asList("0123456789012345678901234567890", "x", "0123456789012345678901234567890");
+		assertEquals(2, insert.chunkEnd(big, 0));
+		// a row bigger than the limit still goes on its own
+		List<String> huge = new ArrayList<>();
+		huge.add(new String(new char[200]));
+		assertEquals(1, insert.chunkEnd(huge, 0));
+	}
+
+	@Test
+	public void maxRowsShouldRespectPlaceholderLimit()
+	{
+		assertEquals(65535 / 8, new MultiRowInsert<>("insert into t values ", "(?,?,?,?,?,?,?,?)", 8, 100000, 1000, ROW).getMaxRows());
+	}
+
+	@Test
+	public void executeShouldBindRowsAcrossStatements() throws SQLException
+	{
+		MultiRowInsert<String> insert = new MultiRowInsert<>("insert into t (a,b) values ", "(?,?)", 2, 2, 1000, ROW);
+		Connection connection = createMock(Connection.class);
+		PreparedStatement full = createMock(PreparedStatement.class);
+		PreparedStatement last = createMock(PreparedStatement.class);
+		expect(connection.prepareStatement("insert into t (a,b) values (?,?),(?,?)")).andReturn(full);
+		expect(connection.prepareStatement("insert into t (a,b) values (?,?)")).andReturn(last);
+		full.setString(1, "a");
+		full.setInt(2, 1);
+		full.setString(3, "bb");
+		full.setInt(4, 2);
+		expect(full.executeUpdate()).andReturn(2);
+		full.close();
+		last.setString(1, "c");
+		last.setInt(2, 1);
+		expect(last.executeUpdate()).andReturn(1);
+		last.close();
+		replay(connection, full, last);
+		assertEquals(2, insert.execute(connection, Arrays.asList("a", "bb", "c")));
+		verify(connection, full, last);
+	}
+}
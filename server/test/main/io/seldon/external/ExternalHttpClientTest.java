@@ -0,0 +1,214 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.external;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ExternalHttpClientTest {
+
+	public static class Result {
+		public String value;
+	}
+
+	private HttpServer server;
+	private URI uri;
+	private final AtomicInteger calls = new AtomicInteger();
+	// stub behaviour, a delay applied to every call or only to the call numbered slowCall
+	private volatile long delayMillis = 0;
+	private volatile int slowCall = -1;
+	private volatile int status = 200;
+
+	@Before
+	public void startServer() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/predict", new HttpHandler() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				int call = calls.incrementAndGet();
+				try
+				{
+					if (slowCall < 0 || slowCall == call)
+						Thread.sleep(delayMillis);
+				}
+				catch (InterruptedException e) {}
+				String client = null;
+				if ("POST".equals(exchange.getRequestMethod()))
+				{
+					assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+					try (InputStream in = new GZIPInputStream(exchange.getRequestBody()))
+					{
+						client = (String) new ObjectMapper().readValue(in, Map.class).get("client");
+					}
+				}
+				else
+				{
+					for(NameValuePair p : URLEncodedUtils.parse(exchange.getRequestURI(), "UTF-8"))
+						if (p.getName().equals("client"))
+							client = p.getValue();
+				}
+				byte[] body = ("{\"value\":\"" + client + "\"}").getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(status, body.length);
+				try (OutputStream out = exchange.getResponseBody())
+				{
+					out.write(body);
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/predict");
+	}
+
+	@After
+	public void stopServer()
+	{
+		server.stop(0);
+	}
+
+	private ExternalHttpClient client(int failureThreshold,long openMillis)
+	{
+		return new ExternalHttpClient(10, 20, 200, failureThreshold, openMillis);
+	}
+
+	@Test
+	public void getAndPostShouldReturnParsedResult() throws IOException
+	{
+		ExternalHttpClient client = client(5, 1000);
+		assertEquals("a b", client.execute(new ExternalHttpClient.Request(uri).param("client", "a b"), Result.class).value);
+		assertEquals("c", client.execute(new ExternalHttpClient.Request(uri).param("client", "c").post(true), Result.class).value);
+	}
+
+	@Test
+	public void slowEndpointShouldTimeOut() throws IOException
+	{
+		ExternalHttpClient client = client(5, 1000);
+		delayMillis = 1000;
+		long start = System.currentTimeMillis();
+		try
+		{
+			client.execute(new ExternalHttpClient.Request(uri).param("client", "a").timeout(100), Result.class);
+			fail("Expected timeout");
+		}
+		catch (IOException e) {}
+		assertTrue(System.currentTimeMillis() - start < 800);
+	}
+
+	@Test
+	public void hedgedRequestShouldBeatSlowCall() throws IOException
+	{
+		ExternalHttpClient client = client(5, 1000);
+		for(int i=0;i<30;i++)
+			client.execute(new ExternalHttpClient.Request(uri).param("client", "a"), Result.class);
+		delayMillis = 1000;
+		slowCall = calls.get() + 1;
+		long start = System.currentTimeMillis();
+		Result res = client.execute(new ExternalHttpClient.Request(uri).param("client", "b").timeout(2000).hedgeAfter(90), Result.class);
+		assertEquals("b", res.value);
+		assertTrue(System.currentTimeMillis() - start < 800);
+		assertEquals(slowCall + 1, calls.get());
+	}
+
+	@Test
+	public void circuitShouldOpenAfterFailuresAndCloseAfterTrialCall() throws Exception
+	{
+		ExternalHttpClient client = client(3, 200);
+		status = 500;
+		for(int i=0;i<5;i++)
+		{
+			try
+			{
+				client.execute(new ExternalHttpClient.Request(uri).param("client", "a"), Result.class);
+				fail("Expected failure");
+			}
+			catch (IOException e) {}
+		}
+		assertEquals(3, calls.get());
+		assertEquals(CircuitBreaker.State.OPEN, client.getCircuitState(uri));
+		Thread.sleep(250);
+		status = 200;
+		assertEquals("a", client.execute(new ExternalHttpClient.Request(uri).param("client", "a"), Result.class).value);
+		assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState(uri));
+	}
+
+	@Test
+	public void callsRejectedByBusyPoolShouldNotOpenCircuit() throws Exception
+	{
+		final ExternalHttpClient client = new ExternalHttpClient(10, 1, 200, 1, 1000);
+		delayMillis = 300;
+		Thread busy = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try
+				{
+					client.execute(new ExternalHttpClient.Request(uri).param("client", "a"), Result.class);
+				}
+				catch (IOException e) {}
+			}
+		});
+		busy.start();
+		while (calls.get() == 0)
+			Thread.sleep(5);
+		for(int i=0;i<3;i++)
+		{
+			try
+			{
+				client.execute(new ExternalHttpClient.Request(uri).param("client", "b"), Result.class);
+				fail("Expected rejection");
+			}
+			catch (IOException e) {}
+		}
+		busy.join();
+		assertEquals(3, client.getRejectedCount());
+		assertEquals(1, calls.get());
+		assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitState(uri));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.general;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ItemDimensionIndexFactoryTest {
+
+	@Test
+	public void updatesDuringARebuildShouldBeAppliedToTheNewIndex()
+	{
+		ItemDimensionIndexFactory factory = new ItemDimensionIndexFactory(0);
+		assertFalse(factory.isIndexing("test"));
+		ItemDimensionIndexFactory.PendingUpdates updates = factory.track("test");
+		assertTrue(factory.isIndexing("test"));
+		// the rebuild read item 1 before it was updated
+		ItemDimensionIndex.Builder builder = new ItemDimensionIndex.Builder().add(1, 1L).add(1, 2L);
+		factory.itemUpdated("test", 1L, Collections.singleton(2));
+		factory.itemUpdated("other", 2L, Collections.singleton(2));
+		ItemDimensionIndex index = factory.publish("test", builder.build(), updates);
+		assertEquals(Arrays.asList(2), index.getDimensions(1L));
+		assertEquals(Arrays.asList(1), index.getDimensions(2L));
+
+		// later updates go straight to the published index
+		factory.itemUpdated("test", 2L, Arrays.asList(1, 2));
+		assertEquals(Arrays.asList(1, 2), index.getDimensions(2L));
+		assertTrue(factory.isIndexing("test"));
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.general;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ItemDimensionIndexTest {
+
+	private ItemDimensionIndex createIndex()
+	{
+		return new ItemDimensionIndex.Builder()
+			.add(1, 10L).add(1, 20L).add(1, 30L)
+			.add(2, 20L).add(2, 40L)
+			.add(3, 50L)
+			.build();
+	}
+
+	@Test
+	public void itemsShouldBeInTheirDimensions()
+	{
+		ItemDimensionIndex index = createIndex();
+		assertEquals(3, index.getNumDimensions());
+		assertTrue(index.inAnyDimension(10L, Collections.singleton(1)));
+		assertFalse(index.inAnyDimension(10L, Collections.singleton(2)));
+		assertTrue(index.inAnyDimension(40L, new HashSet<>(Arrays.asList(1, 2))));
+		assertFalse(index.inAnyDimension(10L, Collections.singleton(99)));
+		assertEquals(Arrays.asList(1, 2), index.getDimensions(20L));
+	}
+
+	@Test
+	public void filterShouldKeepOrderAndUnindexedItems()
+	{
+		ItemDimensionIndex index = createIndex();
+		long big = Integer.MAX_VALUE + 1L;
+		Set<Integer> dims = Collections.singleton(2);
+		assertEquals(Arrays.asList(40L, big, 20L), index.filter(Arrays.asList(40L, 10L, big, 20L, 50L), dims));
+	}
+
+	@Test
+	public void latestItemsShouldBeHighestIdsAcrossDimensions()
+	{
+		ItemDimensionIndex index = createIndex();
+		assertEquals(Arrays.asList(50L, 40L, 30L), index.getLatestItems(new HashSet<>(Arrays.asList(1, 2, 3)), 3));
+		assertEquals(Arrays.asList(40L, 20L), index.getLatestItems(Collections.singleton(2), 5));
+	}
+
+	@Test
+	public void settingDimensionsShouldMoveItem()
+	{
+		ItemDimensionIndex index = createIndex();
+		index.setDimensions(20L, Arrays.asList(3, 4));
+		assertEquals(Arrays.asList(3, 4), index.getDimensions(20L));
+		assertFalse(index.inAnyDimension(20L, new HashSet<>(Arrays.asList(1, 2))));
+		index.setDimensions(60L, Collections.singleton(3));
+		assertEquals(Arrays.asList(60L, 50L, 20L), index.getLatestItems(Collections.singleton(3), 5));
+	}
+}
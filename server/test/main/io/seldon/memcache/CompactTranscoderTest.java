@@ -0,0 +1,132 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.seldon.clustering.recommender.ClustersCounts;
+import io.seldon.general.Action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Test;
+
+public class CompactTranscoderTest {
+
+	private final CompactTranscoder transcoder = new CompactTranscoder();
+
+	private Object roundTrip(Object o)
+	{
+		return transcoder.decode(transcoder.encode(o));
+	}
+
+	@Test
+	public void idListsShouldKeepOrderAndBeMutable()
+	{
+		List<Long> ids = new ArrayList<>(Arrays.asList(5000000L, 12L, -3L, 5000001L));
+		CachedData data = transcoder.encode(ids);
+		assertTrue((data.getFlags() & CompactTranscoder.COMPACT) != 0);
+		List<Long> decoded = (List<Long>) transcoder.decode(data);
+		assertEquals(ids, decoded);
+		decoded.add(0, 1L);
+		assertEquals(new ArrayList<Long>(), roundTrip(new ArrayList<Long>()));
+	}
+
+	@Test
+	public void setsAndScoreMapsShouldRoundTrip()
+	{
+		Set<Integer> dims = new HashSet<>(Arrays.asList(3, 1, 200));
+		assertEquals(dims, roundTrip(dims));
+		Set<Long> items = new HashSet<>(Arrays.asList(3L, 1L, 1L << 40));
+		assertEquals(items, roundTrip(items));
+		Map<Long,Double> scores = new HashMap<>();
+		scores.put(10L, 0.5);
+		scores.put(2L, 1.0);
+		ClustersCounts counts = (ClustersCounts) roundTrip(new ClustersCounts(scores, 1234L));
+		assertEquals(1234L, counts.getTimestamp());
+		assertEquals(scores, counts.getItemCounts());
+	}
+
+	@Test
+	public void actionsShouldRoundTrip()
+	{
+		List<Action> actions = new ArrayList<>();
+		actions.add(new Action(7L, 1L, 20L, 1, 1, new Date(1000000L), 2.5, "u1", "i20"));
+		Action sparse = new Action(null, 1L, 3L, null, null, null, null, null, null);
+		sparse.setTags(Arrays.asList("a", "b"));
+		actions.add(sparse);
+		List<Action> decoded = (List<Action>) roundTrip(actions);
+		assertEquals(2, decoded.size());
+		Action a = decoded.get(0);
+		assertEquals(Long.valueOf(7L), a.getActionId());
+		assertEquals(20L, a.getItemId());
+		assertEquals(new Date(1000000L), a.getDate());
+		assertEquals(Double.valueOf(2.5), a.getValue());
+		assertEquals("i20", a.getClientItemId());
+		Action b = decoded.get(1);
+		assertNull(b.getActionId());
+		assertNull(b.getDate());
+		assertEquals(3L, b.getItemId());
+		assertEquals(Arrays.asList("a", "b"), b.getTags());
+	}
+
+	@Test
+	public void otherValuesShouldBeSerialised()
+	{
+		List<Long> linked = new LinkedList<>(Arrays.asList(1L, 2L));
+		CachedData data = transcoder.encode(linked);
+		assertEquals(0, data.getFlags() & CompactTranscoder.COMPACT);
+		assertEquals(linked, transcoder.decode(data));
+		assertEquals("abc", roundTrip("abc"));
+		List<Object> mixed = new ArrayList<Object>(Arrays.asList(1L, "x"));
+		assertEquals(mixed, roundTrip(mixed));
+		// values written before the compact transcoder are still readable
+		assertEquals(linked, transcoder.decode(new SerializingTranscoder().encode(linked)));
+	}
+
+	@Test
+	public void compactValuesShouldBeSmallerThanSerialised()
+	{
+		List<Long> history = new ArrayList<>();
+		for(long i=0;i<100;i++)
+			history.add(1000000L + i * 37);
+		int compact = transcoder.encode(history).getData().length;
+		int serialised = new SerializingTranscoder().encode(history).getData().length;
+		assertTrue(compact * 5 < serialised);
+	}
+}
@@ -26,19 +26,35 @@ package io.seldon.memcache;
 
 import io.seldon.memcache.DogpileHandler;
 import junit.framework.Assert;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DogPileTests {
 
+	private DogpileHandler previous;
+	// failures in test threads, checked once they have been joined
+	private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
 	@Before
 	public void setup()
 	{
+		previous = DogpileHandler.get();
 		new DogpileHandler();
 	}
+
+	@After
+	public void tearDown()
+	{
+		// creating a handler replaces the shared one so put back whatever other tests were using
+		DogpileHandler.setPeer(previous);
+	}
 	
 	@Test
 	public void basicFunctionalityTest() throws InterruptedException
@@ -76,12 +92,14 @@ public class DogPileTests {
 		int delay;
 		String key;
 		int keyExpireSecs;
-		boolean keepRunning = true;
-		public UpdaterTester(int delayMillisecs,String key,int keyExpireSecs)
+		volatile boolean keepRunning = true;
+		final List<Throwable> errors;
+		public UpdaterTester(int delayMillisecs,String key,int keyExpireSecs,List<Throwable> errors)
 		{
 			this.delay = delayMillisecs;
 			this.key = key;
 			this.keyExpireSecs = keyExpireSecs;
+			this.errors = errors;
 		}
 		
 		@Override
@@ -97,15 +115,14 @@ public class DogPileTests {
 					try {
 						Thread.sleep(200);
 					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						errors.add(e);
 					}
 					DogpileHandler.get().updated(key, keyExpireSecs);
 				}
 				try {
 					Thread.sleep(this.delay);
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					errors.add(e);
 					return;
 				}
 			}
@@ -138,7 +155,7 @@ public class DogPileTests {
 		System.out.println("Start test "+System.currentTimeMillis());
 		for(int i=0;i<numThreads;i++)
 		{
-			UpdaterTester ut = new UpdaterTester(busyLoopDelayMillisecs, key, expireSecs);
+			UpdaterTester ut = new UpdaterTester(busyLoopDelayMillisecs, key, expireSecs, errors);
 			Thread t = new Thread(ut);
 			threads.add(t);
 			testers.add(ut);
@@ -154,6 +171,7 @@ public class DogPileTests {
 		
 		for(Thread t : threads)
 			t.join();
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
 		
 		int sum = 0;
 		for(UpdaterTester t : testers)
@@ -166,4 +184,90 @@ public class DogPileTests {
 			DogpileHandler.get().clear(key);
 		}
 	}
+
+	@Test
+	public void concurrentMissesShouldShareOneRefresh() throws InterruptedException
+	{
+		final String key = "testCoalesceKey";
+		final int numThreads = 10;
+		final AtomicInteger retrieves = new AtomicInteger();
+		final AtomicInteger results = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final UpdateRetriever<Integer> retriever = new UpdateRetriever<Integer>() {
+			@Override
+			public Integer retrieve() throws Exception {
+				retrieves.incrementAndGet();
+				started.countDown();
+				Thread.sleep(200);
+				return 42;
+			}
+		};
+		try
+		{
+			List<Thread> threads = new ArrayList<>();
+			for(int i=0;i<numThreads;i++)
+			{
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Integer res = DogpileHandler.get().retrieveUpdateIfRequired(key, null, retriever, 60);
+							if (res != null && res == 42)
+								results.incrementAndGet();
+						} catch (Exception e) {
+							errors.add(e);
+						}
+					}
+				});
+				threads.add(t);
+				t.start();
+				if (i == 0)
+					started.await();
+			}
+			for(Thread t : threads)
+				t.join();
+			Assert.assertTrue(errors.toString(), errors.isEmpty());
+			Assert.assertEquals(1, retrieves.get());
+			Assert.assertEquals(numThreads, results.get());
+		}
+		finally
+		{
+			DogpileHandler.get().clear(key);
+		}
+	}
+
+	@Test
+	public void onlyExpiredKeysShouldBeEvicted() throws InterruptedException
+	{
+		DogpileHandler handler = new DogpileHandler();
+		handler.updated("fresh", 60);
+		handler.updated("expired", 60);
+		handler.expire("expired");
+		Assert.assertTrue(handler.updateIsRequired("refreshing", null, 60));
+		Assert.assertEquals(1, handler.evictExpired());
+		Assert.assertFalse(handler.updateIsRequired("fresh", new Object(), 60));
+		Assert.assertFalse(handler.updateIsRequired("refreshing", null, 60));
+		Assert.assertTrue(handler.updateIsRequired("expired", new Object(), 60));
+	}
+
+	@Test
+	public void onlyTheOwnerShouldFinishARefresh() throws InterruptedException
+	{
+		final DogpileHandler handler = new DogpileHandler();
+		final String key = "owned";
+		Assert.assertTrue(handler.updateIsRequired(key, null, 60));
+		Thread other = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				handler.updated(key, 60);
+			}
+		});
+		other.start();
+		other.join();
+		// the other thread's update only invalidated the key so the refresh is still in progress
+		Assert.assertFalse(handler.updateIsRequired(key, new Object(), 60));
+		handler.updated(key, 60);
+		// and the refreshed value is due another refresh as it may be older than the other thread's
+		Assert.assertTrue(handler.updateIsRequired(key, new Object(), 60));
+	}
 }
@@ -0,0 +1,98 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.internal.BulkFuture;
+
+import org.junit.Test;
+
+public class MemCacheBulkGetTest {
+
+	@Test
+	public void lookupsShouldWaitOnceForTheBulkResult() throws Exception
+	{
+		BulkFuture<Map<String,Object>> future = createMock(BulkFuture.class);
+		Map<String,Object> fetched = new HashMap<>();
+		fetched.put("ha", 1);
+		expect(future.getSome(anyLong(), (TimeUnit) anyObject())).andReturn(fetched).once();
+		expect(future.isDone()).andReturn(true).once();
+		replay(future);
+
+		Map<String,String> hashedKeys = new HashMap<>();
+		hashedKeys.put("a", "ha");
+		hashedKeys.put("b", "hb");
+		MemCacheBulkGet bulkGet = new MemCacheBulkGet(future, hashedKeys);
+		assertTrue(bulkGet.contains("a"));
+		assertFalse(bulkGet.contains("c"));
+		assertEquals(1, bulkGet.get("a"));
+		assertNull(bulkGet.get("b"));
+		assertEquals(1, bulkGet.get("a"));
+		verify(future);
+	}
+
+	@Test
+	public void writesShouldReplaceFetchedValues()
+	{
+		Map<String,String> hashedKeys = new HashMap<>();
+		hashedKeys.put("a", "ha");
+		hashedKeys.put("b", "hb");
+		MemCacheBulkGet bulkGet = new MemCacheBulkGet(null, hashedKeys);
+		assertNull(bulkGet.get("a"));
+		bulkGet.update("a", 2);
+		bulkGet.update("c", 3);
+		assertEquals(2, bulkGet.get("a"));
+		assertFalse(bulkGet.contains("c"));
+		bulkGet.update("a", null);
+		assertNull(bulkGet.get("a"));
+	}
+
+	@Test
+	public void evictedKeysShouldLeaveTheBatchUntilWrittenAgain()
+	{
+		Map<String,String> hashedKeys = new HashMap<>();
+		hashedKeys.put("a", "ha");
+		MemCacheBulkGet bulkGet = new MemCacheBulkGet(null, hashedKeys);
+		bulkGet.evict("a");
+		assertFalse(bulkGet.contains("a"));
+		bulkGet.update("a", 2);
+		assertTrue(bulkGet.contains("a"));
+		assertEquals(2, bulkGet.get("a"));
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.CASMutation;
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MemCachePeerTest {
+
+	@After
+	public void tearDown()
+	{
+		MemCachePeer.endPrefetch();
+		MemCachePeer.theClient = null;
+	}
+
+	@Test
+	public void getAfterCasInAPrefetchedRequestShouldSeeTheNewValue() throws Exception
+	{
+		final String key = "k";
+		final String hashed = SecurityHashPeer.md5digest(key);
+		Transcoder<Object> transcoder = new SerializingTranscoder();
+		MemcachedClient client = createMock(MemcachedClient.class);
+		BulkFuture<Map<String,Object>> bulk = createMock(BulkFuture.class);
+		Map<String,Object> fetched = new HashMap<>();
+		fetched.put(hashed, "old");
+		expect(client.asyncGetBulk(Collections.singleton(hashed))).andReturn(bulk);
+		expect(bulk.getSome(anyLong(), (TimeUnit) anyObject())).andReturn(fetched);
+		expect(bulk.isDone()).andReturn(true);
+		expect((Transcoder<Object>) client.getTranscoder()).andReturn(transcoder);
+		expect(client.gets(hashed, transcoder)).andReturn(new CASValue<Object>(5, "old"));
+		expect(client.cas(eq(hashed), eq(5L), eq(0), eq((Object) "new"), eq(transcoder))).andReturn(CASResponse.OK);
+		GetFuture<Object> remote = createMock(GetFuture.class);
+		expect(client.asyncGet(hashed)).andReturn(remote);
+		expect(remote.get(anyLong(), (TimeUnit) anyObject())).andReturn("new");
+		replay(client, bulk, remote);
+		MemCachePeer.theClient = client;
+
+		MemCachePeer.prefetch(Collections.singleton(key));
+		assertEquals("old", MemCachePeer.get(key));
+		Object stored = MemCachePeer.cas(key, new CASMutation<Object>() {
+			@Override
+			public Object getNewValue(Object current) {
+				return "new";
+			}
+		}, "new");
+		assertEquals("new", stored);
+		assertEquals("new", MemCachePeer.get(key));
+		verify(client, bulk, remote);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.memcache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NearCacheTest {
+
+	private static class CountingRetriever implements UpdateRetriever<Object> {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile Object value;
+
+		CountingRetriever(Object value)
+		{
+			this.value = value;
+		}
+
+		@Override
+		public Object retrieve() throws Exception {
+			calls.incrementAndGet();
+			return value;
+		}
+	}
+
+	private DogpileHandler previous;
+	private DogpileHandler dogpileHandler;
+	private NearCache cache;
+
+	@Before
+	public void setup()
+	{
+		previous = DogpileHandler.get();
+		dogpileHandler = new DogpileHandler();
+		cache = new NearCache("PopularItemsJSON:300:2,ItemInternalId:300:100");
+	}
+
+	@After
+	public void tearDown()
+	{
+		DogpileHandler.setPeer(previous);
+	}
+
+	@Test
+	public void hitsShouldNotGoRemote() throws Exception
+	{
+		CountingRetriever remote = new CountingRetriever("[1,2,3]");
+		String key = MemCacheKeys.getItemInternalId("test", "a");
+		assertEquals("[1,2,3]", cache.get(key, remote));
+		assertEquals("[1,2,3]", cache.get(key, remote));
+		assertEquals(1, remote.calls.get());
+		assertEquals(1, cache.getStats().get("ItemInternalId").hitCount());
+		assertEquals(1, cache.getStats().get("ItemInternalId").missCount());
+	}
+
+	@Test
+	public void uncachedFamiliesShouldAlwaysGoRemote() throws Exception
+	{
+		CountingRetriever remote = new CountingRetriever(1L);
+		String key = MemCacheKeys.getUserInternalId("test", "a");
+		assertFalse(cache.isCached(key));
+		cache.get(key, remote);
+		cache.get(key, remote);
+		assertEquals(2, remote.calls.get());
+	}
+
+	@Test
+	public void writesShouldGoThroughAndDeletesInvalidate() throws Exception
+	{
+		CountingRetriever remote = new CountingRetriever(2L);
+		String key = MemCacheKeys.getItemInternalId("test", "a");
+		cache.put(key, 1L);
+		assertEquals(1L, cache.get(key, remote));
+		cache.invalidate(key);
+		assertEquals(2L, cache.get(key, remote));
+		assertEquals(1, remote.calls.get());
+	}
+
+	@Test
+	public void onlyOneCallerShouldRefreshAStaleValue() throws Exception
+	{
+		CountingRetriever remote = new CountingRetriever(1L);
+		String key = MemCacheKeys.getItemInternalId("test", "a");
+		assertEquals(1L, cache.get(key, remote));
+		remote.value = 2L;
+		// make the value due a refresh and have another thread already refreshing it
+		dogpileHandler.expire("near:" + key);
+		assertTrue(dogpileHandler.updateIsRequired("near:" + key, 1L, 300));
+		assertEquals(1L, cache.get(key, remote));
+		assertEquals(1, remote.calls.get());
+		dogpileHandler.clear("near:" + key);
+		assertEquals(2L, cache.get(key, remote));
+		assertEquals(2, remote.calls.get());
+		assertEquals(2L, cache.get(key, remote));
+		assertEquals(2, remote.calls.get());
+	}
+
+	@Test
+	public void refreshFindingNothingShouldDropValue() throws Exception
+	{
+		CountingRetriever remote = new CountingRetriever(1L);
+		String key = MemCacheKeys.getItemInternalId("test", "a");
+		cache.get(key, remote);
+		remote.value = null;
+		dogpileHandler.expire("near:" + key);
+		assertNull(cache.get(key, remote));
+		assertNull(cache.get(key, remote));
+		assertEquals(3, remote.calls.get());
+	}
+
+	@Test
+	public void mutableValuesShouldNotBeHeld() throws Exception
+	{
+		CountingRetriever remote = new CountingRetriever(new ArrayList<>(Arrays.asList(1L, 2L)));
+		String key = MemCacheKeys.getItemInternalId("test", "a");
+		cache.get(key, remote);
+		cache.get(key, remote);
+		assertEquals(2, remote.calls.get());
+		cache.put(key, new ArrayList<Long>());
+		cache.get(key, remote);
+		assertEquals(3, remote.calls.get());
+	}
+
+	@Test
+	public void familiesShouldBeSizeBounded() throws Exception
+	{
+		for(int i=0;i<10;i++)
+			cache.put("PopularItemsJSON:test:" + i, "[]");
+		assertTrue(cache.getStats().get("PopularItemsJSON").evictionCount() >= 8);
+	}
+}
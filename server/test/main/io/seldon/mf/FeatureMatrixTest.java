@@ -0,0 +1,105 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.mf;
+
+import static org.junit.Assert.assertEquals;
+
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import io.seldon.recommendation.model.BinaryModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Test;
+
+public class FeatureMatrixTest {
+
+	private static FeatureMatrix createMatrix(int rows,int rank)
+	{
+		Random r = new Random(1);
+		FeatureMatrix.Builder builder = new FeatureMatrix.Builder();
+		for(int row=0;row<rows;row++)
+		{
+			float[] features = new float[rank];
+			for(int i=0;i<rank;i++)
+				features[i] = r.nextFloat() - 0.5f;
+			builder.add(1000 + row * 7, features);
+		}
+		return builder.build();
+	}
+
+	@Test
+	public void topKShouldMatchSortedScores()
+	{
+		FeatureMatrix m = createMatrix(3000, 10);
+		double[] user = m.getRowAsDouble(5);
+		FastIDSet exclusions = new FastIDSet();
+		exclusions.add(m.getId(5));
+		List<ItemRecommendationResult> expected = new ArrayList<>();
+		for(int row=0;row<m.size();row++)
+			if (row != 5)
+				expected.add(new ItemRecommendationResult(m.getId(row), m.dot(row, user)));
+		Collections.sort(expected, Collections.reverseOrder());
+		List<ItemRecommendationResult> actual = m.topK(user, 50, exclusions);
+		assertEquals(50, actual.size());
+		for(int i=0;i<50;i++)
+			assertEquals(expected.get(i).score, actual.get(i).score, 0.0001);
+	}
+
+	@Test
+	public void candidatesShouldBeLookedUpById()
+	{
+		FeatureMatrix m = createMatrix(100, 4);
+		assertEquals(-1, m.row(1001));
+		assertEquals(3, m.row(1021));
+		List<ItemRecommendationResult> res = m.topK(m.getRowAsDouble(0), 10, new FastIDSet(), Arrays.asList(1021L, 5L, 1000L));
+		assertEquals(2, res.size());
+	}
+
+	@Test
+	public void mappedMatrixShouldEqualWritten() throws IOException
+	{
+		FeatureMatrix m = createMatrix(500, 8);
+		File file = File.createTempFile("features", ".bin");
+		file.deleteOnExit();
+		BinaryModel.Writer writer = new BinaryModel.Writer();
+		m.addTo(writer, "product");
+		writer.write(file);
+		FeatureMatrix mapped = FeatureMatrix.fromModel(BinaryModel.map(file), "product");
+		assertEquals(m.size(), mapped.size());
+		assertEquals(m.getRank(), mapped.getRank());
+		for(int row=0;row<m.size();row++)
+		{
+			assertEquals(row, mapped.row(m.getId(row)));
+			for(int i=0;i<m.getRank();i++)
+				assertEquals(m.get(row, i), mapped.get(row, i), 0);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.recommendation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ActionIngestionPlanTest {
+
+	private static AlgorithmStrategy strategy(String... options)
+	{
+		Map<String,String> config = new HashMap<>();
+		for (int i=0;i<options.length;i+=2)
+			config.put(options[i], options[i+1]);
+		return new AlgorithmStrategy(null, null, null, config, "alg");
+	}
+
+	private static int recentActionsLimit(String... options)
+	{
+		return ActionIngestionPlan.getRecentActionsLimit(strategy(options).getOptions(null));
+	}
+
+	@Test
+	public void optionsShouldBeOnIfAnyAlgorithmSetsThem()
+	{
+		ActionIngestionPlan plan = ActionIngestionPlan.build(Collections.<AlgorithmStrategy>emptyList(), null, null);
+		assertFalse(plan.isUseBucketCluster());
+		assertFalse(plan.isStoreFullActions());
+
+		List<AlgorithmStrategy> strategies = new ArrayList<>();
+		strategies.add(strategy(ActionIngestionPlan.BUCKET_CLUSTER_OPTION_NAME, "false"));
+		strategies.add(strategy(ActionIngestionPlan.FULL_ACTION_STORE_OPTION_NAME, "true"));
+		plan = ActionIngestionPlan.build(strategies, null, null);
+		assertFalse(plan.isUseBucketCluster());
+		assertTrue(plan.isStoreFullActions());
+
+		strategies.add(strategy(ActionIngestionPlan.BUCKET_CLUSTER_OPTION_NAME, "true"));
+		plan = ActionIngestionPlan.build(strategies, null, null);
+		assertTrue(plan.isUseBucketCluster());
+	}
+
+	@Test
+	public void weightsShouldBeFoundForDenseAndSparseTypes()
+	{
+		Map<Integer,Double> weights = new HashMap<>();
+		weights.put(1, 2.0);
+		weights.put(5, 0.5);
+		weights.put(1023, 4.0);
+		weights.put(5000, 3.0);
+		weights.put(-2, 6.0);
+		weights.put(7, null);
+		ActionIngestionPlan plan = ActionIngestionPlan.build(Collections.<AlgorithmStrategy>emptyList(), weights, null);
+		assertEquals(2.0, plan.getActionWeight(1, 1.0), 0);
+		assertEquals(0.5, plan.getActionWeight(5, 1.0), 0);
+		assertEquals(4.0, plan.getActionWeight(1023, 1.0), 0);
+		assertEquals(3.0, plan.getActionWeight(5000, 1.0), 0);
+		assertEquals(6.0, plan.getActionWeight(-2, 1.0), 0);
+		// types without a weight get the default, in and beyond the dense range
+		assertEquals(1.0, plan.getActionWeight(2, 1.0), 0);
+		assertEquals(1.5, plan.getActionWeight(7, 1.5), 0);
+		assertEquals(1.0, plan.getActionWeight(1000, 1.0), 0);
+		assertEquals(1.0, plan.getActionWeight(4999, 1.0), 0);
+		assertEquals(1.0, plan.getActionWeight(-1, 1.0), 0);
+	}
+
+	@Test
+	public void recentActionsLimitShouldBeTheMostAnyOptionReads()
+	{
+		assertEquals(0, recentActionsLimit());
+		assertEquals(10, recentActionsLimit(ActionIngestionPlan.NUM_RECENT_ACTIONS_OPTION_NAME, "10"));
+		assertEquals(25, recentActionsLimit(ActionIngestionPlan.NUM_RECENT_ACTIONS_OPTION_NAME, "10",
+				ActionIngestionPlan.RECENT_ACTIONS_TO_FILTER_OPTION_NAME, " 25 "));
+		assertEquals(40, recentActionsLimit(ActionIngestionPlan.NUM_RECENT_ACTIONS_OPTION_NAME, "10",
+				ActionIngestionPlan.BASKET_MAX_SIZE_OPTION_NAME, "20"));
+		assertEquals(10, recentActionsLimit(ActionIngestionPlan.NUM_RECENT_ACTIONS_OPTION_NAME, "10",
+				ActionIngestionPlan.RECENT_ACTIONS_TO_FILTER_OPTION_NAME, "many"));
+	}
+}
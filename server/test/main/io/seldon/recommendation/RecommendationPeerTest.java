@@ -0,0 +1,206 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.recommendation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.seldon.clustering.recommender.ItemRecommendationAlgorithm;
+import io.seldon.clustering.recommender.ItemRecommendationResultSet;
+import io.seldon.clustering.recommender.ItemRecommendationResultSet.ItemRecommendationResult;
+import io.seldon.clustering.recommender.RecommendationContext;
+import io.seldon.recommendation.RecommendationPeer.RecResultContext;
+import io.seldon.recommendation.combiner.FirstSuccessfulCombiner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecommendationPeerTest {
+
+	private static class FakeAlgorithm implements ItemRecommendationAlgorithm {
+		final String name;
+		final long sleepMillis;
+		final List<Long> items;
+		final AtomicInteger calls = new AtomicInteger();
+		volatile boolean interrupted;
+
+		FakeAlgorithm(String name,long sleepMillis,Long... items)
+		{
+			this.name = name;
+			this.sleepMillis = sleepMillis;
+			this.items = Arrays.asList(items);
+		}
+
+		@Override
+		public ItemRecommendationResultSet recommend(String client, Long user, Set<Integer> dimensions, int maxRecsCount,
+				RecommendationContext ctxt, List<Long> recentItemInteractions) {
+			calls.incrementAndGet();
+			try
+			{
+				Thread.sleep(sleepMillis);
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+				return new ItemRecommendationResultSet(name);
+			}
+			List<ItemRecommendationResult> results = new ArrayList<>();
+			for(Long item : items)
+				results.add(new ItemRecommendationResult(item, 1.0f));
+			return new ItemRecommendationResultSet(results, name);
+		}
+
+		@Override
+		public String name() {
+			return name;
+		}
+	}
+
+	private ThreadPoolExecutor executor;
+
+	@Before
+	public void setup()
+	{
+		executor = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(4), new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@After
+	public void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	private static AlgorithmStrategy strategy(FakeAlgorithm algorithm,boolean parallel,int deadlineMillis)
+	{
+		Map<String,String> config = new HashMap<>();
+		config.put("io.seldon.algorithm.general.parallel", Boolean.toString(parallel));
+		config.put("io.seldon.algorithm.general.deadlinemillis", Integer.toString(deadlineMillis));
+		return new AlgorithmStrategy(algorithm, Collections.<ItemIncluder>emptySet(), Collections.<ItemFilter>emptySet(), config, algorithm.name);
+	}
+
+	private List<RecResultContext> getResultSets(ThreadPoolExecutor executor,int numRecommendations,AlgorithmStrategy... algorithms)
+	{
+		RecommendationPeer peer = new RecommendationPeer(null, null, executor);
+		return peer.getResultSets(Arrays.asList(algorithms), new FirstSuccessfulCombiner(), "client", 1L, "user",
+				Collections.<Integer>emptySet(), numRecommendations, null, null, null, null);
+	}
+
+	private static List<String> algKeys(List<RecResultContext> resultSets)
+	{
+		List<String> keys = new ArrayList<>();
+		for(RecResultContext resultSet : resultSets)
+			keys.add(resultSet.algKey);
+		return keys;
+	}
+
+	@Test
+	public void algorithmPastItsDeadlineShouldBeDropped()
+	{
+		FakeAlgorithm slow = new FakeAlgorithm("slow", 5000, 1L, 2L);
+		FakeAlgorithm fast = new FakeAlgorithm("fast", 0, 3L, 4L);
+		long t1 = System.currentTimeMillis();
+		List<RecResultContext> resultSets = getResultSets(executor, 2, strategy(slow, true, 50), strategy(fast, true, 1000));
+		assertTrue(System.currentTimeMillis() - t1 < 2000);
+		assertEquals(Arrays.asList("fast"), algKeys(resultSets));
+		for(int i=0;i<50 && !slow.interrupted;i++)
+			sleep(20);
+		assertTrue(slow.interrupted);
+	}
+
+	@Test
+	public void algorithmsRejectedByASaturatedPoolShouldBeSkipped()
+	{
+		ThreadPoolExecutor small = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(1), new ThreadPoolExecutor.AbortPolicy());
+		try
+		{
+			// the first runs, the second waits in the queue and the third is rejected
+			FakeAlgorithm first = new FakeAlgorithm("first", 200, 1L);
+			FakeAlgorithm second = new FakeAlgorithm("second", 0, 2L);
+			FakeAlgorithm third = new FakeAlgorithm("third", 0, 3L, 4L);
+			List<RecResultContext> resultSets = getResultSets(small, 2,
+					strategy(first, true, 2000), strategy(second, true, 2000), strategy(third, true, 2000));
+			assertEquals(Arrays.asList("first", "second"), algKeys(resultSets));
+			assertEquals(0, third.calls.get());
+		}
+		finally
+		{
+			small.shutdownNow();
+		}
+	}
+
+	@Test
+	public void laterAlgorithmsShouldBeCancelledOnceThereAreEnoughResults()
+	{
+		FakeAlgorithm enough = new FakeAlgorithm("enough", 0, 1L, 2L);
+		FakeAlgorithm slow = new FakeAlgorithm("slow", 5000, 3L, 4L);
+		long t1 = System.currentTimeMillis();
+		List<RecResultContext> resultSets = getResultSets(executor, 2, strategy(enough, true, 10000), strategy(slow, true, 10000));
+		assertTrue(System.currentTimeMillis() - t1 < 2000);
+		assertEquals(Arrays.asList("enough"), algKeys(resultSets));
+		for(int i=0;i<50 && slow.calls.get() > 0 && !slow.interrupted;i++)
+			sleep(20);
+		assertTrue(slow.calls.get() == 0 || slow.interrupted);
+	}
+
+	@Test
+	public void firstSuccessfulShouldKeepTheSequentialOrder()
+	{
+		// the second finishes first but the first is preferred when run one after another
+		FakeAlgorithm first = new FakeAlgorithm("first", 200, 1L, 2L);
+		FakeAlgorithm second = new FakeAlgorithm("second", 0, 3L, 4L);
+		List<RecResultContext> sequential = getResultSets(executor, 2, strategy(first, false, 2000), strategy(second, false, 2000));
+		List<RecResultContext> concurrent = getResultSets(executor, 2, strategy(first, true, 2000), strategy(second, true, 2000));
+		assertEquals(Arrays.asList("first"), algKeys(sequential));
+		assertEquals(algKeys(sequential), algKeys(concurrent));
+		FirstSuccessfulCombiner combiner = new FirstSuccessfulCombiner();
+		assertEquals("first", combiner.combine(2, concurrent).algKey);
+		// only the concurrent run gets as far as the second
+		assertEquals(1, second.calls.get());
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
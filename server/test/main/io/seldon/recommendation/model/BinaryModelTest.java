@@ -0,0 +1,145 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.recommendation.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BinaryModelTest {
+
+	@Test
+	public void blocksShouldRoundTrip() throws IOException
+	{
+		File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		new BinaryModel.Writer()
+			.addInts("counts", new int[] {1,2,3}, 3, 1)
+			.addLongs("ids", new long[] {Long.MAX_VALUE,-1L}, 2, 1)
+			.addFloats("features", FloatBuffer.wrap(new float[] {0.5f,1.5f,2.5f,3.5f}), 2, 2)
+			.write(file);
+		BinaryModel model = BinaryModel.map(file);
+		assertEquals(BinaryModel.VERSION, model.getVersion());
+		assertTrue(model.hasBlock("ids"));
+		assertFalse(model.hasBlock("missing"));
+		IntBuffer counts = model.getInts("counts");
+		assertEquals(3, counts.remaining());
+		assertEquals(3, counts.get(2));
+		LongBuffer ids = model.getLongs("ids");
+		assertEquals(Long.MAX_VALUE, ids.get(0));
+		assertEquals(-1L, ids.get(1));
+		FloatBuffer features = model.getFloats("features");
+		assertEquals(2, model.getCols("features"));
+		assertEquals(2, model.getRows("features"));
+		assertEquals(3.5f, features.get(3), 0);
+		try
+		{
+			model.getFloats("ids");
+			fail("expected type check");
+		}
+		catch (IllegalArgumentException e) {}
+	}
+
+	@Test(expected=IOException.class)
+	public void otherFilesShouldBeRejected() throws IOException
+	{
+		File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		try (FileOutputStream out = new FileOutputStream(file))
+		{
+			out.write("1|0.1,0.2\n".getBytes());
+			out.write(new byte[8]);
+		}
+		BinaryModel.map(file);
+	}
+
+	private static void putEntry(ByteBuffer header,String name,byte type,int rows,int cols,long offset)
+	{
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		header.putShort((short) bytes.length);
+		header.put(bytes);
+		header.put(type);
+		header.putInt(rows);
+		header.putInt(cols);
+		header.putLong(offset);
+	}
+
+	@Test
+	public void filesLargerThan2GBShouldMap() throws IOException
+	{
+		File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		// two 1.5GB blocks that are never written so the file stays sparse, then a small block past 3GB
+		final int padRows = 375000000;
+		final long pad1 = 128;
+		final long pad2 = pad1 + padRows * 4L;
+		final long tail = pad2 + padRows * 4L;
+		ByteBuffer header = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(BinaryModel.MAGIC);
+		header.putInt(BinaryModel.VERSION);
+		header.putInt(3);
+		putEntry(header, "pad1", BinaryModel.TYPE_FLOAT, padRows, 1, pad1);
+		putEntry(header, "pad2", BinaryModel.TYPE_FLOAT, padRows, 1, pad2);
+		putEntry(header, "tail", BinaryModel.TYPE_INT, 3, 1, tail);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.setLength(tail + 16);
+			raf.write(header.array());
+			ByteBuffer values = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+			values.putInt(7).putInt(8).putInt(9);
+			raf.seek(tail);
+			raf.write(values.array());
+		}
+		try
+		{
+			assertTrue(file.length() > Integer.MAX_VALUE);
+			BinaryModel model = BinaryModel.map(file);
+			IntBuffer ints = model.getInts("tail");
+			assertEquals(3, ints.remaining());
+			assertEquals(7, ints.get(0));
+			assertEquals(9, ints.get(2));
+			FloatBuffer floats = model.getFloats("pad2");
+			assertEquals(padRows, floats.remaining());
+			assertEquals(0f, floats.get(padRows - 1), 0);
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+}
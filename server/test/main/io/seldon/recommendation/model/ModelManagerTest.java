@@ -0,0 +1,108 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.recommendation.model;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.seldon.clustering.recommender.RecommendationContext;
+import io.seldon.recommendation.ClientStrategy;
+import io.seldon.resources.external.NewResourceNotifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+public class ModelManagerTest {
+
+	private static class QueuedExecutor implements Executor {
+		List<Runnable> tasks = new ArrayList<>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+	}
+
+	private static class LocationModelManager extends ModelManager<String> {
+
+		LocationModelManager(Executor executor) {
+			super(createNiceMock(NewResourceNotifier.class), Collections.singleton("test"), executor);
+		}
+
+		@Override
+		protected String loadModel(String location, String client) {
+			return location.equals("bad") ? null : location;
+		}
+	}
+
+	private static RecommendationContext.OptionsHolder options()
+	{
+		return new RecommendationContext.OptionsHolder(null,
+				Collections.singletonMap("io.seldon.algorithm.model.name", ClientStrategy.DEFAULT_NAME));
+	}
+
+	@Test
+	public void newerModelShouldReplaceLive()
+	{
+		QueuedExecutor executor = new QueuedExecutor();
+		LocationModelManager manager = new LocationModelManager(executor);
+		manager.newClientLocation("client", "v1", "test");
+		manager.newClientLocation("client", "v2", "test");
+		executor.tasks.get(0).run();
+		assertEquals("v1", manager.getClientStore("client", options()));
+		executor.tasks.get(1).run();
+		assertEquals("v2", manager.getClientStore("client", options()));
+	}
+
+	@Test
+	public void olderModelLoadedLateShouldBeDiscarded()
+	{
+		QueuedExecutor executor = new QueuedExecutor();
+		LocationModelManager manager = new LocationModelManager(executor);
+		manager.newClientLocation("client", "v1", "test");
+		manager.newClientLocation("client", "v2", "test");
+		executor.tasks.get(1).run();
+		executor.tasks.get(0).run();
+		assertEquals("v2", manager.getClientStore("client", options()));
+	}
+
+	@Test
+	public void failedLoadShouldKeepLiveModel()
+	{
+		QueuedExecutor executor = new QueuedExecutor();
+		LocationModelManager manager = new LocationModelManager(executor);
+		manager.newClientLocation("client", "v1", "test");
+		manager.newClientLocation("client", "bad", "test");
+		executor.tasks.get(0).run();
+		executor.tasks.get(1).run();
+		assertEquals("v1", manager.getClientStore("client", options()));
+		manager.clientLocationDeleted("client", "test");
+		assertNull(manager.getClientStore("client", options()));
+	}
+}
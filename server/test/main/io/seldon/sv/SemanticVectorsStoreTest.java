@@ -0,0 +1,117 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.sv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.seldon.semvec.SemVectorResult;
+import io.seldon.semvec.StringTransform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.vectors.RealVector;
+
+public class SemanticVectorsStoreTest {
+
+	// matches the dimension of the store's default flag config used to build query vectors
+	private static final int DIM = 200;
+
+	private static VectorStoreRAM createStoreWithDuplicates(int n)
+	{
+		Random r = new Random(1);
+		VectorStoreRAM store = new VectorStoreRAM(FlagConfig.getFlagConfig(new String[] {"-vectortype","real","-dimension",""+DIM}));
+		float[] query = null;
+		for(int i=0;i<n;i++)
+		{
+			float[] coords = new float[DIM];
+			for(int d=0;d<DIM;d++)
+				coords[d] = (float) r.nextGaussian();
+			if (i == 0)
+				query = coords;
+			store.putVector("doc"+i, new RealVector(coords));
+		}
+		// two identical vectors close to doc0 so both would be its nearest neighbours
+		float[] near = new float[DIM];
+		for(int d=0;d<DIM;d++)
+			near[d] = query[d] + (float) (0.1 * r.nextGaussian());
+		store.putVector("copyA", new RealVector(near.clone()));
+		store.putVector("copyB", new RealVector(near.clone()));
+		return store;
+	}
+
+	private static int countCopies(ArrayList<SemVectorResult<String>> results)
+	{
+		int copies = 0;
+		for(SemVectorResult<String> r : results)
+			if (r.getResult().startsWith("copy"))
+				copies++;
+		return copies;
+	}
+
+	@Test
+	public void indexedRecommendShouldRemoveDuplicatesLikeFullScan()
+	{
+		VectorStoreRAM store = createStoreWithDuplicates(1000);
+		VectorIndex index = VectorIndex.build(store);
+		SemanticVectorsStore sv = new SemanticVectorsStore(store, store, index);
+
+		ArrayList<SemVectorResult<String>> exact = new ArrayList<>();
+		sv.recommendDocsUsingDocQuery("doc0", exact, new StringTransform(), 10, Collections.singleton("doc0"), null, 0);
+		ArrayList<SemVectorResult<String>> indexed = new ArrayList<>();
+		sv.recommendDocsUsingDocQuery("doc0", indexed, new StringTransform(), 10, Collections.singleton("doc0"), null, index.getNumLists());
+
+		assertEquals(1, countCopies(exact));
+		assertEquals(1, countCopies(indexed));
+		assertEquals(exact.size(), indexed.size());
+		for(int i=0;i<exact.size();i++)
+			assertEquals(exact.get(i).getScore(), indexed.get(i).getScore(), 0.0001);
+	}
+
+	@Test
+	public void searchShouldUseIndexOnlyWhenProbesGiven()
+	{
+		VectorStoreRAM store = createStoreWithDuplicates(1000);
+		VectorIndex index = VectorIndex.build(store);
+		SemanticVectorsStore sv = new SemanticVectorsStore(store, store, index);
+
+		ArrayList<SemVectorResult<String>> exact = new ArrayList<>();
+		sv.searchDocsUsingDocQuery("doc0", exact, new StringTransform(), 10, 0);
+		ArrayList<SemVectorResult<String>> indexed = new ArrayList<>();
+		sv.searchDocsUsingDocQuery("doc0", indexed, new StringTransform(), 10, index.getNumLists());
+
+		assertEquals(10, exact.size());
+		assertEquals(exact.size(), indexed.size());
+		for(int i=0;i<exact.size();i++)
+			assertEquals(exact.get(i).getScore(), indexed.get(i).getScore(), 0.0001);
+		assertTrue(exact.get(0).getResult().equals("doc0"));
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+package io.seldon.sv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import pitt.search.semanticvectors.FlagConfig;
+import pitt.search.semanticvectors.SearchResult;
+import pitt.search.semanticvectors.VectorStoreRAM;
+import pitt.search.semanticvectors.vectors.RealVector;
+import pitt.search.semanticvectors.vectors.Vector;
+
+public class VectorIndexTest {
+
+	private static VectorStoreRAM createStore(int n,int dim)
+	{
+		Random r = new Random(1);
+		VectorStoreRAM store = new VectorStoreRAM(FlagConfig.getFlagConfig(new String[] {"-vectortype","real","-dimension",""+dim}));
+		for(int i=0;i<n;i++)
+		{
+			float[] coords = new float[dim];
+			for(int d=0;d<dim;d++)
+				coords[d] = (float) r.nextGaussian();
+			store.putVector("doc"+i, new RealVector(coords));
+		}
+		return store;
+	}
+
+	private static Set<String> names(LinkedList<SearchResult> results)
+	{
+		Set<String> res = new HashSet<>();
+		for(SearchResult r : results)
+			res.add(r.getObjectVector().getObject().toString());
+		return res;
+	}
+
+	@Test
+	public void probingAllListsShouldBeExact()
+	{
+		VectorStoreRAM store = createStore(2000, 16);
+		VectorIndex index = VectorIndex.build(store);
+		Vector query = store.getVector("doc7");
+		LinkedList<SearchResult> results = index.search(query, 10, index.getNumLists(), Collections.singleton("doc7"), null, null);
+		assertEquals(10, results.size());
+		double last = Double.MAX_VALUE;
+		for(SearchResult r : results)
+		{
+			assertTrue(r.getScore() <= last);
+			last = r.getScore();
+		}
+		int better = 0;
+		for(int i=0;i<2000;i++)
+			if (i != 7 && query.measureOverlap(store.getVector("doc"+i)) > last + 1e-6)
+				better++;
+		assertEquals(9, better);
+		assertEquals(results.getFirst().getScore(), query.measureOverlap(results.getFirst().getObjectVector().getVector()), 1e-5);
+	}
+
+	@Test
+	public void probingSomeListsShouldHaveReasonableRecall()
+	{
+		VectorStoreRAM store = createStore(5000, 8);
+		VectorIndex index = VectorIndex.build(store);
+		int found = 0;
+		for(int q=0;q<20;q++)
+		{
+			Vector query = store.getVector("doc"+q);
+			Set<String> exact = names(index.search(query, 10, index.getNumLists(), null, null, null));
+			Set<String> approx = names(index.search(query, 10, index.getNumLists() / 4, null, null, null));
+			approx.retainAll(exact);
+			found += approx.size();
+		}
+		assertTrue("recall "+found, found >= 150);
+	}
+
+	@Test
+	public void nonRealVectorsShouldNotBeIndexed()
+	{
+		FlagConfig flagConfig = FlagConfig.getFlagConfig(new String[] {"-vectortype","binary","-dimension","64"});
+		VectorStoreRAM store = new VectorStoreRAM(flagConfig);
+		store.putVector("doc", pitt.search.semanticvectors.vectors.VectorFactory.generateRandomVector(flagConfig.vectortype(), 64, 8, new Random(1)));
+		assertNull(VectorIndex.build(store));
+	}
+}
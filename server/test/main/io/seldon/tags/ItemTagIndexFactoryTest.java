@@ -0,0 +1,55 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.tags;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ItemTagIndexFactoryTest {
+
+	@Test
+	public void updatesDuringARebuildShouldBeAppliedToTheNewIndex()
+	{
+		ItemTagIndexFactory factory = new ItemTagIndexFactory(0);
+		String key = ItemTagIndexFactory.key("test", 1);
+		ItemTagIndexFactory.PendingUpdates updates = factory.track(key);
+		// the rebuild read item 1 before it was updated
+		ItemTagIndex.Builder builder = new ItemTagIndex.Builder(1, "tags").add(1L, "a").add(2L, "a");
+		factory.itemUpdated("test", 1L, Collections.singletonMap("tags", "b"));
+		factory.itemUpdated("test", 3L, Collections.singletonMap("other", "a"));
+		ItemTagIndex index = factory.publish(key, builder.build(), updates);
+		assertArrayEquals(new long[] {2L}, index.getItems("a"));
+		assertArrayEquals(new long[] {1L}, index.getItems("b"));
+
+		// later updates go straight to the published index
+		factory.itemUpdated("test", 2L, Collections.singletonMap("tags", "b"));
+		assertEquals(0, index.getItems("a").length);
+		assertEquals(2, index.getItems("b").length);
+	}
+}
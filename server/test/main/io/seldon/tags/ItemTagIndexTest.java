@@ -0,0 +1,130 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.tags;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ItemTagIndexTest {
+
+	private static long[] sorted(long[] items)
+	{
+		long[] res = items.clone();
+		Arrays.sort(res);
+		return res;
+	}
+
+	@Test
+	public void tagsShouldBeNormalised()
+	{
+		ItemTagIndex index = new ItemTagIndex.Builder(1, "tags")
+			.add(1L, "Football, tennis ,,golf")
+			.add(2L, "football")
+			.build();
+		assertArrayEquals(new long[] {1L,2L}, sorted(index.getItems(" FOOTBALL ")));
+		assertArrayEquals(new long[] {1L}, index.getItems("tennis"));
+		assertEquals(0, index.getItems("foot").length);
+		assertEquals(3, index.getNumTags());
+		assertEquals(2, index.getNumItems());
+	}
+
+	@Test
+	public void rowsForTheSameItemShouldMerge()
+	{
+		ItemTagIndex index = new ItemTagIndex.Builder(1, "tags")
+			.add(1L, "a,b")
+			.add(1L, "b,c")
+			.build();
+		assertArrayEquals(new long[] {1L}, index.getItems("b"));
+		assertArrayEquals(new long[] {1L}, index.getItems("c"));
+	}
+
+	@Test
+	public void updatesShouldReplaceItemTags()
+	{
+		ItemTagIndex index = new ItemTagIndex.Builder(1, "tags")
+			.add(1L, "a,b")
+			.add(2L, "a")
+			.build();
+		index.setItemTags(1L, "b,c");
+		assertArrayEquals(new long[] {2L}, index.getItems("a"));
+		assertArrayEquals(new long[] {1L}, index.getItems("b"));
+		assertArrayEquals(new long[] {1L}, index.getItems("c"));
+		index.setItemTags(3L, "a");
+		assertArrayEquals(new long[] {2L,3L}, sorted(index.getItems("a")));
+		index.setItemTags(2L, null);
+		assertArrayEquals(new long[] {3L}, index.getItems("a"));
+		assertEquals(2, index.getNumItems());
+	}
+
+	@Test
+	public void postingsShouldGrowAndCompactAcrossManyUpdates()
+	{
+		ItemTagIndex index = new ItemTagIndex.Builder(1, "tags").build();
+		for (long i=0;i<1000;i++)
+			index.setItemTags(i, "a");
+		for (long i=0;i<1000;i+=3)
+			index.setItemTags(i, "b");
+		long[] a = index.getItems("a");
+		assertEquals(1000 - 334, a.length);
+		for (long item : a)
+			assertTrue(item % 3 != 0);
+		assertEquals(334, index.getItems("b").length);
+		for (long i=0;i<1000;i++)
+			index.setItemTags(i, null);
+		assertEquals(0, index.getItems("a").length);
+		assertEquals(0, index.getNumTags());
+		index.setItemTags(5L, "a");
+		assertArrayEquals(new long[] {5L}, index.getItems("a"));
+	}
+
+	@Test
+	public void iteratorShouldNotSeeLaterUpdates()
+	{
+		ItemTagIndex index = new ItemTagIndex.Builder(1, "tags")
+			.add(1L, "a")
+			.add(2L, "a")
+			.build();
+		LongIterator it = index.iterator("a");
+		index.setItemTags(3L, "a");
+		index.setItemTags(1L, null);
+		index.setItemTags(2L, null);
+		LongArrayList seen = new LongArrayList();
+		while (it.hasNext())
+			seen.add(it.nextLong());
+		assertTrue(seen.size() <= 2);
+		assertFalse(seen.contains(3L));
+		assertArrayEquals(new long[] {3L}, index.getItems("a"));
+		assertFalse(index.iterator("none").hasNext());
+	}
+}
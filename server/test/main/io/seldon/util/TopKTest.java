@@ -0,0 +1,114 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKTest {
+
+	@Test
+	public void selectionShouldMatchFullSort()
+	{
+		Random r = new Random(1);
+		Map<Long,Double> scores = new HashMap<>();
+		for(long id=0;id<5000;id++)
+			scores.put(id, r.nextDouble());
+		List<Double> sorted = new ArrayList<>(scores.values());
+		Collections.sort(sorted, Collections.reverseOrder());
+		for(int k : new int[] {1,10,100,5000,6000})
+		{
+			TopK top = TopK.select(scores, k).sortDescending();
+			assertEquals(Math.min(k, scores.size()), top.size());
+			for(int i=0;i<top.size();i++)
+			{
+				assertEquals(sorted.get(i), top.getScore(i), 0);
+				assertEquals(scores.get(top.getId(i)), top.getScore(i), 0);
+			}
+		}
+	}
+
+	@Test
+	public void shouldOnlyAcceptScoresBeatingTheKthBest()
+	{
+		TopK top = new TopK(2);
+		assertTrue(top.offer(1, 1.0));
+		assertTrue(top.offer(2, 3.0));
+		assertFalse(top.accepts(0.5));
+		assertFalse(top.offer(3, 0.5));
+		assertTrue(top.offer(4, 2.0));
+		assertEquals(2.0, top.minScore(), 0);
+		assertEquals(2, top.toMap().size());
+		assertEquals(4L, (long) top.toIdList().get(1));
+	}
+
+	@Test
+	public void zeroKShouldSelectNothing()
+	{
+		TopK top = new TopK(0);
+		assertFalse(top.offer(1, 1.0));
+		assertTrue(top.toIdList().isEmpty());
+	}
+
+	@Test
+	public void collectionToolsShouldLimitToBestValues()
+	{
+		Map<String,Double> scores = new HashMap<>();
+		scores.put("a", 1.0);
+		scores.put("b", 4.0);
+		scores.put("c", 3.0);
+		scores.put("d", 2.0);
+		assertEquals(Arrays.asList("b","c"), CollectionTools.sortMapAndLimitToList(scores, 2));
+		assertEquals(Arrays.asList("a","d","c"), CollectionTools.sortMapAndLimitToList(scores, 3, false));
+		assertEquals(4, CollectionTools.sortMapAndLimitToList(scores, 10).size());
+		assertTrue(CollectionTools.sortMapAndLimit(scores, 2).containsKey("b"));
+	}
+
+	@Test
+	public void zeroLimitShouldKeepNothing()
+	{
+		TopK top = new TopK(0);
+		assertFalse(top.accepts(1.0));
+		assertFalse(top.offer(1L, 1.0));
+		assertEquals(0, top.size());
+		assertEquals(Double.POSITIVE_INFINITY, top.minScore(), 0);
+		assertTrue(top.toIdList().isEmpty());
+		Map<Long,Double> scores = new HashMap<>();
+		scores.put(1L, 1.0);
+		assertEquals(0, TopK.select(scores, 0).size());
+		assertEquals(Double.NEGATIVE_INFINITY, new TopK(2).minScore(), 0);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.vw;
+
+import static org.junit.Assert.assertEquals;
+
+import io.seldon.prediction.PredictionsResult;
+import io.seldon.vw.VwModelManager.VwModel;
+
+import java.util.HashMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public class VwClassifierTest {
+
+	@Test
+	public void scoresShouldMatchHashingEachFeaturePerClass() throws Exception
+	{
+		int bits = 10;
+		int oaa = 3;
+		VwFeatureHash hasher = new VwFeatureHash(bits, oaa);
+		float[] weights = new float[1 << bits];
+		for(int label=1;label<=oaa;label++)
+		{
+			weights[hasher.getFeatureHash(label, "", "f1")] += 0.5f * label;
+			weights[hasher.getFeatureHash(label, "", "7")] += -0.25f;
+			weights[hasher.getFeatureHash(label, "ns", "f2")] += 0.1f * label;
+			weights[hasher.getConstantHash(label)] += 0.01f;
+		}
+		VwModel model = new VwModel(bits, oaa, weights, 12, new HashMap<Integer,String>());
+		JsonNode json = new ObjectMapper().readTree("{\"f1\":2.0,\"7\":1.0,\"ns\":{\"f2\":3.0,\"text\":\"x\"},\"s\":\"ignored\"}");
+
+		PredictionsResult res = new VwClassifier(null, new VwFeatureExtractor()).predict(model, json);
+		assertEquals(oaa, res.predictions.size());
+		for(int label=1;label<=oaa;label++)
+		{
+			float expected = 2.0f * weights[hasher.getFeatureHash(label, "", "f1")]
+					+ weights[hasher.getFeatureHash(label, "", "7")]
+					+ 3.0f * weights[hasher.getFeatureHash(label, "ns", "f2")]
+					+ weights[hasher.getConstantHash(label)];
+			assertEquals(expected, res.predictions.get(label-1).prediction, 1e-5);
+			assertEquals(""+label, res.predictions.get(label-1).predictedClass);
+		}
+	}
+
+	@Test
+	public void featureBuffersShouldGrow()
+	{
+		VwFeatureExtractor.HashedFeatures f = new VwFeatureExtractor.HashedFeatures();
+		for(int i=0;i<200;i++)
+			f.add(i, i);
+		assertEquals(200, f.size());
+		assertEquals(199.0f, f.values[199], 0);
+		f.clear();
+		assertEquals(0, f.size());
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Seldon -- open source prediction engine
+ * =======================================
+ *
+ * Copyright 2011-2015 Seldon Technologies Ltd and Rummble Ltd (http://www.seldon.io/)
+ *
+ * ********************************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * ********************************************************************************************
+ */
+
+
+package io.seldon.vw;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import io.seldon.resources.external.NewResourceNotifier;
+import io.seldon.vw.VwModelManager.VwModel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class VwModelManagerTest {
+
+	private static VwModel load(String model) throws IOException
+	{
+		VwModelManager manager = new VwModelManager(null, createNiceMock(NewResourceNotifier.class));
+		return manager.loadModel(new BufferedReader(new StringReader(model)), new HashMap<Integer,String>());
+	}
+
+	@Test
+	public void weightsShouldBeReadIntoTheModel() throws IOException
+	{
+		VwModel model = load("Version 7.10.1\nbits:4\noptions: --oaa 2\n:0\n3:0.5\n9:-1.25\n");
+		assertEquals(4, model.bits);
+		assertEquals(2, model.oaa);
+		assertEquals(16, model.weights.length);
+		assertEquals(-1.25f, model.weights[9], 0f);
+	}
+
+	@Test
+	public void modelsWithTooManyBitsShouldFailAtLoad()
+	{
+		try
+		{
+			// no features so the weights would only be allocated after the header
+			load("Version 7.10.1\nbits:30\n");
+			fail("expected the model to be rejected");
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+	}
+}